@@ -0,0 +1,21 @@
+package edu.virginia.lib.covers;
+
+import java.util.List;
+import java.util.concurrent.Future;
+
+/**
+ * A CoverSource that can look up a cover image without tying up the calling
+ * thread while it waits on the underlying source.
+ */
+public interface AsyncCoverSource extends CoverSource {
+
+    /**
+     * Starts looking up the image described by the identifiers.  This
+     * returns immediately; the returned Future completes with the CoverImage
+     * (or null if the source has no image) or fails with the exception that
+     * getCoverImage() would have thrown.  Cancelling the Future abandons the
+     * lookup.
+     */
+    public Future<CoverImage> getCoverImageAsync(List<Identifier> identifiers);
+
+}
@@ -1,5 +1,6 @@
 package edu.virginia.lib.covers;
 
+import java.io.Closeable;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.List;
@@ -10,8 +11,12 @@ import java.util.Map;
  * an array of CoverSource instances which are scaled to meet the caller's
  * requirements.  Optionally a BinaryCache implementation may be provided which
  * will be used by this class to cache all master and derivative images.
+ *
+ * Implementations are expected to be thread safe, created once and shared by
+ * all requests, and closed when no longer needed to release the resources
+ * (connection pools, for instance) held by their sources.
  */
-public interface CoverService {
+public interface CoverService extends Closeable {
 
     /**
      * Adds a cover source to this provider.  The order
@@ -32,4 +37,14 @@ public interface CoverService {
     public InputStream getCoverImage(List<Identifier> identifiers,
                                      int maxWidth, int maxHeight) throws IOException;
 
+    /**
+     * Gets the image described by the identifiers scaled to the specified
+     * size only if it's already in the cache.  This never consults the
+     * underlying sources or scales an image, so it's always quick.
+     *
+     * @return the scaled image or null if it isn't cached
+     */
+    public InputStream getCachedCoverImage(List<Identifier> identifiers,
+                                           int maxWidth, int maxHeight) throws IOException;
+
 }
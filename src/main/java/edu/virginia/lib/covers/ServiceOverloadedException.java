@@ -0,0 +1,27 @@
+package edu.virginia.lib.covers;
+
+import java.io.IOException;
+
+/**
+ * An exception thrown when a request cannot be handled because a bounded
+ * resource (such as the pool of image conversion processes) is saturated.
+ * Unlike other failures this says nothing about the requested content, so it
+ * should not be cached and the client may simply try again later.
+ */
+public class ServiceOverloadedException extends IOException {
+
+    private int retryAfterSeconds;
+
+    public ServiceOverloadedException(String message, int retryAfterSeconds) {
+        super(message);
+        this.retryAfterSeconds = retryAfterSeconds;
+    }
+
+    /**
+     * Gets the number of seconds after which the client might reasonably
+     * try again.
+     */
+    public int getRetryAfterSeconds() {
+        return retryAfterSeconds;
+    }
+}
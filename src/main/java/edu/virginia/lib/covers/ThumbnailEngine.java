@@ -0,0 +1,24 @@
+package edu.virginia.lib.covers;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Represents a mechanism to create scaled-down JPEG versions of cover images.
+ */
+public interface ThumbnailEngine {
+
+    /**
+     * Writes a JPEG version of the given image scaled (preserving its aspect
+     * ratio) to fit within the given bounding box.  Only the first frame of
+     * multi-frame images is used.
+     *
+     * @throws UnsupportedImageTypeException if this engine cannot handle the
+     *         image, in which case nothing will have been written to the
+     *         output.
+     */
+    public void createThumbnail(File original, OutputStream thumbnail, int maxWidth, int maxHeight)
+            throws IOException, UnsupportedImageTypeException;
+
+}
@@ -0,0 +1,16 @@
+package edu.virginia.lib.covers;
+
+/**
+ * An exception thrown when a ThumbnailEngine is asked to scale an image whose
+ * format it does not support.
+ */
+public class UnsupportedImageTypeException extends Exception {
+
+    public UnsupportedImageTypeException(String message) {
+        super(message);
+    }
+
+    public UnsupportedImageTypeException(String message, Throwable cause) {
+        super(message, cause);
+    }
+}
@@ -0,0 +1,17 @@
+package edu.virginia.lib.covers.cache;
+
+/**
+ * Implemented by BinaryCaches that keep track of when their content was last
+ * read (to decide what to evict), so that a cache holding content in front
+ * of one can report the reads it answers without reaching it.
+ */
+public interface AccessTracking {
+
+    /**
+     * Records that the content for the given id was read from a cache in
+     * front of this one.  This is called on the request path, so it must be
+     * cheap.
+     */
+    public void touch(String id);
+
+}
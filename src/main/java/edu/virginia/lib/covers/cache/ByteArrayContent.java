@@ -0,0 +1,48 @@
+package edu.virginia.lib.covers.cache;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Content held in a byte array, along with its digest.
+ */
+public class ByteArrayContent extends ByteArrayInputStream implements DigestedContent {
+
+    private final byte[] digest;
+
+    public ByteArrayContent(byte[] content, byte[] digest) {
+        super(content);
+        this.digest = digest;
+    }
+
+    /**
+     * Gets the MD5 digest of the given content.
+     */
+    public static byte[] digest(byte[] content) {
+        try {
+            return MessageDigest.getInstance("MD5").digest(content);
+        } catch (NoSuchAlgorithmException ex) {
+            // every JVM is required to support MD5
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    @Override
+    public byte[] getDigest() {
+        return digest.clone();
+    }
+
+    @Override
+    public int getLength() {
+        return count;
+    }
+
+    @Override
+    public synchronized void writeTo(OutputStream out) throws IOException {
+        out.write(buf, pos, count - pos);
+        pos = count;
+    }
+}
@@ -0,0 +1,28 @@
+package edu.virginia.lib.covers.cache;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Implemented by the streams of content from caches that keep the MD5
+ * digest of each entry along with it, so that the content can be served
+ * with an entity tag without being read (and hashed) first.
+ */
+public interface DigestedContent {
+
+    /**
+     * Gets the MD5 digest of the content.
+     */
+    public byte[] getDigest();
+
+    /**
+     * Gets the length of the content.
+     */
+    public int getLength();
+
+    /**
+     * Writes the remaining content to the given stream.
+     */
+    public void writeTo(OutputStream out) throws IOException;
+
+}
@@ -0,0 +1,107 @@
+package edu.virginia.lib.covers.cache.filesystem;
+
+import java.io.File;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Maps the ids of a FileBinaryCache to file paths within its base directory.
+ * An id is split at its last separator into a directory and a file name, each
+ * percent-encoded (or hashed, if too long) so that no request can add path
+ * segments, and the directories are sharded by the MD5 hash of their names:
+ * "ISBN/0312932081/120x120" is stored as "d5/b3/ISBN%2F0312932081/120x120".
+ */
+final class CacheLayout {
+
+    /**
+     * The longest encoded name used as is, comfortably within the 255 byte
+     * limit of common file systems even with a temporary file's affixes.
+     */
+    private static final int MAX_NAME_LENGTH = 200;
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private static final char[] PERCENT_HEX = "0123456789ABCDEF".toCharArray();
+
+    private CacheLayout() {
+    }
+
+    /**
+     * Gets the path of the file for an id, relative to the base directory.
+     */
+    static String getRelativePath(String id) {
+        final int separator = Math.max(id.lastIndexOf('/'), id.lastIndexOf(File.separatorChar));
+        final String directory = id.substring(0, Math.max(separator, 0)).replace(File.separatorChar, '/');
+        final String name = id.substring(separator + 1);
+        final byte[] hash = md5(directory.length() > 0 ? directory : name);
+        final StringBuilder path = new StringBuilder();
+        appendHex(path, hash[0]);
+        path.append(File.separatorChar);
+        appendHex(path, hash[1]);
+        path.append(File.separatorChar);
+        if (directory.length() > 0) {
+            path.append(encode(directory)).append(File.separatorChar);
+        }
+        return path.append(encode(name)).toString();
+    }
+
+    /**
+     * Determines whether a name at the top of the base directory is one of
+     * the directories of the first level of the layout.
+     */
+    static boolean isShardDirectory(String name) {
+        return name.length() == 2 && isHex(name.charAt(0)) && isHex(name.charAt(1));
+    }
+
+    /**
+     * Percent-encodes a name, or gives its hash if that would be too long.
+     */
+    static String encode(String name) {
+        final byte[] bytes = utf8(name);
+        final StringBuilder encoded = new StringBuilder(bytes.length + 8);
+        for (int i = 0; i < bytes.length; i ++) {
+            final int b = bytes[i] & 0xff;
+            if ((b >= 'a' && b <= 'z') || (b >= 'A' && b <= 'Z') || (b >= '0' && b <= '9')
+                    || b == '-' || b == '_' || (b == '.' && i > 0)) {
+                encoded.append((char) b);
+            } else {
+                encoded.append('%').append(PERCENT_HEX[b >> 4]).append(PERCENT_HEX[b & 0xf]);
+            }
+        }
+        if (encoded.length() > MAX_NAME_LENGTH) {
+            encoded.setLength(0);
+            encoded.append('~');
+            for (byte b : md5(name)) {
+                appendHex(encoded, b);
+            }
+        }
+        return encoded.toString();
+    }
+
+    private static boolean isHex(char c) {
+        return (c >= '0' && c <= '9') || (c >= 'a' && c <= 'f');
+    }
+
+    private static void appendHex(StringBuilder sb, byte b) {
+        sb.append(HEX[(b >> 4) & 0xf]).append(HEX[b & 0xf]);
+    }
+
+    private static byte[] md5(String value) {
+        try {
+            return MessageDigest.getInstance("MD5").digest(utf8(value));
+        } catch (NoSuchAlgorithmException ex) {
+            // every JVM is required to support MD5
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    private static byte[] utf8(String value) {
+        try {
+            return value.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException ex) {
+            // every JVM is required to support UTF-8
+            throw new IllegalStateException(ex);
+        }
+    }
+}
@@ -1,85 +1,367 @@
 package edu.virginia.lib.covers.cache.filesystem;
 
 import edu.virginia.lib.covers.BinaryCache;
+import edu.virginia.lib.covers.cache.AccessTracking;
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.IOUtils;
+import org.slf4j.Logger;
 
+import java.io.Closeable;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.Date;
 
-public class FileBinaryCache implements BinaryCache {
+import static org.slf4j.LoggerFactory.getLogger;
+
+/**
+ * A BinaryCache that stores each entry in a file under a base directory,
+ * at a path derived from its id as described in CacheLayout.
+ *
+ * Content is written to a synced temporary file and renamed over the entry's
+ * file, so readers (and the cache after a crash) never see part of it.  Reads
+ * take no locks; the rename is done under one of a fixed set of lock stripes.
+ *
+ * The cache grows without limit unless it's given a maximum number of bytes
+ * or files, which a FileCacheEvictor enforces in the background.
+ *
+ * Caches written before CacheLayout are migrated while in use: a read that
+ * misses moves the id's files itself while a LegacyLayoutMigrator moves the
+ * rest.
+ */
+public class FileBinaryCache implements BinaryCache, AccessTracking, Closeable {
+
+    private static final Logger LOGGER = getLogger(FileBinaryCache.class);
+
+    private static final int LOCK_STRIPES = 64;
+
+    /**
+     * The suffix of temporary files, which are left behind only if the
+     * process dies while writing them.
+     */
+    static final String TEMP_SUFFIX = ".tmp";
+
+    /**
+     * The age beyond which a temporary file must have been left behind by a
+     * process that died while writing it.
+     */
+    static final long STALE_TEMP_FILE_MS = 60 * 60 * 1000;
+
+    static final String NO_CONTENT_SUFFIX = "-nocontent";
 
     private final File baseDir;
 
+    private final Object[] locks = new Object[LOCK_STRIPES];
+
+    private final FileCacheEvictor evictor;
+
+    /**
+     * True until every file has been moved from the flat layout.
+     */
+    private volatile boolean migrating;
+
     public FileBinaryCache(File base) {
+        this(base, 0, 0);
+    }
+
+    /**
+     * @param base the directory in which the files are stored
+     * @param maxBytes the most bytes of content to keep, or 0 for no limit
+     * @param maxFiles the most files (content and no-content markers) to
+     *                 keep, or 0 for no limit
+     */
+    public FileBinaryCache(File base, long maxBytes, long maxFiles) {
         this.baseDir = base;
+        for (int i = 0; i < locks.length; i ++) {
+            locks[i] = new Object();
+        }
+        if (maxBytes > 0 || maxFiles > 0) {
+            evictor = new FileCacheEvictor(this, maxBytes > 0 ? maxBytes : Long.MAX_VALUE, maxFiles > 0 ? maxFiles : Long.MAX_VALUE);
+        } else {
+            evictor = null;
+        }
+        if (LegacyLayoutMigrator.hasLegacyFiles(baseDir)) {
+            migrating = true;
+            final Thread migrator = new Thread(new LegacyLayoutMigrator(this), "file-cache-migrator");
+            migrator.setDaemon(true);
+            migrator.start();
+        }
+        if (evictor != null) {
+            evictor.start();
+        }
+    }
+
+    /**
+     * Gets the evictor that keeps this cache within its limits, or null if
+     * it has none.
+     */
+    public FileCacheEvictor getEvictor() {
+        return evictor;
+    }
+
+    /**
+     * Stops the evictor (if any), saving the access times it has recorded.
+     */
+    @Override
+    public void close() throws IOException {
+        if (evictor != null) {
+            evictor.close();
+        }
     }
 
     @Override
-    public synchronized void storeContent(String id, InputStream content) throws IOException {
-        File path = getPathForId(id);
-        path.getParentFile().mkdirs();
-        FileOutputStream fos = new FileOutputStream(path);
+    public void storeContent(String id, InputStream content) throws IOException {
+        final String name = CacheLayout.getRelativePath(id);
+        final File path = new File(baseDir, name);
+        final File temp = createTempFile(path);
         try {
-            IOUtils.copy(content, fos);
-            clearNoConent(id);
+            final long size;
+            final FileOutputStream fos = new FileOutputStream(temp);
+            try {
+                size = IOUtils.copyLarge(content, fos);
+                fos.getFD().sync();
+            } finally {
+                fos.close();
+            }
+            synchronized (getLock(name)) {
+                replace(temp, path);
+                clearNoConent(name);
+                if (evictor != null) {
+                    evictor.stored(name, size);
+                }
+            }
         } finally {
-            fos.close();
+            if (temp.exists()) {
+                temp.delete();
+            }
         }
     }
 
     @Override
-    public synchronized void markNoContent(String id) throws IOException {
-        FileUtils.writeStringToFile(getNoContentPathForId(id), "Marked as having no content on " + new Date() + ".");
+    public void markNoContent(String id) throws IOException {
+        final String name = CacheLayout.getRelativePath(id);
+        final File path = new File(baseDir, name + NO_CONTENT_SUFFIX);
+        final File temp = createTempFile(path);
+        try {
+            FileUtils.writeStringToFile(temp, "Marked as having no content on " + new Date() + ".");
+            final long size = temp.length();
+            synchronized (getLock(name)) {
+                replace(temp, path);
+                if (evictor != null) {
+                    evictor.stored(name + NO_CONTENT_SUFFIX, size);
+                }
+            }
+        } finally {
+            if (temp.exists()) {
+                temp.delete();
+            }
+        }
     }
 
-    private void clearNoConent(String id) {
-        File noContentFile = getNoContentPathForId(id);
-        if (noContentFile.exists()) {
-            noContentFile.delete();
+    private void clearNoConent(String name) {
+        File noContentFile = new File(baseDir, name + NO_CONTENT_SUFFIX);
+        if (noContentFile.exists() && noContentFile.delete() && evictor != null) {
+            evictor.removed(name + NO_CONTENT_SUFFIX);
         }
     }
 
     @Override
-    public synchronized InputStream getContent(String id) throws IOException {
-        File path = getPathForId(id);
-        if (path.exists()) {
-            return new FileInputStream(path);
-        } else {
+    public InputStream getContent(String id) throws IOException {
+        final String name = CacheLayout.getRelativePath(id);
+        // read first, in case the migrator moves the file and finishes after the probe
+        final boolean wasMigrating = migrating;
+        InputStream content = open(name);
+        if (content == null && wasMigrating) {
+            // probed again even if it wasn't this call that moved it
+            migrate(id);
+            content = open(name);
+        }
+        if (content != null && evictor != null) {
+            evictor.accessed(name);
+        }
+        return content;
+    }
+
+    /**
+     * Records a read of the content for an id that was answered by a cache
+     * in front of this one.
+     */
+    @Override
+    public void touch(String id) {
+        if (evictor != null) {
+            evictor.accessed(CacheLayout.getRelativePath(id));
+        }
+    }
+
+    private InputStream open(String name) {
+        try {
+            return new FileInputStream(new File(baseDir, name));
+        } catch (FileNotFoundException ex) {
             return null;
         }
     }
 
     @Override
-    public synchronized boolean isNoContent(String id) {
-        return getNoContentPathForId(id).exists();
+    public boolean isNoContent(String id) {
+        final String name = CacheLayout.getRelativePath(id);
+        final File path = new File(baseDir, name + NO_CONTENT_SUFFIX);
+        final boolean wasMigrating = migrating;
+        if (path.exists() || (wasMigrating && migrateAndCheck(id, path))) {
+            if (evictor != null) {
+                evictor.accessed(name + NO_CONTENT_SUFFIX);
+            }
+            return true;
+        }
+        return false;
     }
 
     @Override
-    public synchronized File getContentAsFile(String id) throws IOException {
-        File path = getPathForId(id);
-        if (path.exists()) {
+    public File getContentAsFile(String id) throws IOException {
+        final String name = CacheLayout.getRelativePath(id);
+        final File path = new File(baseDir, name);
+        final boolean wasMigrating = migrating;
+        if (path.isFile() || (wasMigrating && migrateAndCheck(id, path))) {
+            if (evictor != null) {
+                evictor.accessed(name);
+            }
             return path;
         } else {
             return null;
         }
     }
 
+    /**
+     * Checks for the file after migrating, since the migrator may have moved it.
+     */
+    private boolean migrateAndCheck(String id, File path) {
+        migrate(id);
+        return path.isFile();
+    }
+
     protected File getPathForId(String id) {
-        return new File(baseDir, id);
+        return new File(baseDir, CacheLayout.getRelativePath(id));
     }
 
     protected File getNoContentPathForId(String id) {
-        return new File(baseDir, id + "-nocontent");
+        return new File(baseDir, CacheLayout.getRelativePath(id) + NO_CONTENT_SUFFIX);
+    }
+
+    /**
+     * Moves the files for an id from the flat layout, unless they've been
+     * replaced since.
+     * @return true if anything was moved
+     */
+    boolean migrate(String id) {
+        final File legacyPath = LegacyLayoutMigrator.getLegacyPath(baseDir, id);
+        if (legacyPath == null) {
+            return false;
+        }
+        final String legacyName = id.replace('/', File.separatorChar);
+        final String name = CacheLayout.getRelativePath(id);
+        final File path = new File(baseDir, name);
+        final File noContentPath = new File(baseDir, name + NO_CONTENT_SUFFIX);
+        synchronized (getLock(name)) {
+            boolean moved = false;
+            if (legacyPath.isFile()) {
+                if (path.exists()) {
+                    // replaced since, by a store
+                    removeLegacyFile(legacyPath, legacyName);
+                } else {
+                    moved |= move(legacyPath, legacyName, path, name);
+                }
+            }
+            final File legacyNoContentPath = new File(legacyPath.getPath() + NO_CONTENT_SUFFIX);
+            if (legacyNoContentPath.isFile()) {
+                if (path.exists() || noContentPath.exists()) {
+                    removeLegacyFile(legacyNoContentPath, legacyName + NO_CONTENT_SUFFIX);
+                } else {
+                    moved |= move(legacyNoContentPath, legacyName + NO_CONTENT_SUFFIX, noContentPath, name + NO_CONTENT_SUFFIX);
+                }
+            }
+            return moved;
+        }
+    }
+
+    private boolean move(File from, String fromName, File to, String toName) {
+        final File dir = to.getParentFile();
+        final long size = from.length();
+        final long lastModified = from.lastModified();
+        if ((dir.mkdirs() || dir.isDirectory()) && from.renameTo(to)) {
+            if (evictor != null) {
+                evictor.moved(fromName, toName, size, lastModified);
+            }
+            return true;
+        }
+        LOGGER.warn("Unable to move " + from + " to " + to + "!");
+        return false;
+    }
+
+    private void removeLegacyFile(File file, String name) {
+        if (file.delete() && evictor != null) {
+            evictor.removed(name);
+        }
+    }
+
+    /**
+     * Called by the migrator once there's nothing left in the flat layout.
+     */
+    void migrationComplete() {
+        migrating = false;
+    }
+
+    /**
+     * Determines whether files are still being moved from the flat layout.
+     */
+    boolean isMigrating() {
+        return migrating;
     }
 
     protected File getBaseDir() {
         return baseDir;
     }
 
+    /**
+     * Gets the lock for the entry with the given relative path.
+     */
+    Object getLock(String name) {
+        final int h = name.hashCode();
+        return locks[(h ^ (h >>> 16)) & (LOCK_STRIPES - 1)];
+    }
+
+    /**
+     * Creates a temporary file beside the given one, (re)creating the
+     * directory if need be.
+     */
+    private static File createTempFile(File path) throws IOException {
+        final File dir = path.getParentFile();
+        for (int attempt = 0; ; attempt ++) {
+            if (!dir.mkdirs() && !dir.isDirectory()) {
+                throw new IOException("Unable to create " + dir + "!");
+            }
+            try {
+                return File.createTempFile("." + path.getName() + "-", TEMP_SUFFIX, dir);
+            } catch (IOException ex) {
+                if (attempt > 0 || dir.isDirectory()) {
+                    throw ex;
+                }
+            }
+        }
+    }
+
+    /**
+     * Renames the temporary file over the given path, atomically where
+     * rename() replaces files.
+     */
+    static void replace(File temp, File path) throws IOException {
+        if (!temp.renameTo(path)) {
+            path.delete();
+            if (!temp.renameTo(path)) {
+                throw new IOException("Unable to rename " + temp + " to " + path + "!");
+            }
+        }
+    }
 
 }
@@ -0,0 +1,540 @@
+package edu.virginia.lib.covers.cache.filesystem;
+
+import org.slf4j.Logger;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.slf4j.LoggerFactory.getLogger;
+
+/**
+ * Keeps a FileBinaryCache within a number of bytes and a number of files by
+ * deleting the entries that have gone longest without being read.  Access
+ * times are kept in memory and checkpointed to a file in the cache directory.
+ *
+ * Eviction runs on a background thread, removing the files derived from an
+ * original (those in its directory) before the original itself, which counts
+ * as read whenever anything derived from it is.  Nothing read within the last
+ * minute is evicted, so a file isn't deleted between being found and opened.
+ */
+public class FileCacheEvictor implements Closeable {
+
+    private static final Logger LOGGER = getLogger(FileCacheEvictor.class);
+
+    /**
+     * The name of the checkpoint of the access times, in the cache directory.
+     */
+    static final String INDEX_FILE_NAME = ".access-index";
+
+    private static final String ORIGINAL_NAME = "original";
+
+    /**
+     * The proportion of each limit down to which the cache is reduced.
+     */
+    private static final double LOW_WATER_MARK = 0.9;
+
+    private static final long EVICTION_INTERVAL_MS = 30 * 1000;
+
+    private static final long CHECKPOINT_INTERVAL_MS = 5 * 60 * 1000;
+
+    private final FileBinaryCache cache;
+
+    private final File baseDir;
+
+    private final long maxBytes;
+
+    private final long maxFiles;
+
+    private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+
+    private final AtomicLong totalBytes = new AtomicLong();
+
+    private final AtomicLong evictedFiles = new AtomicLong();
+
+    private final AtomicLong evictedBytes = new AtomicLong();
+
+    private final AtomicBoolean evictionPending = new AtomicBoolean();
+
+    private final ScheduledExecutorService executor;
+
+    private volatile long minimumIdleMillis = 60 * 1000;
+
+    private final Runnable evictTask = new Runnable() {
+        @Override
+        public void run() {
+            evictionPending.set(false);
+            try {
+                evict();
+            } catch (RuntimeException ex) {
+                LOGGER.error("Error evicting from " + baseDir + "!", ex);
+            }
+        }
+    };
+
+    /**
+     * @param cache the cache whose files are evicted
+     * @param maxBytes the most bytes of content to keep
+     * @param maxFiles the most files (content and no-content markers) to keep
+     */
+    FileCacheEvictor(FileBinaryCache cache, long maxBytes, long maxFiles) {
+        this.cache = cache;
+        this.baseDir = cache.getBaseDir();
+        this.maxBytes = maxBytes;
+        this.maxFiles = maxFiles;
+        executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                final Thread t = new Thread(r, "file-cache-evictor");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    /**
+     * Loads the index and schedules eviction and checkpoints.
+     */
+    void start() {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    loadIndex();
+                    LOGGER.info("Indexed " + getFileCount() + " files (" + getBytes() + " bytes) in " + baseDir + ".");
+                } catch (IOException ex) {
+                    LOGGER.error("Unable to index " + baseDir + "!", ex);
+                }
+            }
+        });
+        executor.scheduleWithFixedDelay(evictTask, 0, EVICTION_INTERVAL_MS, TimeUnit.MILLISECONDS);
+        executor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    checkpoint();
+                } catch (IOException ex) {
+                    LOGGER.warn("Unable to checkpoint the access times for " + baseDir + "!", ex);
+                } catch (RuntimeException ex) {
+                    LOGGER.error("Unable to checkpoint the access times for " + baseDir + "!", ex);
+                }
+            }
+        }, CHECKPOINT_INTERVAL_MS, CHECKPOINT_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stops the background thread and checkpoints the access times.
+     */
+    @Override
+    public void close() throws IOException {
+        executor.shutdown();
+        try {
+            executor.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        checkpoint();
+    }
+
+    /**
+     * Gets the most bytes of content to keep, or Long.MAX_VALUE.
+     */
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    /**
+     * Gets the most files to keep, or Long.MAX_VALUE.
+     */
+    public long getMaxFiles() {
+        return maxFiles;
+    }
+
+    /**
+     * Gets the total size of the indexed files.
+     */
+    public long getBytes() {
+        return totalBytes.get();
+    }
+
+    /**
+     * Gets the number of indexed files.
+     */
+    public int getFileCount() {
+        return entries.size();
+    }
+
+    public long getEvictedFileCount() {
+        return evictedFiles.get();
+    }
+
+    public long getEvictedBytes() {
+        return evictedBytes.get();
+    }
+
+    /**
+     * Sets how long a file must have gone without being read before it may be
+     * evicted.
+     */
+    void setMinimumIdleMillis(long millis) {
+        this.minimumIdleMillis = millis;
+    }
+
+    /**
+     * Records that the named file was read.
+     */
+    void accessed(String name) {
+        final Entry entry = entries.get(name);
+        if (entry != null) {
+            entry.lastAccess = System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * Records that a file was renamed, keeping its access time.  Called with
+     * the cache's lock for the new name held.
+     */
+    void moved(String from, String to, long size, long lastModified) {
+        final Entry entry = entries.remove(from);
+        final Entry previous = entries.put(to, entry != null ? entry : new Entry(size, lastModified));
+        totalBytes.addAndGet((entry != null ? 0 : size) - (previous != null ? previous.size : 0));
+    }
+
+    /**
+     * Records that the named file was written.  Called with the cache's lock
+     * for the id held.
+     */
+    void stored(String name, long size) {
+        final Entry previous = entries.put(name, new Entry(size, System.currentTimeMillis()));
+        totalBytes.addAndGet(previous == null ? size : size - previous.size);
+        if (isOver(maxBytes, maxFiles) && evictionPending.compareAndSet(false, true)) {
+            try {
+                executor.execute(evictTask);
+            } catch (RejectedExecutionException ex) {
+                // closed
+            }
+        }
+    }
+
+    /**
+     * Records that the named file was deleted.  Called with the cache's lock
+     * for the id held.
+     */
+    void removed(String name) {
+        final Entry previous = entries.remove(name);
+        if (previous != null) {
+            totalBytes.addAndGet(-previous.size);
+        }
+    }
+
+    /**
+     * Waits for the work already handed to the background thread to finish.
+     */
+    void awaitBackgroundWork() throws InterruptedException, ExecutionException {
+        executor.submit(new Runnable() {
+            @Override
+            public void run() {
+            }
+        }).get();
+    }
+
+    /**
+     * Evicts files until the cache is under the low water mark of each limit.
+     */
+    synchronized void evict() {
+        if (!isOver(maxBytes, maxFiles)) {
+            return;
+        }
+        final long targetBytes = (long) (maxBytes * LOW_WATER_MARK);
+        final long targetFiles = (long) (maxFiles * LOW_WATER_MARK);
+        final long cutoff = System.currentTimeMillis() - minimumIdleMillis;
+
+        final List<Candidate> derived = new ArrayList<Candidate>();
+        final List<Candidate> originals = new ArrayList<Candidate>();
+        final Map<String, Long> directoryAccess = new HashMap<String, Long>();
+        for (Map.Entry<String, Entry> e : entries.entrySet()) {
+            final Candidate c = new Candidate(e.getKey(), e.getValue().lastAccess);
+            final String dir = getDirectory(c.name);
+            final Long latest = directoryAccess.get(dir);
+            if (latest == null || latest < c.lastAccess) {
+                directoryAccess.put(dir, c.lastAccess);
+            }
+            (isOriginal(c.name) ? originals : derived).add(c);
+        }
+
+        Collections.sort(derived);
+        for (Candidate c : derived) {
+            if (!isOver(targetBytes, targetFiles)) {
+                return;
+            } else if (c.lastAccess >= cutoff) {
+                break;
+            }
+            evictFile(c.name, cutoff, false);
+        }
+
+        for (Candidate c : originals) {
+            c.lastAccess = directoryAccess.get(getDirectory(c.name));
+        }
+        Collections.sort(originals);
+        final Set<String> evictedDirectories = new HashSet<String>();
+        for (Candidate c : originals) {
+            if (!isOver(targetBytes, targetFiles) || c.lastAccess >= cutoff) {
+                return;
+            }
+            final String dir = getDirectory(c.name);
+            if (evictedDirectories.add(dir)) {
+                evictDirectory(dir, cutoff);
+            }
+        }
+    }
+
+    /**
+     * Evicts the files derived from an original and then, if none of them
+     * has been read in the meantime, the original itself.
+     */
+    private void evictDirectory(String dir, long cutoff) {
+        final File directory = new File(baseDir, dir);
+        final File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+        final List<String> originals = new ArrayList<String>();
+        boolean evictedAll = true;
+        for (File file : files) {
+            if (file.isDirectory() || isTempFile(file)) {
+                continue;
+            }
+            final String name = dir + File.separator + file.getName();
+            if (isOriginal(name)) {
+                originals.add(name);
+            } else if (!evictFile(name, cutoff, true)) {
+                evictedAll = false;
+            }
+        }
+        if (evictedAll) {
+            for (String name : originals) {
+                evictFile(name, cutoff, true);
+            }
+            // only succeeds if nothing was written to it in the meantime
+            directory.delete();
+        }
+    }
+
+    /**
+     * Deletes a file, under the cache's lock for it, unless it has been read
+     * since the cutoff.
+     * @param unindexed true to delete the file even if it isn't in the index
+     * @return true if the file is gone
+     */
+    private boolean evictFile(String name, long cutoff, boolean unindexed) {
+        synchronized (cache.getLock(getContentName(name))) {
+            final Entry entry = entries.get(name);
+            if (entry == null ? !unindexed : entry.lastAccess >= cutoff) {
+                return false;
+            }
+            final File file = new File(baseDir, name);
+            final long size = entry == null ? file.length() : entry.size;
+            final boolean deleted = file.delete();
+            if (!deleted && file.exists()) {
+                LOGGER.warn("Unable to delete " + file + "!");
+                return false;
+            }
+            if (entry != null && entries.remove(name, entry)) {
+                totalBytes.addAndGet(-size);
+            }
+            if (deleted) {
+                evictedFiles.incrementAndGet();
+                evictedBytes.addAndGet(size);
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Indexes every file in the cache directory that isn't already, except
+     * those in the flat layout, which are indexed as they're migrated.
+     */
+    synchronized void loadIndex() throws IOException {
+        final long now = System.currentTimeMillis();
+        final Map<String, Long> checkpoint = readCheckpoint();
+        final File[] files = baseDir.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            if (file.isDirectory() && CacheLayout.isShardDirectory(file.getName())) {
+                scan(file, file.getName() + File.separator, checkpoint, now);
+            } else if (isTempFile(file) && file.lastModified() < now - FileBinaryCache.STALE_TEMP_FILE_MS) {
+                file.delete();
+            }
+        }
+    }
+
+    private void scan(File dir, String prefix, Map<String, Long> checkpoint, long now) {
+        final File[] files = dir.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            final String name = prefix + file.getName();
+            if (file.isDirectory()) {
+                scan(file, name + File.separator, checkpoint, now);
+            } else if (isTempFile(file)) {
+                if (file.lastModified() < now - FileBinaryCache.STALE_TEMP_FILE_MS) {
+                    file.delete();
+                }
+            } else {
+                final Long lastAccess = checkpoint.get(name);
+                final Entry entry = new Entry(file.length(), lastAccess != null ? lastAccess : file.lastModified());
+                if (entries.putIfAbsent(name, entry) == null) {
+                    totalBytes.addAndGet(entry.size);
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads the checkpointed access times: one line per file, with the time
+     * in milliseconds, a space and the file's path within the cache.
+     */
+    private Map<String, Long> readCheckpoint() throws IOException {
+        final Map<String, Long> accessTimes = new HashMap<String, Long>();
+        final BufferedReader r;
+        try {
+            r = new BufferedReader(new InputStreamReader(new FileInputStream(new File(baseDir, INDEX_FILE_NAME)), "UTF-8"));
+        } catch (FileNotFoundException ex) {
+            return accessTimes;
+        }
+        try {
+            String line;
+            while ((line = r.readLine()) != null) {
+                final int space = line.indexOf(' ');
+                if (space > 0) {
+                    try {
+                        accessTimes.put(line.substring(space + 1), Long.parseLong(line.substring(0, space)));
+                    } catch (NumberFormatException ex) {
+                        // a damaged line: the file's modification time will do
+                    }
+                }
+            }
+        } finally {
+            r.close();
+        }
+        return accessTimes;
+    }
+
+    /**
+     * Writes the access times of every indexed file to the checkpoint.
+     */
+    synchronized void checkpoint() throws IOException {
+        if (!baseDir.mkdirs() && !baseDir.isDirectory()) {
+            throw new IOException("Unable to create " + baseDir + "!");
+        }
+        final File temp = File.createTempFile(INDEX_FILE_NAME + "-", FileBinaryCache.TEMP_SUFFIX, baseDir);
+        try {
+            final Writer w = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(temp), "UTF-8"));
+            try {
+                for (Map.Entry<String, Entry> e : entries.entrySet()) {
+                    w.write(Long.toString(e.getValue().lastAccess));
+                    w.write(' ');
+                    w.write(e.getKey());
+                    w.write('\n');
+                }
+            } finally {
+                w.close();
+            }
+            FileBinaryCache.replace(temp, new File(baseDir, INDEX_FILE_NAME));
+        } finally {
+            if (temp.exists()) {
+                temp.delete();
+            }
+        }
+    }
+
+    private boolean isOver(long bytes, long files) {
+        return totalBytes.get() > bytes || entries.size() > files;
+    }
+
+    private static boolean isTempFile(File file) {
+        return file.getName().startsWith(".") && file.getName().endsWith(FileBinaryCache.TEMP_SUFFIX);
+    }
+
+    /**
+     * Determines whether the named file is an original or no-content marker.
+     */
+    private static boolean isOriginal(String name) {
+        final int slash = name.lastIndexOf(File.separatorChar);
+        return slash > 0 && (name.endsWith(FileBinaryCache.NO_CONTENT_SUFFIX)
+                || name.substring(slash + 1).equals(ORIGINAL_NAME));
+    }
+
+    private static String getDirectory(String name) {
+        final int slash = name.lastIndexOf(File.separatorChar);
+        return slash == -1 ? "" : name.substring(0, slash);
+    }
+
+    /**
+     * Gets the name of the content whose no-content marker (or content) this is.
+     */
+    private static String getContentName(String name) {
+        return name.endsWith(FileBinaryCache.NO_CONTENT_SUFFIX)
+                ? name.substring(0, name.length() - FileBinaryCache.NO_CONTENT_SUFFIX.length()) : name;
+    }
+
+    private static final class Entry {
+
+        private final long size;
+
+        private volatile long lastAccess;
+
+        private Entry(long size, long lastAccess) {
+            this.size = size;
+            this.lastAccess = lastAccess;
+        }
+    }
+
+    /**
+     * A file and its access time when the eviction began, so the order doesn't
+     * change while it's sorted.
+     */
+    private static final class Candidate implements Comparable<Candidate> {
+
+        private final String name;
+
+        private long lastAccess;
+
+        private Candidate(String name, long lastAccess) {
+            this.name = name;
+            this.lastAccess = lastAccess;
+        }
+
+        @Override
+        public int compareTo(Candidate o) {
+            return lastAccess < o.lastAccess ? -1 : (lastAccess == o.lastAccess ? 0 : 1);
+        }
+    }
+}
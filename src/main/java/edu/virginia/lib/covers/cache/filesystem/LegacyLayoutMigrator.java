@@ -0,0 +1,112 @@
+package edu.virginia.lib.covers.cache.filesystem;
+
+import org.slf4j.Logger;
+
+import java.io.File;
+
+import static org.slf4j.LoggerFactory.getLogger;
+
+/**
+ * Moves every file of a FileBinaryCache from the flat layout that preceded
+ * CacheLayout (in which each id was used as a path as is) to the current
+ * layout, on a background thread while the cache is in use.
+ */
+class LegacyLayoutMigrator implements Runnable {
+
+    private static final Logger LOGGER = getLogger(LegacyLayoutMigrator.class);
+
+    private final FileBinaryCache cache;
+
+    private final File baseDir;
+
+    private int migrated;
+
+    LegacyLayoutMigrator(FileBinaryCache cache) {
+        this.cache = cache;
+        this.baseDir = cache.getBaseDir();
+    }
+
+    /**
+     * Determines whether there's anything in the base directory that was
+     * written in the flat layout.
+     */
+    static boolean hasLegacyFiles(File baseDir) {
+        final String[] names = baseDir.list();
+        if (names != null) {
+            for (String name : names) {
+                if (isLegacy(name)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Gets the path at which the flat layout kept the content for an id, or
+     * null if it couldn't have been stored there.
+     */
+    static File getLegacyPath(File baseDir, String id) {
+        int start = 0;
+        for (int i = 0; i <= id.length(); i ++) {
+            if (i == id.length() || id.charAt(i) == '/' || id.charAt(i) == File.separatorChar) {
+                final String segment = id.substring(start, i);
+                if (segment.length() == 0 || segment.equals(".") || segment.equals("..")
+                        || (start == 0 && !isLegacy(segment))) {
+                    return null;
+                }
+                start = i + 1;
+            }
+        }
+        return new File(baseDir, id);
+    }
+
+    private static boolean isLegacy(String name) {
+        return !CacheLayout.isShardDirectory(name) && !name.startsWith(".");
+    }
+
+    @Override
+    public void run() {
+        final long start = System.currentTimeMillis();
+        try {
+            final File[] files = baseDir.listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    if (isLegacy(file.getName())) {
+                        migrate(file, file.getName());
+                    }
+                }
+            }
+            LOGGER.info("Moved " + migrated + " cached files in " + baseDir + " to the sharded layout in "
+                    + (System.currentTimeMillis() - start) + "ms.");
+        } catch (RuntimeException ex) {
+            LOGGER.error("Error moving cached files in " + baseDir + " to the sharded layout!", ex);
+        } finally {
+            // reads stop looking at the old paths only once everything's moved
+            cache.migrationComplete();
+        }
+    }
+
+    private void migrate(File file, String path) {
+        if (file.isDirectory()) {
+            final File[] files = file.listFiles();
+            if (files != null) {
+                for (File child : files) {
+                    migrate(child, path + File.separator + child.getName());
+                }
+            }
+            // only succeeds once it's empty
+            file.delete();
+        } else if (file.getName().startsWith(".") && file.getName().endsWith(FileBinaryCache.TEMP_SUFFIX)) {
+            if (file.lastModified() < System.currentTimeMillis() - FileBinaryCache.STALE_TEMP_FILE_MS) {
+                file.delete();
+            }
+        } else {
+            final String id = path.endsWith(FileBinaryCache.NO_CONTENT_SUFFIX)
+                    ? path.substring(0, path.length() - FileBinaryCache.NO_CONTENT_SUFFIX.length()) : path;
+            if (cache.migrate(id)) {
+                migrated ++;
+            }
+        }
+    }
+}
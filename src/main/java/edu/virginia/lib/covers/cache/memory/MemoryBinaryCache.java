@@ -0,0 +1,374 @@
+package edu.virginia.lib.covers.cache.memory;
+
+import edu.virginia.lib.covers.BinaryCache;
+import edu.virginia.lib.covers.cache.AccessTracking;
+import edu.virginia.lib.covers.cache.ByteArrayContent;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A BinaryCache that keeps the most popular content from another (slower)
+ * BinaryCache in memory, up to a total number of bytes.  Content is kept when
+ * it's first read, so content that's stored but never read (such as
+ * originals) doesn't take up room.
+ *
+ * Eviction uses a segmented LRU: content read again is promoted from a
+ * probationary segment to a protected one, so a burst of covers that are each
+ * requested once only displaces other content requested once.  Large caches
+ * are split into stripes by the hash of the id, each with its own lock.
+ */
+public class MemoryBinaryCache implements BinaryCache, AccessTracking, MemoryCacheStatistics, Closeable {
+
+    /**
+     * The share of the capacity that the protected segment may occupy.
+     */
+    private static final double PROTECTED_SHARE = 0.8;
+
+    private static final int MAX_STRIPES = 16;
+
+    /**
+     * The fewest of the largest entries each stripe must be able to hold.
+     */
+    private static final int MIN_ENTRIES_PER_STRIPE = 16;
+
+    private final BinaryCache delegate;
+
+    private final long maxBytes;
+
+    private final int maxEntryBytes;
+
+    private final Stripe[] stripes;
+
+    /**
+     * @param delegate the cache in which all content is stored
+     * @param maxBytes the most bytes of content to hold in memory
+     * @param maxEntryBytes the size of the largest content to hold in memory
+     */
+    public MemoryBinaryCache(BinaryCache delegate, long maxBytes, int maxEntryBytes) {
+        this.delegate = delegate;
+        this.maxBytes = maxBytes;
+        this.maxEntryBytes = maxEntryBytes;
+        int count = 1;
+        while (count < MAX_STRIPES && maxBytes / (count * 2) >= (long) maxEntryBytes * MIN_ENTRIES_PER_STRIPE) {
+            count *= 2;
+        }
+        stripes = new Stripe[count];
+        for (int i = 0; i < count; i ++) {
+            stripes[i] = new Stripe(maxBytes / count);
+        }
+    }
+
+    /**
+     * Gets the cache in which all content is stored.
+     */
+    public BinaryCache getDelegate() {
+        return delegate;
+    }
+
+    /**
+     * Closes the cache in which all content is stored, if it needs closing.
+     */
+    @Override
+    public void close() throws IOException {
+        if (delegate instanceof Closeable) {
+            ((Closeable) delegate).close();
+        }
+    }
+
+    @Override
+    public void storeContent(String id, InputStream content) throws IOException {
+        try {
+            delegate.storeContent(id, content);
+        } finally {
+            stripeFor(id).invalidate(id);
+        }
+    }
+
+    /**
+     * Passes the read on to the cache in which all content is stored, if it
+     * keeps track of reads.
+     */
+    @Override
+    public void touch(String id) {
+        if (delegate instanceof AccessTracking) {
+            ((AccessTracking) delegate).touch(id);
+        }
+    }
+
+    @Override
+    public void markNoContent(String id) throws IOException {
+        try {
+            delegate.markNoContent(id);
+        } finally {
+            stripeFor(id).invalidate(id);
+        }
+    }
+
+    @Override
+    public InputStream getContent(String id) throws IOException {
+        final Stripe stripe = stripeFor(id);
+        final Entry cached = stripe.get(id);
+        if (cached != null) {
+            // so the delegate doesn't take it to be idle
+            touch(id);
+            return cached.open();
+        }
+        final long generation = stripe.getGeneration();
+        final InputStream content = delegate.getContent(id);
+        if (content == null) {
+            return null;
+        }
+        final byte[] bytes;
+        try {
+            bytes = readUpTo(content, maxEntryBytes);
+        } catch (IOException ex) {
+            content.close();
+            throw ex;
+        }
+        if (bytes.length > maxEntryBytes) {
+            return new SequenceInputStream(new ByteArrayInputStream(bytes), content);
+        }
+        content.close();
+        final Entry entry = new Entry(bytes);
+        stripe.put(id, entry, generation);
+        return entry.open();
+    }
+
+    @Override
+    public boolean isNoContent(String id) {
+        return delegate.isNoContent(id);
+    }
+
+    @Override
+    public File getContentAsFile(String id) throws IOException {
+        return delegate.getContentAsFile(id);
+    }
+
+    @Override
+    public long getHitCount() {
+        long total = 0;
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                total += stripe.hitCount;
+            }
+        }
+        return total;
+    }
+
+    @Override
+    public long getMissCount() {
+        long total = 0;
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                total += stripe.missCount;
+            }
+        }
+        return total;
+    }
+
+    @Override
+    public double getHitRatio() {
+        final long hits = getHitCount();
+        final long requests = hits + getMissCount();
+        return requests == 0 ? 0 : (double) hits / requests;
+    }
+
+    @Override
+    public long getEvictionCount() {
+        long total = 0;
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                total += stripe.evictionCount;
+            }
+        }
+        return total;
+    }
+
+    @Override
+    public long getResidentBytes() {
+        long total = 0;
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                total += stripe.probationBytes + stripe.protectedBytes;
+            }
+        }
+        return total;
+    }
+
+    @Override
+    public int getResidentCount() {
+        int total = 0;
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                total += stripe.probation.size() + stripe.protectedSegment.size();
+            }
+        }
+        return total;
+    }
+
+    @Override
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    private Stripe stripeFor(String id) {
+        final int h = id.hashCode();
+        return stripes[(h ^ (h >>> 16)) & (stripes.length - 1)];
+    }
+
+    /**
+     * Reads content until the end or until more than limit bytes have been
+     * read, so the result is longer than limit if the content is.
+     */
+    private static byte[] readUpTo(InputStream content, int limit) throws IOException {
+        final ByteArrayOutputStream result = new ByteArrayOutputStream(Math.min(limit + 1, 8192));
+        final byte[] buffer = new byte[8192];
+        int read;
+        while (result.size() <= limit && (read = content.read(buffer, 0, Math.min(buffer.length, limit + 1 - result.size()))) != -1) {
+            result.write(buffer, 0, read);
+        }
+        return result.toByteArray();
+    }
+
+    /**
+     * The entries for a share of the ids, with their own segmented LRU.
+     */
+    private static final class Stripe {
+
+        private final long maxBytes;
+
+        private final long maxProtectedBytes;
+
+        private final LinkedHashMap<String, Entry> probation = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+
+        private final LinkedHashMap<String, Entry> protectedSegment = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+
+        private long probationBytes;
+
+        private long protectedBytes;
+
+        /**
+         * Incremented whenever content is replaced in the delegate, so that
+         * content read from it before then isn't kept.
+         */
+        private long generation;
+
+        private long hitCount;
+
+        private long missCount;
+
+        private long evictionCount;
+
+        private Stripe(long maxBytes) {
+            this.maxBytes = maxBytes;
+            this.maxProtectedBytes = (long) (maxBytes * PROTECTED_SHARE);
+        }
+
+        private synchronized long getGeneration() {
+            return generation;
+        }
+
+        private synchronized Entry get(String id) {
+            Entry entry = protectedSegment.get(id);
+            if (entry == null) {
+                entry = probation.remove(id);
+                if (entry == null) {
+                    missCount ++;
+                    return null;
+                }
+                probationBytes -= entry.content.length;
+                promote(id, entry);
+            }
+            hitCount ++;
+            return entry;
+        }
+
+        /**
+         * Adds content read from the delegate unless it's been replaced since
+         * the given generation.
+         */
+        private synchronized void put(String id, Entry entry, long readGeneration) {
+            if (readGeneration != generation || protectedSegment.containsKey(id) || probation.containsKey(id)) {
+                return;
+            }
+            probation.put(id, entry);
+            probationBytes += entry.content.length;
+            evict();
+        }
+
+        private synchronized void invalidate(String id) {
+            generation ++;
+            final Entry probationary = probation.remove(id);
+            if (probationary != null) {
+                probationBytes -= probationary.content.length;
+            }
+            final Entry protectedEntry = protectedSegment.remove(id);
+            if (protectedEntry != null) {
+                protectedBytes -= protectedEntry.content.length;
+            }
+        }
+
+        /**
+         * Moves content that has been read again to the protected segment.
+         */
+        private void promote(String id, Entry entry) {
+            protectedSegment.put(id, entry);
+            protectedBytes += entry.content.length;
+            final Iterator<Map.Entry<String, Entry>> it = protectedSegment.entrySet().iterator();
+            while (protectedBytes > maxProtectedBytes && it.hasNext()) {
+                final Map.Entry<String, Entry> eldest = it.next();
+                it.remove();
+                protectedBytes -= eldest.getValue().content.length;
+                probation.put(eldest.getKey(), eldest.getValue());
+                probationBytes += eldest.getValue().content.length;
+            }
+            evict();
+        }
+
+        /**
+         * Evicts the least recently read content until within the capacity.
+         */
+        private void evict() {
+            while (probationBytes + protectedBytes > maxBytes) {
+                final boolean fromProbation = !probation.isEmpty();
+                final Iterator<Map.Entry<String, Entry>> it = (fromProbation ? probation : protectedSegment).entrySet().iterator();
+                final Entry evicted = it.next().getValue();
+                it.remove();
+                if (fromProbation) {
+                    probationBytes -= evicted.content.length;
+                } else {
+                    protectedBytes -= evicted.content.length;
+                }
+                evictionCount ++;
+            }
+        }
+    }
+
+    /**
+     * Content held in memory and its digest.
+     */
+    private static final class Entry {
+
+        private final byte[] content;
+
+        private final byte[] digest;
+
+        private Entry(byte[] content) {
+            this.content = content;
+            this.digest = ByteArrayContent.digest(content);
+        }
+
+        private ByteArrayContent open() {
+            return new ByteArrayContent(content, digest);
+        }
+    }
+}
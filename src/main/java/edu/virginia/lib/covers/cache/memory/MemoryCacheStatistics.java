@@ -0,0 +1,36 @@
+package edu.virginia.lib.covers.cache.memory;
+
+/**
+ * The statistics reported by the caches that hold content in memory in front
+ * of another BinaryCache.
+ */
+public interface MemoryCacheStatistics {
+
+    public long getHitCount();
+
+    public long getMissCount();
+
+    /**
+     * Gets the proportion of reads through getContent() that were answered
+     * from memory.
+     */
+    public double getHitRatio();
+
+    public long getEvictionCount();
+
+    /**
+     * Gets the number of entries held in memory.
+     */
+    public int getResidentCount();
+
+    /**
+     * Gets the total size of the content held in memory.
+     */
+    public long getResidentBytes();
+
+    /**
+     * Gets the most memory the cache will use.
+     */
+    public long getMaxBytes();
+
+}
@@ -0,0 +1,723 @@
+package edu.virginia.lib.covers.cache.memory;
+
+import edu.virginia.lib.covers.BinaryCache;
+import edu.virginia.lib.covers.cache.AccessTracking;
+import edu.virginia.lib.covers.cache.ByteArrayContent;
+import edu.virginia.lib.covers.cache.DigestedContent;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * A BinaryCache that, like MemoryBinaryCache, keeps popular content from
+ * another BinaryCache in memory, but in direct ByteBuffers outside of the
+ * Java heap so that it doesn't add to the work of the garbage collector.
+ *
+ * The memory is allocated in slabs, each divided into chunks of one size
+ * (from 1K to 128K), and found through an open addressing index of primitive
+ * arrays.  When there's no free chunk of the size needed, one is evicted by
+ * the CLOCK algorithm, which spares entries read since the hand last passed
+ * them.  A size with no slabs of its own takes one from the size with the
+ * most.  The stream returned by getContent() reads straight from the chunk,
+ * which is pinned (and so not reused) until the stream is closed.
+ */
+public class OffHeapBinaryCache implements BinaryCache, AccessTracking, MemoryCacheStatistics, Closeable {
+
+    /**
+     * The size of each slab of memory.
+     */
+    public static final int SLAB_BYTES = 1024 * 1024;
+
+    private static final int MIN_CHUNK_SHIFT = 10;
+
+    private static final int MAX_CHUNK_SHIFT = 17;
+
+    /**
+     * The shift by which the index of a slab is stored in a chunk number: the
+     * remaining bits are the index of the chunk in the slab.
+     */
+    private static final int SLAB_SHIFT = 20 - MIN_CHUNK_SHIFT;
+
+    private static final int DIGEST_BYTES = 16;
+
+    private static final byte FREE = 0;
+
+    private static final byte LIVE = 1;
+
+    /**
+     * Removed from the index while pinned, so freed when it is unpinned.
+     */
+    private static final byte RETIRED = 2;
+
+    private final BinaryCache delegate;
+
+    private final int maxEntryBytes;
+
+    private final ByteBuffer[] slabs;
+
+    /**
+     * The size class (chunk size shift) of each allocated slab.
+     */
+    private final int[] slabShifts;
+
+    private int slabCount;
+
+    private final SizeClass[] sizeClasses = new SizeClass[MAX_CHUNK_SHIFT - MIN_CHUNK_SHIFT + 1];
+
+    // per chunk state, indexed by chunk number
+    private final byte[] states;
+
+    private final boolean[] referenced;
+
+    private final int[] pins;
+
+    private final int[] lengths;
+
+    private final long[] hashes;
+
+    // the index from key hash to chunk number
+    private final long[] indexHashes;
+
+    private final int[] indexChunks;
+
+    private final int indexMask;
+
+    private int residentCount;
+
+    private long residentBytes;
+
+    private long hitCount;
+
+    private long missCount;
+
+    private long evictionCount;
+
+    private long droppedCount;
+
+    private long reassignedSlabCount;
+
+    /**
+     * @param delegate the cache in which all content is stored
+     * @param maxBytes the most memory to use, which is rounded down to a
+     *                 multiple of SLAB_BYTES (but is at least one slab)
+     * @param maxEntryBytes the size of the largest content to hold in memory,
+     *                      which may be no more than about 128K
+     */
+    public OffHeapBinaryCache(BinaryCache delegate, long maxBytes, int maxEntryBytes) {
+        this.delegate = delegate;
+        this.maxEntryBytes = Math.min(maxEntryBytes, (1 << MAX_CHUNK_SHIFT) - DIGEST_BYTES - 256);
+        final int maxSlabs = (int) Math.max(1, Math.min(maxBytes / SLAB_BYTES, Integer.MAX_VALUE >> SLAB_SHIFT));
+        slabs = new ByteBuffer[maxSlabs];
+        slabShifts = new int[maxSlabs];
+        for (int i = 0; i < sizeClasses.length; i ++) {
+            sizeClasses[i] = new SizeClass(MIN_CHUNK_SHIFT + i);
+        }
+        final int maxChunks = maxSlabs << SLAB_SHIFT;
+        states = new byte[maxChunks];
+        referenced = new boolean[maxChunks];
+        pins = new int[maxChunks];
+        lengths = new int[maxChunks];
+        hashes = new long[maxChunks];
+        // keep the index at most half full
+        final int indexSize = Integer.highestOneBit(maxChunks) * 2;
+        indexHashes = new long[indexSize];
+        indexChunks = new int[indexSize];
+        Arrays.fill(indexChunks, -1);
+        indexMask = indexSize - 1;
+    }
+
+    /**
+     * Gets the cache in which all content is stored.
+     */
+    public BinaryCache getDelegate() {
+        return delegate;
+    }
+
+    /**
+     * Closes the cache in which all content is stored, if it needs closing.
+     */
+    @Override
+    public void close() throws IOException {
+        if (delegate instanceof Closeable) {
+            ((Closeable) delegate).close();
+        }
+    }
+
+    @Override
+    public void storeContent(String id, InputStream content) throws IOException {
+        final byte[] bytes = readUpTo(content, maxEntryBytes);
+        if (bytes.length > maxEntryBytes) {
+            remove(id);
+            delegate.storeContent(id, new SequenceInputStream(new ByteArrayInputStream(bytes), content));
+        } else {
+            delegate.storeContent(id, new ByteArrayInputStream(bytes));
+            put(id, bytes, ByteArrayContent.digest(bytes), true);
+        }
+    }
+
+    /**
+     * Passes the read on to the cache in which all content is stored, if it
+     * keeps track of reads.
+     */
+    @Override
+    public void touch(String id) {
+        if (delegate instanceof AccessTracking) {
+            ((AccessTracking) delegate).touch(id);
+        }
+    }
+
+    @Override
+    public void markNoContent(String id) throws IOException {
+        remove(id);
+        delegate.markNoContent(id);
+    }
+
+    @Override
+    public InputStream getContent(String id) throws IOException {
+        final Content cached = get(id);
+        if (cached != null) {
+            // so the delegate doesn't take it to be idle
+            touch(id);
+            return cached;
+        }
+        final InputStream content = delegate.getContent(id);
+        if (content == null) {
+            return null;
+        }
+        final byte[] bytes;
+        try {
+            bytes = readUpTo(content, maxEntryBytes);
+        } catch (IOException ex) {
+            content.close();
+            throw ex;
+        }
+        if (bytes.length > maxEntryBytes) {
+            return new SequenceInputStream(new ByteArrayInputStream(bytes), content);
+        }
+        content.close();
+        final byte[] digest = ByteArrayContent.digest(bytes);
+        put(id, bytes, digest, false);
+        return new ByteArrayContent(bytes, digest);
+    }
+
+    @Override
+    public boolean isNoContent(String id) {
+        return delegate.isNoContent(id);
+    }
+
+    @Override
+    public File getContentAsFile(String id) throws IOException {
+        return delegate.getContentAsFile(id);
+    }
+
+    @Override
+    public synchronized long getHitCount() {
+        return hitCount;
+    }
+
+    @Override
+    public synchronized long getMissCount() {
+        return missCount;
+    }
+
+    @Override
+    public synchronized double getHitRatio() {
+        final long requests = hitCount + missCount;
+        return requests == 0 ? 0 : (double) hitCount / requests;
+    }
+
+    @Override
+    public synchronized long getEvictionCount() {
+        return evictionCount;
+    }
+
+    @Override
+    public synchronized int getResidentCount() {
+        return residentCount;
+    }
+
+    @Override
+    public synchronized long getResidentBytes() {
+        return residentBytes;
+    }
+
+    @Override
+    public long getMaxBytes() {
+        return (long) slabs.length * SLAB_BYTES;
+    }
+
+    /**
+     * Gets the number of times content couldn't be held because every chunk
+     * that might have held it was pinned.
+     */
+    public synchronized long getDroppedCount() {
+        return droppedCount;
+    }
+
+    /**
+     * Gets the number of slabs that have been taken from one chunk size for
+     * another.
+     */
+    public synchronized long getReassignedSlabCount() {
+        return reassignedSlabCount;
+    }
+
+    /**
+     * Gets the memory allocated so far, which is never released.
+     */
+    public synchronized long getAllocatedBytes() {
+        return (long) slabCount * SLAB_BYTES;
+    }
+
+    private synchronized Content get(String id) throws IOException {
+        final byte[] key = id.getBytes("UTF-8");
+        final int slot = find(hash(key), key);
+        if (slot < 0) {
+            missCount ++;
+            return null;
+        }
+        hitCount ++;
+        final int chunk = indexChunks[slot];
+        referenced[chunk] = true;
+        pins[chunk] ++;
+        final ByteBuffer content = chunkBuffer(chunk);
+        content.position(content.position() + 2 + key.length);
+        final byte[] digest = new byte[DIGEST_BYTES];
+        content.get(digest);
+        content.limit(content.position() + lengths[chunk]);
+        return new Content(chunk, content.slice(), digest);
+    }
+
+    /**
+     * @param replace false if the content was read from the delegate, and so
+     *                is no newer than anything already held
+     */
+    private synchronized void put(String id, byte[] bytes, byte[] digest, boolean replace) throws IOException {
+        final byte[] key = id.getBytes("UTF-8");
+        final long hash = hash(key);
+        final int existing = find(hash, key);
+        if (existing >= 0) {
+            if (!replace) {
+                return;
+            }
+            removeSlot(existing);
+        }
+        final int size = 2 + key.length + DIGEST_BYTES + bytes.length;
+        if (key.length > Short.MAX_VALUE || size > 1 << MAX_CHUNK_SHIFT) {
+            return;
+        }
+        final SizeClass sizeClass = sizeClasses[Math.max(0, 32 - Integer.numberOfLeadingZeros(size - 1) - MIN_CHUNK_SHIFT)];
+        final int chunk = sizeClass.allocate();
+        if (chunk < 0) {
+            // every chunk of this size, and every slab, is pinned
+            droppedCount ++;
+            return;
+        }
+        final ByteBuffer b = chunkBuffer(chunk);
+        b.putShort((short) key.length);
+        b.put(key);
+        b.put(digest);
+        b.put(bytes);
+        states[chunk] = LIVE;
+        referenced[chunk] = false;
+        lengths[chunk] = bytes.length;
+        hashes[chunk] = hash;
+        residentCount ++;
+        residentBytes += bytes.length;
+        insert(hash, chunk);
+    }
+
+    private synchronized void remove(String id) throws IOException {
+        final byte[] key = id.getBytes("UTF-8");
+        final int slot = find(hash(key), key);
+        if (slot >= 0) {
+            removeSlot(slot);
+        }
+    }
+
+    private synchronized void unpin(int chunk) {
+        pins[chunk] --;
+        if (pins[chunk] == 0 && states[chunk] == RETIRED) {
+            states[chunk] = FREE;
+            sizeClasses[slabShifts[chunk >>> SLAB_SHIFT] - MIN_CHUNK_SHIFT].free(chunk);
+        }
+    }
+
+    /**
+     * Unindexes a chunk and frees it, or retires it if it's pinned.
+     */
+    private void removeSlot(int slot) {
+        final int chunk = indexChunks[slot];
+        deleteSlot(slot);
+        residentCount --;
+        residentBytes -= lengths[chunk];
+        if (pins[chunk] > 0) {
+            states[chunk] = RETIRED;
+        } else {
+            states[chunk] = FREE;
+            sizeClasses[slabShifts[chunk >>> SLAB_SHIFT] - MIN_CHUNK_SHIFT].free(chunk);
+        }
+    }
+
+    /**
+     * @return a slab taken from the size class with the most, or -1
+     */
+    private int takeSlab(SizeClass taker) {
+        final boolean[] tried = new boolean[sizeClasses.length];
+        while (true) {
+            SizeClass victim = null;
+            int victimIndex = -1;
+            for (int i = 0; i < sizeClasses.length; i ++) {
+                final SizeClass c = sizeClasses[i];
+                if (c != taker && !tried[i] && c.getSlabCount() > taker.getSlabCount()
+                        && (victim == null || c.getSlabCount() > victim.getSlabCount())) {
+                    victim = c;
+                    victimIndex = i;
+                }
+            }
+            if (victim == null) {
+                return -1;
+            }
+            tried[victimIndex] = true;
+            final int slab = victim.removeSlab();
+            if (slab >= 0) {
+                reassignedSlabCount ++;
+                return slab;
+            }
+        }
+    }
+
+    private ByteBuffer chunkBuffer(int chunk) {
+        final int slab = chunk >>> SLAB_SHIFT;
+        final int shift = slabShifts[slab];
+        final int offset = (chunk & ((1 << SLAB_SHIFT) - 1)) << shift;
+        final ByteBuffer b = slabs[slab].duplicate();
+        b.limit(offset + (1 << shift));
+        b.position(offset);
+        return b;
+    }
+
+    private int find(long hash, byte[] key) {
+        for (int slot = home(hash); indexChunks[slot] != -1; slot = (slot + 1) & indexMask) {
+            if (indexHashes[slot] == hash && keyEquals(indexChunks[slot], key)) {
+                return slot;
+            }
+        }
+        return -1;
+    }
+
+    private void insert(long hash, int chunk) {
+        int slot = home(hash);
+        while (indexChunks[slot] != -1) {
+            slot = (slot + 1) & indexMask;
+        }
+        indexHashes[slot] = hash;
+        indexChunks[slot] = chunk;
+    }
+
+    /**
+     * Empties a slot of the index, shifting back any later entries of the
+     * same run that would otherwise no longer be found.
+     */
+    private void deleteSlot(int slot) {
+        int empty = slot;
+        int next = slot;
+        while (true) {
+            next = (next + 1) & indexMask;
+            if (indexChunks[next] == -1) {
+                break;
+            }
+            final int home = home(indexHashes[next]);
+            // move the entry back unless its home lies cyclically in (empty, next]
+            if (empty <= next ? (home <= empty || home > next) : (home <= empty && home > next)) {
+                indexHashes[empty] = indexHashes[next];
+                indexChunks[empty] = indexChunks[next];
+                empty = next;
+            }
+        }
+        indexChunks[empty] = -1;
+    }
+
+    private int home(long hash) {
+        return (int) (hash ^ (hash >>> 32)) & indexMask;
+    }
+
+    private boolean keyEquals(int chunk, byte[] key) {
+        final ByteBuffer b = chunkBuffer(chunk);
+        if (b.getShort() != key.length) {
+            return false;
+        }
+        for (byte k : key) {
+            if (b.get() != k) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * A 64 bit FNV-1a hash with its bits mixed.
+     */
+    private static long hash(byte[] key) {
+        long h = 0xcbf29ce484222325L;
+        for (byte b : key) {
+            h ^= b & 0xFF;
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    /**
+     * Reads content up to one byte more than the limit.
+     */
+    private static byte[] readUpTo(InputStream content, int limit) throws IOException {
+        final ByteArrayOutputStream result = new ByteArrayOutputStream(Math.min(limit + 1, 8192));
+        final byte[] buffer = new byte[8192];
+        int read;
+        while (result.size() <= limit && (read = content.read(buffer, 0, Math.min(buffer.length, limit + 1 - result.size()))) != -1) {
+            result.write(buffer, 0, read);
+        }
+        return result.toByteArray();
+    }
+
+    /**
+     * The slabs, free chunks and clock hand for one chunk size.
+     */
+    private final class SizeClass {
+
+        private final int shift;
+
+        private final int chunksPerSlab;
+
+        private int[] ownSlabs = new int[4];
+
+        private int ownSlabCount;
+
+        private int[] free = new int[64];
+
+        private int freeCount;
+
+        private int hand;
+
+        SizeClass(int shift) {
+            this.shift = shift;
+            this.chunksPerSlab = SLAB_BYTES >> shift;
+        }
+
+        /**
+         * @return a free chunk number, or -1 if every chunk is pinned
+         */
+        int allocate() {
+            if (freeCount == 0 && slabCount < slabs.length) {
+                final int slab = slabCount ++;
+                slabs[slab] = ByteBuffer.allocateDirect(SLAB_BYTES);
+                addSlab(slab);
+            }
+            if (freeCount > 0) {
+                return free[-- freeCount];
+            }
+            final int chunk = evict();
+            if (chunk >= 0) {
+                return chunk;
+            }
+            // every slab is taken (by other sizes if this one has none)
+            final int slab = takeSlab(this);
+            if (slab < 0) {
+                return -1;
+            }
+            addSlab(slab);
+            return free[-- freeCount];
+        }
+
+        void free(int chunk) {
+            if (freeCount == free.length) {
+                free = Arrays.copyOf(free, free.length * 2);
+            }
+            free[freeCount ++] = chunk;
+        }
+
+        private void addSlab(int slab) {
+            slabShifts[slab] = shift;
+            if (ownSlabCount == ownSlabs.length) {
+                ownSlabs = Arrays.copyOf(ownSlabs, ownSlabs.length * 2);
+            }
+            ownSlabs[ownSlabCount ++] = slab;
+            // free the chunks in reverse so that they're used in order
+            for (int i = chunksPerSlab - 1; i >= 0; i --) {
+                free((slab << SLAB_SHIFT) | i);
+            }
+        }
+
+        /**
+         * Advances the clock hand, clearing referenced flags, and evicts the
+         * first unpinned chunk not referenced since the last pass.
+         */
+        private int evict() {
+            final int chunks = ownSlabCount * chunksPerSlab;
+            if (chunks == 0) {
+                return -1;
+            }
+            for (int i = 0; i < chunks * 2; i ++) {
+                final int position = hand;
+                hand = (hand + 1) % chunks;
+                final int chunk = (ownSlabs[position / chunksPerSlab] << SLAB_SHIFT) | (position % chunksPerSlab);
+                if (states[chunk] != LIVE || pins[chunk] > 0) {
+                    continue;
+                }
+                if (referenced[chunk]) {
+                    referenced[chunk] = false;
+                    continue;
+                }
+                final byte[] key = keyOf(chunk);
+                removeSlot(find(hashes[chunk], key));
+                evictionCount ++;
+                // removeSlot() freed it
+                freeCount --;
+                return chunk;
+            }
+            return -1;
+        }
+
+        /**
+         * @return a slab with no pinned chunks, emptied, or -1
+         */
+        int removeSlab() {
+            for (int i = 0; i < ownSlabCount; i ++) {
+                final int slab = ownSlabs[i];
+                if (!isPinned(slab)) {
+                    for (int c = 0; c < chunksPerSlab; c ++) {
+                        final int chunk = (slab << SLAB_SHIFT) | c;
+                        if (states[chunk] == LIVE) {
+                            removeSlot(find(hashes[chunk], keyOf(chunk)));
+                            evictionCount ++;
+                        }
+                    }
+                    // the slab's chunks are all free now, so drop them
+                    int kept = 0;
+                    for (int f = 0; f < freeCount; f ++) {
+                        if (free[f] >>> SLAB_SHIFT != slab) {
+                            free[kept ++] = free[f];
+                        }
+                    }
+                    freeCount = kept;
+                    ownSlabs[i] = ownSlabs[-- ownSlabCount];
+                    hand = 0;
+                    return slab;
+                }
+            }
+            return -1;
+        }
+
+        int getSlabCount() {
+            return ownSlabCount;
+        }
+
+        private boolean isPinned(int slab) {
+            for (int c = 0; c < chunksPerSlab; c ++) {
+                if (pins[(slab << SLAB_SHIFT) | c] > 0) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private byte[] keyOf(int chunk) {
+            final ByteBuffer b = chunkBuffer(chunk);
+            final byte[] key = new byte[b.getShort()];
+            b.get(key);
+            return key;
+        }
+    }
+
+    /**
+     * A stream of content read straight from a chunk, which stays pinned
+     * until the stream is closed.
+     */
+    public final class Content extends InputStream implements DigestedContent {
+
+        private final int chunk;
+
+        private final ByteBuffer content;
+
+        private final byte[] digest;
+
+        private boolean closed;
+
+        private Content(int chunk, ByteBuffer content, byte[] digest) {
+            this.chunk = chunk;
+            this.content = content;
+            this.digest = digest;
+        }
+
+        @Override
+        public byte[] getDigest() {
+            return digest.clone();
+        }
+
+        @Override
+        public int getLength() {
+            return content.limit();
+        }
+
+        @Override
+        public void writeTo(OutputStream out) throws IOException {
+            final byte[] buffer = new byte[Math.min(8192, Math.max(1, content.remaining()))];
+            while (content.hasRemaining()) {
+                final int length = Math.min(buffer.length, content.remaining());
+                content.get(buffer, 0, length);
+                out.write(buffer, 0, length);
+            }
+        }
+
+        @Override
+        public int read() throws IOException {
+            return content.hasRemaining() ? content.get() & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (!content.hasRemaining()) {
+                return -1;
+            }
+            final int length = Math.min(len, content.remaining());
+            content.get(b, off, length);
+            return length;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return content.remaining();
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            final int skipped = (int) Math.max(0, Math.min(n, content.remaining()));
+            content.position(content.position() + skipped);
+            return skipped;
+        }
+
+        @Override
+        public void close() {
+            synchronized (OffHeapBinaryCache.this) {
+                if (!closed) {
+                    closed = true;
+                    unpin(chunk);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,200 @@
+package edu.virginia.lib.covers.imageio;
+
+import edu.virginia.lib.covers.ThumbnailEngine;
+import edu.virginia.lib.covers.UnsupportedImageTypeException;
+
+import javax.imageio.IIOException;
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.ImageOutputStream;
+import javax.imageio.stream.MemoryCacheImageOutputStream;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+
+/**
+ * A ThumbnailEngine that decodes, scales and encodes images within the JVM
+ * using the javax.imageio and java.awt APIs.  This avoids the cost of forking
+ * a process for each thumbnail, but only handles JPEG, PNG and GIF images so
+ * it is intended to be used in front of a more general engine such as the
+ * ImageMagickProcess.
+ *
+ * No temporary files are involved: the original is read directly from its
+ * file and the thumbnail is encoded in memory.  Large JPEG originals are
+ * decoded at a reduced resolution (see getSubsamplingFactor()) so that the
+ * full-sized raster never has to be held in memory or resampled.
+ */
+public class ImageIOThumbnailEngine implements ThumbnailEngine {
+
+    private static final Set<String> SUPPORTED_FORMATS = new HashSet<String>(Arrays.asList(new String[] { "jpeg", "png", "gif" }));
+
+    /**
+     * The largest subsampling factor used when decoding JPEG images.
+     */
+    private static final int MAX_SUBSAMPLING = 8;
+
+    private float quality;
+
+    private boolean reducedResolutionDecoding;
+
+    public ImageIOThumbnailEngine() {
+        quality = 0.9f;
+        reducedResolutionDecoding = true;
+    }
+
+    /**
+     * Sets the JPEG quality (between 0 and 1) of the thumbnails created.
+     */
+    public void setQuality(float quality) {
+        this.quality = quality;
+    }
+
+    /**
+     * Sets whether JPEG images much larger than the requested thumbnail are
+     * decoded at a reduced resolution.  This is on by default.
+     */
+    public void setReducedResolutionDecoding(boolean reducedResolutionDecoding) {
+        this.reducedResolutionDecoding = reducedResolutionDecoding;
+    }
+
+    @Override
+    public void createThumbnail(File original, OutputStream thumbnail, int maxWidth, int maxHeight) throws IOException, UnsupportedImageTypeException {
+        final BufferedImage image = read(original, maxWidth, maxHeight);
+        final BufferedImage scaled = scale(image, maxWidth, maxHeight);
+        write(scaled, thumbnail);
+    }
+
+    /**
+     * Decodes the first frame of the image in the given file, at a reduced
+     * resolution if it's a JPEG much larger than the given bounding box.
+     */
+    protected BufferedImage read(File original, int maxWidth, int maxHeight) throws IOException, UnsupportedImageTypeException {
+        final ImageInputStream iis = ImageIO.createImageInputStream(original);
+        if (iis == null) {
+            throw new UnsupportedImageTypeException("Unable to read " + original.getPath() + "!");
+        }
+        try {
+            final ImageReader reader = getReader(iis);
+            if (reader == null) {
+                throw new UnsupportedImageTypeException("Unsupported image type for " + original.getPath() + "!");
+            }
+            try {
+                reader.setInput(iis, true, true);
+                final ImageReadParam param = reader.getDefaultReadParam();
+                if (reducedResolutionDecoding && reader.getFormatName().equalsIgnoreCase("jpeg")) {
+                    final int factor = getSubsamplingFactor(reader.getWidth(0), reader.getHeight(0), maxWidth, maxHeight);
+                    param.setSourceSubsampling(factor, factor, 0, 0);
+                }
+                return reader.read(0, param);
+            } catch (IIOException ex) {
+                // for instance, CMYK JPEG images
+                throw new UnsupportedImageTypeException("Unable to decode " + original.getPath() + "!", ex);
+            } finally {
+                reader.dispose();
+            }
+        } finally {
+            iis.close();
+        }
+    }
+
+    private ImageReader getReader(ImageInputStream iis) throws IOException {
+        final Iterator<ImageReader> readers = ImageIO.getImageReaders(iis);
+        while (readers.hasNext()) {
+            final ImageReader reader = readers.next();
+            if (SUPPORTED_FORMATS.contains(reader.getFormatName().toLowerCase())) {
+                return reader;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Gets the largest factor (1, 2, 4 or 8) by which an image of the given
+     * size may be subsampled while decoding and still be at least twice the
+     * size of the thumbnail in each dimension.  That margin leaves the
+     * resampling done by scale() enough pixels to produce a smooth result.
+     */
+    static int getSubsamplingFactor(int width, int height, int maxWidth, int maxHeight) {
+        final double ratio = Math.min((double) maxWidth / width, (double) maxHeight / height);
+        final double targetWidth = width * ratio;
+        final double targetHeight = height * ratio;
+        int factor = 1;
+        while (factor < MAX_SUBSAMPLING
+                && width / (factor * 2) >= targetWidth * 2
+                && height / (factor * 2) >= targetHeight * 2) {
+            factor *= 2;
+        }
+        return factor;
+    }
+
+    /**
+     * Scales the image to fit the bounding box.  Large reductions are done in
+     * several steps of no more than half the size each, because a single
+     * bilinear step would only sample a few of the source pixels for each
+     * destination pixel and produce a noticeably aliased result.
+     */
+    protected BufferedImage scale(BufferedImage image, int maxWidth, int maxHeight) {
+        final double ratio = Math.min((double) maxWidth / image.getWidth(), (double) maxHeight / image.getHeight());
+        final int targetWidth = Math.max(1, (int) Math.round(image.getWidth() * ratio));
+        final int targetHeight = Math.max(1, (int) Math.round(image.getHeight() * ratio));
+
+        // there's always at least one step, which also flattens any
+        // transparency onto white since JPEG has none
+        BufferedImage result = image;
+        int width = image.getWidth();
+        int height = image.getHeight();
+        do {
+            width = Math.max(width / 2, targetWidth);
+            height = Math.max(height / 2, targetHeight);
+            result = resize(result, width, height);
+        } while (width != targetWidth || height != targetHeight);
+        return result;
+    }
+
+    private BufferedImage resize(BufferedImage image, int width, int height) {
+        final BufferedImage result = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        final Graphics2D g = result.createGraphics();
+        try {
+            g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            g.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+            g.setColor(Color.WHITE);
+            g.fillRect(0, 0, width, height);
+            g.drawImage(image, 0, 0, width, height, null);
+        } finally {
+            g.dispose();
+        }
+        return result;
+    }
+
+    /**
+     * Encodes the image as a JPEG.  A MemoryCacheImageOutputStream is used
+     * explicitly because ImageIO would otherwise buffer to a temporary file.
+     */
+    protected void write(BufferedImage image, OutputStream output) throws IOException {
+        final ImageWriter writer = ImageIO.getImageWritersByFormatName("jpeg").next();
+        final ImageOutputStream ios = new MemoryCacheImageOutputStream(output);
+        try {
+            final ImageWriteParam param = writer.getDefaultWriteParam();
+            param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+            param.setCompressionQuality(quality);
+            writer.setOutput(ios);
+            writer.write(null, new IIOImage(image, null, null), param);
+        } finally {
+            writer.dispose();
+            ios.close();
+        }
+    }
+}
@@ -1,14 +1,24 @@
 package edu.virginia.lib.covers.imagemagick;
 
-import org.apache.commons.io.IOUtils;
+import edu.virginia.lib.covers.ThumbnailEngine;
 import org.slf4j.Logger;
 
 import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.UnsupportedEncodingException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -18,12 +28,19 @@ import static org.slf4j.LoggerFactory.getLogger;
  * A thin wrapper around the ImageMagick's "convert" and "identify" utilities.
  * For this class to work, the "convert" utility must be in the path (ie,
  * executable with the simple command "convert").
+ *
+ * The number of processes running at once is limited by an
+ * ImageMagickScheduler, and each process is started with limits on the
+ * threads and memory it may use and is killed if it runs too long.  Java
+ * can only kill the process it started, so the rare ImageMagick delegate
+ * programs (such as ghostscript) are only stopped by ImageMagick's own time
+ * limit, which is set to the same value.
  */
-public class ImageMagickProcess {
+public class ImageMagickProcess implements ThumbnailEngine {
 
     private static ImageMagickProcess SINGLETON;
 
-    public static ImageMagickProcess getInstance() throws IOException {
+    public static synchronized ImageMagickProcess getInstance() throws IOException {
         if (SINGLETON == null) {
             SINGLETON = new ImageMagickProcess();
         }
@@ -36,9 +53,46 @@ public class ImageMagickProcess {
 
     private String identifyCommandPath;
 
+    private ImageMagickScheduler scheduler;
+
+    private int threadLimit;
+
+    private String memoryLimit;
+
+    private String mapLimit;
+
+    private long timeoutMillis;
+
+    /**
+     * A pool of threads shared by all invocations, used to feed and drain
+     * the standard streams of each process.  The number of threads in use at
+     * once is bounded by the scheduler (three per running process).
+     */
+    private final ExecutorService ioExecutor;
+
+    private final AtomicLong timedOut;
+
+    private final AtomicLong killed;
+
     public ImageMagickProcess() throws IOException {
         convertCommandPath = "convert";
         identifyCommandPath = "identify";
+        scheduler = new ImageMagickScheduler();
+        threadLimit = 1;
+        memoryLimit = "256MiB";
+        mapLimit = "512MiB";
+        timeoutMillis = 30000;
+        ioExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+            @Override
+            public Thread newThread(Runnable r) {
+                final Thread t = new Thread(r, "imagemagick-io-" + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        timedOut = new AtomicLong();
+        killed = new AtomicLong();
         try {
             LOGGER.info("ImageMagick convert version:  " + getConvertVersion());
             LOGGER.info("ImageMagick identify version: " + getIdentifyVersion());
@@ -47,14 +101,76 @@ public class ImageMagickProcess {
         }
     }
 
+    /**
+     * Sets the command used to run "convert", for instance, if it's not in
+     * the path.
+     */
+    public void setConvertCommandPath(String convertCommandPath) {
+        this.convertCommandPath = convertCommandPath;
+    }
+
+    /**
+     * Sets the command used to run "identify", for instance, if it's not in
+     * the path.
+     */
+    public void setIdentifyCommandPath(String identifyCommandPath) {
+        this.identifyCommandPath = identifyCommandPath;
+    }
+
+    /**
+     * Sets the scheduler that limits how many ImageMagick processes may run
+     * at once.
+     */
+    public void setScheduler(ImageMagickScheduler scheduler) {
+        this.scheduler = scheduler;
+    }
+
+    public ImageMagickScheduler getScheduler() {
+        return scheduler;
+    }
+
+    /**
+     * Sets the number of threads each ImageMagick process may use.  This
+     * defaults to 1 because concurrency comes from running several processes
+     * at once (see ImageMagickScheduler), and letting each of those use one
+     * OpenMP thread per core would oversubscribe the machine.
+     */
+    public void setThreadLimit(int threadLimit) {
+        this.threadLimit = threadLimit;
+    }
+
+    /**
+     * Sets the amount of heap memory each ImageMagick process may use for
+     * pixel data before falling back to memory mapped files (eg, "256MiB"),
+     * or null for ImageMagick's default.
+     */
+    public void setMemoryLimit(String memoryLimit) {
+        this.memoryLimit = memoryLimit;
+    }
+
+    /**
+     * Sets the amount of memory mapped file space each ImageMagick process
+     * may use for pixel data before falling back to disk (eg, "512MiB"), or
+     * null for ImageMagick's default.
+     */
+    public void setMapLimit(String mapLimit) {
+        this.mapLimit = mapLimit;
+    }
+
+    /**
+     * Sets the time after which a running process is killed.  This is also
+     * passed to ImageMagick as its own time limit.
+     */
+    public void setTimeout(long timeoutMillis) {
+        this.timeoutMillis = timeoutMillis;
+    }
+
     public String getIdentifyVersion() throws IOException {
-        Process p = new ProcessBuilder(convertCommandPath, "-version").start();
-        return parseOutVersionNumber(runProcessGetOutput(p));
+        return parseOutVersionNumber(runProcessGetOutput(new ProcessBuilder(convertCommandPath, "-version")));
     }
 
     public String getConvertVersion() throws IOException {
-        Process p = new ProcessBuilder(identifyCommandPath, "-version").start();
-        return parseOutVersionNumber(runProcessGetOutput(p));
+        return parseOutVersionNumber(runProcessGetOutput(new ProcessBuilder(identifyCommandPath, "-version")));
     }
 
     private String parseOutVersionNumber(String response) {
@@ -66,48 +182,165 @@ public class ImageMagickProcess {
         return (m.group(1));
     }
 
-    private String runProcessGetOutput(Process p) throws UnsupportedEncodingException {
+    private String runProcessGetOutput(ProcessBuilder pb) throws IOException {
+        return runProcessGetOutput(pb, null);
+    }
+
+    /**
+     * Runs the process, writing the given input (if any) to its standard
+     * input, and returns whatever it wrote to its standard output.
+     */
+    private String runProcessGetOutput(ProcessBuilder pb, InputStream input) throws IOException {
         ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        Thread t1 = new Thread(new OutputDrainerThread(p.getInputStream(), baos));
-        t1.start();
-        Thread t2 = new Thread(new OutputDrainerThread(p.getErrorStream()));
-        t2.start();
+        runProcess(pb, input, baos);
+        return new String(baos.toByteArray(), "UTF-8");
+    }
+
+    /**
+     * Starts the process once the scheduler allows it, with the configured
+     * resource limits, writes the given input (if any) to its standard input
+     * and copies its standard output to the given OutputStream.
+     */
+    private void runProcess(ProcessBuilder pb, InputStream input, OutputStream output) throws IOException {
+        final Map<String, String> env = pb.environment();
+        env.put("MAGICK_THREAD_LIMIT", String.valueOf(threadLimit));
+        env.put("MAGICK_TIME_LIMIT", String.valueOf(Math.max(1, TimeUnit.MILLISECONDS.toSeconds(timeoutMillis))));
+        if (memoryLimit != null) {
+            env.put("MAGICK_MEMORY_LIMIT", memoryLimit);
+        }
+        if (mapLimit != null) {
+            env.put("MAGICK_MAP_LIMIT", mapLimit);
+        }
+        scheduler.acquire();
+        try {
+            runProcess(pb.start(), input, output);
+        } finally {
+            scheduler.release();
+        }
+    }
+
+    /**
+     * Feeds and drains the standard streams of the process using the shared
+     * I/O pool and waits for it to exit.  If that takes longer than the
+     * configured timeout (or the calling thread is interrupted) the process
+     * is killed.
+     */
+    private void runProcess(Process p, InputStream input, OutputStream output) throws IOException {
+        final long deadline = System.currentTimeMillis() + timeoutMillis;
+        final ByteArrayOutputStream errors = new ByteArrayOutputStream();
+        final Future<Long> stdin = ioExecutor.submit(new StreamPump(input, p.getOutputStream(), true));
+        final Future<Long> stdout = ioExecutor.submit(new StreamPump(p.getInputStream(), output, false));
+        final Future<Long> stderr = ioExecutor.submit(new StreamPump(p.getErrorStream(), errors, false));
+        boolean exited = false;
         try {
-            int returnCode = p.waitFor();
-            t1.join();
-            t2.join();
+            await(stdout, deadline);
+            await(stderr, deadline);
+            try {
+                await(stdin, deadline);
+            } catch (ExecutionException ex) {
+                // A process that fails may exit before reading all of its
+                // input; that's reported by the return code instead.
+                LOGGER.debug("Process did not accept all of its input.", ex.getCause());
+            }
+            int returnCode = waitFor(p, deadline);
+            exited = true;
             if (returnCode != 0) {
-                throw new RuntimeException("Invalid return code for process!");
+                throw new RuntimeException("Invalid return code for process! (" + new String(errors.toByteArray(), "UTF-8").trim() + ")");
             }
+        } catch (TimeoutException ex) {
+            timedOut.incrementAndGet();
+            throw new IOException("Process did not complete within " + timeoutMillis + " ms and was killed!");
         } catch (InterruptedException ex) {
-            throw new RuntimeException(ex);
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for process!");
+        } catch (ExecutionException ex) {
+            throw new IOException("Unable to transfer process output!", ex.getCause());
+        } finally {
+            if (!exited) {
+                p.destroy();
+                killed.incrementAndGet();
+                stdin.cancel(true);
+                stdout.cancel(true);
+                stderr.cancel(true);
+            }
         }
-        return new String(baos.toByteArray(), "UTF-8");
     }
 
+    private void await(Future<Long> f, long deadline) throws InterruptedException, ExecutionException, TimeoutException {
+        f.get(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Waits until the deadline for the process to exit.  This is only called
+     * once the process has closed its output streams, at which point it's
+     * normally about to exit, so polling is inexpensive.
+     */
+    private int waitFor(Process p, long deadline) throws InterruptedException, TimeoutException {
+        while (true) {
+            try {
+                return p.exitValue();
+            } catch (IllegalThreadStateException ex) {
+                if (System.currentTimeMillis() >= deadline) {
+                    throw new TimeoutException();
+                }
+                Thread.sleep(5);
+            }
+        }
+    }
+
+    /**
+     * Gets the number of processes that did not complete within the timeout.
+     */
+    public long getTimedOutCount() {
+        return timedOut.get();
+    }
+
+    /**
+     * Gets the number of processes that were killed, either because they
+     * timed out or because the calling thread was interrupted or failed.
+     */
+    public long getKilledCount() {
+        return killed.get();
+    }
+
+    /**
+     * Creates a thumbnail of the input file.  The "jpeg:size" hint lets
+     * ImageMagick decode large JPEG originals at a reduced scale (using the
+     * DCT scaling of libjpeg) as long as the result is at least twice the
+     * thumbnail size; it is ignored for other image types.
+     */
     public void createThumbnail(File inputFile, File outputFile, int maxWidth, int maxHeight) throws IOException {
-        Process p = new ProcessBuilder(convertCommandPath, "-thumbnail", maxWidth + "x" + maxHeight, inputFile.getPath() + "[0]", outputFile.getPath()).start();
-        runProcessGetOutput(p);
+        runProcessGetOutput(new ProcessBuilder(convertCommandPath, "-define", "jpeg:size=" + (maxWidth * 2) + "x" + (maxHeight * 2), inputFile.getPath() + "[0]", "-thumbnail", maxWidth + "x" + maxHeight, outputFile.getPath()));
+    }
+
+    /**
+     * Creates a thumbnail of any image type supported by ImageMagick.  The
+     * thumbnail is streamed from the standard output of "convert" rather than
+     * written to a file.
+     */
+    @Override
+    public void createThumbnail(File inputFile, OutputStream output, int maxWidth, int maxHeight) throws IOException {
+        runProcess(new ProcessBuilder(convertCommandPath, "-define", "jpeg:size=" + (maxWidth * 2) + "x" + (maxHeight * 2), inputFile.getPath() + "[0]", "-thumbnail", maxWidth + "x" + maxHeight, "jpg:-"), null, output);
     }
 
+    /**
+     * Creates a thumbnail of the image read from the given stream, which is
+     * piped to the standard input of "convert".
+     */
+    public void createThumbnail(InputStream input, OutputStream output, int maxWidth, int maxHeight) throws IOException {
+        runProcess(new ProcessBuilder(convertCommandPath, "-define", "jpeg:size=" + (maxWidth * 2) + "x" + (maxHeight * 2), "-[0]", "-thumbnail", maxWidth + "x" + maxHeight, "jpg:-"), input, output);
+    }
+
+    /**
+     * Gets the metadata for the image read from the given stream, which is
+     * piped to the standard input of "identify".
+     */
     public ImageMetadata getMetadata(InputStream is) throws IOException {
-        File tmp = File.createTempFile("image", "content");
-        FileOutputStream fos = new FileOutputStream(tmp);
-        try {
-            IOUtils.copy(is, fos);
-        } finally {
-            fos.close();
-        }
-        try {
-            return getMetadata(tmp);
-        } finally {
-            tmp.delete();
-        }
+        return new ImageMetadata(runProcessGetOutput(new ProcessBuilder(identifyCommandPath, "-"), is));
     }
 
     public ImageMetadata getMetadata(File inputFile) throws IOException {
-        Process p = new ProcessBuilder(identifyCommandPath, inputFile.getAbsolutePath()).start();
-        return new ImageMetadata(runProcessGetOutput(p));
+        return new ImageMetadata(runProcessGetOutput(new ProcessBuilder(identifyCommandPath, inputFile.getAbsolutePath())));
     }
 
     public static class ImageMetadata implements edu.virginia.lib.covers.ImageMetadata {
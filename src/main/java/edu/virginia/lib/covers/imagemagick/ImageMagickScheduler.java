@@ -0,0 +1,182 @@
+package edu.virginia.lib.covers.imagemagick;
+
+import edu.virginia.lib.covers.ServiceOverloadedException;
+import org.slf4j.Logger;
+
+import java.io.InterruptedIOException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.slf4j.LoggerFactory.getLogger;
+
+/**
+ * Limits the number of ImageMagick processes that may run at once.  Callers
+ * beyond that limit wait (in order of arrival) for a running process to
+ * finish, but only so many may wait and only for so long; anything more
+ * results in a ServiceOverloadedException rather than an ever growing backlog
+ * of threads.
+ *
+ * Typical use:
+ * <pre>
+ *     scheduler.acquire();
+ *     try {
+ *         // run the process
+ *     } finally {
+ *         scheduler.release();
+ *     }
+ * </pre>
+ */
+public class ImageMagickScheduler {
+
+    private static final Logger LOGGER = getLogger(ImageMagickScheduler.class);
+
+    private final int maxConcurrent;
+
+    private final int maxQueueLength;
+
+    private final long maxWaitMillis;
+
+    private final int retryAfterSeconds;
+
+    private final Semaphore permits;
+
+    private final AtomicInteger waiting;
+
+    private final AtomicLong acquired;
+
+    private final AtomicLong rejected;
+
+    private final AtomicLong totalWaitNanos;
+
+    private final AtomicLong maxWaitNanos;
+
+    /**
+     * Creates a scheduler allowing one process per available processor, with
+     * up to four times that many waiting for at most 10 seconds.
+     */
+    public ImageMagickScheduler() {
+        this(Runtime.getRuntime().availableProcessors(), Runtime.getRuntime().availableProcessors() * 4, 10000);
+    }
+
+    /**
+     * @param maxConcurrent the number of processes that may run at once
+     * @param maxQueueLength the number of callers that may wait to run a
+     *                       process when maxConcurrent are already running
+     * @param maxWaitMillis the longest time a caller will wait to run a
+     *                      process
+     */
+    public ImageMagickScheduler(int maxConcurrent, int maxQueueLength, long maxWaitMillis) {
+        this.maxConcurrent = maxConcurrent;
+        this.maxQueueLength = maxQueueLength;
+        this.maxWaitMillis = maxWaitMillis;
+        this.retryAfterSeconds = (int) Math.max(1, TimeUnit.MILLISECONDS.toSeconds(maxWaitMillis));
+        this.permits = new Semaphore(maxConcurrent, true);
+        this.waiting = new AtomicInteger();
+        this.acquired = new AtomicLong();
+        this.rejected = new AtomicLong();
+        this.totalWaitNanos = new AtomicLong();
+        this.maxWaitNanos = new AtomicLong();
+    }
+
+    /**
+     * Blocks until the caller may start a process.  Every successful call
+     * must be followed by a call to release().
+     *
+     * @throws ServiceOverloadedException if too many callers are already
+     *         waiting or if no process finished within the maximum wait time
+     */
+    public void acquire() throws ServiceOverloadedException, InterruptedIOException {
+        if (permits.tryAcquire()) {
+            acquired.incrementAndGet();
+            return;
+        }
+        if (waiting.incrementAndGet() > maxQueueLength) {
+            waiting.decrementAndGet();
+            rejected.incrementAndGet();
+            LOGGER.warn("Rejected ImageMagick request: " + maxQueueLength + " requests are already waiting.");
+            throw new ServiceOverloadedException("Too many image conversions are pending!", retryAfterSeconds);
+        }
+        final long start = System.nanoTime();
+        try {
+            if (!permits.tryAcquire(maxWaitMillis, TimeUnit.MILLISECONDS)) {
+                rejected.incrementAndGet();
+                LOGGER.warn("Rejected ImageMagick request: no process became available within " + maxWaitMillis + " ms.");
+                throw new ServiceOverloadedException("Timed out waiting to run an image conversion!", retryAfterSeconds);
+            }
+            acquired.incrementAndGet();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting to run an image conversion!");
+        } finally {
+            waiting.decrementAndGet();
+            recordWait(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Indicates that a process started after a call to acquire() has ended.
+     */
+    public void release() {
+        permits.release();
+    }
+
+    private void recordWait(long nanos) {
+        totalWaitNanos.addAndGet(nanos);
+        long max = maxWaitNanos.get();
+        while (nanos > max && !maxWaitNanos.compareAndSet(max, nanos)) {
+            max = maxWaitNanos.get();
+        }
+    }
+
+    public int getMaxConcurrent() {
+        return maxConcurrent;
+    }
+
+    public int getMaxQueueLength() {
+        return maxQueueLength;
+    }
+
+    /**
+     * Gets the number of processes currently running.
+     */
+    public int getActiveCount() {
+        return maxConcurrent - permits.availablePermits();
+    }
+
+    /**
+     * Gets the number of callers currently waiting to run a process.
+     */
+    public int getQueueDepth() {
+        return waiting.get();
+    }
+
+    /**
+     * Gets the number of times a caller has been allowed to run a process.
+     */
+    public long getAcquiredCount() {
+        return acquired.get();
+    }
+
+    /**
+     * Gets the number of times a caller has been refused because of overload.
+     */
+    public long getRejectedCount() {
+        return rejected.get();
+    }
+
+    /**
+     * Gets the total time callers have spent waiting to run a process.
+     */
+    public long getTotalWaitMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(totalWaitNanos.get());
+    }
+
+    /**
+     * Gets the longest time any caller has spent waiting to run a process.
+     */
+    public long getMaxWaitMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(maxWaitNanos.get());
+    }
+}
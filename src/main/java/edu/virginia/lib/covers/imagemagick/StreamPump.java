@@ -0,0 +1,63 @@
+package edu.virginia.lib.covers.imagemagick;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.Callable;
+
+/**
+ * Copies everything from an InputStream to an OutputStream, closing the
+ * InputStream when done.  This is used to feed and drain the standard
+ * streams of a process from a shared pool of threads.
+ */
+class StreamPump implements Callable<Long> {
+
+    private InputStream is;
+
+    private OutputStream os;
+
+    private boolean closeOutput;
+
+    /**
+     * @param input the stream to read or null to copy nothing
+     * @param output the stream to write or null to discard the input
+     * @param closeOutput true if the output should be closed when done
+     */
+    public StreamPump(InputStream input, OutputStream output, boolean closeOutput) {
+        is = input;
+        os = output;
+        this.closeOutput = closeOutput;
+    }
+
+    @Override
+    public Long call() throws IOException {
+        long total = 0;
+        try {
+            if (is != null) {
+                byte[] buffer = new byte[8192];
+                int read;
+                while ((read = is.read(buffer)) != -1) {
+                    if (os != null) {
+                        os.write(buffer, 0, read);
+                    }
+                    total += read;
+                }
+            }
+        } finally {
+            try {
+                if (is != null) {
+                    is.close();
+                }
+            } finally {
+                if (os != null) {
+                    if (closeOutput) {
+                        os.close();
+                    } else {
+                        os.flush();
+                    }
+                }
+            }
+        }
+        return total;
+    }
+}
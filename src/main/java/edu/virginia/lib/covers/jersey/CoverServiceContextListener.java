@@ -0,0 +1,109 @@
+package edu.virginia.lib.covers.jersey;
+
+import edu.virginia.lib.covers.CoverService;
+import edu.virginia.lib.covers.service.CoverRequestExecutor;
+import edu.virginia.lib.covers.service.CoverServiceConfiguration;
+import org.slf4j.Logger;
+
+import javax.servlet.ServletContext;
+import javax.servlet.ServletContextEvent;
+import javax.servlet.ServletContextListener;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Properties;
+
+import static org.slf4j.LoggerFactory.getLogger;
+
+/**
+ * Creates the single CoverService (and the CoverRequestExecutor that runs
+ * requests against it) shared by every request when the web application
+ * starts and closes them when the web application stops.
+ *
+ * The configuration is read from the file named by the "cover-service.config"
+ * system property or, failing that, the context parameter of the same name.
+ * If neither is set the "last-fm.properties" file is loaded from the
+ * classpath.  See CoverServiceConfiguration for the recognized properties.
+ */
+public class CoverServiceContextListener implements ServletContextListener {
+
+    private static final Logger LOGGER = getLogger(CoverServiceContextListener.class);
+
+    public static final String CONFIG_PARAMETER = "cover-service.config";
+
+    public static final String SERVICE_ATTRIBUTE = CoverService.class.getName();
+
+    public static final String EXECUTOR_ATTRIBUTE = CoverRequestExecutor.class.getName();
+
+    /**
+     * Gets the CoverService created for the given web application.
+     */
+    public static CoverService getCoverService(ServletContext context) {
+        return (CoverService) context.getAttribute(SERVICE_ATTRIBUTE);
+    }
+
+    /**
+     * Gets the CoverRequestExecutor created for the given web application.
+     */
+    public static CoverRequestExecutor getRequestExecutor(ServletContext context) {
+        return (CoverRequestExecutor) context.getAttribute(EXECUTOR_ATTRIBUTE);
+    }
+
+    @Override
+    public void contextInitialized(ServletContextEvent event) {
+        final ServletContext context = event.getServletContext();
+        try {
+            final CoverServiceConfiguration config = new CoverServiceConfiguration(loadConfiguration(context));
+            context.setAttribute(SERVICE_ATTRIBUTE, config.createCoverService());
+            context.setAttribute(EXECUTOR_ATTRIBUTE, config.createRequestExecutor());
+            LOGGER.info("Cover service started.");
+        } catch (IOException ex) {
+            throw new RuntimeException("Unable to create cover service!", ex);
+        }
+    }
+
+    @Override
+    public void contextDestroyed(ServletContextEvent event) {
+        final ServletContext context = event.getServletContext();
+        final CoverRequestExecutor executor = getRequestExecutor(context);
+        if (executor != null) {
+            context.removeAttribute(EXECUTOR_ATTRIBUTE);
+            executor.close();
+        }
+        final CoverService service = getCoverService(context);
+        if (service != null) {
+            context.removeAttribute(SERVICE_ATTRIBUTE);
+            try {
+                service.close();
+                LOGGER.info("Cover service stopped.");
+            } catch (IOException ex) {
+                LOGGER.warn("Error closing cover service!", ex);
+            }
+        }
+    }
+
+    private Properties loadConfiguration(ServletContext context) throws IOException {
+        String path = System.getProperty(CONFIG_PARAMETER);
+        if (path == null) {
+            path = context.getInitParameter(CONFIG_PARAMETER);
+        }
+        final InputStream config;
+        if (path != null) {
+            LOGGER.info("Loading configuration from " + path + ".");
+            config = new FileInputStream(path);
+        } else {
+            LOGGER.info("Loading configuration from last-fm.properties on the classpath.");
+            config = getClass().getClassLoader().getResourceAsStream("last-fm.properties");
+            if (config == null) {
+                throw new IOException("No configuration found: set \"" + CONFIG_PARAMETER + "\" or provide last-fm.properties!");
+            }
+        }
+        try {
+            final Properties p = new Properties();
+            p.load(config);
+            return p;
+        } finally {
+            config.close();
+        }
+    }
+}
@@ -0,0 +1,133 @@
+package edu.virginia.lib.covers.jersey;
+
+import edu.virginia.lib.covers.BinaryCache;
+import edu.virginia.lib.covers.CoverService;
+import edu.virginia.lib.covers.CoverSource;
+import edu.virginia.lib.covers.cache.filesystem.FileBinaryCache;
+import edu.virginia.lib.covers.cache.filesystem.FileCacheEvictor;
+import edu.virginia.lib.covers.cache.memory.MemoryBinaryCache;
+import edu.virginia.lib.covers.cache.memory.MemoryCacheStatistics;
+import edu.virginia.lib.covers.cache.memory.OffHeapBinaryCache;
+import edu.virginia.lib.covers.imagemagick.ImageMagickProcess;
+import edu.virginia.lib.covers.imagemagick.ImageMagickScheduler;
+import edu.virginia.lib.covers.service.CoverRequestExecutor;
+import edu.virginia.lib.covers.service.SimpleCoverService;
+import edu.virginia.lib.covers.sources.InstrumentedConnectionManager;
+import edu.virginia.lib.covers.sources.WebServiceCoverSource;
+import org.apache.http.pool.PoolStats;
+
+import javax.servlet.ServletContext;
+import javax.ws.rs.GET;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import javax.ws.rs.core.Context;
+import java.io.IOException;
+
+/**
+ * Exposes operational metrics as plain text, one "name value" pair per line.
+ */
+@Path("metrics")
+public class Metrics {
+
+    @Context
+    private ServletContext context;
+
+    @GET
+    @Produces("text/plain")
+    public String getMetrics() throws IOException {
+        final StringBuilder sb = new StringBuilder();
+        final CoverRequestExecutor executor = CoverServiceContextListener.getRequestExecutor(context);
+        if (executor != null) {
+            append(sb, "requests.active", executor.getActiveCount());
+            append(sb, "requests.queue.depth", executor.getQueueDepth());
+            append(sb, "requests.rejected", executor.getRejectedCount());
+            append(sb, "requests.timedout", executor.getTimedOutCount());
+        }
+        final CoverService service = CoverServiceContextListener.getCoverService(context);
+        if (service instanceof SimpleCoverService) {
+            BinaryCache cache = ((SimpleCoverService) service).getCoverCache();
+            if (cache instanceof MemoryCacheStatistics) {
+                appendMemoryCache(sb, (MemoryCacheStatistics) cache);
+            }
+            if (cache instanceof MemoryBinaryCache) {
+                cache = ((MemoryBinaryCache) cache).getDelegate();
+            } else if (cache instanceof OffHeapBinaryCache) {
+                append(sb, "cache.memory.dropped", ((OffHeapBinaryCache) cache).getDroppedCount());
+                append(sb, "cache.memory.slabs.reassigned", ((OffHeapBinaryCache) cache).getReassignedSlabCount());
+                cache = ((OffHeapBinaryCache) cache).getDelegate();
+            }
+            if (cache instanceof FileBinaryCache && ((FileBinaryCache) cache).getEvictor() != null) {
+                appendFileCache(sb, ((FileBinaryCache) cache).getEvictor());
+            }
+            for (CoverSource source : ((SimpleCoverService) service).getCoverSources()) {
+                if (source instanceof WebServiceCoverSource) {
+                    appendConnectionPool(sb, (WebServiceCoverSource) source);
+                }
+            }
+            final ImageMagickProcess imageMagick = ((SimpleCoverService) service).getImageMagickProcess();
+            if (imageMagick != null) {
+                appendImageMagick(sb, imageMagick);
+            }
+        }
+        return sb.toString();
+    }
+
+    private void appendImageMagick(StringBuilder sb, ImageMagickProcess imageMagick) {
+        final ImageMagickScheduler scheduler = imageMagick.getScheduler();
+        append(sb, "imagemagick.processes.max", scheduler.getMaxConcurrent());
+        append(sb, "imagemagick.processes.active", scheduler.getActiveCount());
+        append(sb, "imagemagick.queue.max", scheduler.getMaxQueueLength());
+        append(sb, "imagemagick.queue.depth", scheduler.getQueueDepth());
+        append(sb, "imagemagick.acquired", scheduler.getAcquiredCount());
+        append(sb, "imagemagick.rejected", scheduler.getRejectedCount());
+        append(sb, "imagemagick.wait.total.ms", scheduler.getTotalWaitMillis());
+        append(sb, "imagemagick.wait.max.ms", scheduler.getMaxWaitMillis());
+        append(sb, "imagemagick.timedout", imageMagick.getTimedOutCount());
+        append(sb, "imagemagick.killed", imageMagick.getKilledCount());
+    }
+
+    private void appendMemoryCache(StringBuilder sb, MemoryCacheStatistics cache) {
+        append(sb, "cache.memory.hits", cache.getHitCount());
+        append(sb, "cache.memory.misses", cache.getMissCount());
+        sb.append("cache.memory.hit.ratio ").append(String.format("%.4f", cache.getHitRatio())).append('\n');
+        append(sb, "cache.memory.evictions", cache.getEvictionCount());
+        append(sb, "cache.memory.resident.count", cache.getResidentCount());
+        append(sb, "cache.memory.resident.bytes", cache.getResidentBytes());
+        append(sb, "cache.memory.max.bytes", cache.getMaxBytes());
+    }
+
+    private void appendFileCache(StringBuilder sb, FileCacheEvictor evictor) {
+        append(sb, "cache.files.count", evictor.getFileCount());
+        if (evictor.getMaxFiles() != Long.MAX_VALUE) {
+            append(sb, "cache.files.max.count", evictor.getMaxFiles());
+        }
+        append(sb, "cache.files.bytes", evictor.getBytes());
+        if (evictor.getMaxBytes() != Long.MAX_VALUE) {
+            append(sb, "cache.files.max.bytes", evictor.getMaxBytes());
+        }
+        append(sb, "cache.files.evictions", evictor.getEvictedFileCount());
+        append(sb, "cache.files.evicted.bytes", evictor.getEvictedBytes());
+    }
+
+    private void appendConnectionPool(StringBuilder sb, WebServiceCoverSource source) {
+        final InstrumentedConnectionManager pool = source.getConnectionManager();
+        if (pool == null) {
+            return;
+        }
+        final String prefix = "sources." + source.getName() + ".connections.";
+        final PoolStats stats = pool.getTotalStats();
+        append(sb, prefix + "max", stats.getMax());
+        append(sb, prefix + "leased", stats.getLeased());
+        append(sb, prefix + "available", stats.getAvailable());
+        append(sb, prefix + "pending", stats.getPending());
+        append(sb, prefix + "leases", pool.getLeaseCount());
+        append(sb, prefix + "lease.timeouts", pool.getLeaseTimeoutCount());
+        append(sb, prefix + "lease.failures", pool.getLeaseFailureCount());
+        append(sb, prefix + "lease.wait.total.ms", pool.getTotalLeaseWaitMillis());
+        append(sb, prefix + "lease.wait.max.ms", pool.getMaxLeaseWaitMillis());
+    }
+
+    private void append(StringBuilder sb, String name, long value) {
+        sb.append(name).append(' ').append(value).append('\n');
+    }
+}
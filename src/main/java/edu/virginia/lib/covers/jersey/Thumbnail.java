@@ -1,63 +1,135 @@
 package edu.virginia.lib.covers.jersey;
 
 import edu.virginia.lib.covers.CoverService;
-import edu.virginia.lib.covers.CoverSource;
 import edu.virginia.lib.covers.Identifier;
-import edu.virginia.lib.covers.cache.filesystem.FileBinaryCache;
-import edu.virginia.lib.covers.service.SimpleCoverService;
-import edu.virginia.lib.covers.sources.googlebooks.GoogleBooksCoverSource;
-import edu.virginia.lib.covers.sources.lastfm.LastFMCoverSource;
+import edu.virginia.lib.covers.ServiceOverloadedException;
+import edu.virginia.lib.covers.cache.DigestedContent;
+import edu.virginia.lib.covers.service.CoverRequestExecutor;
+import org.apache.commons.io.IOUtils;
 import org.apache.http.HttpStatus;
 import org.slf4j.Logger;
 
+import javax.servlet.ServletContext;
 import javax.ws.rs.DefaultValue;
 import javax.ws.rs.GET;
 import javax.ws.rs.Path;
 import javax.ws.rs.Produces;
 import javax.ws.rs.QueryParam;
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.container.Suspended;
+import javax.ws.rs.core.Context;
+import javax.ws.rs.core.EntityTag;
+import javax.ws.rs.core.Request;
 import javax.ws.rs.core.Response;
-import java.io.File;
+import javax.ws.rs.core.StreamingOutput;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
-import java.util.Properties;
 
 import static org.slf4j.LoggerFactory.getLogger;
 
-// TODO: add support for a timeout (continue fetching content but return early)
+/**
+ * Serves scaled cover images.  Requests for covers that are already cached
+ * are answered immediately, everything else is handed off to the
+ * CoverRequestExecutor so that container threads never wait on the
+ * underlying sources or image scaling.
+ *
+ * If the cover isn't available before the request's deadline (the "timeout"
+ * parameter in milliseconds, capped by the server's configuration) the
+ * default image is returned and marked as not to be stored so that a later
+ * request gets the real cover, which continues to be fetched and cached in
+ * the background.
+ *
+ * Covers held in memory by a cache that keeps their digests (see
+ * DigestedContent) are served with an ETag, the MD5 of the image, which is
+ * also what the ThumbnailBatch resource reports for each such cover, and
+ * requests whose If-None-Match matches it are answered with "304 Not
+ * Modified".  Other covers are streamed as they are, without an ETag, rather
+ * than being read and hashed on every request.
+ */
 @Path("thumbnail")
 public class Thumbnail {
 
     private static final Logger LOGGER = getLogger(Thumbnail.class);
 
-    public CoverService service;
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
 
-    private String noCoverPath = "default_bookcover.gif";
-
-    public Thumbnail() throws IOException {
-        service = new SimpleCoverService();
-        Properties p = new Properties();
-        p.load(getClass().getClassLoader().getResourceAsStream("last-fm.properties"));
-        service.addCoverSource(new LastFMCoverSource(p.getProperty("api-key")));
-        service.addCoverSource(new GoogleBooksCoverSource());
-        service.setCoverCache(new FileBinaryCache(new File("cache")));
-    }
+    /**
+     * The service shared by all requests, created by the
+     * CoverServiceContextListener when the application starts.
+     */
+    @Context
+    private ServletContext context;
 
+    private String noCoverPath = "default_bookcover.gif";
 
     @GET
     @Produces({"image/jpeg", "image/gif"})
-    public Response getContent(@QueryParam("ISBN") final String isbn,
+    public void getContent(@Suspended final AsyncResponse response,
+                             @Context final Request request,
+                             @QueryParam("ISBN") final String isbn,
                              @QueryParam("OCLC") final String oclc,
                              @QueryParam("UPC") final String upc,
                              @QueryParam("MBID") final String mbid,
                              @QueryParam("artist") final String artist,
                              @QueryParam("album") final String album,
                              @QueryParam("maxWidth") @DefaultValue("120") final int maxWidth,
-                             @QueryParam("maxHeight") @DefaultValue("120") final int maxHeight) throws IOException {
-        List<Identifier> ids = new ArrayList<Identifier>();
+                             @QueryParam("maxHeight") @DefaultValue("120") final int maxHeight,
+                             @QueryParam("timeout") @DefaultValue("-1") final long timeout) throws IOException {
+        final List<Identifier> ids = getIdentifiers(isbn, oclc, upc, mbid, artist, album);
+        if (ids.isEmpty()) {
+            response.resume(Response.status(HttpStatus.SC_BAD_REQUEST).build());
+            return;
+        }
+        final CoverService service = CoverServiceContextListener.getCoverService(context);
+        final CoverRequestExecutor executor = CoverServiceContextListener.getRequestExecutor(context);
+        if (service == null || executor == null) {
+            throw new RuntimeException("Service not wired!");
+        }
+
+        final InputStream cached = service.getCachedCoverImage(ids, maxWidth, maxHeight);
+        if (cached != null) {
+            response.resume(coverResponse(cached, request));
+            return;
+        }
+
+        try {
+            executor.submit(service, ids, maxWidth, maxHeight, timeout, new CoverRequestExecutor.Callback() {
+                @Override
+                public void completed(InputStream cover) {
+                    response.resume(coverResponse(cover, request));
+                }
+
+                @Override
+                public void failed(Throwable t) {
+                    if (t instanceof ServiceOverloadedException) {
+                        response.resume(overloadedResponse((ServiceOverloadedException) t));
+                    } else {
+                        response.resume(t);
+                    }
+                }
+
+                @Override
+                public void timedOut() {
+                    LOGGER.debug("Timed out waiting for cover for " + ids + ".");
+                    response.resume(Response.ok(getClass().getClassLoader().getResourceAsStream(noCoverPath), "image/gif").header("Cache-Control", "no-store").build());
+                }
+            });
+        } catch (ServiceOverloadedException ex) {
+            response.resume(overloadedResponse(ex));
+        }
+    }
+
+    /**
+     * Gets the identifiers named by the query parameters of a request, any of
+     * which may be null.
+     */
+    static List<Identifier> getIdentifiers(String isbn, String oclc, String upc, String mbid, String artist, String album) {
+        final List<Identifier> ids = new ArrayList<Identifier>();
         if (isbn != null) {
             ids.add(Identifier.ISBN(isbn));
         }
@@ -73,17 +145,68 @@ public class Thumbnail {
         if (artist != null && album != null) {
             ids.add(Identifier.ALBUM(artist, album));
         }
-        if (ids.isEmpty()) {
-            return Response.status(HttpStatus.SC_BAD_REQUEST).build();
+        return ids;
+    }
+
+    /**
+     * Gets the hex MD5 of some bytes, which identifies sprites.
+     */
+    static String getETag(byte[] image) {
+        try {
+            return toHex(MessageDigest.getInstance("MD5").digest(image));
+        } catch (NoSuchAlgorithmException ex) {
+            // every JVM is required to support MD5
+            throw new IllegalStateException(ex);
         }
-        if (service == null) {
-            throw new RuntimeException("Service not wired!");
+    }
+
+    static String toHex(byte[] digest) {
+        final char[] hex = new char[digest.length * 2];
+        for (int i = 0; i < digest.length; i ++) {
+            hex[i * 2] = HEX[(digest[i] >> 4) & 0xf];
+            hex[i * 2 + 1] = HEX[digest[i] & 0xf];
         }
-        InputStream content = service.getCoverImage(ids, maxWidth, maxHeight);
+        return new String(hex);
+    }
+
+    private Response coverResponse(final InputStream content, Request request) {
         if (content == null) {
             return Response.ok(getClass().getClassLoader().getResourceAsStream(noCoverPath), "image/gif").build();
-        } else {
-            return Response.ok(content, "image/jpeg").build();
         }
+        if (content instanceof DigestedContent) {
+            // written straight from the cache, which already has its digest
+            final DigestedContent cached = (DigestedContent) content;
+            final EntityTag tag = new EntityTag(toHex(cached.getDigest()));
+            final Response.ResponseBuilder notModified = request.evaluatePreconditions(tag);
+            if (notModified != null) {
+                IOUtils.closeQuietly(content);
+                return notModified.build();
+            }
+            return Response.ok(new StreamingOutput() {
+                @Override
+                public void write(OutputStream output) throws IOException {
+                    try {
+                        cached.writeTo(output);
+                    } finally {
+                        content.close();
+                    }
+                }
+            }, "image/jpeg").header("Content-Length", cached.getLength()).tag(tag).build();
+        }
+        return Response.ok(new StreamingOutput() {
+            @Override
+            public void write(OutputStream output) throws IOException {
+                try {
+                    IOUtils.copy(content, output);
+                } finally {
+                    content.close();
+                }
+            }
+        }, "image/jpeg").build();
+    }
+
+    static Response overloadedResponse(ServiceOverloadedException ex) {
+        LOGGER.warn("Service overloaded: " + ex.getMessage());
+        return Response.status(HttpStatus.SC_SERVICE_UNAVAILABLE).header("Retry-After", ex.getRetryAfterSeconds()).build();
     }
 }
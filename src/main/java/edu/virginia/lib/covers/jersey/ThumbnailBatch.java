@@ -0,0 +1,306 @@
+package edu.virginia.lib.covers.jersey;
+
+import edu.virginia.lib.covers.CoverService;
+import edu.virginia.lib.covers.Identifier;
+import edu.virginia.lib.covers.ServiceOverloadedException;
+import edu.virginia.lib.covers.cache.DigestedContent;
+import edu.virginia.lib.covers.service.CoverRequestExecutor;
+import org.apache.commons.io.IOUtils;
+import org.apache.http.HttpStatus;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.slf4j.Logger;
+
+import javax.servlet.ServletContext;
+import javax.ws.rs.Consumes;
+import javax.ws.rs.POST;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.container.Suspended;
+import javax.ws.rs.core.Context;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.UriBuilder;
+import javax.ws.rs.core.UriInfo;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.slf4j.LoggerFactory.getLogger;
+
+/**
+ * Resolves the covers for a page of results in one request.  The request is
+ * a JSON object listing the identifiers of each item with the same names as
+ * the parameters of the thumbnail resource, for instance:
+ * <pre>
+ * {"maxWidth": 120, "maxHeight": 120, "timeout": 2000,
+ *  "items": [{"ISBN": "0312932081"}, {"artist": "Low", "album": "Trust"}]}
+ * </pre>
+ * The response lists, in the same order, the status of each item and the URL
+ * of its thumbnail: "found" (with its ETag, if known), "missing", "pending"
+ * if the cover wasn't found before the timeout, "unavailable" if the service
+ * was too busy, "error" or "invalid" if the item has no usable identifiers.
+ * Items with the same identifiers are looked up once and the rest are looked
+ * up at once through the CoverRequestExecutor.
+ */
+@Path("thumbnails")
+public class ThumbnailBatch {
+
+    private static final Logger LOGGER = getLogger(ThumbnailBatch.class);
+
+    /**
+     * The most items that may be requested at once.
+     */
+    static final int MAX_ITEMS = 100;
+
+    /**
+     * The names of the identifier properties of an item, which are the same
+     * as the query parameters of the thumbnail resource.
+     */
+    private static final String[] PARAMETERS = new String[] { "ISBN", "OCLC", "UPC", "MBID", "artist", "album" };
+
+    @Context
+    private ServletContext context;
+
+    @Context
+    private UriInfo uriInfo;
+
+    @POST
+    @Consumes("application/json")
+    @Produces("application/json")
+    public void getThumbnails(@Suspended final AsyncResponse response, final String body) {
+        final List<Item> items;
+        final int maxWidth;
+        final int maxHeight;
+        final long timeout;
+        try {
+            final JSONObject request = new JSONObject(body);
+            maxWidth = request.optInt("maxWidth", 120);
+            maxHeight = request.optInt("maxHeight", 120);
+            timeout = request.optLong("timeout", -1);
+            items = parseItems(request.getJSONArray("items"));
+        } catch (JSONException ex) {
+            response.resume(Response.status(HttpStatus.SC_BAD_REQUEST).entity(ex.getMessage()).type("text/plain").build());
+            return;
+        }
+        if (items.isEmpty() || items.size() > MAX_ITEMS) {
+            response.resume(Response.status(HttpStatus.SC_BAD_REQUEST).entity("Between 1 and " + MAX_ITEMS + " items may be requested!").type("text/plain").build());
+            return;
+        }
+        final CoverService service = CoverServiceContextListener.getCoverService(context);
+        final CoverRequestExecutor executor = CoverServiceContextListener.getRequestExecutor(context);
+        if (service == null || executor == null) {
+            throw new RuntimeException("Service not wired!");
+        }
+
+        resolve(service, executor, groupByIdentifiers(items).values(), maxWidth, maxHeight, timeout, false, new Runnable() {
+            @Override
+            public void run() {
+                response.resume(Response.ok(toJSON(items, maxWidth, maxHeight).toString(), "application/json").build());
+            }
+        });
+    }
+
+    /**
+     * Looks up the cover for each of the lookups at once, running whenDone
+     * (on whichever thread finished last) when all have an outcome.
+     * @param keepImages true to read each cover found into its Lookup's image
+     */
+    static void resolve(CoverService service, CoverRequestExecutor executor, Collection<Lookup> lookups, int maxWidth, int maxHeight, long timeout,
+                        final boolean keepImages, final Runnable whenDone) {
+        final AtomicInteger remaining = new AtomicInteger(lookups.size() + 1);
+        final Runnable done = new Runnable() {
+            @Override
+            public void run() {
+                if (remaining.decrementAndGet() == 0) {
+                    whenDone.run();
+                }
+            }
+        };
+        for (final Lookup lookup : lookups) {
+            try {
+                final InputStream cached = service.getCachedCoverImage(lookup.ids, maxWidth, maxHeight);
+                if (cached != null) {
+                    lookup.completed(cached, keepImages);
+                    done.run();
+                    continue;
+                }
+                executor.submit(service, lookup.ids, maxWidth, maxHeight, timeout, new CoverRequestExecutor.Callback() {
+                    @Override
+                    public void completed(InputStream cover) {
+                        lookup.completed(cover, keepImages);
+                        done.run();
+                    }
+
+                    @Override
+                    public void failed(Throwable t) {
+                        lookup.status = t instanceof ServiceOverloadedException ? "unavailable" : "error";
+                        LOGGER.debug("Unable to look up cover for " + lookup.ids + "!", t);
+                        done.run();
+                    }
+
+                    @Override
+                    public void timedOut() {
+                        lookup.status = "pending";
+                        done.run();
+                    }
+                });
+            } catch (ServiceOverloadedException ex) {
+                lookup.status = "unavailable";
+                done.run();
+            } catch (IOException ex) {
+                LOGGER.warn("Unable to look up cover for " + lookup.ids + "!", ex);
+                lookup.status = "error";
+                done.run();
+            }
+        }
+        // the extra count keeps whenDone from running until every lookup has
+        // at least been started, even if there are none
+        done.run();
+    }
+
+    /**
+     * Parses the items of a request, each of which is a JSON object whose
+     * properties are named like the parameters of the thumbnail resource.
+     */
+    static List<Item> parseItems(JSONArray array) throws JSONException {
+        final List<Item> items = new ArrayList<Item>();
+        for (int i = 0; i < array.length(); i ++) {
+            final JSONObject o = array.getJSONObject(i);
+            final Map<String, String> parameters = new LinkedHashMap<String, String>();
+            for (String name : PARAMETERS) {
+                if (o.has(name)) {
+                    parameters.put(name, o.getString(name));
+                }
+            }
+            items.add(new Item(parameters));
+        }
+        return items;
+    }
+
+    /**
+     * Groups the items with usable identifiers by the (unordered) set of
+     * their identifiers, so that each set is looked up once.
+     */
+    static Map<String, Lookup> groupByIdentifiers(List<Item> items) {
+        final Map<String, Lookup> lookups = new LinkedHashMap<String, Lookup>();
+        for (Item item : items) {
+            if (item.key == null) {
+                continue;
+            }
+            final String key = item.key;
+            Lookup lookup = lookups.get(key);
+            if (lookup == null) {
+                lookup = new Lookup(item.ids);
+                lookups.put(key, lookup);
+            }
+            item.lookup = lookup;
+        }
+        return lookups;
+    }
+
+    private JSONObject toJSON(List<Item> items, int maxWidth, int maxHeight) {
+        final JSONArray results = new JSONArray();
+        for (Item item : items) {
+            final JSONObject result = new JSONObject();
+            final String status = item.lookup == null ? "invalid" : item.lookup.status;
+            result.put("status", status);
+            if (item.lookup != null) {
+                final UriBuilder url = uriInfo.getBaseUriBuilder().path(Thumbnail.class);
+                for (Map.Entry<String, String> parameter : item.parameters.entrySet()) {
+                    url.queryParam(parameter.getKey(), parameter.getValue());
+                }
+                url.queryParam("maxWidth", maxWidth).queryParam("maxHeight", maxHeight);
+                result.put("url", url.build().toString());
+            }
+            if (item.lookup != null && item.lookup.etag != null) {
+                result.put("etag", "\"" + item.lookup.etag + "\"");
+            }
+            result.put("default", !"found".equals(status));
+            results.put(result);
+        }
+        return new JSONObject().put("items", results);
+    }
+
+    static final class Item {
+
+        final Map<String, String> parameters;
+
+        final List<Identifier> ids;
+
+        /**
+         * The sorted keys of the identifiers, or null if there are none.
+         */
+        final String key;
+
+        Lookup lookup;
+
+        Item(Map<String, String> parameters) {
+            this.parameters = parameters;
+            ids = Thumbnail.getIdentifiers(parameters.get("ISBN"), parameters.get("OCLC"), parameters.get("UPC"),
+                    parameters.get("MBID"), parameters.get("artist"), parameters.get("album"));
+            if (ids.isEmpty()) {
+                key = null;
+            } else {
+                final List<String> keys = new ArrayList<String>();
+                for (Identifier id : ids) {
+                    keys.add(id.getKey());
+                }
+                Collections.sort(keys);
+                key = keys.toString();
+            }
+        }
+    }
+
+    /**
+     * The lookup of the cover for one set of identifiers, and its outcome.
+     */
+    static final class Lookup {
+
+        final List<Identifier> ids;
+
+        volatile String status;
+
+        volatile String etag;
+
+        /**
+         * The cover found, if it was asked to be kept.
+         */
+        volatile byte[] image;
+
+        Lookup(List<Identifier> ids) {
+            this.ids = ids;
+        }
+
+        void completed(InputStream cover, boolean keepImage) {
+            if (cover == null) {
+                status = "missing";
+                return;
+            }
+            try {
+                try {
+                    if (cover instanceof DigestedContent) {
+                        // the same tag the thumbnail resource serves it with
+                        etag = Thumbnail.toHex(((DigestedContent) cover).getDigest());
+                    }
+                    if (keepImage) {
+                        image = IOUtils.toByteArray(cover);
+                    }
+                } finally {
+                    cover.close();
+                }
+                status = "found";
+            } catch (IOException ex) {
+                LOGGER.warn("Unable to read cover for " + ids + "!", ex);
+                status = "error";
+            }
+        }
+    }
+}
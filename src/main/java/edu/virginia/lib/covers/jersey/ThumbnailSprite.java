@@ -0,0 +1,207 @@
+package edu.virginia.lib.covers.jersey;
+
+import edu.virginia.lib.covers.BinaryCache;
+import edu.virginia.lib.covers.CoverService;
+import edu.virginia.lib.covers.service.CoverRequestExecutor;
+import edu.virginia.lib.covers.service.CoverSprites;
+import edu.virginia.lib.covers.service.SimpleCoverService;
+import org.apache.commons.io.IOUtils;
+import org.apache.http.HttpStatus;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.slf4j.Logger;
+
+import javax.servlet.ServletContext;
+import javax.ws.rs.Consumes;
+import javax.ws.rs.GET;
+import javax.ws.rs.POST;
+import javax.ws.rs.Path;
+import javax.ws.rs.PathParam;
+import javax.ws.rs.Produces;
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.container.Suspended;
+import javax.ws.rs.core.Context;
+import javax.ws.rs.core.EntityTag;
+import javax.ws.rs.core.Request;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
+import javax.ws.rs.core.UriInfo;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.slf4j.LoggerFactory.getLogger;
+
+/**
+ * Packs the thumbnails for a page of results into one image.  A POST with the
+ * same body as the ThumbnailBatch resource returns the URL and size of the
+ * sprite and, for each item in the order given, the "x", "y", "width" and
+ * "height" of its tile or, if there's no cover, "default": true.
+ *
+ * The tiles are the scaled images from the cover cache, laid out in order of
+ * their (sorted) identifiers so that any request for the same covers shares
+ * a sprite, whose id is the MD5 of that sorted list.  Composed sprites are
+ * stored in the cover cache and only composed again if some of their covers
+ * were still being looked up when the request timed out, so once complete a
+ * sprite's id and size serve as its ETag.  Tiles may be at most
+ * CoverSprites.MAX_TILE_SIZE wide and high.
+ */
+@Path("sprite")
+public class ThumbnailSprite {
+
+    private static final Logger LOGGER = getLogger(ThumbnailSprite.class);
+
+    @Context
+    private ServletContext context;
+
+    @Context
+    private UriInfo uriInfo;
+
+    @POST
+    @Consumes("application/json")
+    @Produces("application/json")
+    public void getSprite(@Suspended final AsyncResponse response, final String body) {
+        final List<ThumbnailBatch.Item> items;
+        final int maxWidth;
+        final int maxHeight;
+        final long timeout;
+        try {
+            final JSONObject request = new JSONObject(body);
+            maxWidth = request.optInt("maxWidth", 120);
+            maxHeight = request.optInt("maxHeight", 120);
+            timeout = request.optLong("timeout", -1);
+            items = ThumbnailBatch.parseItems(request.getJSONArray("items"));
+        } catch (JSONException ex) {
+            response.resume(Response.status(HttpStatus.SC_BAD_REQUEST).entity(ex.getMessage()).type("text/plain").build());
+            return;
+        }
+        if (items.isEmpty() || items.size() > ThumbnailBatch.MAX_ITEMS) {
+            response.resume(Response.status(HttpStatus.SC_BAD_REQUEST).entity("Between 1 and " + ThumbnailBatch.MAX_ITEMS + " items may be requested!").type("text/plain").build());
+            return;
+        }
+        if (!CoverSprites.isAllowed(items.size(), maxWidth, maxHeight)) {
+            response.resume(Response.status(HttpStatus.SC_BAD_REQUEST).entity("The maxWidth and maxHeight of sprite tiles must be between 1 and " + CoverSprites.MAX_TILE_SIZE + "!").type("text/plain").build());
+            return;
+        }
+        final CoverService service = CoverServiceContextListener.getCoverService(context);
+        final CoverRequestExecutor executor = CoverServiceContextListener.getRequestExecutor(context);
+        if (service == null || executor == null) {
+            throw new RuntimeException("Service not wired!");
+        }
+        final CoverSprites sprites = getSprites(service);
+        if (sprites == null) {
+            response.resume(Response.status(HttpStatus.SC_NOT_IMPLEMENTED).entity("Sprites require a cover cache.").type("text/plain").build());
+            return;
+        }
+
+        final Map<String, ThumbnailBatch.Lookup> lookups = ThumbnailBatch.groupByIdentifiers(items);
+        final List<String> tileIds = new ArrayList<String>(lookups.keySet());
+        Collections.sort(tileIds);
+        final StringBuilder tileList = new StringBuilder();
+        for (String tileId : tileIds) {
+            tileList.append(tileId).append('\n');
+        }
+        final String spriteId;
+        try {
+            spriteId = Thumbnail.getETag(tileList.toString().getBytes("UTF-8"));
+            final JSONObject layout = sprites.getLayout(spriteId, maxWidth, maxHeight);
+            if (layout != null && layout.optBoolean("complete")) {
+                response.resume(spriteResponse(items, spriteId, layout, maxWidth, maxHeight));
+                return;
+            }
+        } catch (IOException ex) {
+            response.resume(ex);
+            return;
+        }
+
+        ThumbnailBatch.resolve(service, executor, lookups.values(), maxWidth, maxHeight, timeout, true, new Runnable() {
+            @Override
+            public void run() {
+                final Map<String, byte[]> tiles = new HashMap<String, byte[]>();
+                boolean complete = true;
+                for (Map.Entry<String, ThumbnailBatch.Lookup> lookup : lookups.entrySet()) {
+                    if (lookup.getValue().image != null) {
+                        tiles.put(lookup.getKey(), lookup.getValue().image);
+                    } else if (!"missing".equals(lookup.getValue().status)) {
+                        complete = false;
+                    }
+                }
+                try {
+                    final JSONObject layout = sprites.compose(spriteId, tileIds, tiles, maxWidth, maxHeight, complete);
+                    response.resume(spriteResponse(items, spriteId, layout, maxWidth, maxHeight));
+                } catch (Exception ex) {
+                    LOGGER.error("Unable to compose sprite " + spriteId + "!", ex);
+                    response.resume(ex);
+                }
+            }
+        });
+    }
+
+    @GET
+    @Path("{id: [0-9a-f]{32}}/{maxWidth: [0-9]+}x{maxHeight: [0-9]+}")
+    @Produces("image/jpeg")
+    public Response getSpriteImage(@Context Request request,
+                                   @PathParam("id") String spriteId,
+                                   @PathParam("maxWidth") int maxWidth,
+                                   @PathParam("maxHeight") int maxHeight) throws IOException {
+        final CoverSprites sprites = getSprites(CoverServiceContextListener.getCoverService(context));
+        final JSONObject layout = sprites == null ? null : sprites.getLayout(spriteId, maxWidth, maxHeight);
+        // an incomplete sprite is composed again, so only a complete one is
+        // identified by its id and size alone
+        final EntityTag tag = layout != null && layout.optBoolean("complete") ? new EntityTag(spriteId + "-" + maxWidth + "x" + maxHeight) : null;
+        if (tag != null) {
+            final Response.ResponseBuilder notModified = request.evaluatePreconditions(tag);
+            if (notModified != null) {
+                return notModified.build();
+            }
+        }
+        final InputStream content = sprites == null ? null : sprites.getImage(spriteId, maxWidth, maxHeight);
+        if (content == null) {
+            return Response.status(HttpStatus.SC_NOT_FOUND).build();
+        }
+        return Response.ok(new StreamingOutput() {
+            @Override
+            public void write(OutputStream output) throws IOException {
+                try {
+                    IOUtils.copy(content, output);
+                } finally {
+                    content.close();
+                }
+            }
+        }, "image/jpeg").tag(tag).build();
+    }
+
+    private CoverSprites getSprites(CoverService service) {
+        if (service instanceof SimpleCoverService) {
+            final BinaryCache cache = ((SimpleCoverService) service).getCoverCache();
+            if (cache != null) {
+                return new CoverSprites(cache);
+            }
+        }
+        return null;
+    }
+
+    private Response spriteResponse(List<ThumbnailBatch.Item> items, String spriteId, JSONObject layout, int maxWidth, int maxHeight) {
+        final JSONObject tiles = layout.getJSONObject("tiles");
+        final JSONArray results = new JSONArray();
+        for (ThumbnailBatch.Item item : items) {
+            if (item.key != null && tiles.has(item.key)) {
+                results.put(tiles.getJSONObject(item.key));
+            } else {
+                results.put(new JSONObject().put("default", true));
+            }
+        }
+        final JSONObject result = new JSONObject()
+                .put("url", uriInfo.getBaseUriBuilder().path(ThumbnailSprite.class).path(spriteId).path(maxWidth + "x" + maxHeight).build().toString())
+                .put("width", layout.getInt("width"))
+                .put("height", layout.getInt("height"))
+                .put("items", results);
+        return Response.ok(result.toString(), "application/json").build();
+    }
+}
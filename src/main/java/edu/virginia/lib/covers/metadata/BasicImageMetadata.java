@@ -0,0 +1,40 @@
+package edu.virginia.lib.covers.metadata;
+
+import edu.virginia.lib.covers.ImageMetadata;
+
+/**
+ * A simple immutable ImageMetadata implementation.
+ */
+public class BasicImageMetadata implements ImageMetadata {
+
+    private final int width;
+
+    private final int height;
+
+    private final String mimeType;
+
+    public BasicImageMetadata(int width, int height, String mimeType) {
+        this.width = width;
+        this.height = height;
+        this.mimeType = mimeType;
+    }
+
+    @Override
+    public int width() {
+        return width;
+    }
+
+    @Override
+    public int height() {
+        return height;
+    }
+
+    @Override
+    public String mimeType() {
+        return mimeType;
+    }
+
+    public String toString() {
+        return mimeType + " " + width + "x" + height;
+    }
+}
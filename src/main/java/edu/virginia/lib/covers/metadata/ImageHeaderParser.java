@@ -0,0 +1,187 @@
+package edu.virginia.lib.covers.metadata;
+
+import edu.virginia.lib.covers.ImageMetadata;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Determines the type and dimensions of JPEG, PNG, GIF and BMP images by
+ * reading only as much of their headers as is needed.  This is far cheaper
+ * than running ImageMagick's "identify", which should only be needed for
+ * other types of images.
+ */
+public class ImageHeaderParser {
+
+    /**
+     * The most of a JPEG that will be scanned for its frame header.  The
+     * frame header normally follows any EXIF data, which may not exceed 64K.
+     */
+    private static final int MAX_JPEG_SCAN = 256 * 1024;
+
+    private static final byte[] PNG_SIGNATURE = new byte[] { (byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n' };
+
+    /**
+     * Gets the metadata for the image in the given file.
+     * @return the metadata or null if the type of image was not recognized
+     */
+    public static ImageMetadata parse(File f) throws IOException {
+        final InputStream is = new BufferedInputStream(new FileInputStream(f), 4096);
+        try {
+            return parse(is);
+        } finally {
+            is.close();
+        }
+    }
+
+    /**
+     * Gets the metadata for the image read from the given stream, which is
+     * left open and partially read.
+     * @return the metadata or null if the type of image was not recognized
+     */
+    public static ImageMetadata parse(InputStream is) throws IOException {
+        try {
+            final int b1 = is.read();
+            final int b2 = is.read();
+            if (b1 == 0xFF && b2 == 0xD8) {
+                return parseJpeg(is);
+            } else if (b1 == 0x89 && b2 == 'P') {
+                return parsePng(is);
+            } else if (b1 == 'G' && b2 == 'I') {
+                return parseGif(is);
+            } else if (b1 == 'B' && b2 == 'M') {
+                return parseBmp(is);
+            }
+            return null;
+        } catch (EOFException ex) {
+            return null;
+        }
+    }
+
+    /**
+     * Walks the marker segments following the SOI marker until a start of
+     * frame segment (any SOFn except DHT, JPG and DAC which share the range)
+     * is found.
+     */
+    private static ImageMetadata parseJpeg(InputStream is) throws IOException {
+        int scanned = 2;
+        while (scanned < MAX_JPEG_SCAN) {
+            if (readByte(is) != 0xFF) {
+                return null;
+            }
+            int marker = readByte(is);
+            scanned += 2;
+            while (marker == 0xFF) {
+                // fill bytes
+                marker = readByte(is);
+                scanned ++;
+            }
+            if (marker == 0x01 || (marker >= 0xD0 && marker <= 0xD7)) {
+                // markers without a length
+                continue;
+            }
+            if (marker == 0xD9 || marker == 0xDA) {
+                // end of image or start of scan before any frame header
+                return null;
+            }
+            final int length = readUnsignedShortBigEndian(is);
+            scanned += 2;
+            if (marker >= 0xC0 && marker <= 0xCF && marker != 0xC4 && marker != 0xC8 && marker != 0xCC) {
+                readByte(is); // sample precision
+                final int height = readUnsignedShortBigEndian(is);
+                final int width = readUnsignedShortBigEndian(is);
+                return new BasicImageMetadata(width, height, "image/jpeg");
+            }
+            skipFully(is, length - 2);
+            scanned += length - 2;
+        }
+        return null;
+    }
+
+    private static ImageMetadata parsePng(InputStream is) throws IOException {
+        for (int i = 2; i < PNG_SIGNATURE.length; i ++) {
+            if (readByte(is) != (PNG_SIGNATURE[i] & 0xFF)) {
+                return null;
+            }
+        }
+        readIntBigEndian(is); // IHDR chunk length
+        if (readByte(is) != 'I' || readByte(is) != 'H' || readByte(is) != 'D' || readByte(is) != 'R') {
+            return null;
+        }
+        final int width = readIntBigEndian(is);
+        final int height = readIntBigEndian(is);
+        return new BasicImageMetadata(width, height, "image/png");
+    }
+
+    private static ImageMetadata parseGif(InputStream is) throws IOException {
+        if (readByte(is) != 'F' || readByte(is) != '8') {
+            return null;
+        }
+        final int version = readByte(is);
+        if ((version != '7' && version != '9') || readByte(is) != 'a') {
+            return null;
+        }
+        final int width = readUnsignedShortLittleEndian(is);
+        final int height = readUnsignedShortLittleEndian(is);
+        return new BasicImageMetadata(width, height, "image/gif");
+    }
+
+    private static ImageMetadata parseBmp(InputStream is) throws IOException {
+        skipFully(is, 12); // remainder of the file header
+        final int dibHeaderSize = readIntLittleEndian(is);
+        final int width;
+        final int height;
+        if (dibHeaderSize == 12) {
+            // OS/2 BITMAPCOREHEADER
+            width = readUnsignedShortLittleEndian(is);
+            height = readUnsignedShortLittleEndian(is);
+        } else if (dibHeaderSize >= 40) {
+            width = readIntLittleEndian(is);
+            // negative for top-down bitmaps
+            height = Math.abs(readIntLittleEndian(is));
+        } else {
+            return null;
+        }
+        return new BasicImageMetadata(width, height, "image/bmp");
+    }
+
+    private static int readByte(InputStream is) throws IOException {
+        final int b = is.read();
+        if (b == -1) {
+            throw new EOFException();
+        }
+        return b;
+    }
+
+    private static int readUnsignedShortBigEndian(InputStream is) throws IOException {
+        return (readByte(is) << 8) | readByte(is);
+    }
+
+    private static int readUnsignedShortLittleEndian(InputStream is) throws IOException {
+        return readByte(is) | (readByte(is) << 8);
+    }
+
+    private static int readIntBigEndian(InputStream is) throws IOException {
+        return (readUnsignedShortBigEndian(is) << 16) | readUnsignedShortBigEndian(is);
+    }
+
+    private static int readIntLittleEndian(InputStream is) throws IOException {
+        return readUnsignedShortLittleEndian(is) | (readUnsignedShortLittleEndian(is) << 16);
+    }
+
+    private static void skipFully(InputStream is, long n) throws IOException {
+        while (n > 0) {
+            final long skipped = is.skip(n);
+            if (skipped <= 0) {
+                readByte(is);
+                n --;
+            } else {
+                n -= skipped;
+            }
+        }
+    }
+}
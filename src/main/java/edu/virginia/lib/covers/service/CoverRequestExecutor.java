@@ -0,0 +1,272 @@
+package edu.virginia.lib.covers.service;
+
+import edu.virginia.lib.covers.CoverService;
+import edu.virginia.lib.covers.Identifier;
+import edu.virginia.lib.covers.ServiceOverloadedException;
+import org.slf4j.Logger;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.slf4j.LoggerFactory.getLogger;
+
+/**
+ * Runs requests against a CoverService on a bounded pool of threads and
+ * reports the outcome of each to a Callback.  A request that misses its
+ * deadline is reported as timed out but runs to completion, leaving its
+ * result in the cache for the next request.
+ */
+public class CoverRequestExecutor implements Closeable {
+
+    private static final Logger LOGGER = getLogger(CoverRequestExecutor.class);
+
+    /**
+     * Receives the outcome of a request.  Exactly one of the methods is
+     * invoked for each request, on a thread belonging to the executor (or
+     * the one closing it).
+     */
+    public interface Callback {
+
+        /**
+         * Invoked with the cover image or null if none was found.
+         */
+        public void completed(InputStream cover);
+
+        public void failed(Throwable t);
+
+        public void timedOut();
+    }
+
+    private final ThreadPoolExecutor executor;
+
+    private final ScheduledExecutorService timer;
+
+    private final long defaultTimeoutMillis;
+
+    private final long maxTimeoutMillis;
+
+    private final AtomicLong timedOut;
+
+    private final AtomicLong rejected;
+
+    /**
+     * @param threads the number of requests that may run at once
+     * @param queueLength the number of requests that may wait to run, beyond
+     *                    which requests are rejected with a
+     *                    ServiceOverloadedException
+     * @param defaultTimeoutMillis the deadline for requests that don't
+     *                             specify one
+     * @param maxTimeoutMillis the longest deadline a request may specify
+     */
+    public CoverRequestExecutor(int threads, int queueLength, long defaultTimeoutMillis, long maxTimeoutMillis) {
+        executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(queueLength), new NamedDaemonThreadFactory("cover-request-"));
+        executor.allowCoreThreadTimeOut(true);
+        timer = Executors.newSingleThreadScheduledExecutor(new NamedDaemonThreadFactory("cover-request-timer-"));
+        this.defaultTimeoutMillis = defaultTimeoutMillis;
+        this.maxTimeoutMillis = maxTimeoutMillis;
+        timedOut = new AtomicLong();
+        rejected = new AtomicLong();
+    }
+
+    /**
+     * Gets the deadline for a requested timeout (negative for the default).
+     */
+    public long getTimeoutMillis(long requestedTimeoutMillis) {
+        if (requestedTimeoutMillis < 0) {
+            return defaultTimeoutMillis;
+        }
+        return Math.min(requestedTimeoutMillis, maxTimeoutMillis);
+    }
+
+    /**
+     * Starts getting the cover image from the service, reporting the outcome
+     * to the callback.
+     * @param timeoutMillis the requested timeout, or a negative value for the
+     *                      default
+     * @throws ServiceOverloadedException if too many requests are already
+     *                                    waiting to run or the executor has
+     *                                    been closed, in which case the
+     *                                    callback is never invoked
+     */
+    public void submit(CoverService service, List<Identifier> identifiers, int maxWidth, int maxHeight, long timeoutMillis, Callback callback) throws ServiceOverloadedException {
+        final CoverRequest request = new CoverRequest(service, identifiers, maxWidth, maxHeight, callback);
+        try {
+            executor.execute(request);
+        } catch (RejectedExecutionException ex) {
+            rejected.incrementAndGet();
+            throw new ServiceOverloadedException("Too many requests waiting for covers!", 5);
+        }
+        try {
+            request.setDeadline(timer.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    request.timeout();
+                }
+            }, getTimeoutMillis(timeoutMillis), TimeUnit.MILLISECONDS));
+        } catch (RejectedExecutionException ex) {
+            // closed since the request was queued
+            if (request.abandon()) {
+                rejected.incrementAndGet();
+                throw new ServiceOverloadedException("Cover requests have been shut down!", 5);
+            }
+        }
+    }
+
+    public long getTimedOutCount() {
+        return timedOut.get();
+    }
+
+    public long getRejectedCount() {
+        return rejected.get();
+    }
+
+    public int getActiveCount() {
+        return executor.getActiveCount();
+    }
+
+    public int getQueueDepth() {
+        return executor.getQueue().size();
+    }
+
+    /**
+     * Stops accepting requests, interrupting any that are running and failing
+     * any that are waiting to run.
+     */
+    @Override
+    public void close() {
+        timer.shutdownNow();
+        for (Runnable queued : executor.shutdownNow()) {
+            ((CoverRequest) queued).fail(new IOException("Cover requests have been shut down!"));
+        }
+    }
+
+    /**
+     * A request whose outcome goes to the callback unless the deadline passed
+     * first, in which case the result is closed when it arrives.
+     */
+    private final class CoverRequest implements Runnable {
+
+        private final CoverService service;
+
+        private final List<Identifier> identifiers;
+
+        private final int maxWidth;
+
+        private final int maxHeight;
+
+        private final Callback callback;
+
+        private final AtomicBoolean answered;
+
+        private volatile ScheduledFuture<?> deadline;
+
+        public CoverRequest(CoverService service, List<Identifier> identifiers, int maxWidth, int maxHeight, Callback callback) {
+            this.service = service;
+            this.identifiers = identifiers;
+            this.maxWidth = maxWidth;
+            this.maxHeight = maxHeight;
+            this.callback = callback;
+            answered = new AtomicBoolean();
+        }
+
+        public void setDeadline(ScheduledFuture<?> deadline) {
+            this.deadline = deadline;
+            if (answered.get()) {
+                deadline.cancel(false);
+            }
+        }
+
+        @Override
+        public void run() {
+            InputStream result = null;
+            Throwable failure = null;
+            try {
+                result = service.getCoverImage(identifiers, maxWidth, maxHeight);
+            } catch (Throwable t) {
+                failure = t;
+            }
+            if (answered.compareAndSet(false, true)) {
+                final ScheduledFuture<?> deadline = this.deadline;
+                if (deadline != null) {
+                    deadline.cancel(false);
+                }
+                try {
+                    if (failure == null) {
+                        callback.completed(result);
+                    } else {
+                        callback.failed(failure);
+                    }
+                } catch (RuntimeException ex) {
+                    LOGGER.warn("Error reporting cover request outcome!", ex);
+                }
+            } else if (result != null) {
+                try {
+                    result.close();
+                } catch (IOException ex) {
+                    LOGGER.debug("Error closing abandoned cover.", ex);
+                }
+            } else if (failure != null) {
+                LOGGER.debug("Abandoned cover request failed.", failure);
+            }
+        }
+
+        /**
+         * @return false if the request had already been answered
+         */
+        public boolean abandon() {
+            return answered.compareAndSet(false, true);
+        }
+
+        public void fail(Throwable t) {
+            if (answered.compareAndSet(false, true)) {
+                try {
+                    callback.failed(t);
+                } catch (RuntimeException ex) {
+                    LOGGER.warn("Error reporting cover request outcome!", ex);
+                }
+            }
+        }
+
+        public void timeout() {
+            if (answered.compareAndSet(false, true)) {
+                timedOut.incrementAndGet();
+                try {
+                    callback.timedOut();
+                } catch (RuntimeException ex) {
+                    LOGGER.warn("Error reporting cover request timeout!", ex);
+                }
+            }
+        }
+    }
+
+    private static final class NamedDaemonThreadFactory implements ThreadFactory {
+
+        private final String prefix;
+
+        private final AtomicInteger count = new AtomicInteger();
+
+        public NamedDaemonThreadFactory(String prefix) {
+            this.prefix = prefix;
+        }
+
+        @Override
+        public Thread newThread(Runnable r) {
+            final Thread t = new Thread(r, prefix + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        }
+    }
+}
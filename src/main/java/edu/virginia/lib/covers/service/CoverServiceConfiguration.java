@@ -0,0 +1,187 @@
+package edu.virginia.lib.covers.service;
+
+import edu.virginia.lib.covers.BinaryCache;
+import edu.virginia.lib.covers.cache.filesystem.FileBinaryCache;
+import edu.virginia.lib.covers.cache.memory.MemoryBinaryCache;
+import edu.virginia.lib.covers.cache.memory.OffHeapBinaryCache;
+import edu.virginia.lib.covers.imageio.ImageIOThumbnailEngine;
+import edu.virginia.lib.covers.imagemagick.ImageMagickProcess;
+import edu.virginia.lib.covers.imagemagick.ImageMagickScheduler;
+import edu.virginia.lib.covers.sources.HttpClientConfiguration;
+import edu.virginia.lib.covers.sources.WebServiceCoverSource;
+import edu.virginia.lib.covers.sources.googlebooks.GoogleBooksCoverSource;
+import edu.virginia.lib.covers.sources.lastfm.LastFMCoverSource;
+import org.slf4j.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.slf4j.LoggerFactory.getLogger;
+
+/**
+ * Builds a SimpleCoverService from configuration properties.  The following
+ * properties are recognized:
+ * <ul>
+ *   <li>sources: a comma separated list of the sources to query, in order of
+ *       priority ("lastfm", "googlebooks"), defaults to "lastfm,googlebooks"</li>
+ *   <li>lastfm.api-key: the LastFM API key ("api-key" is also accepted so
+ *       that an existing last-fm.properties file may be used as is)</li>
+ *   <li>{source}.connections.max, {source}.timeout.socket.ms, etc.: the HTTP
+ *       client settings for each web service source (see
+ *       HttpClientConfiguration)</li>
+ *   <li>googlebooks.batch.window.ms: how long to wait to combine Google
+ *       Books lookups into one query, defaults to 10 (0 to disable)</li>
+ *   <li>googlebooks.batch.max-keys: the most lookups combined into one
+ *       query, defaults to 40</li>
+ *   <li>sources.parallel: "true" to query all of the sources at once (still
+ *       preferring results in the order above), defaults to "false"</li>
+ *   <li>cache.dir: the directory in which images are cached, defaults to
+ *       "cache"</li>
+ *   <li>cache.max-bytes: the most bytes of images to keep in the cache
+ *       directory, beyond which the least recently used are deleted (see
+ *       FileCacheEvictor), defaults to 0 (no limit)</li>
+ *   <li>cache.max-files: the most files to keep in the cache directory,
+ *       defaults to 0 (no limit)</li>
+ *   <li>cache.memory.max-bytes: the most bytes of popular (cached) images to
+ *       also keep in memory, defaults to 33554432 (32 MB, 0 to disable)</li>
+ *   <li>cache.memory.max-entry-bytes: the size of the largest image to keep
+ *       in memory, defaults to 131072</li>
+ *   <li>cache.memory.off-heap: "true" to keep those images in direct buffers
+ *       outside of the Java heap (see OffHeapBinaryCache), defaults to
+ *       "false"</li>
+ *   <li>imagemagick.enabled: "false" to only scale the images that can be
+ *       scaled within the JVM (JPEG, PNG and GIF) rather than also running
+ *       ImageMagick for the rest, defaults to "true".  If ImageMagick can't
+ *       be run, a warning is logged and it isn't used.</li>
+ *   <li>imagemagick.processes.max: the number of ImageMagick processes that
+ *       may run at once, defaults to the number of processors</li>
+ *   <li>imagemagick.queue.max: the number of conversions that may wait for
+ *       a process, defaults to four times the number of processors</li>
+ *   <li>imagemagick.wait.max.ms: how long a conversion may wait for a
+ *       process, defaults to 10000</li>
+ *   <li>imagemagick.timeout.ms: how long an ImageMagick process may run
+ *       before it's killed, defaults to 30000</li>
+ *   <li>timeout.default.ms: how long a request waits for a cover before the
+ *       default image is returned, defaults to 10000</li>
+ *   <li>timeout.max.ms: the longest timeout a request may ask for, defaults
+ *       to 30000</li>
+ *   <li>requests.threads: the number of cover requests that may run at once,
+ *       defaults to 32</li>
+ *   <li>requests.queue: the number of cover requests that may wait to run,
+ *       defaults to 512</li>
+ *   <li>warmup: "true" to warm up the sources and thumbnail engine when the
+ *       service is created, defaults to "false"</li>
+ * </ul>
+ */
+public class CoverServiceConfiguration {
+
+    private static final Logger LOGGER = getLogger(CoverServiceConfiguration.class);
+
+    private final Properties properties;
+
+    public CoverServiceConfiguration(Properties properties) {
+        this.properties = properties;
+    }
+
+    public SimpleCoverService createCoverService() throws IOException {
+        final SimpleCoverService service = new SimpleCoverService();
+        for (String source : properties.getProperty("sources", "lastfm,googlebooks").split(",")) {
+            source = source.trim();
+            if (source.equals("lastfm")) {
+                final String apiKey = properties.getProperty("lastfm.api-key", properties.getProperty("api-key"));
+                if (apiKey == null || apiKey.trim().length() == 0) {
+                    throw new IllegalArgumentException("The \"lastfm\" source requires the \"lastfm.api-key\" property!");
+                }
+                service.addCoverSource(configure(new LastFMCoverSource(apiKey.trim())));
+            } else if (source.equals("googlebooks")) {
+                final GoogleBooksCoverSource googleBooks = new GoogleBooksCoverSource();
+                googleBooks.setBatching(
+                        Long.parseLong(properties.getProperty("googlebooks.batch.window.ms", "10")),
+                        Integer.parseInt(properties.getProperty("googlebooks.batch.max-keys", "40")));
+                service.addCoverSource(configure(googleBooks));
+            } else if (source.length() > 0) {
+                throw new IllegalArgumentException("Unknown source: \"" + source + "\"");
+            }
+        }
+        if (Boolean.parseBoolean(properties.getProperty("sources.parallel", "false"))) {
+            service.setSourceExecutor(createSourceExecutor());
+        }
+        final BinaryCache cache = new FileBinaryCache(new File(properties.getProperty("cache.dir", "cache")),
+                Long.parseLong(properties.getProperty("cache.max-bytes", "0")),
+                Long.parseLong(properties.getProperty("cache.max-files", "0")));
+        final long memoryCacheBytes = Long.parseLong(properties.getProperty("cache.memory.max-bytes", String.valueOf(32 * 1024 * 1024)));
+        final int memoryCacheEntryBytes = Integer.parseInt(properties.getProperty("cache.memory.max-entry-bytes", "131072"));
+        if (memoryCacheBytes > 0 && Boolean.parseBoolean(properties.getProperty("cache.memory.off-heap", "false"))) {
+            service.setCoverCache(new OffHeapBinaryCache(cache, memoryCacheBytes, memoryCacheEntryBytes));
+        } else if (memoryCacheBytes > 0) {
+            service.setCoverCache(new MemoryBinaryCache(cache, memoryCacheBytes, memoryCacheEntryBytes));
+        } else {
+            service.setCoverCache(cache);
+        }
+        final ImageMagickProcess imageMagick = createImageMagickProcess();
+        if (imageMagick == null) {
+            service.setThumbnailEngine(new FallbackThumbnailEngine(new ImageIOThumbnailEngine()));
+        } else {
+            service.setThumbnailEngine(new FallbackThumbnailEngine(new ImageIOThumbnailEngine(), imageMagick));
+        }
+        if (Boolean.parseBoolean(properties.getProperty("warmup", "false"))) {
+            service.warmUp();
+        }
+        return service;
+    }
+
+    /**
+     * Creates the ImageMagickProcess used to scale the images that can't be
+     * scaled within the JVM.
+     * @return the process, or null if it's disabled or can't be run
+     */
+    private ImageMagickProcess createImageMagickProcess() throws IOException {
+        if (!Boolean.parseBoolean(properties.getProperty("imagemagick.enabled", "true"))) {
+            return null;
+        }
+        final ImageMagickProcess imageMagick;
+        try {
+            imageMagick = new ImageMagickProcess();
+        } catch (RuntimeException ex) {
+            LOGGER.warn("ImageMagick is unavailable, only JPEG, PNG and GIF images will be scaled!", ex);
+            return null;
+        }
+        final int processors = Runtime.getRuntime().availableProcessors();
+        imageMagick.setScheduler(new ImageMagickScheduler(
+                Integer.parseInt(properties.getProperty("imagemagick.processes.max", String.valueOf(processors))),
+                Integer.parseInt(properties.getProperty("imagemagick.queue.max", String.valueOf(processors * 4))),
+                Long.parseLong(properties.getProperty("imagemagick.wait.max.ms", "10000"))));
+        imageMagick.setTimeout(Long.parseLong(properties.getProperty("imagemagick.timeout.ms", "30000")));
+        return imageMagick;
+    }
+
+    private WebServiceCoverSource configure(WebServiceCoverSource source) {
+        source.setHttpClientConfiguration(new HttpClientConfiguration(properties, source.getName()));
+        return source;
+    }
+
+    public CoverRequestExecutor createRequestExecutor() {
+        return new CoverRequestExecutor(
+                Integer.parseInt(properties.getProperty("requests.threads", "32")),
+                Integer.parseInt(properties.getProperty("requests.queue", "512")),
+                Long.parseLong(properties.getProperty("timeout.default.ms", "10000")),
+                Long.parseLong(properties.getProperty("timeout.max.ms", "30000")));
+    }
+
+    private ExecutorService createSourceExecutor() {
+        return Executors.newCachedThreadPool(new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+            @Override
+            public Thread newThread(Runnable r) {
+                final Thread t = new Thread(r, "cover-source-" + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+}
@@ -0,0 +1,157 @@
+package edu.virginia.lib.covers.service;
+
+import edu.virginia.lib.covers.BinaryCache;
+import org.apache.commons.io.IOUtils;
+import org.json.JSONObject;
+import org.json.JSONTokener;
+
+import javax.imageio.ImageIO;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Composes sprites: single images in which the thumbnails of many covers
+ * are laid out in a grid, so that a page of results needs only one image
+ * request.  Each sprite is stored in the BinaryCache along with its layout
+ * (a JSON object giving the offset and size of each tile) so it needs to be
+ * composed only once.
+ *
+ * Sprites are identified by the caller, which should derive the id from the
+ * tiles it contains so that requests for the same covers share a sprite.
+ * Tiles are identified by strings (for instance the keys of a cover's
+ * identifiers) and appear in the order given, COLUMNS to a row.
+ */
+public class CoverSprites {
+
+    /**
+     * The number of tiles in each row of a sprite.
+     */
+    public static final int COLUMNS = 10;
+
+    /**
+     * The largest width or height of a tile.
+     */
+    public static final int MAX_TILE_SIZE = 400;
+
+    /**
+     * The most pixels in a sprite, which is held uncompressed while it's
+     * composed.
+     */
+    public static final long MAX_PIXELS = 16 * 1024 * 1024;
+
+    private final BinaryCache cache;
+
+    public CoverSprites(BinaryCache cache) {
+        this.cache = cache;
+    }
+
+    /**
+     * Gets the cache key for the image of a sprite; its layout is stored
+     * under the same key with ".json" appended.
+     */
+    protected String getCacheKey(String spriteId, int maxWidth, int maxHeight) {
+        return "sprite/" + spriteId + "/" + maxWidth + "x" + maxHeight;
+    }
+
+    /**
+     * Gets the layout of a sprite that has been composed, or null if there is
+     * none.  The layout has "width" and "height" properties, a "complete"
+     * property that is false if any tiles couldn't be looked up when it was
+     * composed and a "tiles" object with the "x", "y", "width" and "height"
+     * of each tile that has an image.
+     */
+    public JSONObject getLayout(String spriteId, int maxWidth, int maxHeight) throws IOException {
+        final InputStream layout = cache.getContent(getCacheKey(spriteId, maxWidth, maxHeight) + ".json");
+        if (layout == null) {
+            return null;
+        }
+        try {
+            return new JSONObject(new JSONTokener(IOUtils.toString(layout, "UTF-8")));
+        } finally {
+            layout.close();
+        }
+    }
+
+    /**
+     * Gets the image of a sprite that has been composed, or null if there is
+     * none.
+     */
+    public InputStream getImage(String spriteId, int maxWidth, int maxHeight) throws IOException {
+        return cache.getContent(getCacheKey(spriteId, maxWidth, maxHeight));
+    }
+
+    /**
+     * Determines whether a sprite of the given number of tiles, with a cell of
+     * maxWidth by maxHeight for each, is small enough to be composed.
+     */
+    public static boolean isAllowed(int tileCount, int maxWidth, int maxHeight) {
+        if (maxWidth <= 0 || maxHeight <= 0 || maxWidth > MAX_TILE_SIZE || maxHeight > MAX_TILE_SIZE) {
+            return false;
+        }
+        final int columns = Math.max(1, Math.min(COLUMNS, tileCount));
+        final long rows = Math.max(1, (tileCount + (long) columns - 1) / columns);
+        return (long) columns * maxWidth * rows * maxHeight <= MAX_PIXELS;
+    }
+
+    /**
+     * Composes a sprite with a cell of maxWidth by maxHeight for each tile,
+     * stores it and returns its layout.
+     * @param tileIds the ids of the tiles in the order they're laid out
+     * @param tiles the (encoded) thumbnail for each tile that has one; cells
+     *              for the others are left blank
+     * @param complete false if some of the tiles without thumbnails may yet
+     *                 have one, in which case the sprite should be composed
+     *                 again later
+     * @throws IllegalArgumentException if the sprite isn't allowed (see
+     *         isAllowed())
+     */
+    public JSONObject compose(String spriteId, List<String> tileIds, Map<String, byte[]> tiles, int maxWidth, int maxHeight, boolean complete) throws IOException {
+        if (!isAllowed(tileIds.size(), maxWidth, maxHeight)) {
+            throw new IllegalArgumentException("A sprite of " + tileIds.size() + " " + maxWidth + "x" + maxHeight + " tiles is too large!");
+        }
+        final int columns = Math.max(1, Math.min(COLUMNS, tileIds.size()));
+        final int rows = Math.max(1, (tileIds.size() + columns - 1) / columns);
+        final BufferedImage sprite = new BufferedImage(columns * maxWidth, rows * maxHeight, BufferedImage.TYPE_INT_RGB);
+        final JSONObject offsets = new JSONObject();
+        final Graphics2D g = sprite.createGraphics();
+        try {
+            g.setColor(Color.WHITE);
+            g.fillRect(0, 0, sprite.getWidth(), sprite.getHeight());
+            for (int i = 0; i < tileIds.size(); i ++) {
+                final byte[] tile = tiles.get(tileIds.get(i));
+                final BufferedImage image = tile == null ? null : ImageIO.read(new ByteArrayInputStream(tile));
+                if (image == null) {
+                    continue;
+                }
+                // thumbnails are never larger than the cell, but be sure
+                final int width = Math.min(image.getWidth(), maxWidth);
+                final int height = Math.min(image.getHeight(), maxHeight);
+                final int x = (i % columns) * maxWidth;
+                final int y = (i / columns) * maxHeight;
+                g.drawImage(image, x, y, x + width, y + height, 0, 0, width, height, null);
+                offsets.put(tileIds.get(i), new JSONObject().put("x", x).put("y", y).put("width", width).put("height", height));
+            }
+        } finally {
+            g.dispose();
+        }
+
+        final ByteArrayOutputStream image = new ByteArrayOutputStream();
+        ImageIO.write(sprite, "jpeg", image);
+        final JSONObject layout = new JSONObject()
+                .put("width", sprite.getWidth())
+                .put("height", sprite.getHeight())
+                .put("complete", complete)
+                .put("tiles", offsets);
+        final String key = getCacheKey(spriteId, maxWidth, maxHeight);
+        cache.storeContent(key, new ByteArrayInputStream(image.toByteArray()));
+        cache.storeContent(key + ".json", new ByteArrayInputStream(layout.toString().getBytes("UTF-8")));
+        return layout;
+    }
+}
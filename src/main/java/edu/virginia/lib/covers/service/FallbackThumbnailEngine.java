@@ -0,0 +1,52 @@
+package edu.virginia.lib.covers.service;
+
+import edu.virginia.lib.covers.ThumbnailEngine;
+import edu.virginia.lib.covers.UnsupportedImageTypeException;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A ThumbnailEngine that delegates to each of several engines in order until
+ * one of them supports the image.  This allows an efficient but limited
+ * engine to be used for most images with a general purpose engine handling
+ * the rest.
+ */
+public class FallbackThumbnailEngine implements ThumbnailEngine {
+
+    private List<ThumbnailEngine> engines;
+
+    public FallbackThumbnailEngine(ThumbnailEngine ... engines) {
+        this.engines = new ArrayList<ThumbnailEngine>(Arrays.asList(engines));
+    }
+
+    /**
+     * Gets the engines, in the order in which they're tried.
+     */
+    public List<ThumbnailEngine> getEngines() {
+        return Collections.unmodifiableList(engines);
+    }
+
+    @Override
+    public void createThumbnail(File original, OutputStream thumbnail, int maxWidth, int maxHeight) throws IOException, UnsupportedImageTypeException {
+        UnsupportedImageTypeException lastException = null;
+        for (ThumbnailEngine engine : engines) {
+            try {
+                engine.createThumbnail(original, thumbnail, maxWidth, maxHeight);
+                return;
+            } catch (UnsupportedImageTypeException ex) {
+                lastException = ex;
+            }
+        }
+        if (lastException != null) {
+            throw lastException;
+        } else {
+            throw new UnsupportedImageTypeException("No thumbnail engines are configured!");
+        }
+    }
+}
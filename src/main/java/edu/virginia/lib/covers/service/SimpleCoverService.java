@@ -1,23 +1,40 @@
 package edu.virginia.lib.covers.service;
 
+import edu.virginia.lib.covers.AsyncCoverSource;
 import edu.virginia.lib.covers.BinaryCache;
 import edu.virginia.lib.covers.CoverImage;
 import edu.virginia.lib.covers.CoverService;
 import edu.virginia.lib.covers.CoverSource;
 import edu.virginia.lib.covers.Identifier;
+import edu.virginia.lib.covers.ImageMetadata;
+import edu.virginia.lib.covers.ServiceOverloadedException;
+import edu.virginia.lib.covers.ThumbnailEngine;
 import edu.virginia.lib.covers.UnsupportedIDTypeException;
+import edu.virginia.lib.covers.UnsupportedImageTypeException;
+import edu.virginia.lib.covers.imageio.ImageIOThumbnailEngine;
 import edu.virginia.lib.covers.imagemagick.ImageMagickProcess;
+import edu.virginia.lib.covers.sources.WebServiceCoverSource;
+import org.apache.commons.io.IOUtils;
 import org.slf4j.Logger;
 
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.util.ArrayList;
-import java.util.Collection;
 import java.util.Collections;
-import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 import static org.slf4j.LoggerFactory.getLogger;
 
@@ -31,48 +48,259 @@ public class SimpleCoverService implements CoverService {
 
     private BinaryCache cache;
 
+    private ThumbnailEngine thumbnailEngine;
+
+    /**
+     * When set, all sources are queried at once using this executor;
+     * otherwise they are queried one after another.
+     */
+    private ExecutorService sourceExecutor;
+
+    /**
+     * Coordinates concurrent requests for originals that share any identifier.
+     */
+    private final SingleFlight<Identifier, CoverImage> originals;
+
+    /**
+     * Coordinates concurrent requests for the same scaled image so that it is
+     * created only once.
+     */
+    private final SingleFlight<ScaledImageKey, CoverImage> derivatives;
+
     public SimpleCoverService() throws IOException {
-        this.sources = new ArrayList<CoverSource>();
-        this.lockedIds = new HashSet<Identifier>();
+        this.sources = new CopyOnWriteArrayList<CoverSource>();
+        this.originals = new SingleFlight<Identifier, CoverImage>();
+        this.derivatives = new SingleFlight<ScaledImageKey, CoverImage>();
     }
 
     @Override
     public void addCoverSource(CoverSource source) {
-        // TODO: add thread safety to sources
         sources.add(source);
     }
 
+    /**
+     * Gets the sources in order of priority, for instance, to monitor them.
+     */
+    public List<CoverSource> getCoverSources() {
+        return Collections.unmodifiableList(sources);
+    }
+
+    /**
+     * Gets the cache in which originals and scaled images are stored, if any.
+     */
+    public BinaryCache getCoverCache() {
+        return cache;
+    }
+
     @Override
     public void setCoverCache(BinaryCache cache) {
         this.cache = cache;
     }
 
+    /**
+     * Sets the ThumbnailEngine used to create scaled images.  By default
+     * JPEG, PNG and GIF images are scaled within the JVM and ImageMagick (if
+     * it can be run) is used for everything else.
+     */
+    public void setThumbnailEngine(ThumbnailEngine engine) {
+        this.thumbnailEngine = engine;
+    }
+
+    /**
+     * Sets an ExecutorService with which the sources are queried in parallel
+     * (still preferring them in order), which is shut down on close().
+     */
+    public void setSourceExecutor(ExecutorService executor) {
+        this.sourceExecutor = executor;
+    }
+
+    /**
+     * Gets the ImageMagickProcess with which this service scales images, or
+     * null if its ThumbnailEngine doesn't use ImageMagick (or if the default
+     * engine hasn't been needed yet).
+     */
+    public synchronized ImageMagickProcess getImageMagickProcess() {
+        if (thumbnailEngine instanceof ImageMagickProcess) {
+            return (ImageMagickProcess) thumbnailEngine;
+        }
+        if (thumbnailEngine instanceof FallbackThumbnailEngine) {
+            for (ThumbnailEngine engine : ((FallbackThumbnailEngine) thumbnailEngine).getEngines()) {
+                if (engine instanceof ImageMagickProcess) {
+                    return (ImageMagickProcess) engine;
+                }
+            }
+        }
+        return null;
+    }
+
+    private synchronized ThumbnailEngine getThumbnailEngine() throws IOException {
+        if (thumbnailEngine == null) {
+            ImageMagickProcess imageMagick = null;
+            try {
+                imageMagick = ImageMagickProcess.getInstance();
+            } catch (RuntimeException ex) {
+                LOGGER.warn("ImageMagick is unavailable, only JPEG, PNG and GIF images will be scaled!", ex);
+            }
+            thumbnailEngine = imageMagick == null
+                    ? new FallbackThumbnailEngine(new ImageIOThumbnailEngine())
+                    : new FallbackThumbnailEngine(new ImageIOThumbnailEngine(), imageMagick);
+        }
+        return thumbnailEngine;
+    }
+
+    /**
+     * Prepares this service to handle its first requests quickly: each web
+     * service source opens a connection to its host and the thumbnail engine
+     * scales a small generated image (loading the image codecs and, if
+     * available, ImageMagick).  Failures are logged but otherwise ignored
+     * because a source that's down now may well be up later.
+     */
+    public void warmUp() {
+        for (CoverSource source : sources) {
+            if (source instanceof WebServiceCoverSource) {
+                try {
+                    ((WebServiceCoverSource) source).warmUp();
+                } catch (IOException ex) {
+                    LOGGER.warn("Unable to warm up source: " + source.getClass().getName(), ex);
+                }
+            }
+        }
+        try {
+            final File image = File.createTempFile("warm-up", ".png");
+            try {
+                ImageIO.write(new BufferedImage(200, 300, BufferedImage.TYPE_INT_RGB), "png", image);
+                getThumbnailEngine().createThumbnail(image, new ByteArrayOutputStream(), 120, 120);
+            } finally {
+                image.delete();
+            }
+        } catch (Exception ex) {
+            LOGGER.warn("Unable to warm up thumbnail engine!", ex);
+        }
+    }
+
+    /**
+     * Closes every source and the cache if they hold resources of their own
+     * and shuts down the source executor, if any.
+     */
+    @Override
+    public void close() throws IOException {
+        if (sourceExecutor != null) {
+            sourceExecutor.shutdownNow();
+        }
+        for (CoverSource source : sources) {
+            if (source instanceof Closeable) {
+                try {
+                    ((Closeable) source).close();
+                } catch (IOException ex) {
+                    LOGGER.warn("Error closing source: " + source.getClass().getName(), ex);
+                }
+            }
+        }
+        if (cache instanceof Closeable) {
+            try {
+                ((Closeable) cache).close();
+            } catch (IOException ex) {
+                LOGGER.warn("Error closing cache!", ex);
+            }
+        }
+    }
+
     @Override
     public InputStream getCoverImage(List<Identifier> identifiers, int maxWidth, int maxHeight) throws IOException {
-        identifiers = new ArrayList<Identifier>(identifiers); // some subsequent calls modify this list
-        IdentifierLock l = acquireLock(identifiers);
-        try {
-            final InputStream cachedResult = consultCache(identifiers, maxWidth, maxHeight);
-            if (cachedResult != null) {
-                return cachedResult;
+        final InputStream cachedResult = getCachedCoverImage(identifiers, maxWidth, maxHeight);
+        if (cachedResult != null) {
+            return cachedResult;
+        }
+
+        final List<Identifier> requested = Collections.unmodifiableList(new ArrayList<Identifier>(identifiers));
+        final CoverImage original = originals.execute(new LinkedHashSet<Identifier>(requested), new Callable<CoverImage>() {
+            @Override
+            public CoverImage call() throws IOException {
+                // some subsequent calls modify this list
+                return getOriginal(new ArrayList<Identifier>(requested));
             }
+        }, new SingleFlight.Filter<CoverImage>() {
+            @Override
+            public boolean accept(CoverImage result) {
+                // a request for more identifiers may have found a cover for
+                // one of its others, which only shows that those it tried
+                // first have none
+                return result == null || requested.contains(result.getId());
+            }
+        });
+        if (original == null) {
+            return null;
+        } else if (cache == null) {
+            return original.getInputStream();
+        } else {
+            return getScaledImage(original.getId(), maxWidth, maxHeight).getInputStream();
+        }
+    }
 
-            if (identifiers.isEmpty()) {
-                return null;
-            } else {
-                return getAndCacheCoverImageFromSources(identifiers, maxWidth, maxHeight);
+    /**
+     * Checks the cache for an already scaled cover image for any of the given
+     * identifiers.  This is the path taken by the vast majority of requests
+     * so it involves no coordination with other requests at all; requests
+     * that miss fall through to the coordinated fetch-and-scale path.
+     */
+    @Override
+    public InputStream getCachedCoverImage(List<Identifier> identifiers, int maxWidth, int maxHeight) throws IOException {
+        if (cache == null) {
+            return null;
+        }
+        for (Identifier id : identifiers) {
+            final InputStream result = cache.getContent(getCacheKeyForCoverImage(id, maxWidth, maxHeight));
+            if (result != null) {
+                return result;
             }
-        } finally {
-            l.release();
         }
+        return null;
+    }
+
+    /**
+     * Gets the original cover image for one of the given identifiers, either
+     * from the cache or from the underlying sources.  This is invoked for only
+     * one caller at a time for any given identifier.
+     */
+    private CoverImage getOriginal(List<Identifier> identifiers) throws IOException {
+        final CoverImage cachedResult = consultCache(identifiers);
+        if (cachedResult != null) {
+            return cachedResult;
+        }
+
+        if (identifiers.isEmpty()) {
+            return null;
+        } else {
+            return getAndCacheCoverImageFromSources(identifiers);
+        }
+    }
+
+    /**
+     * Gets the scaled cover image for the given identifier, creating it from
+     * the cached original if it's not already in the cache.  This is invoked
+     * for only one caller at a time for any given identifier and size.
+     */
+    private CoverImage getScaledImage(final Identifier id, final int maxWidth, final int maxHeight) throws IOException {
+        return derivatives.execute(new ScaledImageKey(id, maxWidth, maxHeight), new Callable<CoverImage>() {
+            @Override
+            public CoverImage call() throws IOException {
+                final String scaledCacheKey = getCacheKeyForCoverImage(id, maxWidth, maxHeight);
+                if (cache.getContentAsFile(scaledCacheKey) != null) {
+                    return new CachedCoverImage(scaledCacheKey, id);
+                }
+                // the new thumbnail goes to the cache and straight back to
+                // the callers without being read back from the cache
+                return new BufferedCoverImage(createAndCacheScaledImage(id, cache.getContentAsFile(getCacheKeyForCoverImage(id)), maxWidth, maxHeight), id);
+            }
+        });
     }
 
     /**
-     * Checks the cache for cover images and returns them if found, also updates
-     * the passed list of identifiers to remove any that have been marked as
-     * having no content with the cache.
+     * Checks the cache for original cover images and returns them if found,
+     * also updates the passed list of identifiers to remove any that have
+     * been marked as having no content with the cache.
      */
-    private InputStream consultCache(List<Identifier> identifiers, int maxWidth, int maxHeight) throws IOException {
+    private CoverImage consultCache(List<Identifier> identifiers) throws IOException {
         if (cache == null) {
             return null;
         }
@@ -82,17 +310,8 @@ public class SimpleCoverService implements CoverService {
                 final String origCacheKey = getCacheKeyForCoverImage(id);
                 if (cache.isNoContent(origCacheKey)) {
                     identifiersToRemove.add(id);
-                } else {
-                    final String scaledCacheKey = getCacheKeyForCoverImage(id, maxWidth, maxHeight);
-                    final InputStream result = cache.getContent(scaledCacheKey);
-                    if (result != null) {
-                        return result;
-                    } else {
-                        final File origFile = cache.getContentAsFile(origCacheKey);
-                        if (origFile != null) {
-                            return createAndCacheScaledImage(id, origFile, maxWidth, maxHeight);
-                        }
-                    }
+                } else if (cache.getContentAsFile(origCacheKey) != null) {
+                    return new CachedCoverImage(origCacheKey, id);
                 }
             }
             return null;
@@ -101,37 +320,52 @@ public class SimpleCoverService implements CoverService {
         }
     }
 
-    private InputStream createAndCacheScaledImage(Identifier id, File orig, int maxWidth, int maxHeight) throws IOException {
-        File temp = File.createTempFile("scaled", "thumbnail.jpg");
-        ImageMagickProcess.getInstance().createThumbnail(orig, temp, maxWidth, maxHeight);
-        FileInputStream fis = new FileInputStream(temp);
-        if (cache != null) {
-            final String cacheKey = getCacheKeyForCoverImage(id, maxWidth, maxHeight);
-            try {
-                cache.storeContent(cacheKey, fis);
-            } finally {
-                fis.close();
-                if (!temp.delete()) {
-                    LOGGER.warn("Temporary file \"{}\"could not be deleted!", temp.getName());
-                }
-            }
-            return cache.getContent(cacheKey);
-        } else {
-            return fis;
+    /**
+     * Creates the scaled image in memory and stores it in the cache.
+     * @return the scaled image
+     */
+    private byte[] createAndCacheScaledImage(Identifier id, File orig, int maxWidth, int maxHeight) throws IOException {
+        final ByteArrayOutputStream thumbnail = new ByteArrayOutputStream();
+        try {
+            getThumbnailEngine().createThumbnail(orig, thumbnail, maxWidth, maxHeight);
+        } catch (UnsupportedImageTypeException ex) {
+            throw new IOException("Unable to create thumbnail for " + id + "!", ex);
         }
+        final byte[] result = thumbnail.toByteArray();
+        cache.storeContent(getCacheKeyForCoverImage(id, maxWidth, maxHeight), new ByteArrayInputStream(result));
+        return result;
     }
 
-    private InputStream getAndCacheCoverImageFromSources(List<Identifier> identifiers, int maxWidth, int maxHeight) throws IOException {
-        for (CoverSource source : sources) {
-            try {
-                CoverImage coverImage = source.getCoverImage(identifiers);
-                if (coverImage != null) {
-                    return createAndCacheResult(coverImage, maxWidth, maxHeight);
+    private CoverImage getAndCacheCoverImageFromSources(List<Identifier> identifiers) throws IOException {
+        final List<CoverSource> sources = new ArrayList<CoverSource>(this.sources);
+        final List<Future<CoverImage>> queries = queryConcurrently(sources, identifiers);
+        try {
+            for (int i = 0; i < sources.size(); i ++) {
+                final CoverSource source = sources.get(i);
+                try {
+                    CoverImage coverImage = queries == null ? source.getCoverImage(identifiers) : getResult(queries.get(i));
+                    if (coverImage != null) {
+                        return cacheResult(coverImage);
+                    }
+                } catch (UnsupportedIDTypeException ex) {
+                    // skip this source
+                } catch (ServiceOverloadedException ex) {
+                    // this says nothing about whether the content exists
+                    throw ex;
+                } catch (InterruptedIOException ex) {
+                    // neither does this
+                    throw ex;
+                } catch (Throwable t) {
+                    LOGGER.warn("Error fetching thumnail from source: " + source.getClass().getName(), t);
+                }
+            }
+        } finally {
+            if (queries != null) {
+                // the result (if any) has been used, so any queries still
+                // running are for lower priority sources
+                for (Future<CoverImage> query : queries) {
+                    query.cancel(true);
                 }
-            } catch (UnsupportedIDTypeException ex) {
-                // skip this source
-            } catch (Throwable t) {
-                LOGGER.warn("Error fetching thumnail from source: " + source.getClass().getName(), t);
             }
         }
         if (cache != null) {
@@ -143,17 +377,66 @@ public class SimpleCoverService implements CoverService {
     }
 
     /**
-     * Takes a non-null result and returns an InputStream for a scaled version
-     * of that result.  If a cache is configured, both the original and the
-     * scaled version will be stored in it.
+     * Starts querying each of the given sources, using the source executor
+     * for those that can't be queried asynchronously.
+     * @return a Future for each source in the same order as the sources or
+     *         null if the sources are to be queried sequentially.
      */
-    private InputStream createAndCacheResult(CoverImage image, int maxWidth, int maxHeight) throws IOException {
-        if (cache != null) {
-            final String origKey = getCacheKeyForCoverImage(image.getId());
-            cache.storeContent(origKey, image.getInputStream());
-            return createAndCacheScaledImage(image.getId(), cache.getContentAsFile(origKey), maxWidth, maxHeight);
-        } else {
-            return image.getInputStream();
+    private List<Future<CoverImage>> queryConcurrently(List<CoverSource> sources, final List<Identifier> identifiers) {
+        if (sourceExecutor == null || sources.size() < 2) {
+            return null;
+        }
+        final List<Identifier> ids = Collections.unmodifiableList(new ArrayList<Identifier>(identifiers));
+        final List<Future<CoverImage>> queries = new ArrayList<Future<CoverImage>>();
+        for (final CoverSource source : sources) {
+            if (source instanceof AsyncCoverSource) {
+                // no need to tie up a thread waiting on this one
+                queries.add(((AsyncCoverSource) source).getCoverImageAsync(ids));
+            } else {
+                queries.add(sourceExecutor.submit(new Callable<CoverImage>() {
+                    @Override
+                    public CoverImage call() throws Exception {
+                        return source.getCoverImage(ids);
+                    }
+                }));
+            }
+        }
+        return queries;
+    }
+
+    private CoverImage getResult(Future<CoverImage> query) throws Exception {
+        try {
+            return query.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for sources!");
+        } catch (ExecutionException ex) {
+            final Throwable cause = ex.getCause();
+            if (cause instanceof Exception) {
+                throw (Exception) cause;
+            } else {
+                throw (Error) cause;
+            }
+        }
+    }
+
+    /**
+     * Takes a non-null result and returns a CoverImage for it that may be
+     * read by any number of callers.  If a cache is configured the original
+     * will be stored in it, otherwise its content is held in memory.
+     */
+    private CoverImage cacheResult(CoverImage image) throws IOException {
+        final InputStream content = image.getInputStream();
+        try {
+            if (cache != null) {
+                final String origKey = getCacheKeyForCoverImage(image.getId());
+                cache.storeContent(origKey, content);
+                return new CachedCoverImage(origKey, image.getId());
+            } else {
+                return new BufferedCoverImage(IOUtils.toByteArray(content), image.getId());
+            }
+        } finally {
+            content.close();
         }
     }
 
@@ -172,63 +455,91 @@ public class SimpleCoverService implements CoverService {
     }
 
     /**
-     * Gets a lock on the given identifiers.  If another lock is held on any of
-     * those identifiers this method blocks until that lock can be acquired.
+     * Identifies a scaled version of the cover image for an Identifier.
      */
-    protected IdentifierLock acquireLock(List<Identifier> identifiers) {
-        return new IdentifierLock(identifiers);
+    private static final class ScaledImageKey {
+
+        private final Identifier id;
+        private final int width;
+        private final int height;
+
+        public ScaledImageKey(Identifier id, int width, int height) {
+            this.id = id;
+            this.width = width;
+            this.height = height;
+        }
+
+        public boolean equals(Object o) {
+            if (!(o instanceof ScaledImageKey)) {
+                return false;
+            }
+            final ScaledImageKey k = (ScaledImageKey) o;
+            return k.id.equals(id) && k.width == width && k.height == height;
+        }
+
+        public int hashCode() {
+            return (id.hashCode() * 31 + width) * 31 + height;
+        }
     }
 
     /**
-     * This member variable is used by the IdentifierLock to contain all of the
-     * identifiers for the current operation.  The goal of this mechanism is to
-     * avoid concurrency issues with the cache and to avoid duplicate effort by
-     * having concurrent operations on the same IDs block.
+     * A CoverImage whose content is stored in the cache.
      */
-    private final Collection<Identifier> lockedIds;
+    private final class CachedCoverImage implements CoverImage {
 
-    private final class IdentifierLock {
+        private final String cacheKey;
 
-        private List<Identifier> identifiers;
+        private final Identifier id;
 
-        public IdentifierLock(List<Identifier> ids) {
-            this.identifiers = new ArrayList<Identifier>(ids);
-            boolean acquired = false;
-            boolean logged = false;
-            while (!acquired) {
-                synchronized (lockedIds) {
-                    if (Collections.disjoint(lockedIds, identifiers)) {
-                        lockedIds.addAll(identifiers);
-                        acquired = true;
-                        if (LOGGER.isDebugEnabled()) {
-                            for (Identifier i : identifiers) {
-                                LOGGER.debug("Thread " + Thread.currentThread().getName() + " acquired the lock on ID " + i + ".");
-                            }
-                        }
-                    }
-                }
-                if (!acquired) {
-                    if (LOGGER.isDebugEnabled()) {
-                        if (!logged) {
-                            LOGGER.debug("Thread " + Thread.currentThread().getName() + " is yielding to another thread working on one or more of its ids.");
-                            logged = true;
-                        }
-                    }
-                    Thread.yield();
-                }
-            }
+        public CachedCoverImage(String cacheKey, Identifier id) {
+            this.cacheKey = cacheKey;
+            this.id = id;
         }
 
-        public void release() {
-            synchronized (lockedIds) {
-                lockedIds.removeAll(identifiers);
-                if (LOGGER.isDebugEnabled()) {
-                    for (Identifier i : identifiers) {
-                        LOGGER.debug("Thread " + Thread.currentThread().getName() + " released the lock on ID " + i + ".");
-                    }
-                }
-            }
+        @Override
+        public InputStream getInputStream() throws IOException {
+            return cache.getContent(cacheKey);
+        }
+
+        @Override
+        public ImageMetadata getMetadata() {
+            return null;
         }
 
+        @Override
+        public Identifier getId() {
+            return id;
+        }
+    }
+
+    /**
+     * A CoverImage whose content is held in memory, used to share a result
+     * among callers without reading it back from the cache.
+     */
+    private static final class BufferedCoverImage implements CoverImage {
+
+        private final byte[] content;
+
+        private final Identifier id;
+
+        public BufferedCoverImage(byte[] content, Identifier id) {
+            this.content = content;
+            this.id = id;
+        }
+
+        @Override
+        public InputStream getInputStream() {
+            return new ByteArrayInputStream(content);
+        }
+
+        @Override
+        public ImageMetadata getMetadata() {
+            return null;
+        }
+
+        @Override
+        public Identifier getId() {
+            return id;
+        }
     }
 }
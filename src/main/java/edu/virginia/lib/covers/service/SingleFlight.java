@@ -0,0 +1,189 @@
+package edu.virginia.lib.covers.service;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Coordinates concurrent requests for the same unit of work so that it is
+ * performed only once: callers that arrive while the work for a key is in
+ * progress wait for and receive its result.  Completed work is forgotten, so
+ * work that's expensive to repeat should cache its result.
+ */
+public class SingleFlight<K, V> {
+
+    private static final Comparator<Object> HASH_ORDER = new Comparator<Object>() {
+        @Override
+        public int compare(Object a, Object b) {
+            final int x = a.hashCode();
+            final int y = b.hashCode();
+            return x < y ? -1 : (x == y ? 0 : 1);
+        }
+    };
+
+    private final ConcurrentMap<K, Flight<K, V>> inFlight;
+
+    private final AtomicLong executions;
+
+    private final AtomicLong joins;
+
+    public SingleFlight() {
+        inFlight = new ConcurrentHashMap<K, Flight<K, V>>();
+        executions = new AtomicLong();
+        joins = new AtomicLong();
+    }
+
+    /**
+     * Performs the given work unless work for the key is already in progress.
+     */
+    public V execute(K key, Callable<V> work) throws IOException {
+        return execute(Collections.singleton(key), work, null);
+    }
+
+    /**
+     * Performs the given work under all of the keys, or gets the result (if
+     * the filter accepts it) of the work in progress for all of them.
+     */
+    public V execute(Collection<K> keys, Callable<V> work, Filter<? super V> filter) throws IOException {
+        while (true) {
+            final Flight<K, V> flight = new Flight<K, V>(keys, work);
+            final List<K> registered = new ArrayList<K>(keys.size());
+            Flight<K, V> existing = null;
+            for (K key : flight.ordered) {
+                existing = inFlight.putIfAbsent(key, flight);
+                if (existing != null) {
+                    break;
+                }
+                registered.add(key);
+            }
+            if (existing == null) {
+                executions.incrementAndGet();
+                try {
+                    flight.task.run();
+                } finally {
+                    for (K key : keys) {
+                        inFlight.remove(key, flight);
+                    }
+                }
+                return getResult(flight.task);
+            }
+            // anyone who found this flight under the keys registered so far tries again
+            for (K key : registered) {
+                inFlight.remove(key, flight);
+            }
+            flight.task.cancel(false);
+
+            joins.incrementAndGet();
+            if (!existing.keys.containsAll(keys)) {
+                await(existing.task);
+                continue;
+            }
+            final V result;
+            try {
+                result = getResult(existing.task);
+            } catch (CancellationException ex) {
+                continue;
+            }
+            if (filter == null || filter.accept(result)) {
+                return result;
+            }
+        }
+    }
+
+    /**
+     * Gets the number of keys for which work is currently in progress.
+     */
+    public int getInFlightCount() {
+        return inFlight.size();
+    }
+
+    /**
+     * Gets the number of times work has actually been performed.
+     */
+    public long getExecutionCount() {
+        return executions.get();
+    }
+
+    /**
+     * Gets the number of callers that waited for work started by another.
+     */
+    public long getJoinCount() {
+        return joins.get();
+    }
+
+    /**
+     * Decides whether the result of work performed for more keys will do.
+     */
+    public interface Filter<V> {
+
+        public boolean accept(V result);
+
+    }
+
+    private static class Flight<K, V> {
+
+        private final Set<K> keys;
+
+        /**
+         * The keys in a consistent order, so two flights can't each hold a key
+         * the other needs.
+         */
+        private final List<K> ordered;
+
+        private final FutureTask<V> task;
+
+        private Flight(Collection<K> keys, Callable<V> work) {
+            this.keys = new HashSet<K>(keys);
+            this.ordered = new ArrayList<K>(this.keys);
+            Collections.sort(ordered, HASH_ORDER);
+            this.task = new FutureTask<V>(work);
+        }
+    }
+
+    private static void await(Future<?> f) throws InterruptedIOException {
+        try {
+            f.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for in-flight work!");
+        } catch (ExecutionException ex) {
+            // it's tried again
+        } catch (CancellationException ex) {
+            // it's tried again
+        }
+    }
+
+    private V getResult(Future<V> f) throws IOException {
+        try {
+            return f.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for in-flight work!");
+        } catch (ExecutionException ex) {
+            final Throwable cause = ex.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            } else {
+                throw new IOException(cause);
+            }
+        }
+    }
+}
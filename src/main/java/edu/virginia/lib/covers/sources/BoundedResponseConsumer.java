@@ -0,0 +1,118 @@
+package edu.virginia.lib.covers.sources;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.entity.ContentType;
+import org.apache.http.nio.ContentDecoder;
+import org.apache.http.nio.IOControl;
+import org.apache.http.nio.protocol.AbstractAsyncResponseConsumer;
+import org.apache.http.protocol.HttpContext;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Reads the body of a response as it arrives, refusing any more than a set
+ * number of bytes and, optionally, any content that isn't of an expected
+ * type.  The result is the body of a 200 response or null for any other
+ * status, in which case the body is read (up to the same limit) and
+ * discarded so that the connection may be reused.
+ *
+ * Refusing a response fails the request, which closes its connection rather
+ * than returning it to the pool with unread content.  The same happens when
+ * the request is cancelled, so in every case the connection is released.
+ */
+class BoundedResponseConsumer extends AbstractAsyncResponseConsumer<InputStream> {
+
+    private final String url;
+
+    private final long maxBytes;
+
+    private final String contentTypePrefix;
+
+    private final ByteBuffer buffer = ByteBuffer.allocate(8192);
+
+    private int statusCode;
+
+    private long received;
+
+    private ByteArrayOutputStream content;
+
+    /**
+     * @param url the URL requested, for error messages
+     * @param maxBytes the largest body that will be accepted
+     * @param contentTypePrefix the start of the MIME type a successful
+     *                          response must declare (for instance "image/"),
+     *                          or null to accept any; a response with no
+     *                          Content-Type is accepted
+     */
+    public BoundedResponseConsumer(String url, long maxBytes, String contentTypePrefix) {
+        this.url = url;
+        this.maxBytes = maxBytes;
+        this.contentTypePrefix = contentTypePrefix;
+    }
+
+    /**
+     * Gets the status code of the response, or 0 if none has been received.
+     */
+    public int getStatusCode() {
+        return statusCode;
+    }
+
+    @Override
+    protected void onResponseReceived(HttpResponse response) {
+        statusCode = response.getStatusLine().getStatusCode();
+    }
+
+    @Override
+    protected void onEntityEnclosed(HttpEntity entity, ContentType contentType) throws IOException {
+        if (entity.getContentLength() > maxBytes) {
+            throw new IOException("Response of " + entity.getContentLength() + " bytes from " + url + " exceeds the limit of " + maxBytes + "!");
+        }
+        final Header type = entity.getContentType();
+        if (isAccepted() && contentTypePrefix != null && type != null
+                && !contentType.getMimeType().toLowerCase().startsWith(contentTypePrefix)) {
+            throw new IOException("Unexpected content type \"" + type.getValue() + "\" from " + url + "!");
+        }
+        if (isAccepted()) {
+            content = new ByteArrayOutputStream(entity.getContentLength() > 0 ? (int) entity.getContentLength() : 8192);
+        }
+    }
+
+    @Override
+    protected void onContentReceived(ContentDecoder decoder, IOControl ioControl) throws IOException {
+        int read;
+        while ((read = decoder.read(buffer)) > 0) {
+            received += read;
+            if (received > maxBytes) {
+                throw new IOException("Response from " + url + " exceeds the limit of " + maxBytes + " bytes!");
+            }
+            if (content != null) {
+                content.write(buffer.array(), 0, read);
+            }
+            buffer.clear();
+        }
+    }
+
+    @Override
+    protected InputStream buildResult(HttpContext context) {
+        if (!isAccepted()) {
+            return null;
+        }
+        return new ByteArrayInputStream(content == null ? new byte[0] : content.toByteArray());
+    }
+
+    @Override
+    protected void releaseResources() {
+        content = null;
+    }
+
+    private boolean isAccepted() {
+        return statusCode == HttpStatus.SC_OK;
+    }
+}
@@ -0,0 +1,153 @@
+package edu.virginia.lib.covers.sources;
+
+import java.util.Properties;
+
+/**
+ * The connection pool, keep-alive, timeout and size settings for the HTTP client
+ * of a WebServiceCoverSource.  When created from properties, each setting is
+ * read from "{prefix}.{name}" where the names are:
+ * <ul>
+ *   <li>connections.max: the most connections open at once, defaults to 50</li>
+ *   <li>connections.per-route: the most connections open at once to any one
+ *       host, defaults to 20</li>
+ *   <li>timeout.connect.ms: how long to wait to establish a connection,
+ *       defaults to 5000</li>
+ *   <li>timeout.socket.ms: how long to wait for data once connected,
+ *       defaults to 10000</li>
+ *   <li>timeout.connection-request.ms: how long to wait for a connection
+ *       from the pool when all are in use, defaults to 5000</li>
+ *   <li>keep-alive.ms: how long an idle connection is kept for reuse when
+ *       the server doesn't say (and the most it's kept if the server says
+ *       longer), defaults to 30000</li>
+ *   <li>idle-eviction.ms: how long a connection may sit idle in the pool
+ *       before it's closed, defaults to 30000</li>
+ *   <li>io-threads: the number of I/O threads, defaults to 2</li>
+ *   <li>max-response-bytes: the largest query response accepted, defaults
+ *       to 1048576 (1 MB)</li>
+ *   <li>max-image-bytes: the largest cover image accepted, defaults to
+ *       5242880 (5 MB)</li>
+ * </ul>
+ */
+public class HttpClientConfiguration {
+
+    private int maxConnections = 50;
+
+    private int maxConnectionsPerRoute = 20;
+
+    private int connectTimeoutMillis = 5000;
+
+    private int socketTimeoutMillis = 10000;
+
+    private int connectionRequestTimeoutMillis = 5000;
+
+    private long keepAliveMillis = 30000;
+
+    private long idleEvictionMillis = 30000;
+
+    private int ioThreads = 2;
+
+    private int maxResponseBytes = 1024 * 1024;
+
+    private int maxImageBytes = 5 * 1024 * 1024;
+
+    public HttpClientConfiguration() {
+    }
+
+    public HttpClientConfiguration(Properties p, String prefix) {
+        maxConnections = getInt(p, prefix, "connections.max", maxConnections);
+        maxConnectionsPerRoute = getInt(p, prefix, "connections.per-route", maxConnectionsPerRoute);
+        connectTimeoutMillis = getInt(p, prefix, "timeout.connect.ms", connectTimeoutMillis);
+        socketTimeoutMillis = getInt(p, prefix, "timeout.socket.ms", socketTimeoutMillis);
+        connectionRequestTimeoutMillis = getInt(p, prefix, "timeout.connection-request.ms", connectionRequestTimeoutMillis);
+        keepAliveMillis = getInt(p, prefix, "keep-alive.ms", (int) keepAliveMillis);
+        idleEvictionMillis = getInt(p, prefix, "idle-eviction.ms", (int) idleEvictionMillis);
+        ioThreads = getInt(p, prefix, "io-threads", ioThreads);
+        maxResponseBytes = getInt(p, prefix, "max-response-bytes", maxResponseBytes);
+        maxImageBytes = getInt(p, prefix, "max-image-bytes", maxImageBytes);
+    }
+
+    private static int getInt(Properties p, String prefix, String name, int defaultValue) {
+        final String value = p.getProperty(prefix + "." + name);
+        return value == null ? defaultValue : Integer.parseInt(value.trim());
+    }
+
+    public int getMaxConnections() {
+        return maxConnections;
+    }
+
+    public void setMaxConnections(int maxConnections) {
+        this.maxConnections = maxConnections;
+    }
+
+    public int getMaxConnectionsPerRoute() {
+        return maxConnectionsPerRoute;
+    }
+
+    public void setMaxConnectionsPerRoute(int maxConnectionsPerRoute) {
+        this.maxConnectionsPerRoute = maxConnectionsPerRoute;
+    }
+
+    public int getConnectTimeoutMillis() {
+        return connectTimeoutMillis;
+    }
+
+    public void setConnectTimeoutMillis(int connectTimeoutMillis) {
+        this.connectTimeoutMillis = connectTimeoutMillis;
+    }
+
+    public int getSocketTimeoutMillis() {
+        return socketTimeoutMillis;
+    }
+
+    public void setSocketTimeoutMillis(int socketTimeoutMillis) {
+        this.socketTimeoutMillis = socketTimeoutMillis;
+    }
+
+    public int getConnectionRequestTimeoutMillis() {
+        return connectionRequestTimeoutMillis;
+    }
+
+    public void setConnectionRequestTimeoutMillis(int connectionRequestTimeoutMillis) {
+        this.connectionRequestTimeoutMillis = connectionRequestTimeoutMillis;
+    }
+
+    public long getKeepAliveMillis() {
+        return keepAliveMillis;
+    }
+
+    public void setKeepAliveMillis(long keepAliveMillis) {
+        this.keepAliveMillis = keepAliveMillis;
+    }
+
+    public long getIdleEvictionMillis() {
+        return idleEvictionMillis;
+    }
+
+    public void setIdleEvictionMillis(long idleEvictionMillis) {
+        this.idleEvictionMillis = idleEvictionMillis;
+    }
+
+    public int getIoThreads() {
+        return ioThreads;
+    }
+
+    public void setIoThreads(int ioThreads) {
+        this.ioThreads = ioThreads;
+    }
+
+    public int getMaxResponseBytes() {
+        return maxResponseBytes;
+    }
+
+    public void setMaxResponseBytes(int maxResponseBytes) {
+        this.maxResponseBytes = maxResponseBytes;
+    }
+
+    public int getMaxImageBytes() {
+        return maxImageBytes;
+    }
+
+    public void setMaxImageBytes(int maxImageBytes) {
+        this.maxImageBytes = maxImageBytes;
+    }
+}
@@ -0,0 +1,103 @@
+package edu.virginia.lib.covers.sources;
+
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.conn.ConnectionPoolTimeoutException;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.impl.nio.conn.PoolingNHttpClientConnectionManager;
+import org.apache.http.nio.NHttpClientConnection;
+import org.apache.http.nio.reactor.ConnectingIOReactor;
+
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A pooling connection manager that records how long requests wait to lease
+ * a connection (including the time to establish it when a new one is needed)
+ * and how often they give up waiting, so that pools can be sized from data.
+ * The current state of the pool is available from getTotalStats().
+ */
+public class InstrumentedConnectionManager extends PoolingNHttpClientConnectionManager {
+
+    private final AtomicLong leases = new AtomicLong();
+
+    private final AtomicLong leaseTimeouts = new AtomicLong();
+
+    private final AtomicLong leaseFailures = new AtomicLong();
+
+    private final AtomicLong totalLeaseWaitMillis = new AtomicLong();
+
+    private final AtomicLong maxLeaseWaitMillis = new AtomicLong();
+
+    public InstrumentedConnectionManager(ConnectingIOReactor ioReactor) {
+        super(ioReactor);
+    }
+
+    @Override
+    public Future<NHttpClientConnection> requestConnection(HttpRoute route, Object state, long connectTimeout, long leaseTimeout, TimeUnit tunit, final FutureCallback<NHttpClientConnection> callback) {
+        final long start = System.currentTimeMillis();
+        return super.requestConnection(route, state, connectTimeout, leaseTimeout, tunit, new FutureCallback<NHttpClientConnection>() {
+            @Override
+            public void completed(NHttpClientConnection connection) {
+                final long wait = System.currentTimeMillis() - start;
+                leases.incrementAndGet();
+                totalLeaseWaitMillis.addAndGet(wait);
+                long max = maxLeaseWaitMillis.get();
+                while (wait > max && !maxLeaseWaitMillis.compareAndSet(max, wait)) {
+                    max = maxLeaseWaitMillis.get();
+                }
+                if (callback != null) {
+                    callback.completed(connection);
+                }
+            }
+
+            @Override
+            public void failed(Exception ex) {
+                if (ex instanceof ConnectionPoolTimeoutException || ex instanceof TimeoutException) {
+                    leaseTimeouts.incrementAndGet();
+                } else {
+                    leaseFailures.incrementAndGet();
+                }
+                if (callback != null) {
+                    callback.failed(ex);
+                }
+            }
+
+            @Override
+            public void cancelled() {
+                if (callback != null) {
+                    callback.cancelled();
+                }
+            }
+        });
+    }
+
+    public long getLeaseCount() {
+        return leases.get();
+    }
+
+    /**
+     * Gets the number of requests that gave up waiting for a connection
+     * because the pool was exhausted.
+     */
+    public long getLeaseTimeoutCount() {
+        return leaseTimeouts.get();
+    }
+
+    /**
+     * Gets the number of requests that failed to get a connection for any
+     * other reason, for instance, the host refused the connection.
+     */
+    public long getLeaseFailureCount() {
+        return leaseFailures.get();
+    }
+
+    public long getTotalLeaseWaitMillis() {
+        return totalLeaseWaitMillis.get();
+    }
+
+    public long getMaxLeaseWaitMillis() {
+        return maxLeaseWaitMillis.get();
+    }
+}
@@ -1,45 +1,339 @@
 package edu.virginia.lib.covers.sources;
 
+import edu.virginia.lib.covers.AsyncCoverSource;
 import edu.virginia.lib.covers.CoverImage;
-import edu.virginia.lib.covers.CoverSource;
 import edu.virginia.lib.covers.Identifier;
 import edu.virginia.lib.covers.ImageMetadata;
+import edu.virginia.lib.covers.UnsupportedIDTypeException;
 import org.apache.http.HttpResponse;
-import org.apache.http.HttpStatus;
-import org.apache.http.client.HttpClient;
+import org.apache.http.client.config.RequestConfig;
 import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpHead;
 import org.apache.http.client.methods.HttpUriRequest;
-import org.apache.http.impl.client.HttpClientBuilder;
-import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.concurrent.BasicFuture;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.impl.nio.client.HttpAsyncClients;
+import org.apache.http.impl.nio.reactor.DefaultConnectingIOReactor;
+import org.apache.http.impl.nio.reactor.IOReactorConfig;
+import org.apache.http.nio.client.methods.HttpAsyncMethods;
+import org.apache.http.nio.reactor.IOReactorException;
+import org.apache.http.protocol.HttpContext;
 import org.slf4j.Logger;
 
+import java.io.Closeable;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 import static org.slf4j.LoggerFactory.getLogger;
 
-public abstract class WebServiceCoverSource implements CoverSource {
+/**
+ * A base class for sources that find cover images by querying a web service.
+ * Subclasses build the query URL and interpret the response; the requests
+ * themselves are made with a non-blocking HTTP client so that any number of
+ * lookups may be outstanding while only a handful of I/O threads service
+ * them.  Responses are buffered in memory before they're handed to
+ * subclasses.
+ */
+public abstract class WebServiceCoverSource implements AsyncCoverSource, Closeable {
 
     private static final Logger LOGGER = getLogger(WebServiceCoverSource.class);
 
-    private HttpClient httpClient;
+    /**
+     * Periodically closes idle and expired connections for every source.
+     */
+    private static final ScheduledExecutorService EVICTOR = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            final Thread t = new Thread(r, "http-connection-evictor");
+            t.setDaemon(true);
+            return t;
+        }
+    });
+
+    private HttpClientConfiguration configuration = new HttpClientConfiguration();
+
+    private CloseableHttpAsyncClient httpClient;
+
+    private InstrumentedConnectionManager connectionManager;
+
+    private ScheduledFuture<?> eviction;
+
+    /**
+     * Gets a short name for this source, used as the prefix of its
+     * configuration properties and metrics.
+     */
+    public abstract String getName();
 
-    public WebServiceCoverSource() {
-        httpClient = HttpClientBuilder.create().setConnectionManager(new PoolingHttpClientConnectionManager()).build();
+    /**
+     * Sets the connection pool, keep-alive and timeout settings.  These take
+     * effect when the HTTP client is created, which is when the first request
+     * is made.
+     */
+    public synchronized void setHttpClientConfiguration(HttpClientConfiguration configuration) {
+        this.configuration = configuration;
     }
 
-    public void setHttpClient(HttpClient client) {
+    /**
+     * Sets the client used to make requests, which must be started.  By
+     * default a client is created (and started) from the HttpClientConfiguration
+     * when the first request is made.
+     */
+    public synchronized void setHttpClient(CloseableHttpAsyncClient client) {
         this.httpClient = client;
     }
 
-    protected InputStream getResponseBody(String url) throws IOException {
-        final HttpGet getMethod = new HttpGet(url);
-        final HttpResponse response = httpClient.execute(getMethod);
-        if (response.getStatusLine().getStatusCode() != HttpStatus.SC_OK) {
-            LOGGER.debug(response.getStatusLine().getStatusCode() + " response from " + url);
-            return null;
-        } else {
-            return response.getEntity().getContent();
+    protected synchronized CloseableHttpAsyncClient getHttpClient() {
+        if (httpClient == null) {
+            try {
+                // the timeouts are applied to each request by the RequestConfig
+                connectionManager = new InstrumentedConnectionManager(new DefaultConnectingIOReactor(IOReactorConfig.custom()
+                        .setIoThreadCount(configuration.getIoThreads())
+                        .build()));
+            } catch (IOReactorException ex) {
+                throw new IllegalStateException("Unable to create I/O reactor for " + getName() + "!", ex);
+            }
+            connectionManager.setMaxTotal(configuration.getMaxConnections());
+            connectionManager.setDefaultMaxPerRoute(configuration.getMaxConnectionsPerRoute());
+            httpClient = HttpAsyncClients.custom()
+                    .setConnectionManager(connectionManager)
+                    .setDefaultRequestConfig(RequestConfig.custom()
+                            .setConnectTimeout(configuration.getConnectTimeoutMillis())
+                            .setSocketTimeout(configuration.getSocketTimeoutMillis())
+                            .setConnectionRequestTimeout(configuration.getConnectionRequestTimeoutMillis())
+                            .build())
+                    .setKeepAliveStrategy(new CappedKeepAliveStrategy(configuration.getKeepAliveMillis()))
+                    .build();
+            httpClient.start();
+            final InstrumentedConnectionManager evicted = connectionManager;
+            final long idleMillis = configuration.getIdleEvictionMillis();
+            final long period = Math.max(1000, Math.min(idleMillis, 5000));
+            eviction = EVICTOR.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    evicted.closeExpiredConnections();
+                    evicted.closeIdleConnections(idleMillis, TimeUnit.MILLISECONDS);
+                }
+            }, period, period, TimeUnit.MILLISECONDS);
+        }
+        return httpClient;
+    }
+
+    /**
+     * Gets the connection manager for the client created by this source, so
+     * that its pool statistics may be monitored.
+     * @return the connection manager or null if no requests have been made
+     *         or the client was supplied with setHttpClient()
+     */
+    public synchronized InstrumentedConnectionManager getConnectionManager() {
+        return connectionManager;
+    }
+
+    /**
+     * Gets the URL of the query to find a cover for the given identifiers.
+     * @throws UnsupportedIDTypeException if none of the identifiers are of a
+     *                                    type this source can use
+     */
+    protected abstract String getQueryURL(List<Identifier> identifiers) throws IOException, UnsupportedIDTypeException;
+
+    /**
+     * Interprets the (successful) response to the query for a cover.  This
+     * is invoked on one of the HTTP client's I/O threads so it must not block.
+     * @return the cover image or null if the response says there isn't one
+     */
+    protected abstract CoverImage parseQueryResponse(List<Identifier> identifiers, InputStream response) throws IOException, UnsupportedIDTypeException;
+
+    @Override
+    public CoverImage getCoverImage(List<Identifier> identifiers) throws IOException, UnsupportedIDTypeException {
+        final Future<CoverImage> result = getCoverImageAsync(identifiers);
+        try {
+            return result.get();
+        } catch (InterruptedException ex) {
+            result.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for " + getClass().getName() + "!");
+        } catch (ExecutionException ex) {
+            final Throwable cause = ex.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof UnsupportedIDTypeException) {
+                throw (UnsupportedIDTypeException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            } else {
+                throw new IOException(cause);
+            }
+        }
+    }
+
+    @Override
+    public Future<CoverImage> getCoverImageAsync(final List<Identifier> identifiers) {
+        final ChainedFuture<CoverImage> result = new ChainedFuture<CoverImage>();
+        final String url;
+        try {
+            url = getQueryURL(identifiers);
+        } catch (Exception ex) {
+            result.failed(ex);
+            return result;
+        }
+        result.setRequest(getResponseBody(url, new FutureCallback<InputStream>() {
+            @Override
+            public void completed(InputStream response) {
+                if (response == null) {
+                    result.completed(null);
+                    return;
+                }
+                try {
+                    result.completed(parseQueryResponse(identifiers, response));
+                } catch (Exception ex) {
+                    result.failed(ex);
+                }
+            }
+
+            @Override
+            public void failed(Exception ex) {
+                result.failed(ex);
+            }
+
+            @Override
+            public void cancelled() {
+                result.cancel(true);
+            }
+        }));
+        return result;
+    }
+
+    /**
+     * Gets a URL that may be requested (with a HEAD request) to warm up this
+     * source, or null if there's nothing to warm up.  The default
+     * implementation returns null.
+     */
+    protected String getWarmUpURL() {
+        return null;
+    }
+
+    /**
+     * Makes a HEAD request to the warm-up URL so that the host name is
+     * resolved and a connection is waiting in the pool before the first real
+     * request arrives.
+     */
+    public void warmUp() throws IOException {
+        final String url = getWarmUpURL();
+        if (url != null) {
+            try {
+                final HttpResponse response = getHttpClient().execute(new HttpHead(url), null).get();
+                LOGGER.debug(response.getStatusLine().getStatusCode() + " response from warm-up request to " + url);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while warming up " + getClass().getName() + "!");
+            } catch (ExecutionException ex) {
+                throw new IOException("Warm-up request to " + url + " failed!", ex.getCause());
+            }
+        }
+    }
+
+    /**
+     * Closes the underlying HTTP client (and with it any pooled connections).
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (eviction != null) {
+            eviction.cancel(false);
+        }
+        if (httpClient != null) {
+            httpClient.close();
+        }
+    }
+
+    /**
+     * Requests the given URL, passing the buffered body of the response (or
+     * null if the response status isn't 200) to the callback.  A body larger
+     * than the configured maximum fails the request.
+     * @return the Future for the request, which may be used to cancel it
+     */
+    protected Future<InputStream> getResponseBody(final String url, final FutureCallback<InputStream> callback) {
+        final BoundedResponseConsumer consumer = new BoundedResponseConsumer(url, configuration.getMaxResponseBytes(), null);
+        return getHttpClient().execute(HttpAsyncMethods.createGet(url), consumer, new FutureCallback<InputStream>() {
+            @Override
+            public void completed(InputStream response) {
+                if (response == null) {
+                    LOGGER.debug(consumer.getStatusCode() + " response from " + url);
+                }
+                callback.completed(response);
+            }
+
+            @Override
+            public void failed(Exception ex) {
+                callback.failed(ex);
+            }
+
+            @Override
+            public void cancelled() {
+                callback.cancelled();
+            }
+        });
+    }
+
+    /**
+     * Keeps connections alive for as long as the server asks, but no longer
+     * than the configured maximum, and for the maximum if the server doesn't
+     * say.
+     */
+    private static final class CappedKeepAliveStrategy implements ConnectionKeepAliveStrategy {
+
+        private final long maxKeepAliveMillis;
+
+        public CappedKeepAliveStrategy(long maxKeepAliveMillis) {
+            this.maxKeepAliveMillis = maxKeepAliveMillis;
+        }
+
+        @Override
+        public long getKeepAliveDuration(HttpResponse response, HttpContext context) {
+            final long duration = DefaultConnectionKeepAliveStrategy.INSTANCE.getKeepAliveDuration(response, context);
+            return duration < 0 ? maxKeepAliveMillis : Math.min(duration, maxKeepAliveMillis);
+        }
+    }
+
+    /**
+     * A Future for a result derived from an HTTP request, cancelling which
+     * also cancels the request.
+     */
+    private static final class ChainedFuture<T> extends BasicFuture<T> {
+
+        private volatile Future<?> request;
+
+        public ChainedFuture() {
+            super(null);
+        }
+
+        public void setRequest(Future<?> request) {
+            this.request = request;
+            if (isCancelled()) {
+                request.cancel(true);
+            }
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            final boolean cancelled = super.cancel(mayInterruptIfRunning);
+            final Future<?> request = this.request;
+            if (cancelled && request != null) {
+                request.cancel(true);
+            }
+            return cancelled;
         }
     }
 
@@ -54,9 +348,52 @@ public abstract class WebServiceCoverSource implements CoverSource {
             this.id = id;
         }
 
+        /**
+         * Starts fetching the image.  The Future completes with the buffered
+         * image content or fails if the response status isn't 200, the
+         * response isn't an image or it's larger than the configured maximum.
+         */
+        public Future<InputStream> getInputStreamAsync() {
+            final ChainedFuture<InputStream> result = new ChainedFuture<InputStream>();
+            final BoundedResponseConsumer consumer = new BoundedResponseConsumer(request.getURI().toString(), configuration.getMaxImageBytes(), "image/");
+            result.setRequest(getHttpClient().execute(HttpAsyncMethods.create(request), consumer, new FutureCallback<InputStream>() {
+                @Override
+                public void completed(InputStream content) {
+                    if (content == null) {
+                        result.failed(new IOException(consumer.getStatusCode() + " response from " + request.getURI()));
+                    } else {
+                        result.completed(content);
+                    }
+                }
+
+                @Override
+                public void failed(Exception ex) {
+                    result.failed(ex);
+                }
+
+                @Override
+                public void cancelled() {
+                    result.cancel(true);
+                }
+            }));
+            return result;
+        }
+
         @Override
         public InputStream getInputStream() throws IOException {
-            return httpClient.execute(request).getEntity().getContent();
+            final Future<InputStream> result = getInputStreamAsync();
+            try {
+                return result.get();
+            } catch (InterruptedException ex) {
+                result.cancel(true);
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while fetching " + request.getURI() + "!");
+            } catch (ExecutionException ex) {
+                if (ex.getCause() instanceof IOException) {
+                    throw (IOException) ex.getCause();
+                }
+                throw new IOException("Unable to fetch " + request.getURI() + "!", ex.getCause());
+            }
         }
 
         @Override
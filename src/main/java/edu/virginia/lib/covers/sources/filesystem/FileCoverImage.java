@@ -4,6 +4,7 @@ import edu.virginia.lib.covers.CoverImage;
 import edu.virginia.lib.covers.Identifier;
 import edu.virginia.lib.covers.ImageMetadata;
 import edu.virginia.lib.covers.imagemagick.ImageMagickProcess;
+import edu.virginia.lib.covers.metadata.ImageHeaderParser;
 
 import java.io.File;
 import java.io.FileInputStream;
@@ -18,9 +19,8 @@ public class FileCoverImage implements CoverImage {
 
     private Identifier id;
 
-    public FileCoverImage(File f, Identifier id) throws IOException, InterruptedException {
+    public FileCoverImage(File f, Identifier id) {
         this.f = f;
-        m = new ImageMagickProcess().getMetadata(f);
         this.id = id;
     }
 
@@ -29,8 +29,22 @@ public class FileCoverImage implements CoverImage {
         return new FileInputStream(f);
     }
 
+    /**
+     * Gets the metadata from the image header the first time it's requested,
+     * only resorting to ImageMagick for image types that aren't recognized.
+     */
     @Override
-    public ImageMetadata getMetadata() {
+    public synchronized ImageMetadata getMetadata() {
+        if (m == null) {
+            try {
+                m = ImageHeaderParser.parse(f);
+                if (m == null) {
+                    m = ImageMagickProcess.getInstance().getMetadata(f);
+                }
+            } catch (IOException ex) {
+                throw new RuntimeException("Unable to determine metadata for " + f.getPath() + "!", ex);
+            }
+        }
         return m;
     }
 
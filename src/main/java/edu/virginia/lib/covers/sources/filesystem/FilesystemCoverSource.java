@@ -23,18 +23,14 @@ public class FilesystemCoverSource implements CoverSource {
 
     @Override
     public CoverImage getCoverImage(List<Identifier> identifiers) throws IOException {
-        try {
-            for (Identifier id : identifiers) {
-                if (id.getType().equals(Identifier.IdentifierType.UPC)) {
-                    return new FileCoverImage(
-                            new File(databaseRoot, id.getKey() + ".jpg"),
-                            id);
-                }
+        for (Identifier id : identifiers) {
+            if (id.getType().equals(Identifier.IdentifierType.UPC)) {
+                return new FileCoverImage(
+                        new File(databaseRoot, id.getKey() + ".jpg"),
+                        id);
             }
-            return null;
-        } catch (InterruptedException ex) {
-            throw new RuntimeException(ex);
         }
+        return null;
     }
 
 }
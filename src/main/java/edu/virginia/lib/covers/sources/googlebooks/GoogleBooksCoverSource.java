@@ -4,34 +4,161 @@ import edu.virginia.lib.covers.CoverImage;
 import edu.virginia.lib.covers.Identifier;
 import edu.virginia.lib.covers.UnsupportedIDTypeException;
 import edu.virginia.lib.covers.sources.WebServiceCoverSource;
-import org.apache.commons.io.IOUtils;
 import org.apache.http.client.methods.HttpGet;
+import org.apache.http.concurrent.BasicFuture;
+import org.apache.http.concurrent.FutureCallback;
 import org.json.JSONException;
-import org.json.JSONObject;
-import org.json.JSONTokener;
 import org.slf4j.Logger;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.URLEncoder;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Future;
 
 import static org.slf4j.LoggerFactory.getLogger;
 
+/**
+ * A cover source that queries the Google Books viewapi.  By default lookups
+ * made within 10 ms of each other are combined (up to 40 at a time) into a
+ * single query by a GoogleBooksRequestCoalescer; see setBatching().
+ */
 public class GoogleBooksCoverSource extends WebServiceCoverSource {
 
     private static final Logger LOGGER = getLogger(GoogleBooksCoverSource.class);
 
     private String bookQueryPattern = "http://books.google.com/books?jscmd=viewapi&bibkeys={query}&callback=CALLBACK&zoom=0";
 
+    private long batchWindowMillis = 10;
+
+    private int maxBatchSize = 40;
+
+    private GoogleBooksRequestCoalescer coalescer;
+
+    public GoogleBooksCoverSource() {
+    }
+
+    /**
+     * Creates a source that queries another implementation of the viewapi.
+     * @param bookQueryPattern the query URL in which "{query}" is replaced
+     *                         by the (comma separated) bibkeys
+     */
+    public GoogleBooksCoverSource(String bookQueryPattern) {
+        this.bookQueryPattern = bookQueryPattern;
+    }
+
+    /**
+     * Sets how long to wait for other lookups to combine with the first and
+     * the most to combine into one query.  This takes effect when the first
+     * lookup is made.  A window of 0 disables batching.
+     */
+    public synchronized void setBatching(long windowMillis, int maxBatchSize) {
+        this.batchWindowMillis = windowMillis;
+        this.maxBatchSize = maxBatchSize;
+    }
+
+    /**
+     * Gets the coalescer that combines lookups, or null if batching is
+     * disabled.
+     */
+    public synchronized GoogleBooksRequestCoalescer getCoalescer() {
+        if (coalescer == null && batchWindowMillis > 0 && maxBatchSize > 1) {
+            coalescer = new GoogleBooksRequestCoalescer(this, batchWindowMillis, maxBatchSize);
+        }
+        return coalescer;
+    }
+
+    @Override
+    public String getName() {
+        return "googlebooks";
+    }
+
+    @Override
+    protected String getWarmUpURL() {
+        return "http://books.google.com/books";
+    }
+
+    @Override
+    protected String getQueryURL(List<Identifier> identifiers) throws IOException, UnsupportedIDTypeException {
+        return bookQueryPattern.replace("{query}", URLEncoder.encode(getQueryForID(getBestId(identifiers)), "UTF-8"));
+    }
+
+    /**
+     * Gets the URL of a query for all of the given bibkeys.
+     */
+    String getBatchQueryURL(Collection<String> bibkeys) throws IOException {
+        final StringBuilder query = new StringBuilder();
+        for (String bibkey : bibkeys) {
+            if (query.length() > 0) {
+                query.append(',');
+            }
+            query.append(bibkey);
+        }
+        return bookQueryPattern.replace("{query}", URLEncoder.encode(query.toString(), "UTF-8"));
+    }
+
+    /**
+     * Makes a query on behalf of the GoogleBooksRequestCoalescer.
+     */
+    Future<InputStream> query(String url, FutureCallback<InputStream> callback) {
+        return getResponseBody(url, callback);
+    }
+
+    @Override
+    public Future<CoverImage> getCoverImageAsync(List<Identifier> identifiers) {
+        final GoogleBooksRequestCoalescer coalescer = getCoalescer();
+        if (coalescer == null) {
+            return super.getCoverImageAsync(identifiers);
+        }
+        final BasicFuture<CoverImage> result = new BasicFuture<CoverImage>(null);
+        final Identifier id;
+        try {
+            id = getBestId(identifiers);
+        } catch (UnsupportedIDTypeException ex) {
+            result.failed(ex);
+            return result;
+        }
+        final String bibkey = getQueryForID(id);
+        if (!GoogleBooksRequestCoalescer.isBatchable(bibkey)) {
+            return super.getCoverImageAsync(identifiers);
+        }
+        coalescer.getThumbnailUrl(bibkey, new FutureCallback<String>() {
+            @Override
+            public void completed(String coverUrl) {
+                result.completed(coverUrl == null ? null : new WebServiceCoverImage(new HttpGet(coverUrl), id));
+            }
+
+            @Override
+            public void failed(Exception ex) {
+                result.failed(ex);
+            }
+
+            @Override
+            public void cancelled() {
+                result.cancel(true);
+            }
+        });
+        return result;
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            if (coalescer != null) {
+                coalescer.close();
+            }
+        }
+        super.close();
+    }
+
     @Override
-    public CoverImage getCoverImage(List<Identifier> identifiers) throws IOException, UnsupportedIDTypeException {
+    protected CoverImage parseQueryResponse(List<Identifier> identifiers, InputStream response) throws IOException, UnsupportedIDTypeException {
         final Identifier id = getBestId(identifiers);
-        final String query = getQueryForID(id);
-        final String queryUrl = bookQueryPattern.replace("{query}", URLEncoder.encode(query, "UTF-8"));
         try {
-            final String coverUrl = extractCoverUrlFromResponse(getResponseBody(queryUrl), query);
+            final String coverUrl = extractCoverUrlFromResponse(response, getQueryForID(id));
             if (coverUrl == null) {
                 return null;
             }
@@ -68,16 +195,15 @@ public class GoogleBooksCoverSource extends WebServiceCoverSource {
     }
 
     protected String extractCoverUrlFromResponse(InputStream response, String query) throws IOException {
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        IOUtils.copy(response, baos);
-        response.close();
-        String jsonStr = new String(baos.toByteArray(), "UTF-8");
-        if (jsonStr.equals("CALLBACK({});")) {
-            return null;
-        }
-        jsonStr = jsonStr.substring("CALLBACK(".length(), jsonStr.length() - 2);
-        JSONObject o = new JSONObject(new JSONTokener(jsonStr));
-        return o.getJSONObject(query).getString("thumbnail_url");
+        return extractCoverUrlsFromResponse(response, Collections.singleton(query)).get(query);
+    }
+
+    /**
+     * Gets the thumbnail_url for each of the given bibkeys in the response
+     * that has one.
+     */
+    protected Map<String, String> extractCoverUrlsFromResponse(InputStream response, Collection<String> bibkeys) throws IOException {
+        return ViewApiResponseParser.parseThumbnailUrls(response, bibkeys);
     }
 
 }
@@ -0,0 +1,261 @@
+package edu.virginia.lib.covers.sources.googlebooks;
+
+import org.apache.http.concurrent.BasicFuture;
+import org.apache.http.concurrent.FutureCallback;
+import org.json.JSONException;
+import org.slf4j.Logger;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.slf4j.LoggerFactory.getLogger;
+
+/**
+ * Combines the lookups of bibkeys made at about the same time into a single
+ * query to the Google Books viewapi.  A batch is sent once the window has
+ * passed or it holds the maximum number of keys, whichever comes first.
+ */
+public class GoogleBooksRequestCoalescer implements Closeable {
+
+    private static final Logger LOGGER = getLogger(GoogleBooksRequestCoalescer.class);
+
+    private final GoogleBooksCoverSource source;
+
+    private final long windowMillis;
+
+    private final int maxKeys;
+
+    private final ScheduledExecutorService timer;
+
+    private final AtomicLong lookupCount = new AtomicLong();
+
+    private final AtomicLong queryCount = new AtomicLong();
+
+    /**
+     * The batch collecting lookups, or null.  Guarded by this.
+     */
+    private Batch pending;
+
+    /**
+     * Guarded by this.
+     */
+    private boolean closed;
+
+    public GoogleBooksRequestCoalescer(GoogleBooksCoverSource source, long windowMillis, int maxKeys) {
+        this.source = source;
+        this.windowMillis = windowMillis;
+        this.maxKeys = maxKeys;
+        timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                final Thread t = new Thread(r, "googlebooks-batch");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    /**
+     * Looks up the thumbnail URL for a bibkey (for instance "ISBN:0312932081")
+     * as part of the next batch.
+     * @param callback notified when the lookup completes, may be null
+     * @return the Future for the thumbnail URL, which is null if Google
+     *         Books doesn't have one
+     */
+    public Future<String> getThumbnailUrl(String bibkey, FutureCallback<String> callback) {
+        final BasicFuture<String> result = new BasicFuture<String>(callback);
+        if (!isBatchable(bibkey)) {
+            // it would add other bibkeys to the query shared with other lookups
+            result.failed(new IllegalArgumentException("Bibkey \"" + bibkey + "\" can't be part of a batch!"));
+            return result;
+        }
+        lookupCount.incrementAndGet();
+        Batch full = null;
+        final boolean rejected;
+        synchronized (this) {
+            if (pending == null && !closed) {
+                final Batch batch = new Batch();
+                try {
+                    timer.schedule(new Runnable() {
+                        @Override
+                        public void run() {
+                            send(batch);
+                        }
+                    }, windowMillis, TimeUnit.MILLISECONDS);
+                    // published only once it's sure to be sent
+                    pending = batch;
+                } catch (RejectedExecutionException ex) {
+                    closed = true;
+                }
+            }
+            rejected = closed;
+            if (!closed) {
+                pending.add(bibkey, result);
+                if (pending.size() >= maxKeys) {
+                    full = pending;
+                    pending = null;
+                }
+            }
+        }
+        if (rejected) {
+            result.failed(closedException());
+        } else if (full != null) {
+            full.send();
+        }
+        return result;
+    }
+
+    /**
+     * Determines whether a bibkey can be combined with others in a query.
+     */
+    public static boolean isBatchable(String bibkey) {
+        return bibkey != null && bibkey.length() > 0 && bibkey.indexOf(',') == -1;
+    }
+
+    private void send(Batch batch) {
+        synchronized (this) {
+            if (pending != batch) {
+                // already sent because it was full
+                return;
+            }
+            pending = null;
+        }
+        batch.send();
+    }
+
+    /**
+     * Gets the number of lookups made.
+     */
+    public long getLookupCount() {
+        return lookupCount.get();
+    }
+
+    /**
+     * Gets the number of queries sent to Google Books for those lookups.
+     */
+    public long getQueryCount() {
+        return queryCount.get();
+    }
+
+    /**
+     * Fails the lookups of the batch that hasn't been sent, and any made later.
+     */
+    @Override
+    public void close() {
+        final Batch unsent;
+        synchronized (this) {
+            closed = true;
+            unsent = pending;
+            pending = null;
+        }
+        timer.shutdownNow();
+        if (unsent != null) {
+            unsent.failed(closedException());
+        }
+    }
+
+    private static IOException closedException() {
+        return new IOException("Google Books lookups have been shut down!");
+    }
+
+    /**
+     * The lookups for a single query, by bibkey.
+     */
+    private class Batch {
+
+        private final Map<String, List<BasicFuture<String>>> lookups = new LinkedHashMap<String, List<BasicFuture<String>>>();
+
+        public void add(String bibkey, BasicFuture<String> lookup) {
+            List<BasicFuture<String>> waiting = lookups.get(bibkey);
+            if (waiting == null) {
+                waiting = new ArrayList<BasicFuture<String>>();
+                lookups.put(bibkey, waiting);
+            }
+            waiting.add(lookup);
+        }
+
+        public int size() {
+            return lookups.size();
+        }
+
+        public void send() {
+            queryCount.incrementAndGet();
+            final String url;
+            try {
+                url = source.getBatchQueryURL(lookups.keySet());
+            } catch (Exception ex) {
+                failed(ex);
+                return;
+            }
+            try {
+                query(url);
+            } catch (RuntimeException ex) {
+                // such as the client having been closed
+                failed(ex);
+            }
+        }
+
+        private void query(String url) {
+            source.query(url, new FutureCallback<InputStream>() {
+                @Override
+                public void completed(InputStream response) {
+                    if (response == null) {
+                        completeAll(null);
+                        return;
+                    }
+                    try {
+                        completeAll(source.extractCoverUrlsFromResponse(response, lookups.keySet()));
+                    } catch (JSONException ex) {
+                        LOGGER.debug("Unparseable google response for " + lookups.keySet() + "!", ex);
+                        completeAll(null);
+                    } catch (Exception ex) {
+                        failed(ex);
+                    }
+                }
+
+                @Override
+                public void failed(Exception ex) {
+                    Batch.this.failed(ex);
+                }
+
+                @Override
+                public void cancelled() {
+                    for (List<BasicFuture<String>> waiting : lookups.values()) {
+                        for (BasicFuture<String> lookup : waiting) {
+                            lookup.cancel(true);
+                        }
+                    }
+                }
+            });
+        }
+
+        private void completeAll(Map<String, String> thumbnailUrls) {
+            for (Map.Entry<String, List<BasicFuture<String>>> entry : lookups.entrySet()) {
+                final String url = thumbnailUrls == null ? null : thumbnailUrls.get(entry.getKey());
+                for (BasicFuture<String> lookup : entry.getValue()) {
+                    lookup.completed(url);
+                }
+            }
+        }
+
+        private void failed(Exception ex) {
+            for (List<BasicFuture<String>> waiting : lookups.values()) {
+                for (BasicFuture<String> lookup : waiting) {
+                    lookup.failed(ex);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,274 @@
+package edu.virginia.lib.covers.sources.googlebooks;
+
+import org.json.JSONException;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Extracts the thumbnail_url of each book from a Google Books viewapi
+ * response as it is read.  The response is a JSONP call, for instance
+ * <pre>
+ * CALLBACK({"ISBN:0312932081":{"bib_key":"ISBN:0312932081", "thumbnail_url":"http://...", ...}, ...});
+ * </pre>
+ * and rather than copying it into a String, stripping the callback and
+ * building a JSONObject for the whole thing, this skips the callback as it
+ * goes, decodes only the bibkeys and the thumbnail_urls and skips over
+ * everything else.  Once every requested bibkey has been found the rest of
+ * the response is left unread.
+ *
+ * Malformed responses result in a JSONException, as they would from the
+ * org.json parser.
+ */
+public class ViewApiResponseParser {
+
+    private static final String THUMBNAIL_URL = "thumbnail_url";
+
+    private final Reader reader;
+
+    private final char[] buffer = new char[4096];
+
+    private int position;
+
+    private int limit;
+
+    private ViewApiResponseParser(Reader reader) {
+        this.reader = reader;
+    }
+
+    /**
+     * Gets the thumbnail_url for each book in the response that has one.  The
+     * stream is closed.
+     * @param bibkeys the bibkeys whose thumbnails are wanted, or null for all
+     *                of them
+     */
+    public static Map<String, String> parseThumbnailUrls(InputStream response, Collection<String> bibkeys) throws IOException {
+        try {
+            return new ViewApiResponseParser(new InputStreamReader(response, "UTF-8")).parse(bibkeys);
+        } finally {
+            response.close();
+        }
+    }
+
+    private Map<String, String> parse(Collection<String> bibkeys) throws IOException {
+        final Map<String, String> urls = new HashMap<String, String>();
+        int c = nextNonWhitespace();
+        if (c != '{') {
+            // skip the JSONP callback name, which isn't necessarily "CALLBACK"
+            while (c != '(') {
+                if (c == -1 || !(Character.isJavaIdentifierPart(c) || c == '.')) {
+                    throw syntaxError("Expected a JSONP callback or '{'");
+                }
+                c = read();
+            }
+            c = nextNonWhitespace();
+        }
+        if (c != '{') {
+            throw syntaxError("Expected '{'");
+        }
+        c = nextNonWhitespace();
+        if (c == '}') {
+            return urls;
+        }
+        while (true) {
+            final String bibkey = readKey(c);
+            c = nextNonWhitespace();
+            if (c == '{' && (bibkeys == null || bibkeys.contains(bibkey))) {
+                final String url = readThumbnailUrl();
+                if (url != null) {
+                    urls.put(bibkey, url);
+                    if (bibkeys != null && urls.size() == bibkeys.size()) {
+                        return urls;
+                    }
+                }
+            } else {
+                skipValue(c);
+            }
+            c = nextNonWhitespace();
+            if (c == '}') {
+                return urls;
+            } else if (c != ',') {
+                throw syntaxError("Expected ',' or '}'");
+            }
+            c = nextNonWhitespace();
+        }
+    }
+
+    /**
+     * Reads the members of the object for one book (whose '{' has been read)
+     * and returns its thumbnail_url, if any.
+     */
+    private String readThumbnailUrl() throws IOException {
+        String url = null;
+        int c = nextNonWhitespace();
+        if (c == '}') {
+            return null;
+        }
+        while (true) {
+            final String name = readKey(c);
+            c = nextNonWhitespace();
+            if (c == '"' && THUMBNAIL_URL.equals(name)) {
+                url = readString();
+            } else {
+                skipValue(c);
+            }
+            c = nextNonWhitespace();
+            if (c == '}') {
+                return url;
+            } else if (c != ',') {
+                throw syntaxError("Expected ',' or '}'");
+            }
+            c = nextNonWhitespace();
+        }
+    }
+
+    /**
+     * Reads a member name, whose opening quote is c, and the ':' after it.
+     */
+    private String readKey(int c) throws IOException {
+        if (c != '"') {
+            throw syntaxError("Expected a quoted name");
+        }
+        final String key = readString();
+        if (nextNonWhitespace() != ':') {
+            throw syntaxError("Expected ':' after \"" + key + "\"");
+        }
+        return key;
+    }
+
+    /**
+     * Reads the rest of a string whose opening quote has been read.
+     */
+    private String readString() throws IOException {
+        final StringBuilder value = new StringBuilder();
+        while (true) {
+            // copy runs of unescaped characters straight from the buffer
+            final int start = position;
+            while (position < limit && buffer[position] != '"' && buffer[position] != '\\') {
+                position ++;
+            }
+            value.append(buffer, start, position - start);
+            final int c = read();
+            if (c == '"') {
+                return value.toString();
+            } else if (c == '\\') {
+                value.append(readEscape());
+            } else if (c == -1) {
+                throw syntaxError("Unterminated string");
+            } else {
+                // the buffer was exhausted
+                value.append((char) c);
+            }
+        }
+    }
+
+    private char readEscape() throws IOException {
+        final int c = read();
+        switch (c) {
+            case 'b':
+                return '\b';
+            case 't':
+                return '\t';
+            case 'n':
+                return '\n';
+            case 'f':
+                return '\f';
+            case 'r':
+                return '\r';
+            case 'u':
+                int value = 0;
+                for (int i = 0; i < 4; i ++) {
+                    final int digit = Character.digit(read(), 16);
+                    if (digit == -1) {
+                        throw syntaxError("Illegal escape");
+                    }
+                    value = (value << 4) | digit;
+                }
+                return (char) value;
+            case '"':
+            case '\\':
+            case '/':
+                return (char) c;
+            default:
+                throw syntaxError("Illegal escape");
+        }
+    }
+
+    /**
+     * Skips over a value whose first character is c.
+     */
+    private void skipValue(int c) throws IOException {
+        if (c == '"') {
+            skipString();
+        } else if (c == '{' || c == '[') {
+            int depth = 1;
+            while (depth > 0) {
+                c = read();
+                if (c == '"') {
+                    skipString();
+                } else if (c == '{' || c == '[') {
+                    depth ++;
+                } else if (c == '}' || c == ']') {
+                    depth --;
+                } else if (c == -1) {
+                    throw syntaxError("Unterminated object or array");
+                }
+            }
+        } else if (c == '-' || (c >= '0' && c <= '9') || (c >= 'a' && c <= 'z')) {
+            // a number, true, false or null
+            while (position < limit || fill()) {
+                c = buffer[position];
+                if (c == ',' || c == '}' || c == ']' || Character.isWhitespace(c)) {
+                    return;
+                }
+                position ++;
+            }
+        } else {
+            throw syntaxError("Expected a value");
+        }
+    }
+
+    private void skipString() throws IOException {
+        while (true) {
+            final int c = read();
+            if (c == '"') {
+                return;
+            } else if (c == '\\') {
+                read();
+            } else if (c == -1) {
+                throw syntaxError("Unterminated string");
+            }
+        }
+    }
+
+    private int nextNonWhitespace() throws IOException {
+        int c = read();
+        while (c != -1 && Character.isWhitespace(c)) {
+            c = read();
+        }
+        return c;
+    }
+
+    private int read() throws IOException {
+        if (position == limit && !fill()) {
+            return -1;
+        }
+        return buffer[position ++];
+    }
+
+    private boolean fill() throws IOException {
+        final int read = reader.read(buffer, 0, buffer.length);
+        position = 0;
+        limit = Math.max(read, 0);
+        return read > 0;
+    }
+
+    private JSONException syntaxError(String message) {
+        return new JSONException(message + " in Google Books response");
+    }
+}
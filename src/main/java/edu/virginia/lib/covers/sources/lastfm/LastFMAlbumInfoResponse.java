@@ -1,59 +1,92 @@
 package edu.virginia.lib.covers.sources.lastfm;
 
-import javax.xml.bind.JAXB;
-import javax.xml.bind.annotation.XmlAttribute;
-import javax.xml.bind.annotation.XmlElement;
-import javax.xml.bind.annotation.XmlRootElement;
-import javax.xml.bind.annotation.XmlValue;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.IOException;
 import java.io.InputStream;
 
 /**
- * A quick and dirty class that that's annotated to parse out the useful bits
- * of the XML response from the LastFM album info service.
+ * The useful bits of the XML response from the LastFM album info service:
+ * whether the album was found and the URL of its "mega" image.  The response
+ * is read with a StAX pull parser only until the mega image is found, so the
+ * tracks, tags and wiki text that follow the images are never read.
  */
-@XmlRootElement(name="lfm")
 public class LastFMAlbumInfoResponse {
 
-    @XmlAttribute
-    private String status;
-
-    public boolean albumFound() {
-        return status.equals("ok");
-    }
-
-    @XmlElement
-    private Album album;
-
-    public String getMegaImageUrl() {
-        if (album != null && album.image != null) {
-            for (Image i : album.image) {
-                if (i.size.equals("mega")) {
-                    return i.url.trim();
-                }
-            }
-        }
-        return null;
+    /**
+     * Creating an XMLInputFactory means a service lookup, so it's done once.
+     * The factory isn't modified after this, so creating readers from it
+     * concurrently is safe.
+     */
+    private static final XMLInputFactory FACTORY = XMLInputFactory.newInstance();
+    static {
+        FACTORY.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        FACTORY.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        FACTORY.setProperty(XMLInputFactory.IS_COALESCING, true);
     }
 
-    private static class Album {
+    private String status;
 
-        @XmlElement
-        private Image[] image;
+    private String megaImageUrl;
 
+    private LastFMAlbumInfoResponse() {
     }
 
-    private static class Image {
-
-        @XmlAttribute
-        private String size;
-
-        @XmlValue
-        private String url;
+    public boolean albumFound() {
+        return "ok".equals(status);
+    }
 
+    public String getMegaImageUrl() {
+        return megaImageUrl;
     }
 
-    public static LastFMAlbumInfoResponse parse(InputStream is) {
-        return (LastFMAlbumInfoResponse) JAXB.unmarshal(is, LastFMAlbumInfoResponse.class);
+    /**
+     * Parses the response, reading only as far as the mega image.  The stream
+     * is left open.
+     */
+    public static LastFMAlbumInfoResponse parse(InputStream is) throws IOException {
+        final LastFMAlbumInfoResponse response = new LastFMAlbumInfoResponse();
+        try {
+            final XMLStreamReader r = FACTORY.createXMLStreamReader(is);
+            try {
+                r.nextTag();
+                r.require(XMLStreamConstants.START_ELEMENT, null, "lfm");
+                response.status = r.getAttributeValue(null, "status");
+                if (!response.albumFound()) {
+                    return response;
+                }
+                // the depth of the current element below lfm: album is 1
+                // and its images are 2
+                int depth = 0;
+                boolean inAlbum = false;
+                while (r.hasNext()) {
+                    final int event = r.next();
+                    if (event == XMLStreamConstants.START_ELEMENT) {
+                        depth ++;
+                        if (depth == 1) {
+                            inAlbum = "album".equals(r.getLocalName());
+                        } else if (depth == 2 && inAlbum && "image".equals(r.getLocalName())
+                                && "mega".equals(r.getAttributeValue(null, "size"))) {
+                            response.megaImageUrl = r.getElementText().trim();
+                            return response;
+                        }
+                    } else if (event == XMLStreamConstants.END_ELEMENT) {
+                        depth --;
+                        if (depth < 0) {
+                            // the end of lfm
+                            return response;
+                        }
+                    }
+                }
+                return response;
+            } finally {
+                r.close();
+            }
+        } catch (XMLStreamException ex) {
+            throw new IOException("Unable to parse LastFM album info response!", ex);
+        }
     }
 
 }
@@ -11,7 +11,6 @@ import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
 import java.net.URLEncoder;
 import java.util.List;
-import java.util.Map;
 
 public class LastFMCoverSource extends WebServiceCoverSource {
 
@@ -27,13 +26,24 @@ public class LastFMCoverSource extends WebServiceCoverSource {
     }
 
     @Override
-    public CoverImage getCoverImage(List<Identifier> identifiers) throws IOException, UnsupportedIDTypeException {
+    public String getName() {
+        return "lastfm";
+    }
+
+    @Override
+    protected String getWarmUpURL() {
+        return "http://ws.audioscrobbler.com/2.0/";
+    }
+
+    @Override
+    protected String getQueryURL(List<Identifier> identifiers) throws IOException, UnsupportedIDTypeException {
+        getBestId(identifiers);
+        return getAlbumInfoQueryURL(identifiers);
+    }
+
+    @Override
+    protected CoverImage parseQueryResponse(List<Identifier> identifiers, InputStream response) throws IOException, UnsupportedIDTypeException {
         final Identifier id = getBestId(identifiers);
-        final String queryUrl = getAlbumInfoQueryURL(identifiers);
-        InputStream response = getResponseBody(queryUrl);
-        if (response == null) {
-            return null;
-        }
         final String coverUrl = extractCoverArtUrlFromResponse(response);
         if (coverUrl == null || coverUrl.trim().equals("")) {
             return null;
@@ -64,7 +74,7 @@ public class LastFMCoverSource extends WebServiceCoverSource {
         throw new IllegalArgumentException("Required identifier types not present!");
     }
 
-    protected String extractCoverArtUrlFromResponse(InputStream response) {
+    protected String extractCoverArtUrlFromResponse(InputStream response) throws IOException {
         LastFMAlbumInfoResponse r = LastFMAlbumInfoResponse.parse(response);
         if (r.albumFound()) {
             return r.getMegaImageUrl();
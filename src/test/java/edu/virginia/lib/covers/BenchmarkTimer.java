@@ -0,0 +1,84 @@
+package edu.virginia.lib.covers;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Minimal timing utilities shared by the *Benchmark classes.  These are not
+ * a substitute for a proper harness, but each measurement follows a warm up
+ * period and the results are stable enough to compare implementations run
+ * side by side in the same JVM.
+ */
+public class BenchmarkTimer {
+
+    public interface Operation {
+        public void run() throws Exception;
+    }
+
+    /**
+     * Runs the operation warmup times and then returns the mean time in
+     * nanoseconds over the next iterations runs.
+     */
+    public static double nanosPerOperation(Operation op, int warmup, int iterations) throws Exception {
+        for (int i = 0; i < warmup; i ++) {
+            op.run();
+        }
+        final long start = System.nanoTime();
+        for (int i = 0; i < iterations; i ++) {
+            op.run();
+        }
+        return (double) (System.nanoTime() - start) / iterations;
+    }
+
+    /**
+     * Runs the operation repeatedly on the given number of threads for the
+     * given duration (after a warm up of the same duration) and returns the
+     * number of operations completed per second.
+     */
+    public static double operationsPerSecond(final Operation op, int threads, long durationMs) throws Exception {
+        run(op, threads, durationMs);
+        return (double) run(op, threads, durationMs) * 1000 / durationMs;
+    }
+
+    private static long run(final Operation op, int threads, long durationMs) throws Exception {
+        final AtomicBoolean running = new AtomicBoolean(true);
+        final AtomicLong count = new AtomicLong();
+        final AtomicReference<Exception> failure = new AtomicReference<Exception>();
+        final CountDownLatch done = new CountDownLatch(threads);
+        for (int i = 0; i < threads; i ++) {
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        while (running.get()) {
+                            op.run();
+                            count.incrementAndGet();
+                        }
+                    } catch (Exception ex) {
+                        failure.set(ex);
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }).start();
+        }
+        Thread.sleep(durationMs);
+        final long result = count.get();
+        running.set(false);
+        done.await();
+        if (failure.get() != null) {
+            throw failure.get();
+        }
+        return result;
+    }
+
+    public static void report(String name, double nanosPerOperation) {
+        System.out.println(String.format("  %-40s %12.3f ms/op", name, nanosPerOperation / 1000000d));
+    }
+
+    public static void reportThroughput(String name, double operationsPerSecond) {
+        System.out.println(String.format("  %-40s %12.1f ops/s", name, operationsPerSecond));
+    }
+}
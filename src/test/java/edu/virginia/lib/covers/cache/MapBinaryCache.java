@@ -0,0 +1,59 @@
+package edu.virginia.lib.covers.cache;
+
+import edu.virginia.lib.covers.BinaryCache;
+import org.apache.commons.io.IOUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A BinaryCache that holds its content in a map, for tests of the caches in
+ * front of one that shouldn't pay for writing files.
+ */
+public class MapBinaryCache implements BinaryCache {
+
+    private final Map<String, byte[]> content = new ConcurrentHashMap<String, byte[]>();
+
+    private final Set<String> noContent = Collections.synchronizedSet(new HashSet<String>());
+
+    @Override
+    public void storeContent(String id, InputStream content) throws IOException {
+        this.content.put(id, IOUtils.toByteArray(content));
+        noContent.remove(id);
+    }
+
+    @Override
+    public void markNoContent(String id) {
+        noContent.add(id);
+    }
+
+    @Override
+    public InputStream getContent(String id) {
+        final byte[] bytes = content.get(id);
+        return bytes == null ? null : new ByteArrayInputStream(bytes);
+    }
+
+    @Override
+    public boolean isNoContent(String id) {
+        return noContent.contains(id);
+    }
+
+    @Override
+    public File getContentAsFile(String id) {
+        return null;
+    }
+
+    /**
+     * Removes the content for an id, as if it were evicted.
+     */
+    public void remove(String id) {
+        content.remove(id);
+    }
+}
@@ -0,0 +1,59 @@
+package edu.virginia.lib.covers.cache.filesystem;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.regex.Pattern;
+
+public class CacheLayoutTest {
+
+    @Test
+    public void testShardedPath() {
+        Assert.assertEquals(path("d5/b3/ISBN%2F0312932081/120x120"), CacheLayout.getRelativePath("ISBN/0312932081/120x120"));
+        Assert.assertEquals(path("d5/b3/ISBN%2F0312932081/original-nocontent"), CacheLayout.getRelativePath("ISBN/0312932081/original-nocontent"));
+    }
+
+    @Test
+    public void testOriginalAndScaledImagesShareADirectory() {
+        final String original = CacheLayout.getRelativePath("ISBN/1/original");
+        final String scaled = CacheLayout.getRelativePath("ISBN" + File.separatorChar + "1" + File.separatorChar + "120x120");
+        Assert.assertEquals(new File(original).getParent(), new File(scaled).getParent());
+    }
+
+    @Test
+    public void testUnsafeValuesAreEncoded() {
+        Assert.assertTrue(CacheLayout.getRelativePath("album/Sigur Rós/Takk.../original").endsWith(path("/album%2FSigur%20R%C3%B3s%2FTakk.../original")));
+        for (String id : new String[] { "album/../../etc/passwd", "ISBN/../original", ".hidden/.original", "../x" }) {
+            final String path = CacheLayout.getRelativePath(id);
+            for (String segment : path.split(Pattern.quote(File.separator))) {
+                Assert.assertFalse(id + " leads to a path with a segment starting with \".\": " + path, segment.startsWith("."));
+            }
+            Assert.assertEquals(id + " should be four segments deep!", 4, path.split(Pattern.quote(File.separator)).length);
+        }
+    }
+
+    @Test
+    public void testLongNamesAreHashed() {
+        final StringBuilder album = new StringBuilder("album/");
+        while (album.length() < 300) {
+            album.append("Very long title ");
+        }
+        final String directory = new File(CacheLayout.getRelativePath(album + "/original")).getParentFile().getName();
+        Assert.assertTrue(directory.startsWith("~"));
+        Assert.assertEquals(33, directory.length());
+    }
+
+    @Test
+    public void testShardDirectories() {
+        Assert.assertTrue(CacheLayout.isShardDirectory("d5"));
+        Assert.assertTrue(CacheLayout.isShardDirectory("00"));
+        Assert.assertFalse(CacheLayout.isShardDirectory("ISBN"));
+        Assert.assertFalse(CacheLayout.isShardDirectory("D5"));
+        Assert.assertFalse(CacheLayout.isShardDirectory("a"));
+    }
+
+    private static String path(String path) {
+        return path.replace('/', File.separatorChar);
+    }
+}
@@ -3,9 +3,23 @@ package edu.virginia.lib.covers.cache.filesystem;
 import edu.virginia.lib.covers.BinaryCache;
 import edu.virginia.lib.covers.cache.AbstractBinaryCacheTest;
 import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.Assert;
+import org.junit.Test;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 public class FileBinaryCacheTest extends AbstractBinaryCacheTest {
 
@@ -22,4 +36,272 @@ public class FileBinaryCacheTest extends AbstractBinaryCacheTest {
         FileBinaryCache c = (FileBinaryCache) cache;
         FileUtils.deleteDirectory(c.getBaseDir());
     }
+
+    @Test
+    public void testStoreReplacesNoContentMarker() throws Exception {
+        final FileBinaryCache c = (FileBinaryCache) getNewCache();
+        try {
+            c.markNoContent("ISBN/1/original");
+            Assert.assertTrue(c.isNoContent("ISBN/1/original"));
+            Assert.assertNull(c.getContent("ISBN/1/original"));
+            Assert.assertNull("A directory is not content!", c.getContent("ISBN/1"));
+            c.storeContent("ISBN/1/original", stringToInputStream(exampleContent));
+            Assert.assertFalse(c.isNoContent("ISBN/1/original"));
+            Assert.assertEquals(exampleContent, inputStreamToString(c.getContent("ISBN/1/original")));
+            Assert.assertEquals("No temporary files should remain!", Arrays.asList("original"), Arrays.asList(c.getPathForId("ISBN/1/original").getParentFile().list()));
+        } finally {
+            cleanUpCache(c);
+        }
+    }
+
+    /**
+     * A store that fails part way through should leave the previous content
+     * (and no temporary file) in place.
+     */
+    @Test
+    public void testFailedStoreLeavesPreviousContent() throws Exception {
+        final FileBinaryCache c = (FileBinaryCache) getNewCache();
+        try {
+            c.storeContent("a", stringToInputStream(exampleContent));
+            try {
+                c.storeContent("a", new InputStream() {
+                    private int count;
+                    @Override
+                    public int read() throws IOException {
+                        if (count ++ < 100) {
+                            return 'x';
+                        }
+                        throw new IOException("Upstream connection lost");
+                    }
+                });
+                Assert.fail("The failure should have been reported!");
+            } catch (IOException ex) {
+                // expected
+            }
+            Assert.assertEquals(exampleContent, inputStreamToString(c.getContent("a")));
+            Assert.assertEquals(Arrays.asList("a"), Arrays.asList(c.getPathForId("a").getParentFile().list()));
+        } finally {
+            cleanUpCache(c);
+        }
+    }
+
+    /**
+     * A cache written in the flat layout (each id used as a path) is readable
+     * straight away and is moved to the sharded layout in the background.
+     */
+    @Test
+    public void testMigrationFromFlatLayout() throws Exception {
+        final File baseDir = File.createTempFile("testcache", "basedir");
+        baseDir.delete();
+        FileUtils.writeStringToFile(new File(baseDir, "ISBN/1/original"), exampleContent);
+        FileUtils.writeStringToFile(new File(baseDir, "ISBN/1/120x120"), "scaled");
+        FileUtils.writeStringToFile(new File(baseDir, "ISBN/2/original-nocontent"), "Marked as having no content.");
+        FileUtils.writeStringToFile(new File(baseDir, "album/AC/DC/Back in Black/original"), "album");
+        final FileBinaryCache c = new FileBinaryCache(baseDir);
+        try {
+            Assert.assertEquals(exampleContent, inputStreamToString(c.getContent("ISBN/1/original")));
+            Assert.assertTrue(c.isNoContent("ISBN/2/original"));
+            for (int i = 0; i < 100 && c.isMigrating(); i ++) {
+                Thread.sleep(50);
+            }
+            Assert.assertFalse("Migration should have finished!", c.isMigrating());
+            Assert.assertEquals("scaled", inputStreamToString(c.getContent("ISBN/1/120x120")));
+            Assert.assertEquals("album", inputStreamToString(c.getContent("album/AC/DC/Back in Black/original")));
+            Assert.assertTrue(c.isNoContent("ISBN/2/original"));
+            for (String name : baseDir.list()) {
+                Assert.assertTrue(name + " was left in the flat layout!", CacheLayout.isShardDirectory(name));
+            }
+        } finally {
+            cleanUpCache(c);
+        }
+    }
+
+    /**
+     * Readers never miss content (or a no-content marker) that the migrator
+     * is moving at the same time.
+     */
+    @Test
+    public void testReadsDuringMigration() throws Exception {
+        final File baseDir = File.createTempFile("testcache", "basedir");
+        baseDir.delete();
+        final int count = 1000;
+        for (int i = 0; i < count; i ++) {
+            FileUtils.writeStringToFile(new File(baseDir, "ISBN/" + i + "/original"), String.valueOf(i));
+            FileUtils.writeStringToFile(new File(baseDir, "OCLC/" + i + "/original-nocontent"), "Marked as having no content.");
+        }
+        final FileBinaryCache c = new FileBinaryCache(baseDir);
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        final List<Thread> threads = new ArrayList<Thread>();
+        for (int t = 0; t < 4; t ++) {
+            final Random random = new Random(t);
+            threads.add(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        while (c.isMigrating()) {
+                            final int i = random.nextInt(count);
+                            final InputStream content = c.getContent("ISBN/" + i + "/original");
+                            Assert.assertNotNull("Missed ISBN/" + i + "!", content);
+                            try {
+                                Assert.assertEquals(String.valueOf(i), IOUtils.toString(content));
+                            } finally {
+                                content.close();
+                            }
+                            Assert.assertTrue("Missed the marker for OCLC/" + i + "!", c.isNoContent("OCLC/" + i + "/original"));
+                            Assert.assertNotNull("Missed the file for ISBN/" + i + "!", c.getContentAsFile("ISBN/" + i + "/original"));
+                        }
+                    } catch (Throwable t) {
+                        failure.compareAndSet(null, t);
+                    }
+                }
+            }));
+        }
+        try {
+            for (Thread t : threads) {
+                t.start();
+            }
+            for (Thread t : threads) {
+                t.join(30000);
+            }
+            if (failure.get() != null) {
+                throw new AssertionError(failure.get());
+            }
+            Assert.assertFalse("Migration should have finished!", c.isMigrating());
+        } finally {
+            cleanUpCache(c);
+        }
+    }
+
+    /**
+     * Files left in the flat layout never replace newer ones.
+     */
+    @Test
+    public void testMigrationKeepsNewerContent() throws Exception {
+        final FileBinaryCache c = (FileBinaryCache) getNewCache();
+        try {
+            c.storeContent("ISBN/1/original", stringToInputStream(exampleContent));
+            FileUtils.writeStringToFile(new File(c.getBaseDir(), "ISBN/1/original"), "old");
+            FileUtils.writeStringToFile(new File(c.getBaseDir(), "ISBN/1/original-nocontent"), "old");
+            Assert.assertFalse(c.migrate("ISBN/1/original"));
+            Assert.assertEquals(exampleContent, inputStreamToString(c.getContent("ISBN/1/original")));
+            Assert.assertFalse(c.isNoContent("ISBN/1/original"));
+            Assert.assertFalse(new File(c.getBaseDir(), "ISBN/1/original").exists());
+            Assert.assertFalse(new File(c.getBaseDir(), "ISBN/1/original-nocontent").exists());
+        } finally {
+            cleanUpCache(c);
+        }
+    }
+
+    @Test
+    public void testLegacyPathsStayInTheCache() throws Exception {
+        final File baseDir = new File("cache");
+        Assert.assertEquals(new File(baseDir, "ISBN/1/original"), LegacyLayoutMigrator.getLegacyPath(baseDir, "ISBN/1/original"));
+        Assert.assertNull(LegacyLayoutMigrator.getLegacyPath(baseDir, "ISBN/../../original"));
+        Assert.assertNull(LegacyLayoutMigrator.getLegacyPath(baseDir, "/etc/passwd"));
+        Assert.assertNull(LegacyLayoutMigrator.getLegacyPath(baseDir, "d5/b3/original"));
+    }
+
+    /**
+     * Readers and writers of a few shared keys run at once for two seconds.
+     * Each content is filled with one byte value after a header giving its
+     * length and that value, so a reader can tell whether it has read all of
+     * exactly one store.  Some writers mark keys as having no content.
+     */
+    @Test
+    public void testConcurrentReadersAndWriters() throws Exception {
+        final FileBinaryCache c = (FileBinaryCache) getNewCache();
+        final List<String> keys = new ArrayList<String>();
+        for (int i = 0; i < 8; i ++) {
+            keys.add("ISBN/" + i + "/120x120");
+        }
+        final AtomicBoolean running = new AtomicBoolean(true);
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        final AtomicInteger reads = new AtomicInteger();
+        final AtomicInteger writes = new AtomicInteger();
+        final List<Thread> threads = new ArrayList<Thread>();
+        final CountDownLatch start = new CountDownLatch(1);
+        for (int i = 0; i < 12; i ++) {
+            final boolean writer = i < 4;
+            final Random random = new Random(i);
+            threads.add(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        while (running.get()) {
+                            final String key = keys.get(random.nextInt(keys.size()));
+                            if (writer) {
+                                if (random.nextInt(10) == 0) {
+                                    c.markNoContent(key);
+                                } else {
+                                    c.storeContent(key, new ByteArrayInputStream(createContent(random)));
+                                }
+                                writes.incrementAndGet();
+                            } else {
+                                final InputStream content = c.getContent(key);
+                                if (content != null) {
+                                    try {
+                                        assertComplete(IOUtils.toByteArray(content));
+                                    } finally {
+                                        content.close();
+                                    }
+                                    reads.incrementAndGet();
+                                }
+                            }
+                        }
+                    } catch (Throwable t) {
+                        failure.compareAndSet(null, t);
+                    }
+                }
+            }));
+        }
+        try {
+            for (Thread t : threads) {
+                t.start();
+            }
+            start.countDown();
+            Thread.sleep(2000);
+            running.set(false);
+            for (Thread t : threads) {
+                t.join();
+            }
+            if (failure.get() != null) {
+                throw new AssertionError(failure.get());
+            }
+            Assert.assertTrue(reads.get() > 0);
+            Assert.assertTrue(writes.get() > 0);
+            for (String key : keys) {
+                final File dir = c.getPathForId(key).getParentFile();
+                for (String name : dir.list()) {
+                    Assert.assertFalse("Temporary file " + name + " remains!", name.endsWith(FileBinaryCache.TEMP_SUFFIX));
+                }
+            }
+        } finally {
+            running.set(false);
+            cleanUpCache(c);
+        }
+    }
+
+    private static byte[] createContent(Random random) {
+        final int length = 8 + random.nextInt(256 * 1024);
+        final byte value = (byte) random.nextInt();
+        final ByteBuffer content = ByteBuffer.allocate(length);
+        content.putInt(length).putInt(value);
+        while (content.hasRemaining()) {
+            content.put(value);
+        }
+        return content.array();
+    }
+
+    private static void assertComplete(byte[] content) {
+        Assert.assertTrue("Truncated content!", content.length >= 8);
+        final ByteBuffer b = ByteBuffer.wrap(content);
+        Assert.assertEquals("Content of the wrong length!", b.getInt(), content.length);
+        final byte value = (byte) b.getInt();
+        while (b.hasRemaining()) {
+            if (b.get() != value) {
+                Assert.fail("Content mixed from more than one store!");
+            }
+        }
+    }
 }
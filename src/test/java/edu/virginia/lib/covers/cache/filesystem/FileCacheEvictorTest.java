@@ -0,0 +1,227 @@
+package edu.virginia.lib.covers.cache.filesystem;
+
+import edu.virginia.lib.covers.BinaryCache;
+import edu.virginia.lib.covers.cache.memory.MemoryBinaryCache;
+import edu.virginia.lib.covers.cache.memory.MemoryCacheStatistics;
+import edu.virginia.lib.covers.cache.memory.OffHeapBinaryCache;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+
+public class FileCacheEvictorTest {
+
+    private File baseDir;
+
+    private FileBinaryCache cache;
+
+    @Before
+    public void setUp() throws Exception {
+        baseDir = File.createTempFile("testcache", "basedir");
+        baseDir.delete();
+        baseDir.mkdir();
+    }
+
+    @After
+    public void cleanUp() throws Exception {
+        if (cache != null) {
+            cache.close();
+        }
+        FileUtils.deleteDirectory(baseDir);
+    }
+
+    @Test
+    public void testEvictsDerivedBeforeOriginals() throws Exception {
+        cache = openCache(350, 0);
+        store("ISBN/1/original");
+        store("ISBN/1/120x120");
+        store("ISBN/2/original");
+        store("ISBN/2/120x120");
+        Thread.sleep(5);
+        cache.getContent("ISBN/2/120x120").close();
+        cache.getEvictor().setMinimumIdleMillis(0);
+        cache.getEvictor().evict();
+
+        assertEvicted("ISBN/1/120x120");
+        assertKept("ISBN/1/original", "ISBN/2/original", "ISBN/2/120x120");
+        Assert.assertEquals(300, cache.getEvictor().getBytes());
+        Assert.assertEquals(3, cache.getEvictor().getFileCount());
+        Assert.assertEquals(1, cache.getEvictor().getEvictedFileCount());
+        Assert.assertEquals(100, cache.getEvictor().getEvictedBytes());
+    }
+
+    /**
+     * Evicting an original takes its whole directory with it, including
+     * derived files that somehow never made it into the index.
+     */
+    @Test
+    public void testEvictsLeastRecentlyUsedOriginalsWithDerived() throws Exception {
+        cache = openCache(0, 3);
+        store("ISBN/1/original");
+        store("ISBN/2/original");
+        store("ISBN/3/original");
+        store("ISBN/4/original");
+        Thread.sleep(5);
+        cache.getContent("ISBN/1/original").close();
+        FileUtils.writeStringToFile(cache.getPathForId("ISBN/2/120x120"), "unindexed");
+        cache.getEvictor().setMinimumIdleMillis(0);
+        cache.getEvictor().evict();
+
+        assertEvicted("ISBN/2/original", "ISBN/2/120x120", "ISBN/3/original");
+        assertKept("ISBN/1/original", "ISBN/4/original");
+        Assert.assertFalse("Empty directories should be removed!", cache.getPathForId("ISBN/2/original").getParentFile().exists());
+        Assert.assertEquals(2, cache.getEvictor().getFileCount());
+        Assert.assertEquals(3, cache.getEvictor().getEvictedFileCount());
+    }
+
+    @Test
+    public void testKeepsRecentlyReadFiles() throws Exception {
+        cache = openCache(150, 0);
+        store("ISBN/1/original");
+        store("ISBN/1/120x120");
+        cache.getEvictor().evict();
+
+        assertKept("ISBN/1/original", "ISBN/1/120x120");
+        Assert.assertEquals(0, cache.getEvictor().getEvictedFileCount());
+    }
+
+    /**
+     * The access times are checkpointed when the cache is closed, so they
+     * (rather than the modification times) decide what is evicted after it's
+     * opened again.
+     */
+    @Test
+    public void testAccessTimesSurviveRestart() throws Exception {
+        cache = openCache(0, 10);
+        store("ISBN/1/original");
+        store("ISBN/2/original");
+        store("ISBN/3/original");
+        final long now = System.currentTimeMillis();
+        cache.getPathForId("ISBN/1/original").setLastModified(now - 60000);
+        cache.getPathForId("ISBN/2/original").setLastModified(now - 50000);
+        cache.getPathForId("ISBN/3/original").setLastModified(now - 40000);
+        Thread.sleep(5);
+        cache.getContent("ISBN/1/original").close();
+        cache.close();
+        Assert.assertTrue(new File(baseDir, FileCacheEvictor.INDEX_FILE_NAME).isFile());
+
+        cache = openCache(0, 2);
+        Assert.assertEquals(3, cache.getEvictor().getFileCount());
+        Assert.assertEquals(300, cache.getEvictor().getBytes());
+        cache.getEvictor().setMinimumIdleMillis(0);
+        cache.getEvictor().evict();
+
+        assertKept("ISBN/1/original");
+        assertEvicted("ISBN/2/original", "ISBN/3/original");
+    }
+
+    /**
+     * Reads answered by a memory cache in front of the file cache count as
+     * reads of the file, so popular content isn't evicted from disk.
+     */
+    @Test
+    public void testReadsFromMemoryCacheCount() throws Exception {
+        cache = openCache(0, 3);
+        final MemoryBinaryCache memory = new MemoryBinaryCache(cache, 1024 * 1024, 1024);
+        storeAndReadFirst(memory);
+        cache.getEvictor().setMinimumIdleMillis(0);
+        cache.getEvictor().evict();
+
+        assertKept("ISBN/1/original", "ISBN/4/original");
+        assertEvicted("ISBN/2/original", "ISBN/3/original");
+    }
+
+    @Test
+    public void testReadsFromOffHeapCacheCount() throws Exception {
+        cache = openCache(0, 3);
+        final OffHeapBinaryCache memory = new OffHeapBinaryCache(cache, OffHeapBinaryCache.SLAB_BYTES, 1024);
+        storeAndReadFirst(memory);
+        cache.getEvictor().setMinimumIdleMillis(0);
+        cache.getEvictor().evict();
+
+        assertKept("ISBN/1/original", "ISBN/4/original");
+        assertEvicted("ISBN/2/original", "ISBN/3/original");
+    }
+
+    @Test
+    public void testNoContentMarkersAreIndexed() throws Exception {
+        cache = openCache(0, 10);
+        cache.markNoContent("ISBN/1/original");
+        Assert.assertEquals(1, cache.getEvictor().getFileCount());
+        store("ISBN/1/original");
+        Assert.assertEquals("The marker should be gone from the index!", 1, cache.getEvictor().getFileCount());
+        Assert.assertEquals(100, cache.getEvictor().getBytes());
+    }
+
+    /**
+     * Files moved from the flat layout stay in the index however the move and
+     * the initial scan of the directory interleave.
+     */
+    @Test
+    public void testMigratedFilesAreIndexed() throws Exception {
+        for (int i = 0; i < 20; i ++) {
+            FileUtils.writeByteArrayToFile(new File(baseDir, "ISBN/" + i + "/original"), new byte[100]);
+            FileUtils.writeByteArrayToFile(new File(baseDir, "ISBN/" + i + "/120x120"), new byte[10]);
+        }
+        cache = openCache(0, 100);
+        for (int i = 0; i < 100 && cache.isMigrating(); i ++) {
+            Thread.sleep(50);
+        }
+        cache.getEvictor().awaitBackgroundWork();
+        Assert.assertEquals(40, cache.getEvictor().getFileCount());
+        Assert.assertEquals(2200, cache.getEvictor().getBytes());
+    }
+
+    private FileBinaryCache openCache(long maxBytes, long maxFiles) throws Exception {
+        final FileBinaryCache c = new FileBinaryCache(baseDir, maxBytes, maxFiles);
+        c.getEvictor().awaitBackgroundWork();
+        return c;
+    }
+
+    /**
+     * Stores 100 bytes, waiting a moment first so that each store has its own
+     * access time.
+     */
+    private void store(String id) throws Exception {
+        Thread.sleep(5);
+        cache.storeContent(id, new ByteArrayInputStream(new byte[100]));
+    }
+
+    /**
+     * Stores four originals through the given cache and then reads the first
+     * (and so least recently stored) one through it.
+     */
+    /**
+     * Stores four originals through a memory cache, reading the first as it's
+     * stored and then again (from memory) once the rest are stored.
+     */
+    private <C extends BinaryCache & MemoryCacheStatistics> void storeAndReadFirst(C memory) throws Exception {
+        for (int i = 1; i <= 4; i ++) {
+            Thread.sleep(5);
+            memory.storeContent("ISBN/" + i + "/original", new ByteArrayInputStream(new byte[100]));
+            if (i == 1) {
+                memory.getContent("ISBN/1/original").close();
+            }
+        }
+        Thread.sleep(5);
+        final long hits = memory.getHitCount();
+        memory.getContent("ISBN/1/original").close();
+        Assert.assertEquals("The read should have been answered from memory!", hits + 1, memory.getHitCount());
+    }
+
+    private void assertKept(String ... ids) throws Exception {
+        for (String id : ids) {
+            Assert.assertNotNull(id + " should have been kept!", cache.getContentAsFile(id));
+        }
+    }
+
+    private void assertEvicted(String ... ids) throws Exception {
+        for (String id : ids) {
+            Assert.assertFalse(id + " should have been evicted!", cache.getPathForId(id).exists());
+        }
+    }
+}
@@ -0,0 +1,171 @@
+package edu.virginia.lib.covers.cache.memory;
+
+import edu.virginia.lib.covers.BinaryCache;
+import edu.virginia.lib.covers.cache.AbstractBinaryCacheTest;
+import edu.virginia.lib.covers.cache.DigestedContent;
+import edu.virginia.lib.covers.cache.filesystem.FileBinaryCache;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.util.HashMap;
+import java.util.Map;
+
+public class MemoryBinaryCacheTest extends AbstractBinaryCacheTest {
+
+    private final Map<BinaryCache, File> dirs = new HashMap<BinaryCache, File>();
+
+    private File baseDir;
+
+    private MemoryBinaryCache cache;
+
+    @Before
+    public void setUp() throws Exception {
+        cache = (MemoryBinaryCache) getNewCache();
+    }
+
+    @After
+    public void cleanUp() throws Exception {
+        cleanUpCache(cache);
+    }
+
+    /**
+     * Gets a cache of 1000 bytes, holding content of up to 100 bytes, in front
+     * of a FileBinaryCache in baseDir.
+     */
+    @Override
+    public BinaryCache getNewCache() throws Exception {
+        final File dir = File.createTempFile("testcache", "basedir");
+        dir.delete();
+        dir.mkdir();
+        baseDir = dir;
+        final BinaryCache cache = new MemoryBinaryCache(new FileBinaryCache(dir), 1000, 100);
+        dirs.put(cache, dir);
+        return cache;
+    }
+
+    @Override
+    public void cleanUpCache(BinaryCache cache) throws IOException {
+        FileUtils.deleteDirectory(dirs.remove(cache));
+    }
+
+    @Test
+    public void testHitsServedFromMemory() throws Exception {
+        cache.storeContent("a", stringToInputStream(exampleContent));
+        cache.getContent("a").close();
+        deleteFile(cache, "a");
+        final InputStream content = cache.getContent("a");
+        Assert.assertArrayEquals(MessageDigest.getInstance("MD5").digest(exampleContent.getBytes("UTF-8")), ((DigestedContent) content).getDigest());
+        Assert.assertEquals(exampleContent, inputStreamToString(content));
+        Assert.assertEquals(1, cache.getHitCount());
+        Assert.assertEquals(exampleContent.length(), cache.getResidentBytes());
+    }
+
+    /**
+     * Content that is stored (such as an original cover) only takes up
+     * memory once it's read.
+     */
+    @Test
+    public void testStoredContentKeptOnceRead() throws Exception {
+        cache.storeContent("a", stringToInputStream(exampleContent));
+        Assert.assertEquals(0, cache.getResidentCount());
+        Assert.assertEquals(exampleContent, inputStreamToString(cache.getContent("a")));
+        Assert.assertEquals(1, cache.getMissCount());
+        Assert.assertEquals(1, cache.getResidentCount());
+    }
+
+    /**
+     * Large caches are striped; each stripe still keeps its share.
+     */
+    @Test
+    public void testStripedCache() throws Exception {
+        final MemoryBinaryCache striped = new MemoryBinaryCache(cache.getDelegate(), 16 * 16 * 16 * 100, 100);
+        for (int i = 0; i < 100; i ++) {
+            striped.storeContent("k" + i, new ByteArrayInputStream(new byte[100]));
+            striped.getContent("k" + i).close();
+        }
+        for (int i = 0; i < 100; i ++) {
+            striped.getContent("k" + i).close();
+        }
+        Assert.assertEquals(100, striped.getResidentCount());
+        Assert.assertEquals(100, striped.getHitCount());
+        Assert.assertEquals(100 * 100, striped.getResidentBytes());
+        Assert.assertEquals(0, striped.getEvictionCount());
+    }
+
+    @Test
+    public void testMissesReadThrough() throws Exception {
+        new FileBinaryCache(baseDir).storeContent("a", stringToInputStream(exampleContent));
+        Assert.assertNull(cache.getContent("b"));
+        Assert.assertEquals(exampleContent, inputStreamToString(cache.getContent("a")));
+        Assert.assertEquals(exampleContent, inputStreamToString(cache.getContent("a")));
+        Assert.assertEquals(2, cache.getMissCount());
+        Assert.assertEquals(1, cache.getHitCount());
+        Assert.assertEquals(1d / 3, cache.getHitRatio(), 0.001);
+    }
+
+    @Test
+    public void testLargeContentNotKept() throws Exception {
+        final String large = FileUtils.class.getName() + exampleContent + exampleContent + exampleContent + exampleContent;
+        cache.storeContent("a", stringToInputStream(large));
+        Assert.assertEquals(large, inputStreamToString(cache.getContent("a")));
+        Assert.assertEquals(large, inputStreamToString(cache.getContent("a")));
+        Assert.assertEquals(0, cache.getResidentCount());
+        Assert.assertEquals(0, cache.getHitCount());
+    }
+
+    @Test
+    public void testReplacedAndMarkedContent() throws Exception {
+        cache.storeContent("a", stringToInputStream("old"));
+        Assert.assertEquals("old", inputStreamToString(cache.getContent("a")));
+        cache.storeContent("a", stringToInputStream("new"));
+        Assert.assertEquals(0, cache.getResidentCount());
+        Assert.assertEquals("new", inputStreamToString(cache.getContent("a")));
+        Assert.assertEquals(3, cache.getResidentBytes());
+        cache.markNoContent("a");
+        Assert.assertEquals(0, cache.getResidentCount());
+        Assert.assertTrue(cache.isNoContent("a"));
+    }
+
+    /**
+     * Content that has been read more than once should survive a scan of
+     * content that is read only once.
+     */
+    @Test
+    public void testFrequentlyReadContentSurvivesScan() throws Exception {
+        for (int i = 0; i < 5; i ++) {
+            cache.storeContent("popular" + i, new ByteArrayInputStream(new byte[100]));
+            cache.getContent("popular" + i);
+            cache.getContent("popular" + i);
+        }
+        for (int i = 0; i < 50; i ++) {
+            cache.storeContent("once" + i, new ByteArrayInputStream(new byte[100]));
+            cache.getContent("once" + i);
+        }
+        Assert.assertTrue(cache.getResidentBytes() <= 1000);
+        Assert.assertEquals(45, cache.getEvictionCount());
+        final long hits = cache.getHitCount();
+        for (int i = 0; i < 5; i ++) {
+            cache.getContent("popular" + i);
+        }
+        Assert.assertEquals("Every popular item should still be in memory!", hits + 5, cache.getHitCount());
+    }
+
+    /**
+     * Deletes the file in which the underlying FileBinaryCache holds the
+     * content for a key, if there is one.
+     */
+    private static void deleteFile(MemoryBinaryCache cache, String key) throws IOException {
+        final File file = ((FileBinaryCache) cache.getDelegate()).getContentAsFile(key);
+        if (file != null) {
+            file.delete();
+        }
+    }
+}
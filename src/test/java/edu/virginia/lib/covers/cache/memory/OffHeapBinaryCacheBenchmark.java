@@ -0,0 +1,165 @@
+package edu.virginia.lib.covers.cache.memory;
+
+import edu.virginia.lib.covers.BenchmarkTimer;
+import edu.virginia.lib.covers.BinaryCache;
+import org.apache.commons.io.IOUtils;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.Random;
+
+/**
+ * Compares the garbage collection cost and read throughput of the
+ * OffHeapBinaryCache with those of the (heap based) MemoryBinaryCache when
+ * each holds the same 12,000 thumbnails of 2K to 4K in 64 MB.  For each, 8
+ * threads read thumbnails (80% of them from the 2,000 most popular) and
+ * allocate some garbage of their own as a request would, for 10 seconds.
+ * The collections during that time are reported along with the duration of
+ * a full collection with the cache populated, which is where the thumbnails
+ * held on the heap cost the most.
+ *
+ * This is not run as part of the normal build, run it with:
+ * mvn test -Dtest=OffHeapBinaryCacheBenchmark
+ */
+public class OffHeapBinaryCacheBenchmark {
+
+    private static final long CAPACITY = 64 * 1024 * 1024;
+
+    private static final int THUMBNAILS = 12000;
+
+    private static final int POPULAR = 2000;
+
+    private static final int THREADS = 8;
+
+    private static final long DURATION = 10000;
+
+    @Test
+    public void compareGarbageCollection() throws Exception {
+        System.out.println("Reads of " + THUMBNAILS + " thumbnails held in " + CAPACITY / (1024 * 1024) + " MB by " + THREADS + " threads");
+        run("OffHeapBinaryCache", new OffHeapBinaryCache(new NoBinaryCache(), CAPACITY, 128 * 1024));
+        run("MemoryBinaryCache", new MemoryBinaryCache(new NoBinaryCache(), CAPACITY, 128 * 1024));
+    }
+
+    private void run(String name, final BinaryCache cache) throws Exception {
+        final Random random = new Random(1);
+        for (int i = 0; i < THUMBNAILS; i ++) {
+            final byte[] thumbnail = new byte[2000 + random.nextInt(1900)];
+            random.nextBytes(thumbnail);
+            cache.storeContent(getKey(i), new ByteArrayInputStream(thumbnail));
+            // the MemoryBinaryCache only keeps what's read
+            cache.getContent(getKey(i)).close();
+        }
+        System.gc();
+
+        final long[] before = getCollections();
+        final double throughput = BenchmarkTimer.operationsPerSecond(new BenchmarkTimer.Operation() {
+            private final ThreadLocal<Random> random = new ThreadLocal<Random>() {
+                @Override
+                protected Random initialValue() {
+                    return new Random();
+                }
+            };
+
+            private final ThreadLocal<byte[]> buffer = new ThreadLocal<byte[]>() {
+                @Override
+                protected byte[] initialValue() {
+                    return new byte[8192];
+                }
+            };
+
+            private final ThreadLocal<byte[]> garbage = new ThreadLocal<byte[]>();
+
+            @Override
+            public void run() throws Exception {
+                final Random r = random.get();
+                final int thumbnail = r.nextInt(10) < 8 ? r.nextInt(POPULAR) : r.nextInt(THUMBNAILS);
+                final InputStream content = cache.getContent(getKey(thumbnail));
+                try {
+                    while (content.read(buffer.get()) != -1) {
+                    }
+                } finally {
+                    content.close();
+                }
+                // the garbage a request would otherwise create
+                garbage.set(new byte[1024 + r.nextInt(4096)]);
+            }
+        }, THREADS, DURATION);
+        final long[] after = getCollections();
+
+        final long start = System.nanoTime();
+        for (int i = 0; i < 5; i ++) {
+            System.gc();
+        }
+        final double fullCollection = (System.nanoTime() - start) / 5;
+
+        BenchmarkTimer.reportThroughput(name + " reads", throughput);
+        System.out.println(String.format("  %-40s %12d in %d ms (%d young, %d old)", name + " collections",
+                after[0] - before[0], after[1] - before[1], after[2] - before[2], after[3] - before[3]));
+        BenchmarkTimer.report(name + " System.gc()", fullCollection);
+        if (cache instanceof MemoryCacheStatistics) {
+            System.out.println(String.format("  %-40s %12.3f", name + " hit ratio", ((MemoryCacheStatistics) cache).getHitRatio()));
+        }
+    }
+
+    private String getKey(int thumbnail) {
+        return "ISBN/" + (9780000000000L + thumbnail) + "/120x120";
+    }
+
+    /**
+     * Gets the total number of collections, their total time in ms and the
+     * number of collections by young and by old generation collectors.
+     */
+    private long[] getCollections() {
+        final long[] result = new long[4];
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            final String name = gc.getName();
+            final boolean old = name.contains("MarkSweep") || name.contains("Old") || name.contains("Full");
+            result[0] += gc.getCollectionCount();
+            result[1] += gc.getCollectionTime();
+            result[old ? 3 : 2] += gc.getCollectionCount();
+        }
+        return result;
+    }
+
+    /**
+     * A BinaryCache that holds only the content last stored, until it's read,
+     * so that only the memory caches in front of it are measured.
+     */
+    private static class NoBinaryCache implements BinaryCache {
+
+        private String lastId;
+
+        private byte[] last;
+
+        public void storeContent(String id, InputStream content) throws IOException {
+            lastId = id;
+            last = IOUtils.toByteArray(content);
+        }
+
+        public void markNoContent(String id) {
+        }
+
+        public InputStream getContent(String id) {
+            if (!id.equals(lastId)) {
+                return null;
+            }
+            final InputStream content = new ByteArrayInputStream(last);
+            lastId = null;
+            last = null;
+            return content;
+        }
+
+        public boolean isNoContent(String id) {
+            return false;
+        }
+
+        public File getContentAsFile(String id) {
+            return null;
+        }
+    }
+}
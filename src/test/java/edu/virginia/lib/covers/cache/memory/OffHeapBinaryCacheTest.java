@@ -0,0 +1,231 @@
+package edu.virginia.lib.covers.cache.memory;
+
+import edu.virginia.lib.covers.BinaryCache;
+import edu.virginia.lib.covers.cache.AbstractBinaryCacheTest;
+import edu.virginia.lib.covers.cache.MapBinaryCache;
+import edu.virginia.lib.covers.cache.filesystem.FileBinaryCache;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+public class OffHeapBinaryCacheTest extends AbstractBinaryCacheTest {
+
+    private final Map<BinaryCache, File> dirs = new HashMap<BinaryCache, File>();
+
+    private MapBinaryCache delegate;
+
+    private OffHeapBinaryCache cache;
+
+    /**
+     * Sets up a cache of one slab in front of a MapBinaryCache, since the
+     * tests below store thousands of entries.
+     */
+    @Before
+    public void setUp() throws Exception {
+        delegate = new MapBinaryCache();
+        cache = new OffHeapBinaryCache(delegate, OffHeapBinaryCache.SLAB_BYTES, 64 * 1024);
+    }
+
+    /**
+     * Gets a cache of one slab in front of a FileBinaryCache.
+     */
+    @Override
+    public BinaryCache getNewCache() throws Exception {
+        final File dir = File.createTempFile("testcache", "basedir");
+        dir.delete();
+        dir.mkdir();
+        final BinaryCache cache = new OffHeapBinaryCache(new FileBinaryCache(dir), OffHeapBinaryCache.SLAB_BYTES, 64 * 1024);
+        dirs.put(cache, dir);
+        return cache;
+    }
+
+    @Override
+    public void cleanUpCache(BinaryCache cache) throws IOException {
+        FileUtils.deleteDirectory(dirs.remove(cache));
+    }
+
+    @Test
+    public void testHitsServedFromMemory() throws Exception {
+        cache.storeContent("a", stringToInputStream(exampleContent));
+        delegate.remove("a");
+        final InputStream content = cache.getContent("a");
+        Assert.assertTrue(content instanceof OffHeapBinaryCache.Content);
+        Assert.assertEquals(exampleContent.length(), ((OffHeapBinaryCache.Content) content).getLength());
+        Assert.assertArrayEquals(MessageDigest.getInstance("MD5").digest(exampleContent.getBytes("UTF-8")), ((OffHeapBinaryCache.Content) content).getDigest());
+        final ByteArrayOutputStream written = new ByteArrayOutputStream();
+        ((OffHeapBinaryCache.Content) content).writeTo(written);
+        content.close();
+        Assert.assertEquals(exampleContent, written.toString("UTF-8"));
+        Assert.assertEquals(1, cache.getHitCount());
+        Assert.assertEquals(1, cache.getResidentCount());
+    }
+
+    @Test
+    public void testMissesReadThrough() throws Exception {
+        delegate.storeContent("a", stringToInputStream(exampleContent));
+        Assert.assertNull(cache.getContent("b"));
+        Assert.assertEquals(exampleContent, inputStreamToString(cache.getContent("a")));
+        Assert.assertEquals(exampleContent, inputStreamToString(cache.getContent("a")));
+        Assert.assertEquals(2, cache.getMissCount());
+        Assert.assertEquals(1, cache.getHitCount());
+    }
+
+    @Test
+    public void testLargeContentNotKept() throws Exception {
+        final byte[] large = new byte[65 * 1024];
+        cache.storeContent("a", new ByteArrayInputStream(large));
+        Assert.assertArrayEquals(large, IOUtils.toByteArray(cache.getContent("a")));
+        Assert.assertEquals(0, cache.getResidentCount());
+        Assert.assertEquals(0, cache.getAllocatedBytes());
+    }
+
+    /**
+     * Content that's being read should be unaffected by its replacement and
+     * by the reuse of memory for other content.
+     */
+    @Test
+    public void testPinnedContentIsNotReused() throws Exception {
+        cache.storeContent("a", new ByteArrayInputStream(filled(1000, 1)));
+        final InputStream pinned = cache.getContent("a");
+        cache.storeContent("a", new ByteArrayInputStream(filled(1000, 2)));
+        for (int i = 0; i < 3000; i ++) {
+            cache.storeContent("other" + i, new ByteArrayInputStream(filled(900, 3)));
+        }
+        Assert.assertArrayEquals(filled(1000, 1), IOUtils.toByteArray(pinned));
+        pinned.close();
+        Assert.assertArrayEquals(filled(1000, 2), IOUtils.toByteArray(cache.getContent("a")));
+    }
+
+    /**
+     * One slab holds 1024 chunks of 1K: storing more evicts, preferring the
+     * ones that haven't been read.
+     */
+    @Test
+    public void testEviction() throws Exception {
+        for (int i = 0; i < 1000; i ++) {
+            cache.storeContent("first" + i, new ByteArrayInputStream(filled(500, i)));
+        }
+        for (int i = 0; i < 100; i ++) {
+            cache.getContent("first" + i).close();
+        }
+        for (int i = 0; i < 500; i ++) {
+            cache.storeContent("second" + i, new ByteArrayInputStream(filled(500, i)));
+        }
+        Assert.assertEquals(1024, cache.getResidentCount());
+        Assert.assertEquals(476, cache.getEvictionCount());
+        Assert.assertEquals(OffHeapBinaryCache.SLAB_BYTES, cache.getAllocatedBytes());
+        final long hits = cache.getHitCount();
+        for (int i = 0; i < 100; i ++) {
+            Assert.assertArrayEquals(filled(500, i), IOUtils.toByteArray(cache.getContent("first" + i)));
+        }
+        Assert.assertEquals("Content that had been read should not have been evicted!", hits + 100, cache.getHitCount());
+    }
+
+    /**
+     * Once every slab has been allocated to one size, content of another size
+     * takes a slab (evicting what was in it) unless every slab is pinned, in
+     * which case the content is dropped.
+     */
+    @Test
+    public void testEmptySizeTakesSlab() throws Exception {
+        for (int i = 0; i < 1024; i ++) {
+            cache.storeContent("small" + i, new ByteArrayInputStream(filled(500, i)));
+        }
+        final InputStream pinned = cache.getContent("small0");
+        cache.storeContent("large", new ByteArrayInputStream(filled(8000, 1)));
+        Assert.assertEquals(1, cache.getDroppedCount());
+        pinned.close();
+
+        cache.storeContent("large", new ByteArrayInputStream(filled(8000, 1)));
+        final long hits = cache.getHitCount();
+        Assert.assertArrayEquals(filled(8000, 1), IOUtils.toByteArray(cache.getContent("large")));
+        Assert.assertEquals(hits + 1, cache.getHitCount());
+        Assert.assertEquals(1, cache.getReassignedSlabCount());
+        Assert.assertEquals(1, cache.getResidentCount());
+        Assert.assertEquals(OffHeapBinaryCache.SLAB_BYTES, cache.getAllocatedBytes());
+        Assert.assertArrayEquals("Evicted content should be read through!", filled(500, 3), IOUtils.toByteArray(cache.getContent("small3")));
+    }
+
+    /**
+     * Compares the cache with a map through a random series of stores and
+     * removals, which exercises the index's handling of collisions.
+     */
+    @Test
+    public void testRandomOperations() throws Exception {
+        // enough slabs for every size of content
+        final OffHeapBinaryCache cache = new OffHeapBinaryCache(delegate, 8 * OffHeapBinaryCache.SLAB_BYTES, 64 * 1024);
+        final Map<String, byte[]> expected = new HashMap<String, byte[]>();
+        final Random random = new Random(7);
+        for (int i = 0; i < 5000; i ++) {
+            final String key = "ISBN/" + random.nextInt(400) + "/120x120";
+            if (random.nextInt(5) == 0) {
+                cache.markNoContent(key);
+                expected.remove(key);
+                delegate.remove(key);
+            } else {
+                final byte[] content = filled(random.nextInt(3000) + 1, i);
+                cache.storeContent(key, new ByteArrayInputStream(content));
+                expected.put(key, content);
+            }
+        }
+        Assert.assertEquals(expected.size(), cache.getResidentCount());
+        for (Map.Entry<String, byte[]> entry : expected.entrySet()) {
+            final InputStream content = cache.getContent(entry.getKey());
+            Assert.assertTrue(content instanceof OffHeapBinaryCache.Content);
+            Assert.assertArrayEquals(entry.getValue(), IOUtils.toByteArray(content));
+            content.close();
+        }
+    }
+
+    /**
+     * As above, but with more keys than fit in the cache so that the index
+     * is nearly full and entries are evicted as well as removed.
+     */
+    @Test
+    public void testRandomOperationsWithEviction() throws Exception {
+        final Map<String, byte[]> expected = new HashMap<String, byte[]>();
+        final Random random = new Random(11);
+        for (int i = 0; i < 20000; i ++) {
+            final String key = "ISBN/" + random.nextInt(1500) + "/120x120";
+            final int operation = random.nextInt(10);
+            if (operation == 0) {
+                cache.markNoContent(key);
+                expected.remove(key);
+                delegate.remove(key);
+            } else if (operation < 5) {
+                final byte[] content = filled(random.nextInt(900) + 1, i);
+                cache.storeContent(key, new ByteArrayInputStream(content));
+                expected.put(key, content);
+            } else {
+                final InputStream content = cache.getContent(key);
+                if (expected.containsKey(key)) {
+                    Assert.assertArrayEquals(expected.get(key), IOUtils.toByteArray(content));
+                    content.close();
+                } else {
+                    Assert.assertNull(content);
+                }
+            }
+        }
+        Assert.assertTrue(cache.getResidentCount() <= 1024);
+        Assert.assertTrue(cache.getEvictionCount() > 0);
+    }
+
+    private byte[] filled(int length, int value) {
+        final byte[] bytes = new byte[length];
+        Arrays.fill(bytes, (byte) value);
+        return bytes;
+    }
+}
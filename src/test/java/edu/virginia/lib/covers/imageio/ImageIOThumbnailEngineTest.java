@@ -0,0 +1,122 @@
+package edu.virginia.lib.covers.imageio;
+
+import edu.virginia.lib.covers.UnsupportedImageTypeException;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.awt.Color;
+import java.awt.GradientPaint;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.net.URISyntaxException;
+import java.util.Iterator;
+import java.util.Random;
+
+public class ImageIOThumbnailEngineTest {
+
+    private ImageIOThumbnailEngine engine;
+
+    @Before
+    public void setUp() {
+        engine = new ImageIOThumbnailEngine();
+    }
+
+    @Test
+    public void testCreateThumbnailJPEG() throws Exception {
+        assertHalfSizeThumbnail("test.jpg");
+    }
+
+    @Test
+    public void testCreateThumbnailPNG() throws Exception {
+        assertHalfSizeThumbnail("test.png");
+    }
+
+    @Test
+    public void testCreateThumbnailGIF() throws Exception {
+        assertHalfSizeThumbnail("test.gif");
+    }
+
+    @Test(expected = UnsupportedImageTypeException.class)
+    public void testUnsupportedXCF() throws Exception {
+        final ByteArrayOutputStream output = new ByteArrayOutputStream();
+        try {
+            engine.createThumbnail(getFileFromClassPath("test.xcf"), output, 50, 50);
+        } finally {
+            Assert.assertEquals("Nothing should be written for unsupported images!", 0, output.size());
+        }
+    }
+
+    @Test
+    public void testCreateThumbnailLargeJPEG() throws Exception {
+        final File original = createLargeJpeg(1600, 1200);
+        try {
+            final ByteArrayOutputStream output = new ByteArrayOutputStream();
+            engine.createThumbnail(original, output, 120, 120);
+            assertJpegDimensions(output.toByteArray(), 120, 90);
+        } finally {
+            original.delete();
+        }
+    }
+
+    @Test
+    public void testSubsamplingFactor() {
+        Assert.assertEquals("Small images should not be subsampled!", 1, ImageIOThumbnailEngine.getSubsamplingFactor(100, 66, 120, 120));
+        Assert.assertEquals("Images less than four times the thumbnail size should not be subsampled!", 1, ImageIOThumbnailEngine.getSubsamplingFactor(479, 479, 120, 120));
+        Assert.assertEquals(2, ImageIOThumbnailEngine.getSubsamplingFactor(480, 480, 120, 120));
+        Assert.assertEquals(4, ImageIOThumbnailEngine.getSubsamplingFactor(1200, 1800, 120, 120));
+        Assert.assertEquals("Subsampling should be limited to 1/8!", 8, ImageIOThumbnailEngine.getSubsamplingFactor(10000, 10000, 120, 120));
+    }
+
+    /**
+     * Like ImageMagickProcessTest.testCreateThumbnail, this sets a bounding
+     * box that is half the length of the longer dimension and full size for
+     * the shorter one, so the shorter one should be halved as well if the
+     * aspect ratio is preserved.  All the test images are 100x66.
+     */
+    private void assertHalfSizeThumbnail(String filePath) throws Exception {
+        final ByteArrayOutputStream output = new ByteArrayOutputStream();
+        engine.createThumbnail(getFileFromClassPath(filePath), output, 50, 66);
+        assertJpegDimensions(output.toByteArray(), 50, 33);
+    }
+
+    private void assertJpegDimensions(byte[] jpeg, int width, int height) throws Exception {
+        final ImageInputStream iis = ImageIO.createImageInputStream(new ByteArrayInputStream(jpeg));
+        final Iterator<ImageReader> readers = ImageIO.getImageReaders(iis);
+        Assert.assertTrue("Thumbnail must be readable!", readers.hasNext());
+        final ImageReader reader = readers.next();
+        reader.setInput(iis);
+        Assert.assertEquals("Thumbnail must be a JPEG!", "jpeg", reader.getFormatName().toLowerCase());
+        Assert.assertEquals("Failed to calculate correct width!", width, reader.getWidth(0));
+        Assert.assertEquals("Failed to calculate correct height!", height, reader.getHeight(0));
+    }
+
+    private File getFileFromClassPath(String filePath) throws URISyntaxException {
+        return new File(getClass().getClassLoader().getResource(filePath).toURI());
+    }
+
+    /**
+     * Creates a JPEG with enough detail that it doesn't compress trivially.
+     */
+    static File createLargeJpeg(int width, int height) throws Exception {
+        final BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        final Graphics2D g = image.createGraphics();
+        g.setPaint(new GradientPaint(0, 0, Color.BLUE, width, height, Color.ORANGE));
+        g.fillRect(0, 0, width, height);
+        final Random r = new Random(0);
+        for (int i = 0; i < 2000; i ++) {
+            g.setColor(new Color(r.nextInt(0xFFFFFF)));
+            g.drawLine(r.nextInt(width), r.nextInt(height), r.nextInt(width), r.nextInt(height));
+        }
+        g.dispose();
+        final File f = File.createTempFile("large", ".jpg");
+        ImageIO.write(image, "jpeg", f);
+        return f;
+    }
+}
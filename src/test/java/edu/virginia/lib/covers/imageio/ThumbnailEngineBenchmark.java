@@ -0,0 +1,63 @@
+package edu.virginia.lib.covers.imageio;
+
+import edu.virginia.lib.covers.BenchmarkTimer;
+import edu.virginia.lib.covers.ThumbnailEngine;
+import edu.virginia.lib.covers.imagemagick.ImageMagickProcess;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+
+/**
+ * Compares the per-thumbnail latency and the throughput of the in-JVM
+ * ImageIOThumbnailEngine with the ImageMagickProcess (which forks "convert"
+ * for each thumbnail) for a small original and for a large JPEG original of
+ * the size typically returned by Google Books or LastFM.  The ImageIO engine
+ * is also measured with reduced resolution JPEG decoding turned off.
+ *
+ * This is not run as part of the normal build, run it with:
+ * mvn test -Dtest=ThumbnailEngineBenchmark
+ */
+public class ThumbnailEngineBenchmark {
+
+    private static final int SIZE = 120;
+
+    private static final int THREADS = Runtime.getRuntime().availableProcessors();
+
+    @Test
+    public void compareEngines() throws Exception {
+        final File small = new File(getClass().getClassLoader().getResource("test.jpg").toURI());
+        final File large = ImageIOThumbnailEngineTest.createLargeJpeg(1200, 1800);
+        try {
+            ImageMagickProcess imageMagick = null;
+            try {
+                imageMagick = new ImageMagickProcess();
+            } catch (RuntimeException ex) {
+                System.out.println("ImageMagick is unavailable, only the ImageIO engine will be measured.");
+            }
+            System.out.println("Thumbnail creation (" + SIZE + "x" + SIZE + ", " + THREADS + " threads for throughput)");
+            measure("ImageIO, 100x66 JPEG", new ImageIOThumbnailEngine(), small);
+            measure("ImageIO, 1200x1800 JPEG", new ImageIOThumbnailEngine(), large);
+            final ImageIOThumbnailEngine fullDecode = new ImageIOThumbnailEngine();
+            fullDecode.setReducedResolutionDecoding(false);
+            measure("ImageIO (full decode), 1200x1800 JPEG", fullDecode, large);
+            if (imageMagick != null) {
+                measure("ImageMagick, 100x66 JPEG", imageMagick, small);
+                measure("ImageMagick, 1200x1800 JPEG", imageMagick, large);
+            }
+        } finally {
+            large.delete();
+        }
+    }
+
+    private void measure(String name, final ThumbnailEngine engine, final File original) throws Exception {
+        final BenchmarkTimer.Operation op = new BenchmarkTimer.Operation() {
+            @Override
+            public void run() throws Exception {
+                engine.createThumbnail(original, new ByteArrayOutputStream(), SIZE, SIZE);
+            }
+        };
+        BenchmarkTimer.report(name, BenchmarkTimer.nanosPerOperation(op, 20, 50));
+        BenchmarkTimer.reportThroughput(name, BenchmarkTimer.operationsPerSecond(op, THREADS, 5000));
+    }
+}
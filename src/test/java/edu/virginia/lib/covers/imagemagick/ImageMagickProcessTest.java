@@ -1,11 +1,15 @@
 package edu.virginia.lib.covers.imagemagick;
 
+import org.apache.commons.io.FileUtils;
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.URISyntaxException;
 
 import edu.virginia.lib.covers.ImageMetadata;
@@ -60,6 +64,57 @@ public class ImageMagickProcessTest {
         assertMetadata(output, m.width() / 2, m.height() / 2, "image/jpeg");
     }
 
+    @Test
+    public void testImageMetadataFromStream() throws Exception {
+        ImageMetadata m = p.getMetadata(getClass().getClassLoader().getResourceAsStream("test.png"));
+        Assert.assertEquals(100, m.width());
+        Assert.assertEquals(66, m.height());
+        Assert.assertEquals("image/png", m.mimeType());
+    }
+
+    @Test
+    public void testCreateThumbnailStreams() throws Exception {
+        ByteArrayOutputStream fromFile = new ByteArrayOutputStream();
+        p.createThumbnail(getFileFromClassPath("test.bmp"), fromFile, 50, 66);
+        assertMetadata(new ByteArrayInputStream(fromFile.toByteArray()), 50, 33, "image/jpeg");
+
+        ByteArrayOutputStream fromStream = new ByteArrayOutputStream();
+        p.createThumbnail(getClass().getClassLoader().getResourceAsStream("test.bmp"), fromStream, 50, 66);
+        assertMetadata(new ByteArrayInputStream(fromStream.toByteArray()), 50, 33, "image/jpeg");
+    }
+
+    /**
+     * Uses a script that never completes in place of "convert" to verify that
+     * a hung process is killed once the timeout is reached.
+     */
+    @Test
+    public void testHungProcessIsKilled() throws Exception {
+        File script = File.createTempFile("hang", ".sh");
+        script.deleteOnExit();
+        FileUtils.writeStringToFile(script, "#!/bin/sh\nsleep 30\n");
+        script.setExecutable(true);
+        p.setConvertCommandPath(script.getAbsolutePath());
+        p.setTimeout(500);
+
+        long start = System.currentTimeMillis();
+        try {
+            p.createThumbnail(getFileFromClassPath("test.jpg"), new ByteArrayOutputStream(), 50, 50);
+            Assert.fail("The hung process should have timed out!");
+        } catch (IOException ex) {
+            // expected
+        }
+        Assert.assertTrue("The process should have been killed promptly!", System.currentTimeMillis() - start < 5000);
+        Assert.assertEquals(1, p.getTimedOutCount());
+        Assert.assertEquals(1, p.getKilledCount());
+    }
+
+    private void assertMetadata(InputStream is, int width, int height, String mimeType) throws Exception {
+        ImageMetadata m = p.getMetadata(is);
+        Assert.assertEquals("Failed to calculate correct height!", height, m.height());
+        Assert.assertEquals("Failed to calculate correct width!", width, m.width());
+        Assert.assertEquals("Failed to correctly identify mime type!", mimeType, m.mimeType());
+    }
+
     private File getFileFromClassPath(String filePath) throws URISyntaxException {
         return new File(getClass().getClassLoader().getResource(filePath).toURI());
     }
@@ -0,0 +1,92 @@
+package edu.virginia.lib.covers.imagemagick;
+
+import edu.virginia.lib.covers.ServiceOverloadedException;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+
+public class ImageMagickSchedulerTest {
+
+    private static final int DEADLOCK_TIME = 2000;
+
+    @Test
+    public void testConcurrencyLimit() throws Exception {
+        final ImageMagickScheduler scheduler = new ImageMagickScheduler(2, 5, DEADLOCK_TIME * 2);
+        scheduler.acquire();
+        scheduler.acquire();
+        Assert.assertEquals(2, scheduler.getActiveCount());
+
+        // a third caller must wait until one of the first two is done
+        final AcquireRunnable r = new AcquireRunnable(scheduler);
+        final Thread t = new Thread(r);
+        t.start();
+        t.join(DEADLOCK_TIME / 4);
+        Assert.assertTrue("The third caller should be waiting!", t.isAlive());
+        Assert.assertEquals(1, scheduler.getQueueDepth());
+
+        scheduler.release();
+        t.join(DEADLOCK_TIME);
+        Assert.assertFalse("The third caller should have proceeded!", t.isAlive());
+        Assert.assertNull(r.getException());
+        Assert.assertEquals(0, scheduler.getQueueDepth());
+        Assert.assertEquals(3, scheduler.getAcquiredCount());
+        Assert.assertTrue("Wait time should have been recorded!", scheduler.getMaxWaitMillis() > 0);
+    }
+
+    @Test
+    public void testRejectionWhenQueueFull() throws Exception {
+        final ImageMagickScheduler scheduler = new ImageMagickScheduler(1, 1, DEADLOCK_TIME * 2);
+        scheduler.acquire();
+
+        final AcquireRunnable waiting = new AcquireRunnable(scheduler);
+        final Thread t = new Thread(waiting);
+        t.start();
+        while (scheduler.getQueueDepth() == 0) {
+            Thread.sleep(10);
+        }
+
+        try {
+            scheduler.acquire();
+            Assert.fail("A caller beyond the queue length should be rejected!");
+        } catch (ServiceOverloadedException ex) {
+            Assert.assertTrue(ex.getRetryAfterSeconds() > 0);
+        }
+        Assert.assertEquals(1, scheduler.getRejectedCount());
+
+        scheduler.release();
+        t.join(DEADLOCK_TIME);
+        Assert.assertNull(waiting.getException());
+    }
+
+    @Test(expected = ServiceOverloadedException.class)
+    public void testRejectionAfterMaxWait() throws Exception {
+        final ImageMagickScheduler scheduler = new ImageMagickScheduler(1, 1, 100);
+        scheduler.acquire();
+        scheduler.acquire();
+    }
+
+    private static class AcquireRunnable implements Runnable {
+
+        private ImageMagickScheduler scheduler;
+
+        private IOException exception;
+
+        public AcquireRunnable(ImageMagickScheduler scheduler) {
+            this.scheduler = scheduler;
+        }
+
+        public IOException getException() {
+            return exception;
+        }
+
+        @Override
+        public void run() {
+            try {
+                scheduler.acquire();
+            } catch (IOException ex) {
+                exception = ex;
+            }
+        }
+    }
+}
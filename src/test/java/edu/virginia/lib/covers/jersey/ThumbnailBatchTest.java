@@ -0,0 +1,123 @@
+package edu.virginia.lib.covers.jersey;
+
+import edu.virginia.lib.covers.CoverImage;
+import edu.virginia.lib.covers.CoverSource;
+import edu.virginia.lib.covers.Identifier;
+import edu.virginia.lib.covers.cache.filesystem.FileBinaryCache;
+import edu.virginia.lib.covers.service.CoverRequestExecutor;
+import edu.virginia.lib.covers.service.SimpleCoverService;
+import org.apache.commons.io.FileUtils;
+import org.json.JSONArray;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+public class ThumbnailBatchTest {
+
+    @Test
+    public void testParseItems() throws Exception {
+        final List<ThumbnailBatch.Item> items = ThumbnailBatch.parseItems(new JSONArray(
+                "[{\"ISBN\": \"0312932081\", \"OCLC\": \"76141517\"}, {\"artist\": \"Low\", \"album\": \"Trust\"}, {\"artist\": \"Low\"}]"));
+        Assert.assertEquals(3, items.size());
+        Assert.assertEquals(2, items.get(0).ids.size());
+        Assert.assertEquals(Identifier.ISBN("0312932081"), items.get(0).ids.get(0));
+        Assert.assertEquals(Identifier.ALBUM("Low", "Trust"), items.get(1).ids.get(0));
+        Assert.assertTrue("An artist without an album isn't a usable identifier!", items.get(2).ids.isEmpty());
+    }
+
+    /**
+     * Items with the same identifiers, in any order, should share a lookup
+     * while items without identifiers get none.
+     */
+    @Test
+    public void testGroupByIdentifiers() throws Exception {
+        final List<ThumbnailBatch.Item> items = ThumbnailBatch.parseItems(new JSONArray(
+                "[{\"ISBN\": \"1\", \"OCLC\": \"2\"}, {\"ISBN\": \"3\"}, {\"OCLC\": \"2\", \"ISBN\": \"1\"}, {\"ISBN\": \"1\"}, {}]"));
+        final Map<String, ThumbnailBatch.Lookup> lookups = ThumbnailBatch.groupByIdentifiers(items);
+        Assert.assertEquals(3, lookups.size());
+        Assert.assertSame(items.get(0).lookup, items.get(2).lookup);
+        Assert.assertNotSame(items.get(0).lookup, items.get(3).lookup);
+        Assert.assertNull(items.get(4).lookup);
+    }
+
+    /**
+     * Items that share only some of their identifiers are looked up
+     * separately, but no identifier should be queried more than once.
+     */
+    @Test
+    public void testOverlappingItemsQueryEachIdentifierOnce() throws Exception {
+        final List<Identifier> queried = Collections.synchronizedList(new ArrayList<Identifier>());
+        final File baseDir = File.createTempFile("testcache", "basedir");
+        baseDir.delete();
+        baseDir.mkdir();
+        final SimpleCoverService service = new SimpleCoverService();
+        service.setCoverCache(new FileBinaryCache(baseDir));
+        service.addCoverSource(new CoverSource() {
+            @Override
+            public CoverImage getCoverImage(List<Identifier> identifiers) throws IOException {
+                queried.addAll(identifiers);
+                try {
+                    Thread.sleep(50);
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+                return null;
+            }
+        });
+        final CoverRequestExecutor executor = new CoverRequestExecutor(4, 10, 5000, 5000);
+        try {
+            final List<ThumbnailBatch.Item> items = ThumbnailBatch.parseItems(new JSONArray(
+                    "[{\"ISBN\": \"1\"}, {\"ISBN\": \"1\", \"OCLC\": \"2\"}, {\"OCLC\": \"2\", \"ISBN\": \"3\"}]"));
+            final CountDownLatch done = new CountDownLatch(1);
+            ThumbnailBatch.resolve(service, executor, ThumbnailBatch.groupByIdentifiers(items).values(), 120, 120, -1, false, new Runnable() {
+                @Override
+                public void run() {
+                    done.countDown();
+                }
+            });
+            Assert.assertTrue(done.await(5, TimeUnit.SECONDS));
+            for (ThumbnailBatch.Item item : items) {
+                Assert.assertEquals("missing", item.lookup.status);
+            }
+            Assert.assertEquals("Each identifier should have been queried once: " + queried, 3, queried.size());
+            Assert.assertTrue(queried.containsAll(items.get(1).ids));
+            Assert.assertTrue(queried.containsAll(items.get(2).ids));
+        } finally {
+            executor.close();
+            service.close();
+            FileUtils.deleteDirectory(baseDir);
+        }
+    }
+
+    @Test
+    public void testCoverReadOnlyWhenKept() throws Exception {
+        final ThumbnailBatch.Lookup lookup = new ThumbnailBatch.Lookup(Collections.singletonList(Identifier.ISBN("1")));
+        final AtomicBoolean closed = new AtomicBoolean();
+        lookup.completed(new ByteArrayInputStream(new byte[] { 1, 2, 3 }) {
+            @Override
+            public void close() {
+                closed.set(true);
+            }
+        }, false);
+        Assert.assertEquals("found", lookup.status);
+        Assert.assertNull(lookup.image);
+        Assert.assertTrue("The cover should have been closed!", closed.get());
+        lookup.completed(new ByteArrayInputStream(new byte[] { 1, 2, 3 }), true);
+        Assert.assertArrayEquals(new byte[] { 1, 2, 3 }, lookup.image);
+    }
+
+    @Test
+    public void testETag() throws Exception {
+        Assert.assertEquals("900150983cd24fb0d6963f7d28e17f72", Thumbnail.getETag("abc".getBytes("UTF-8")));
+    }
+}
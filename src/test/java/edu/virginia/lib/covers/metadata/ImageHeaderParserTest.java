@@ -0,0 +1,55 @@
+package edu.virginia.lib.covers.metadata;
+
+import edu.virginia.lib.covers.ImageMetadata;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.net.URISyntaxException;
+
+public class ImageHeaderParserTest {
+
+    @Test
+    public void testImageMetadataJPEG() throws Exception {
+        assertMetadata("test.jpg", 100, 66, "image/jpeg");
+    }
+
+    @Test
+    public void testImageMetadataBMP() throws Exception {
+        assertMetadata("test.bmp", 100, 66, "image/bmp");
+    }
+
+    @Test
+    public void testImageMetadataGIF() throws Exception {
+        assertMetadata("test.gif", 100, 66, "image/gif");
+    }
+
+    @Test
+    public void testImageMetadataPNG() throws Exception {
+        assertMetadata("test.png", 100, 66, "image/png");
+    }
+
+    @Test
+    public void testUnrecognizedXCF() throws Exception {
+        Assert.assertNull("XCF should not be recognized!", ImageHeaderParser.parse(getFileFromClassPath("test.xcf")));
+    }
+
+    @Test
+    public void testTruncatedImage() throws Exception {
+        Assert.assertNull("A truncated header should not be recognized!", ImageHeaderParser.parse(new ByteArrayInputStream(new byte[] { (byte) 0xFF, (byte) 0xD8, (byte) 0xFF })));
+        Assert.assertNull("An empty stream should not be recognized!", ImageHeaderParser.parse(new ByteArrayInputStream(new byte[0])));
+    }
+
+    private File getFileFromClassPath(String filePath) throws URISyntaxException {
+        return new File(getClass().getClassLoader().getResource(filePath).toURI());
+    }
+
+    private void assertMetadata(String filePath, int width, int height, String mimeType) throws Exception {
+        ImageMetadata m = ImageHeaderParser.parse(getFileFromClassPath(filePath));
+        Assert.assertNotNull("Failed to recognize \"" + filePath + "\"!", m);
+        Assert.assertEquals("Failed to calculate correct height for \"" + filePath + "\"!", height, m.height());
+        Assert.assertEquals("Failed to calculate correct width for \"" + filePath + "\"!", width, m.width());
+        Assert.assertEquals("Failed to correctly identify mime type for \"" + filePath + "\"!", mimeType, m.mimeType());
+    }
+}
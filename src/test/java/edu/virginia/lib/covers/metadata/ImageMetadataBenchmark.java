@@ -0,0 +1,54 @@
+package edu.virginia.lib.covers.metadata;
+
+import edu.virginia.lib.covers.BenchmarkTimer;
+import edu.virginia.lib.covers.imagemagick.ImageMagickProcess;
+import org.junit.Test;
+
+import java.io.File;
+
+/**
+ * Compares the time to determine the dimensions and type of an image using
+ * the ImageHeaderParser with the time it takes using ImageMagick's
+ * "identify", both for a single image and (as FileCoverImage used to do) when
+ * an ImageMagickProcess is constructed for each image.
+ *
+ * This is not run as part of the normal build, run it with:
+ * mvn test -Dtest=ImageMetadataBenchmark
+ */
+public class ImageMetadataBenchmark {
+
+    @Test
+    public void compareMetadataExtraction() throws Exception {
+        System.out.println("Image metadata extraction");
+        for (String name : new String[] { "test.jpg", "test.png", "test.gif", "test.bmp" }) {
+            final File f = new File(getClass().getClassLoader().getResource(name).toURI());
+            BenchmarkTimer.report("ImageHeaderParser, " + name, BenchmarkTimer.nanosPerOperation(new BenchmarkTimer.Operation() {
+                @Override
+                public void run() throws Exception {
+                    ImageHeaderParser.parse(f);
+                }
+            }, 10000, 100000));
+        }
+
+        final ImageMagickProcess p;
+        try {
+            p = new ImageMagickProcess();
+        } catch (RuntimeException ex) {
+            System.out.println("ImageMagick is unavailable, only the ImageHeaderParser was measured.");
+            return;
+        }
+        final File f = new File(getClass().getClassLoader().getResource("test.jpg").toURI());
+        BenchmarkTimer.report("identify, test.jpg", BenchmarkTimer.nanosPerOperation(new BenchmarkTimer.Operation() {
+            @Override
+            public void run() throws Exception {
+                p.getMetadata(f);
+            }
+        }, 5, 20));
+        BenchmarkTimer.report("new ImageMagickProcess + identify, test.jpg", BenchmarkTimer.nanosPerOperation(new BenchmarkTimer.Operation() {
+            @Override
+            public void run() throws Exception {
+                new ImageMagickProcess().getMetadata(f);
+            }
+        }, 2, 10));
+    }
+}
@@ -0,0 +1,204 @@
+package edu.virginia.lib.covers.service;
+
+import edu.virginia.lib.covers.CoverService;
+import edu.virginia.lib.covers.Identifier;
+import edu.virginia.lib.covers.ServiceOverloadedException;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyListOf;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class CoverRequestExecutorTest {
+
+    private static final List<Identifier> SAMPLE_ISBN = Arrays.asList(new Identifier[]{ Identifier.ISBN("1234")} );
+
+    private static final int DEADLOCK_TIME = 2000;
+
+    private CoverRequestExecutor executor = new CoverRequestExecutor(1, 1, 100, 1000);
+
+    @After
+    public void cleanUp() {
+        executor.close();
+    }
+
+    @Test
+    public void testTimeoutLimits() {
+        Assert.assertEquals("The default timeout should apply when none is requested!", 100, executor.getTimeoutMillis(-1));
+        Assert.assertEquals(500, executor.getTimeoutMillis(500));
+        Assert.assertEquals("The requested timeout should be capped!", 1000, executor.getTimeoutMillis(5000));
+    }
+
+    @Test
+    public void testResultBeforeDeadline() throws Exception {
+        final CoverService service = mock(CoverService.class);
+        final InputStream content = new ByteArrayInputStream(new byte[1]);
+        when(service.getCoverImage(SAMPLE_ISBN, 10, 10)).thenReturn(content);
+        final RecordingCallback callback = new RecordingCallback();
+        executor.submit(service, SAMPLE_ISBN, 10, 10, -1, callback);
+        callback.awaitOutcome();
+        Assert.assertSame(content, callback.cover);
+        Assert.assertNull(callback.failure);
+        Assert.assertFalse(callback.timedOut);
+    }
+
+    @Test
+    public void testFailureReported() throws Exception {
+        final CoverService service = mock(CoverService.class);
+        final IOException failure = new IOException("expected");
+        when(service.getCoverImage(SAMPLE_ISBN, 10, 10)).thenThrow(failure);
+        final RecordingCallback callback = new RecordingCallback();
+        executor.submit(service, SAMPLE_ISBN, 10, 10, -1, callback);
+        callback.awaitOutcome();
+        Assert.assertSame(failure, callback.failure);
+    }
+
+    /**
+     * A request that misses its deadline should continue in the background
+     * and the stream it eventually returns should be closed.
+     */
+    @Test
+    public void testTimedOutRequestCompletesInBackground() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        final ClosingInputStream content = new ClosingInputStream();
+        final CoverService service = blockingService(release, content);
+        final RecordingCallback callback = new RecordingCallback();
+        executor.submit(service, SAMPLE_ISBN, 10, 10, 50, callback);
+        callback.awaitOutcome();
+        Assert.assertTrue("The request should have timed out!", callback.timedOut);
+        Assert.assertEquals(1, executor.getTimedOutCount());
+        release.countDown();
+        Assert.assertTrue("The abandoned result should have been closed!", content.closed.await(DEADLOCK_TIME, TimeUnit.MILLISECONDS));
+        Assert.assertNull("The callback should only be told once!", callback.cover);
+    }
+
+    /**
+     * Once every thread is busy and the queue is full, requests should be
+     * refused rather than waiting.
+     */
+    @Test
+    public void testOverloadRejected() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        final CoverService service = blockingService(release, null);
+        try {
+            executor.submit(service, SAMPLE_ISBN, 10, 10, -1, new RecordingCallback());
+            executor.submit(service, SAMPLE_ISBN, 10, 10, -1, new RecordingCallback());
+            try {
+                executor.submit(service, SAMPLE_ISBN, 10, 10, -1, new RecordingCallback());
+                Assert.fail("The request should have been rejected!");
+            } catch (ServiceOverloadedException ex) {
+                Assert.assertEquals(1, executor.getRejectedCount());
+            }
+        } finally {
+            release.countDown();
+        }
+    }
+
+    @Test
+    public void testSubmitAfterCloseRejected() throws Exception {
+        executor.close();
+        final RecordingCallback callback = new RecordingCallback();
+        try {
+            executor.submit(mock(CoverService.class), SAMPLE_ISBN, 10, 10, -1, callback);
+            Assert.fail("The request should have been rejected!");
+        } catch (ServiceOverloadedException ex) {
+            Assert.assertEquals(1, executor.getRejectedCount());
+            Assert.assertEquals(1, callback.outcome.getCount());
+        }
+    }
+
+    /**
+     * Requests still waiting to run when the executor is closed should fail
+     * rather than never being answered.
+     */
+    @Test
+    public void testQueuedRequestFailedOnClose() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        final CoverService service = blockingService(release, null);
+        try {
+            executor.submit(service, SAMPLE_ISBN, 10, 10, -1, new RecordingCallback());
+            final RecordingCallback queued = new RecordingCallback();
+            executor.submit(service, SAMPLE_ISBN, 10, 10, -1, queued);
+            executor.close();
+            queued.awaitOutcome();
+            Assert.assertNotNull(queued.failure);
+            Assert.assertFalse(queued.timedOut);
+        } finally {
+            release.countDown();
+        }
+    }
+
+    private CoverService blockingService(final CountDownLatch release, final InputStream content) throws IOException {
+        final CoverService service = mock(CoverService.class);
+        doAnswer(new Answer<InputStream>() {
+            @Override
+            public InputStream answer(InvocationOnMock invocation) throws Throwable {
+                release.await();
+                return content;
+            }
+        }).when(service).getCoverImage(anyListOf(Identifier.class), anyInt(), anyInt());
+        return service;
+    }
+
+    private static class RecordingCallback implements CoverRequestExecutor.Callback {
+
+        private final CountDownLatch outcome = new CountDownLatch(1);
+
+        private volatile InputStream cover;
+
+        private volatile Throwable failure;
+
+        private volatile boolean timedOut;
+
+        public void awaitOutcome() throws InterruptedException {
+            Assert.assertTrue("DEADLOCK DETECTED!", outcome.await(DEADLOCK_TIME, TimeUnit.MILLISECONDS));
+        }
+
+        @Override
+        public void completed(InputStream cover) {
+            this.cover = cover;
+            outcome.countDown();
+        }
+
+        @Override
+        public void failed(Throwable t) {
+            failure = t;
+            outcome.countDown();
+        }
+
+        @Override
+        public void timedOut() {
+            timedOut = true;
+            outcome.countDown();
+        }
+    }
+
+    private static class ClosingInputStream extends ByteArrayInputStream {
+
+        private final CountDownLatch closed = new CountDownLatch(1);
+
+        public ClosingInputStream() {
+            super(new byte[1]);
+        }
+
+        @Override
+        public void close() throws IOException {
+            closed.countDown();
+            super.close();
+        }
+    }
+}
@@ -0,0 +1,130 @@
+package edu.virginia.lib.covers.service;
+
+import edu.virginia.lib.covers.cache.filesystem.FileBinaryCache;
+import edu.virginia.lib.covers.cache.memory.MemoryBinaryCache;
+import edu.virginia.lib.covers.cache.memory.OffHeapBinaryCache;
+import edu.virginia.lib.covers.imagemagick.ImageMagickScheduler;
+import edu.virginia.lib.covers.sources.googlebooks.GoogleBooksCoverSource;
+import edu.virginia.lib.covers.sources.lastfm.LastFMCoverSource;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.Properties;
+
+public class CoverServiceConfigurationTest {
+
+    private File cacheDir;
+
+    private Properties p;
+
+    @Before
+    public void setUp() throws Exception {
+        cacheDir = File.createTempFile("testcache", "basedir");
+        cacheDir.delete();
+        p = new Properties();
+        p.setProperty("cache.dir", cacheDir.getAbsolutePath());
+    }
+
+    @After
+    public void cleanUp() throws Exception {
+        FileUtils.deleteDirectory(cacheDir);
+    }
+
+    @Test
+    public void testSourcesInConfiguredOrder() throws Exception {
+        p.setProperty("sources", "googlebooks, lastfm");
+        p.setProperty("lastfm.api-key", "key");
+        final SimpleCoverService service = new CoverServiceConfiguration(p).createCoverService();
+        try {
+            Assert.assertEquals(2, service.getCoverSources().size());
+            Assert.assertTrue(service.getCoverSources().get(0) instanceof GoogleBooksCoverSource);
+            Assert.assertTrue(service.getCoverSources().get(1) instanceof LastFMCoverSource);
+            Assert.assertTrue(service.getCoverCache() instanceof MemoryBinaryCache);
+            Assert.assertTrue(((MemoryBinaryCache) service.getCoverCache()).getDelegate() instanceof FileBinaryCache);
+        } finally {
+            service.close();
+        }
+    }
+
+    @Test
+    public void testOffHeapMemoryCache() throws Exception {
+        p.setProperty("sources", "googlebooks");
+        p.setProperty("cache.memory.off-heap", "true");
+        final SimpleCoverService service = new CoverServiceConfiguration(p).createCoverService();
+        try {
+            Assert.assertTrue(service.getCoverCache() instanceof OffHeapBinaryCache);
+        } finally {
+            service.close();
+        }
+    }
+
+    @Test
+    public void testMemoryCacheDisabled() throws Exception {
+        p.setProperty("sources", "googlebooks");
+        p.setProperty("cache.memory.max-bytes", "0");
+        final SimpleCoverService service = new CoverServiceConfiguration(p).createCoverService();
+        try {
+            Assert.assertTrue(service.getCoverCache() instanceof FileBinaryCache);
+        } finally {
+            service.close();
+        }
+    }
+
+    @Test
+    public void testImageMagickScheduler() throws Exception {
+        p.setProperty("sources", "googlebooks");
+        p.setProperty("imagemagick.processes.max", "3");
+        p.setProperty("imagemagick.queue.max", "7");
+        final SimpleCoverService service = new CoverServiceConfiguration(p).createCoverService();
+        try {
+            // null where ImageMagick isn't installed
+            Assume.assumeNotNull(service.getImageMagickProcess());
+            final ImageMagickScheduler scheduler = service.getImageMagickProcess().getScheduler();
+            Assert.assertEquals(3, scheduler.getMaxConcurrent());
+            Assert.assertEquals(7, scheduler.getMaxQueueLength());
+        } finally {
+            service.close();
+        }
+    }
+
+    @Test
+    public void testImageMagickDisabled() throws Exception {
+        p.setProperty("sources", "googlebooks");
+        p.setProperty("imagemagick.enabled", "false");
+        final SimpleCoverService service = new CoverServiceConfiguration(p).createCoverService();
+        try {
+            Assert.assertNull(service.getImageMagickProcess());
+        } finally {
+            service.close();
+        }
+    }
+
+    @Test
+    public void testLegacyApiKeyProperty() throws Exception {
+        p.setProperty("api-key", "key");
+        final SimpleCoverService service = new CoverServiceConfiguration(p).createCoverService();
+        try {
+            Assert.assertEquals(2, service.getCoverSources().size());
+            Assert.assertTrue(service.getCoverSources().get(0) instanceof LastFMCoverSource);
+        } finally {
+            service.close();
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testMissingApiKey() throws Exception {
+        p.setProperty("sources", "lastfm");
+        new CoverServiceConfiguration(p).createCoverService();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testUnknownSource() throws Exception {
+        p.setProperty("sources", "amazon");
+        new CoverServiceConfiguration(p).createCoverService();
+    }
+}
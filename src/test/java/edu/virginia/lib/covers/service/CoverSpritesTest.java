@@ -0,0 +1,103 @@
+package edu.virginia.lib.covers.service;
+
+import edu.virginia.lib.covers.cache.filesystem.FileBinaryCache;
+import org.apache.commons.io.FileUtils;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+public class CoverSpritesTest {
+
+    private File cacheDir;
+
+    private CoverSprites sprites;
+
+    @Before
+    public void setUp() throws Exception {
+        cacheDir = File.createTempFile("testcache", "basedir");
+        cacheDir.delete();
+        sprites = new CoverSprites(new FileBinaryCache(cacheDir));
+    }
+
+    @After
+    public void cleanUp() throws Exception {
+        FileUtils.deleteDirectory(cacheDir);
+    }
+
+    @Test
+    public void testLayout() throws Exception {
+        final List<String> tileIds = new ArrayList<String>();
+        final Map<String, byte[]> tiles = new HashMap<String, byte[]>();
+        for (int i = 0; i < 12; i ++) {
+            tileIds.add("tile" + i);
+            if (i != 3) {
+                tiles.put("tile" + i, jpeg(80, 120));
+            }
+        }
+        final JSONObject layout = sprites.compose("abc", tileIds, tiles, 100, 120, true);
+        Assert.assertEquals(CoverSprites.COLUMNS * 100, layout.getInt("width"));
+        Assert.assertEquals(2 * 120, layout.getInt("height"));
+        final JSONObject offsets = layout.getJSONObject("tiles");
+        Assert.assertFalse("A tile without an image should have no offset!", offsets.has("tile3"));
+        Assert.assertEquals(200, offsets.getJSONObject("tile2").getInt("x"));
+        Assert.assertEquals(0, offsets.getJSONObject("tile2").getInt("y"));
+        Assert.assertEquals(100, offsets.getJSONObject("tile11").getInt("x"));
+        Assert.assertEquals(120, offsets.getJSONObject("tile11").getInt("y"));
+        Assert.assertEquals(80, offsets.getJSONObject("tile11").getInt("width"));
+
+        final InputStream image = sprites.getImage("abc", 100, 120);
+        try {
+            final BufferedImage sprite = ImageIO.read(image);
+            Assert.assertEquals(layout.getInt("width"), sprite.getWidth());
+            Assert.assertEquals(layout.getInt("height"), sprite.getHeight());
+        } finally {
+            image.close();
+        }
+    }
+
+    @Test
+    public void testLayoutIsCached() throws Exception {
+        final List<String> tileIds = new ArrayList<String>();
+        tileIds.add("only");
+        final Map<String, byte[]> tiles = new HashMap<String, byte[]>();
+        tiles.put("only", jpeg(50, 50));
+        Assert.assertNull(sprites.getLayout("def", 50, 50));
+        sprites.compose("def", tileIds, tiles, 50, 50, false);
+        final JSONObject layout = sprites.getLayout("def", 50, 50);
+        Assert.assertFalse(layout.getBoolean("complete"));
+        Assert.assertEquals(50, layout.getInt("width"));
+        Assert.assertNull("Sprites of another size are distinct!", sprites.getLayout("def", 60, 60));
+    }
+
+    @Test
+    public void testSizeLimits() throws Exception {
+        Assert.assertTrue(CoverSprites.isAllowed(100, CoverSprites.MAX_TILE_SIZE, CoverSprites.MAX_TILE_SIZE));
+        Assert.assertFalse(CoverSprites.isAllowed(1, CoverSprites.MAX_TILE_SIZE + 1, 50));
+        Assert.assertFalse(CoverSprites.isAllowed(1, 50, 0));
+        Assert.assertFalse(CoverSprites.isAllowed(200, CoverSprites.MAX_TILE_SIZE, CoverSprites.MAX_TILE_SIZE));
+        Assert.assertFalse(CoverSprites.isAllowed(Integer.MAX_VALUE, 1, 1));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testTooLargeNotComposed() throws Exception {
+        sprites.compose("ghi", new ArrayList<String>(), new HashMap<String, byte[]>(), 10000, 10000, true);
+    }
+
+    private byte[] jpeg(int width, int height) throws Exception {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ImageIO.write(new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB), "jpeg", out);
+        return out.toByteArray();
+    }
+}
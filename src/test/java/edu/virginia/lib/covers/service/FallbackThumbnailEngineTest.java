@@ -0,0 +1,52 @@
+package edu.virginia.lib.covers.service;
+
+import edu.virginia.lib.covers.ThumbnailEngine;
+import edu.virginia.lib.covers.UnsupportedImageTypeException;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.OutputStream;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+
+public class FallbackThumbnailEngineTest {
+
+    private final File original = new File("original");
+
+    @Test
+    public void testFirstSupportingEngineIsUsed() throws Exception {
+        final ThumbnailEngine primary = mock(ThumbnailEngine.class);
+        final ThumbnailEngine fallback = mock(ThumbnailEngine.class);
+        final OutputStream output = new ByteArrayOutputStream();
+
+        new FallbackThumbnailEngine(primary, fallback).createThumbnail(original, output, 10, 20);
+        verify(primary).createThumbnail(original, output, 10, 20);
+        verify(fallback, never()).createThumbnail(any(File.class), any(OutputStream.class), anyInt(), anyInt());
+    }
+
+    @Test
+    public void testFallbackForUnsupportedImages() throws Exception {
+        final ThumbnailEngine primary = mock(ThumbnailEngine.class);
+        final ThumbnailEngine fallback = mock(ThumbnailEngine.class);
+        final OutputStream output = new ByteArrayOutputStream();
+        doThrow(new UnsupportedImageTypeException("unsupported")).when(primary).createThumbnail(original, output, 10, 20);
+
+        new FallbackThumbnailEngine(primary, fallback).createThumbnail(original, output, 10, 20);
+        verify(fallback).createThumbnail(original, output, 10, 20);
+    }
+
+    @Test(expected = UnsupportedImageTypeException.class)
+    public void testNoSupportingEngine() throws Exception {
+        final ThumbnailEngine primary = mock(ThumbnailEngine.class);
+        final OutputStream output = new ByteArrayOutputStream();
+        doThrow(new UnsupportedImageTypeException("unsupported")).when(primary).createThumbnail(original, output, 10, 20);
+
+        new FallbackThumbnailEngine(primary).createThumbnail(original, output, 10, 20);
+    }
+}
@@ -8,16 +8,22 @@ import edu.virginia.lib.covers.Identifier;
 import edu.virginia.lib.covers.ImageMetadata;
 import edu.virginia.lib.covers.cache.filesystem.FileBinaryCacheTest;
 import edu.virginia.lib.covers.imagemagick.ImageMagickProcess;
+import org.apache.commons.io.IOUtils;
 import org.junit.Assert;
 import org.junit.Test;
 import org.slf4j.Logger;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.when;
@@ -102,6 +108,122 @@ public class SimpleCoverServiceTest {
         Assert.assertFalse("Second request should be completed!", t1.isAlive());
     }
 
+    /**
+     * This test involves a burst of identical requests, all of which should
+     * wait for and share the result of the first rather than each querying
+     * the underlying CoverSource.
+     */
+    @Test
+    public void testContendedSearch() throws Exception {
+        final Cop cop = new Cop();
+        final CoverImage response = mock(CoverImage.class);
+        when(response.getInputStream()).thenReturn(getClass().getClassLoader().getResourceAsStream("test.bmp"));
+        when(response.getId()).thenReturn(SAMPLE_ISBN.get(0));
+        final MockCoverSource source = new MockCoverSource(cop, response);
+        final SimpleCoverService service = new SimpleCoverService();
+        service.addCoverSource(source);
+
+        final Thread t1 = new Thread(new RequestRunnable(service, SAMPLE_ISBN, MAX_WIDTH, MAX_HEIGHT));
+        cop.issueWarrant(t1);
+        t1.start();
+        cop.waitForCapture(DEADLOCK_TIME, t1);
+
+        final RequestRunnable[] requests = new RequestRunnable[20];
+        final Thread[] threads = new Thread[requests.length];
+        for (int i = 0; i < requests.length; i ++) {
+            requests[i] = new RequestRunnable(service, SAMPLE_ISBN, MAX_WIDTH, MAX_HEIGHT);
+            threads[i] = new Thread(requests[i]);
+            threads[i].start();
+        }
+        threads[0].join(DEADLOCK_TIME / 4);
+        for (Thread t : threads) {
+            Assert.assertTrue("Identical requests should be waiting for the first!", t.isAlive());
+        }
+
+        cop.pardon(t1);
+        t1.join(DEADLOCK_TIME);
+        for (int i = 0; i < threads.length; i ++) {
+            threads[i].join(DEADLOCK_TIME);
+            Assert.assertFalse("DEADLOCK DETECTED!", threads[i].isAlive());
+            Assert.assertNotNull("Every request should get the shared result!", requests[i].getResult());
+        }
+        Assert.assertEquals("The CoverSource should only have been accessed once!", 1, source.getRequestCount());
+    }
+
+    /**
+     * This test involves a burst of identical requests for a cover that none
+     * of the sources have, all of which should share the first's finding that
+     * there is none rather than each querying the underlying CoverSource.
+     */
+    @Test
+    public void testContendedSearchWithoutCover() throws Exception {
+        final Cop cop = new Cop();
+        final MockCoverSource source = new MockCoverSource(cop, null);
+        final SimpleCoverService service = new SimpleCoverService();
+        service.addCoverSource(source);
+
+        final Thread t1 = new Thread(new RequestRunnable(service, SAMPLE_ISBN, MAX_WIDTH, MAX_HEIGHT));
+        cop.issueWarrant(t1);
+        t1.start();
+        cop.waitForCapture(DEADLOCK_TIME, t1);
+
+        final Thread[] threads = new Thread[20];
+        for (int i = 0; i < threads.length; i ++) {
+            threads[i] = new Thread(new RequestRunnable(service, SAMPLE_ISBN, MAX_WIDTH, MAX_HEIGHT));
+            threads[i].start();
+        }
+        threads[0].join(DEADLOCK_TIME / 4);
+
+        cop.pardon(t1);
+        t1.join(DEADLOCK_TIME);
+        for (Thread t : threads) {
+            t.join(DEADLOCK_TIME);
+            Assert.assertFalse("DEADLOCK DETECTED!", t.isAlive());
+        }
+        Assert.assertEquals("The CoverSource should only have been accessed once!", 1, source.getRequestCount());
+    }
+
+    /**
+     * This test involves two requests whose identifiers overlap but differ
+     * (and are in a different order).  The second should wait for the first
+     * and then query the source only for the identifier the first didn't.
+     */
+    @Test
+    public void testOverlappingSearches() throws Exception {
+        final Cop cop = new Cop();
+        final MockCoverSource source = new MockCoverSource(cop, null);
+        FileBinaryCacheTest cacheTest = new FileBinaryCacheTest();
+        final BinaryCache cache = cacheTest.getNewCache();
+        final SimpleCoverService service = new SimpleCoverService();
+        service.addCoverSource(source);
+        service.setCoverCache(cache);
+        final Identifier oclc = Identifier.OCLC("5678");
+
+        try {
+            final Thread t1 = new Thread(new RequestRunnable(service, SAMPLE_ISBN, MAX_WIDTH, MAX_HEIGHT));
+            cop.issueWarrant(t1);
+            t1.start();
+            cop.waitForCapture(DEADLOCK_TIME, t1);
+
+            final Thread t2 = new Thread(new RequestRunnable(service, Arrays.asList(oclc, SAMPLE_ISBN.get(0)), MAX_WIDTH, MAX_HEIGHT));
+            t2.start();
+            t2.join(DEADLOCK_TIME / 4);
+            Assert.assertTrue("The overlapping request should be waiting for the first!", t2.isAlive());
+            Assert.assertEquals(1, source.getRequestCount());
+
+            cop.pardon(t1);
+            t1.join(DEADLOCK_TIME);
+            t2.join(DEADLOCK_TIME);
+            Assert.assertFalse("DEADLOCK DETECTED!", t2.isAlive());
+            Assert.assertEquals("The source should have been queried once more!", 2, source.getRequestCount());
+            Assert.assertEquals("Only the identifier not already searched should have been queried!",
+                    Arrays.asList(oclc), source.getLastIdentifiers());
+            Assert.assertTrue(cache.isNoContent(service.getCacheKeyForCoverImage(oclc)));
+        } finally {
+            cacheTest.cleanUpCache(cache);
+        }
+    }
+
     /**
      * Tests that when a cache is available:
      * 1.  Subsequent requests for the same content do not hit the CoverSource
@@ -164,6 +286,71 @@ public class SimpleCoverServiceTest {
 
     }
 
+    /**
+     * This test involves a request for an already scaled image that arrives
+     * while a request for another size of the same item is busy querying the
+     * source.  The cache hit should not wait for the miss.
+     */
+    @Test
+    public void testCacheHitNotBlockedByMiss() throws Exception {
+        final Cop cop = new Cop();
+        final MockCoverSource source = new MockCoverSource(cop, null);
+        FileBinaryCacheTest cacheTest = new FileBinaryCacheTest();
+        final BinaryCache cache = cacheTest.getNewCache();
+        final SimpleCoverService service = new SimpleCoverService();
+        service.addCoverSource(source);
+        service.setCoverCache(cache);
+        cache.storeContent(service.getCacheKeyForCoverImage(SAMPLE_ISBN.get(0), MAX_WIDTH, MAX_HEIGHT),
+                getClass().getClassLoader().getResourceAsStream("test.jpg"));
+
+        try {
+            // make a request that misses and is held up in the source
+            final Thread t1 = new Thread(new RequestRunnable(service, SAMPLE_ISBN, MAX_WIDTH / 2, MAX_HEIGHT / 2));
+            cop.issueWarrant(t1);
+            t1.start();
+            cop.waitForCapture(DEADLOCK_TIME, t1);
+
+            // make a request that hits the cache
+            final RequestRunnable request2 = new RequestRunnable(service, SAMPLE_ISBN, MAX_WIDTH, MAX_HEIGHT);
+            final Thread t2 = new Thread(request2);
+            t2.start();
+            t2.join(DEADLOCK_TIME);
+            Assert.assertFalse("Cache hit was blocked waiting for an unrelated miss!", t2.isAlive());
+            Assert.assertNotNull("The cached scaled image should have been returned!", request2.getResult());
+            request2.getResult().close();
+
+            cop.pardon(t1);
+            t1.join(DEADLOCK_TIME);
+            Assert.assertFalse("Request 1 should have completed!", t1.isAlive());
+        } finally {
+            cacheTest.cleanUpCache(cache);
+        }
+    }
+
+    /**
+     * Asking only for a cached image should never query the source.
+     */
+    @Test
+    public void testCachedCoverImageOnly() throws Exception {
+        final MockCoverSource source = new MockCoverSource(new Cop(), null);
+        FileBinaryCacheTest cacheTest = new FileBinaryCacheTest();
+        final BinaryCache cache = cacheTest.getNewCache();
+        final SimpleCoverService service = new SimpleCoverService();
+        service.addCoverSource(source);
+        service.setCoverCache(cache);
+        try {
+            Assert.assertNull("Nothing should be cached yet!", service.getCachedCoverImage(SAMPLE_ISBN, MAX_WIDTH, MAX_HEIGHT));
+            cache.storeContent(service.getCacheKeyForCoverImage(SAMPLE_ISBN.get(0), MAX_WIDTH, MAX_HEIGHT),
+                    getClass().getClassLoader().getResourceAsStream("test.jpg"));
+            final InputStream cached = service.getCachedCoverImage(SAMPLE_ISBN, MAX_WIDTH, MAX_HEIGHT);
+            Assert.assertNotNull("The cached scaled image should have been returned!", cached);
+            cached.close();
+            Assert.assertEquals("The source should never have been queried!", 0, source.getRequestCount());
+        } finally {
+            cacheTest.cleanUpCache(cache);
+        }
+    }
+
     /**
      * This test involves caching and two searches for the same item that fail.
      * If correctly implemented the CoverService will only query the source
@@ -191,6 +378,131 @@ public class SimpleCoverServiceTest {
         Assert.assertEquals("No subsequent request should have been made against the source!", 1, source.getRequestCount());
     }
 
+    /**
+     * With a source executor all sources are queried at once, but the result
+     * of a lower priority source that answers first must not be used until
+     * the higher priority source has answered.
+     */
+    @Test
+    public void testParallelSourcesPreferPriority() throws Exception {
+        final CountDownLatch lowQueried = new CountDownLatch(1);
+        final CountDownLatch releaseHigh = new CountDownLatch(1);
+        final SimpleCoverService service = new SimpleCoverService();
+        service.setSourceExecutor(Executors.newCachedThreadPool());
+        service.addCoverSource(new CoverSource() {
+            @Override
+            public CoverImage getCoverImage(List<Identifier> identifiers) throws IOException {
+                try {
+                    releaseHigh.await();
+                } catch (InterruptedException ex) {
+                    throw new RuntimeException(ex);
+                }
+                return mockCoverImage("high", identifiers.get(0));
+            }
+        });
+        service.addCoverSource(new CoverSource() {
+            @Override
+            public CoverImage getCoverImage(List<Identifier> identifiers) throws IOException {
+                lowQueried.countDown();
+                return mockCoverImage("low", identifiers.get(0));
+            }
+        });
+        try {
+            final RequestRunnable request = new RequestRunnable(service, SAMPLE_ISBN, MAX_WIDTH, MAX_HEIGHT);
+            final Thread t = new Thread(request);
+            t.start();
+            Assert.assertTrue("The lower priority source should be queried while the higher priority one is busy!", lowQueried.await(DEADLOCK_TIME, TimeUnit.MILLISECONDS));
+            releaseHigh.countDown();
+            t.join(DEADLOCK_TIME);
+            Assert.assertFalse("DEADLOCK DETECTED!", t.isAlive());
+            Assert.assertEquals("The higher priority result should be used!", "high", IOUtils.toString(request.getResult()));
+        } finally {
+            service.close();
+        }
+    }
+
+    /**
+     * With a source executor a lower priority result is used when every
+     * higher priority source finds nothing.
+     */
+    @Test
+    public void testParallelSourcesFallBack() throws Exception {
+        final SimpleCoverService service = new SimpleCoverService();
+        service.setSourceExecutor(Executors.newCachedThreadPool());
+        service.addCoverSource(new CoverSource() {
+            @Override
+            public CoverImage getCoverImage(List<Identifier> identifiers) throws IOException {
+                return null;
+            }
+        });
+        service.addCoverSource(new CoverSource() {
+            @Override
+            public CoverImage getCoverImage(List<Identifier> identifiers) throws IOException {
+                throw new IOException("expected");
+            }
+        });
+        service.addCoverSource(new CoverSource() {
+            @Override
+            public CoverImage getCoverImage(List<Identifier> identifiers) throws IOException {
+                return mockCoverImage("low", identifiers.get(0));
+            }
+        });
+        try {
+            Assert.assertEquals("low", IOUtils.toString(service.getCoverImage(SAMPLE_ISBN, MAX_WIDTH, MAX_HEIGHT)));
+        } finally {
+            service.close();
+        }
+    }
+
+    /**
+     * Once a result is used, the queries of lower priority sources that are
+     * still running should be cancelled.
+     */
+    @Test
+    public void testParallelSourcesCancelLosers() throws Exception {
+        final CountDownLatch lowQueried = new CountDownLatch(1);
+        final CountDownLatch cancelled = new CountDownLatch(1);
+        final SimpleCoverService service = new SimpleCoverService();
+        service.setSourceExecutor(Executors.newCachedThreadPool());
+        service.addCoverSource(new CoverSource() {
+            @Override
+            public CoverImage getCoverImage(List<Identifier> identifiers) throws IOException {
+                // make sure the lower priority query is running, not just queued
+                try {
+                    lowQueried.await(DEADLOCK_TIME, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException ex) {
+                    throw new RuntimeException(ex);
+                }
+                return mockCoverImage("high", identifiers.get(0));
+            }
+        });
+        service.addCoverSource(new CoverSource() {
+            @Override
+            public CoverImage getCoverImage(List<Identifier> identifiers) throws IOException {
+                lowQueried.countDown();
+                try {
+                    Thread.sleep(DEADLOCK_TIME * 10);
+                } catch (InterruptedException ex) {
+                    cancelled.countDown();
+                }
+                return null;
+            }
+        });
+        try {
+            Assert.assertEquals("high", IOUtils.toString(service.getCoverImage(SAMPLE_ISBN, MAX_WIDTH, MAX_HEIGHT)));
+            Assert.assertTrue("The lower priority query should have been cancelled!", cancelled.await(DEADLOCK_TIME, TimeUnit.MILLISECONDS));
+        } finally {
+            service.close();
+        }
+    }
+
+    private static CoverImage mockCoverImage(String content, Identifier id) throws IOException {
+        final CoverImage image = mock(CoverImage.class);
+        when(image.getInputStream()).thenReturn(new ByteArrayInputStream(content.getBytes("UTF-8")));
+        when(image.getId()).thenReturn(id);
+        return image;
+    }
+
     private static class RequestRunnable implements Runnable {
 
         private CoverService service;
@@ -312,6 +624,8 @@ public class SimpleCoverServiceTest {
 
         private int requestCount;
 
+        private List<Identifier> lastIdentifiers;
+
         private Cop cop;
 
         private CoverImage response;
@@ -324,6 +638,7 @@ public class SimpleCoverServiceTest {
         @Override
         public CoverImage getCoverImage(List<Identifier> identifiers) throws IOException {
             requestCount ++;
+            lastIdentifiers = new ArrayList<Identifier>(identifiers);
             LOGGER.debug("getCoverImage invoked by thread " + Thread.currentThread().getName());
             cop.amIFreeToGo();
             return response;
@@ -332,5 +647,9 @@ public class SimpleCoverServiceTest {
         public int getRequestCount() {
             return requestCount;
         }
+
+        public List<Identifier> getLastIdentifiers() {
+            return lastIdentifiers;
+        }
     }
 }
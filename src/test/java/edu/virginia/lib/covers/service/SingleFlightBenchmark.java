@@ -0,0 +1,151 @@
+package edu.virginia.lib.covers.service;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Compares the CPU consumed by 200 concurrent requests for the same cover
+ * when they are coordinated by a SingleFlight with the CPU consumed when they
+ * are coordinated by spinning on Thread.yield() around a shared monitor (the
+ * mechanism SimpleCoverService used previously).  In each case the first
+ * request takes FETCH_TIME ms to "fetch" the cover and every other request
+ * uses its result.
+ *
+ * This is not run as part of the normal build, run it with:
+ * mvn test -Dtest=SingleFlightBenchmark
+ */
+public class SingleFlightBenchmark {
+
+    private static final int REQUESTS = 200;
+
+    private static final int FETCH_TIME = 500;
+
+    private static final int ITERATIONS = 5;
+
+    @Test
+    public void compareCoordinationCpuUsage() throws Exception {
+        final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (!threads.isCurrentThreadCpuTimeSupported()) {
+            System.out.println("Thread CPU time measurement is not supported by this JVM.");
+            return;
+        }
+        threads.setThreadCpuTimeEnabled(true);
+
+        // warm up both implementations
+        run(new SpinYieldCoordinator());
+        run(new SingleFlightCoordinator());
+
+        System.out.println("Coordination of " + REQUESTS + " concurrent requests for one cover (" + FETCH_TIME + " ms fetch)");
+        for (int i = 0; i < ITERATIONS; i ++) {
+            report("spin-and-yield", run(new SpinYieldCoordinator()));
+            report("single-flight ", run(new SingleFlightCoordinator()));
+        }
+    }
+
+    private void report(String name, long[] result) {
+        System.out.println(String.format("  %s: %6d ms wall, %8.1f ms total CPU", name, result[0], result[1] / 1000000d));
+    }
+
+    /**
+     * Runs REQUESTS concurrent requests and returns the elapsed wall clock
+     * time in ms and the total CPU time used by the requesting threads in ns.
+     */
+    private long[] run(final Coordinator coordinator) throws InterruptedException {
+        final AtomicLong cpuTime = new AtomicLong();
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(REQUESTS);
+        for (int i = 0; i < REQUESTS; i ++) {
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+                    try {
+                        start.await();
+                        coordinator.getCover();
+                    } catch (Exception ex) {
+                        throw new RuntimeException(ex);
+                    } finally {
+                        cpuTime.addAndGet(threads.getCurrentThreadCpuTime());
+                        done.countDown();
+                    }
+                }
+            }).start();
+        }
+        final long startTime = System.currentTimeMillis();
+        start.countDown();
+        done.await();
+        return new long[] { System.currentTimeMillis() - startTime, cpuTime.get() };
+    }
+
+    private static void fetch() throws InterruptedException {
+        Thread.sleep(FETCH_TIME);
+    }
+
+    private interface Coordinator {
+        public Object getCover() throws Exception;
+    }
+
+    private static class SingleFlightCoordinator implements Coordinator {
+
+        private final SingleFlight<String, Object> flight = new SingleFlight<String, Object>();
+
+        private volatile Object cached;
+
+        public Object getCover() throws IOException {
+            return flight.execute("ISBN/1234", new Callable<Object>() {
+                @Override
+                public Object call() throws Exception {
+                    if (cached == null) {
+                        fetch();
+                        cached = new Object();
+                    }
+                    return cached;
+                }
+            });
+        }
+    }
+
+    private static class SpinYieldCoordinator implements Coordinator {
+
+        private final Set<String> lockedIds = new HashSet<String>();
+
+        private final Set<String> ids = Collections.singleton("ISBN/1234");
+
+        private volatile Object cached;
+
+        public Object getCover() throws InterruptedException {
+            boolean acquired = false;
+            while (!acquired) {
+                synchronized (lockedIds) {
+                    if (Collections.disjoint(lockedIds, ids)) {
+                        lockedIds.addAll(ids);
+                        acquired = true;
+                    }
+                }
+                if (!acquired) {
+                    Thread.yield();
+                }
+            }
+            try {
+                if (cached == null) {
+                    fetch();
+                    cached = new Object();
+                }
+                return cached;
+            } finally {
+                synchronized (lockedIds) {
+                    lockedIds.removeAll(ids);
+                }
+            }
+        }
+    }
+}
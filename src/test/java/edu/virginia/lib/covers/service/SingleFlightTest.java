@@ -0,0 +1,308 @@
+package edu.virginia.lib.covers.service;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class SingleFlightTest {
+
+    private static final int DEADLOCK_TIME = 2000;
+
+    private static final int CALLERS = 50;
+
+    /**
+     * Many concurrent callers for the same key should result in the work
+     * being done exactly once, with every caller receiving that result.
+     */
+    @Test
+    public void testConcurrentCallersShareResult() throws Exception {
+        final SingleFlight<String, Object> flight = new SingleFlight<String, Object>();
+        final AtomicInteger invocations = new AtomicInteger();
+        final CountDownLatch release = new CountDownLatch(1);
+        final Object expected = new Object();
+        final Callable<Object> work = new Callable<Object>() {
+            @Override
+            public Object call() throws Exception {
+                invocations.incrementAndGet();
+                release.await();
+                return expected;
+            }
+        };
+
+        final List<FlightRunnable> requests = new ArrayList<FlightRunnable>();
+        final List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < CALLERS; i ++) {
+            final FlightRunnable r = new FlightRunnable(flight, "key", work);
+            final Thread t = new Thread(r);
+            requests.add(r);
+            threads.add(t);
+            t.start();
+        }
+
+        // wait until every caller but the first is parked on the first
+        final long timeout = System.currentTimeMillis() + DEADLOCK_TIME;
+        while (flight.getJoinCount() < CALLERS - 1 && System.currentTimeMillis() < timeout) {
+            Thread.sleep(10);
+        }
+        Assert.assertEquals("All but one caller should be waiting on the in-flight work!", CALLERS - 1, flight.getJoinCount());
+        Assert.assertEquals("Exactly one key should be in flight!", 1, flight.getInFlightCount());
+
+        release.countDown();
+        for (Thread t : threads) {
+            t.join(DEADLOCK_TIME);
+            Assert.assertFalse("DEADLOCK DETECTED!", t.isAlive());
+        }
+        Assert.assertEquals("The work should have been performed exactly once!", 1, invocations.get());
+        for (FlightRunnable r : requests) {
+            Assert.assertSame("Every caller should receive the same result!", expected, r.getResult());
+        }
+        Assert.assertEquals("Nothing should remain in flight!", 0, flight.getInFlightCount());
+    }
+
+    /**
+     * Two callers with different keys must be able to work at the same time.
+     * Each unit of work here waits for the other to start, so this would
+     * time out if one blocked the other.
+     */
+    @Test
+    public void testDifferentKeysDoNotBlock() throws Exception {
+        final SingleFlight<String, Object> flight = new SingleFlight<String, Object>();
+        final CyclicBarrier barrier = new CyclicBarrier(2);
+        final Callable<Object> work = new Callable<Object>() {
+            @Override
+            public Object call() throws Exception {
+                return barrier.await(DEADLOCK_TIME, TimeUnit.MILLISECONDS);
+            }
+        };
+        final FlightRunnable r1 = new FlightRunnable(flight, "key1", work);
+        final FlightRunnable r2 = new FlightRunnable(flight, "key2", work);
+        final Thread t1 = new Thread(r1);
+        final Thread t2 = new Thread(r2);
+        t1.start();
+        t2.start();
+        t1.join(DEADLOCK_TIME * 2);
+        t2.join(DEADLOCK_TIME * 2);
+        Assert.assertNull("Request 1 was blocked waiting for unrelated request 2!", r1.getException());
+        Assert.assertNull("Request 2 was blocked waiting for unrelated request 1!", r2.getException());
+        Assert.assertEquals(2, flight.getExecutionCount());
+        Assert.assertEquals(0, flight.getJoinCount());
+    }
+
+    /**
+     * A failure should be reported to every caller waiting on the work.
+     */
+    @Test
+    public void testFailureSharedWithWaitingCallers() throws Exception {
+        final SingleFlight<String, Object> flight = new SingleFlight<String, Object>();
+        final CountDownLatch release = new CountDownLatch(1);
+        final Callable<Object> work = new Callable<Object>() {
+            @Override
+            public Object call() throws Exception {
+                release.await();
+                throw new IOException("expected");
+            }
+        };
+        final FlightRunnable r1 = new FlightRunnable(flight, "key", work);
+        final Thread t1 = new Thread(r1);
+        t1.start();
+        while (flight.getInFlightCount() == 0) {
+            Thread.sleep(10);
+        }
+        final FlightRunnable r2 = new FlightRunnable(flight, "key", work);
+        final Thread t2 = new Thread(r2);
+        t2.start();
+        while (flight.getJoinCount() == 0) {
+            Thread.sleep(10);
+        }
+        release.countDown();
+        t1.join(DEADLOCK_TIME);
+        t2.join(DEADLOCK_TIME);
+
+        Assert.assertTrue(r1.getException() instanceof IOException);
+        Assert.assertSame("The waiting caller should get the same exception!", r1.getException(), r2.getException());
+    }
+
+    /**
+     * Once work completes a subsequent call should perform it again.
+     */
+    @Test
+    public void testCompletedWorkIsNotRetained() throws Exception {
+        final SingleFlight<String, Integer> flight = new SingleFlight<String, Integer>();
+        final AtomicInteger invocations = new AtomicInteger();
+        final Callable<Integer> work = new Callable<Integer>() {
+            @Override
+            public Integer call() {
+                return invocations.incrementAndGet();
+            }
+        };
+        Assert.assertEquals(Integer.valueOf(1), flight.execute("key", work));
+        Assert.assertEquals(Integer.valueOf(2), flight.execute("key", work));
+        Assert.assertEquals(0, flight.getInFlightCount());
+    }
+
+    /**
+     * Work under several keys overlaps with work under any one of them: the
+     * second caller waits for the first and, since the filter rejects the
+     * first's result, then performs its own work.
+     */
+    @Test
+    public void testOverlappingKeysWaitThenRetry() throws Exception {
+        final SingleFlight<String, String> flight = new SingleFlight<String, String>();
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final Thread t1 = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    flight.execute(Arrays.asList("a"), new Callable<String>() {
+                        @Override
+                        public String call() throws Exception {
+                            started.countDown();
+                            release.await();
+                            return "a";
+                        }
+                    }, null);
+                } catch (IOException ex) {
+                    throw new RuntimeException(ex);
+                }
+            }
+        });
+        t1.start();
+        started.await();
+
+        final List<String> results = new ArrayList<String>();
+        final Thread t2 = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    results.add(flight.execute(Arrays.asList("b", "a"), new Callable<String>() {
+                        @Override
+                        public String call() {
+                            return "ab";
+                        }
+                    }, new SingleFlight.Filter<String>() {
+                        @Override
+                        public boolean accept(String result) {
+                            return result.contains("b");
+                        }
+                    }));
+                } catch (IOException ex) {
+                    throw new RuntimeException(ex);
+                }
+            }
+        });
+        t2.start();
+        while (flight.getJoinCount() == 0) {
+            Thread.sleep(10);
+        }
+        Assert.assertEquals("Only the first caller's keys should be in flight!", 1, flight.getInFlightCount());
+
+        release.countDown();
+        t1.join(DEADLOCK_TIME);
+        t2.join(DEADLOCK_TIME);
+        Assert.assertFalse("DEADLOCK DETECTED!", t2.isAlive());
+        Assert.assertEquals(Arrays.asList("ab"), results);
+        Assert.assertEquals(2, flight.getExecutionCount());
+        Assert.assertEquals(0, flight.getInFlightCount());
+    }
+
+    /**
+     * Callers whose keys are among those of the work in progress receive its
+     * result, even a null one, without performing any work of their own.
+     */
+    @Test
+    public void testCoveredKeysShareNullResult() throws Exception {
+        final SingleFlight<String, String> flight = new SingleFlight<String, String>();
+        final AtomicInteger invocations = new AtomicInteger();
+        final CountDownLatch release = new CountDownLatch(1);
+        final Callable<String> work = new Callable<String>() {
+            @Override
+            public String call() throws Exception {
+                invocations.incrementAndGet();
+                release.await();
+                return null;
+            }
+        };
+        final List<Thread> threads = new ArrayList<Thread>();
+        final AtomicInteger nulls = new AtomicInteger();
+        for (int i = 0; i < CALLERS; i ++) {
+            final List<String> keys = i == 0 ? Arrays.asList("a", "b") : (i % 2 == 0 ? Arrays.asList("b") : Arrays.asList("b", "a"));
+            final Thread t = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        if (flight.execute(keys, work, null) == null) {
+                            nulls.incrementAndGet();
+                        }
+                    } catch (IOException ex) {
+                        throw new RuntimeException(ex);
+                    }
+                }
+            });
+            threads.add(t);
+            t.start();
+            if (i == 0) {
+                while (invocations.get() == 0) {
+                    Thread.sleep(10);
+                }
+            }
+        }
+        final long timeout = System.currentTimeMillis() + DEADLOCK_TIME;
+        while (flight.getJoinCount() < CALLERS - 1 && System.currentTimeMillis() < timeout) {
+            Thread.sleep(10);
+        }
+        release.countDown();
+        for (Thread t : threads) {
+            t.join(DEADLOCK_TIME);
+            Assert.assertFalse("DEADLOCK DETECTED!", t.isAlive());
+        }
+        Assert.assertEquals("The work should have been performed exactly once!", 1, invocations.get());
+        Assert.assertEquals(CALLERS, nulls.get());
+        Assert.assertEquals(0, flight.getInFlightCount());
+    }
+
+    private static class FlightRunnable implements Runnable {
+
+        private SingleFlight<String, Object> flight;
+
+        private String key;
+
+        private Callable<Object> work;
+
+        private Object result;
+
+        private Exception exception;
+
+        public FlightRunnable(SingleFlight<String, Object> flight, String key, Callable<Object> work) {
+            this.flight = flight;
+            this.key = key;
+            this.work = work;
+        }
+
+        public Object getResult() {
+            return result;
+        }
+
+        public Exception getException() {
+            return exception;
+        }
+
+        @Override
+        public void run() {
+            try {
+                result = flight.execute(key, work);
+            } catch (Exception ex) {
+                exception = ex;
+            }
+        }
+    }
+}
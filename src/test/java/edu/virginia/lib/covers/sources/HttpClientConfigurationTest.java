@@ -0,0 +1,46 @@
+package edu.virginia.lib.covers.sources;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Properties;
+
+public class HttpClientConfigurationTest {
+
+    @Test
+    public void testPrefixedProperties() {
+        final Properties p = new Properties();
+        p.setProperty("googlebooks.connections.max", "100");
+        p.setProperty("googlebooks.connections.per-route", "40");
+        p.setProperty("googlebooks.timeout.connect.ms", "1000");
+        p.setProperty("googlebooks.timeout.socket.ms", "2000");
+        p.setProperty("googlebooks.timeout.connection-request.ms", "3000");
+        p.setProperty("googlebooks.keep-alive.ms", "4000");
+        p.setProperty("googlebooks.idle-eviction.ms", "5000");
+        p.setProperty("googlebooks.io-threads", "4");
+        p.setProperty("googlebooks.max-response-bytes", "6000");
+        p.setProperty("googlebooks.max-image-bytes", "7000");
+        p.setProperty("lastfm.connections.max", "7");
+        final HttpClientConfiguration c = new HttpClientConfiguration(p, "googlebooks");
+        Assert.assertEquals(100, c.getMaxConnections());
+        Assert.assertEquals(40, c.getMaxConnectionsPerRoute());
+        Assert.assertEquals(1000, c.getConnectTimeoutMillis());
+        Assert.assertEquals(2000, c.getSocketTimeoutMillis());
+        Assert.assertEquals(3000, c.getConnectionRequestTimeoutMillis());
+        Assert.assertEquals(4000, c.getKeepAliveMillis());
+        Assert.assertEquals(5000, c.getIdleEvictionMillis());
+        Assert.assertEquals(4, c.getIoThreads());
+        Assert.assertEquals(6000, c.getMaxResponseBytes());
+        Assert.assertEquals(7000, c.getMaxImageBytes());
+    }
+
+    @Test
+    public void testDefaults() {
+        final HttpClientConfiguration c = new HttpClientConfiguration(new Properties(), "lastfm");
+        final HttpClientConfiguration defaults = new HttpClientConfiguration();
+        Assert.assertEquals(defaults.getMaxConnections(), c.getMaxConnections());
+        Assert.assertEquals(defaults.getMaxConnectionsPerRoute(), c.getMaxConnectionsPerRoute());
+        Assert.assertEquals(defaults.getSocketTimeoutMillis(), c.getSocketTimeoutMillis());
+        Assert.assertTrue("Timeouts should be set by default!", c.getConnectTimeoutMillis() > 0 && c.getSocketTimeoutMillis() > 0 && c.getConnectionRequestTimeoutMillis() > 0);
+    }
+}
@@ -0,0 +1,134 @@
+package edu.virginia.lib.covers.sources;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import edu.virginia.lib.covers.CoverImage;
+import edu.virginia.lib.covers.Identifier;
+import org.apache.commons.io.IOUtils;
+import org.apache.http.client.methods.HttpGet;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A local web service for testing WebServiceCoverSource.  A query for an
+ * ISBN starting with "0" finds nothing (404), any other ISBN finds an image
+ * whose URL is the body of the response.  The "image" for an ISBN starting
+ * with "8" is an HTML page.  Every response is delayed by a
+ * configurable number of milliseconds to simulate a slow upstream service.
+ */
+public class StubWebService {
+
+    /**
+     * The prefix of the names of the threads that handle requests.
+     */
+    public static final String THREAD_PREFIX = "stub-web-service-";
+
+    public static final byte[] IMAGE = new byte[] { 1, 2, 3, 4 };
+
+    private final HttpServer server;
+
+    private final ExecutorService executor;
+
+    private final long delayMillis;
+
+    private final AtomicInteger requestCount = new AtomicInteger();
+
+    public StubWebService(int threads, long delayMillis) throws IOException {
+        this.delayMillis = delayMillis;
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 1000);
+        executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+            @Override
+            public Thread newThread(Runnable r) {
+                return new Thread(r, THREAD_PREFIX + count.incrementAndGet());
+            }
+        });
+        server.setExecutor(executor);
+        server.createContext("/query", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                final String isbn = exchange.getRequestURI().getQuery().substring("isbn=".length());
+                if (isbn.startsWith("0")) {
+                    respond(exchange, 404, "Not found".getBytes("UTF-8"));
+                } else {
+                    respond(exchange, 200, (getBaseURL() + "/image?isbn=" + isbn).getBytes("UTF-8"));
+                }
+            }
+        });
+        server.createContext("/image", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                if (exchange.getRequestURI().getQuery().startsWith("isbn=8")) {
+                    exchange.getResponseHeaders().set("Content-Type", "text/html");
+                    respond(exchange, 200, "<html></html>".getBytes("UTF-8"));
+                } else {
+                    exchange.getResponseHeaders().set("Content-Type", "image/jpeg");
+                    respond(exchange, 200, IMAGE);
+                }
+            }
+        });
+        server.start();
+    }
+
+    private void respond(HttpExchange exchange, int status, byte[] body) throws IOException {
+        requestCount.incrementAndGet();
+        try {
+            Thread.sleep(delayMillis);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        exchange.sendResponseHeaders(status, body.length);
+        final OutputStream out = exchange.getResponseBody();
+        out.write(body);
+        out.close();
+    }
+
+    public String getBaseURL() {
+        return "http://localhost:" + server.getAddress().getPort();
+    }
+
+    public int getRequestCount() {
+        return requestCount.get();
+    }
+
+    public void stop() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    /**
+     * A WebServiceCoverSource that queries a StubWebService.
+     */
+    public static class StubCoverSource extends WebServiceCoverSource {
+
+        private final StubWebService service;
+
+        public StubCoverSource(StubWebService service) {
+            this.service = service;
+        }
+
+        @Override
+        public String getName() {
+            return "stub";
+        }
+
+        @Override
+        protected String getQueryURL(List<Identifier> identifiers) {
+            return service.getBaseURL() + "/query?isbn=" + identifiers.get(0).getValue();
+        }
+
+        @Override
+        protected CoverImage parseQueryResponse(List<Identifier> identifiers, InputStream response) throws IOException {
+            return new WebServiceCoverImage(new HttpGet(IOUtils.toString(response)), identifiers.get(0));
+        }
+    }
+}
@@ -0,0 +1,187 @@
+package edu.virginia.lib.covers.sources;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.Logger;
+import edu.virginia.lib.covers.CoverImage;
+import edu.virginia.lib.covers.Identifier;
+import org.junit.Test;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Measures the threads used and the throughput achieved by 500 concurrent
+ * cover lookups that miss (404) against a local web service that takes
+ * DELAY ms to answer each request.  The non-blocking WebServiceCoverSource is
+ * compared with the thread-per-request model of a blocking HTTP client.
+ *
+ * This is not run as part of the normal build, run it with:
+ * mvn test -Dtest=WebServiceCoverSourceBenchmark
+ */
+public class WebServiceCoverSourceBenchmark {
+
+    private static final int REQUESTS = 500;
+
+    private static final int DELAY = 200;
+
+    private static final int ITERATIONS = 3;
+
+    @Test
+    public void compareConcurrentMisses() throws Exception {
+        // logging each 404 would dominate the measurement
+        ((Logger) LoggerFactory.getLogger(WebServiceCoverSource.class)).setLevel(Level.INFO);
+        // by default the stub server closes all but 200 idle connections,
+        // which the client would find out about only when reusing them
+        System.setProperty("sun.net.httpserver.maxIdleConnections", String.valueOf(REQUESTS));
+        final StubWebService service = new StubWebService(REQUESTS, DELAY);
+        final StubWebService.StubCoverSource source = new StubWebService.StubCoverSource(service);
+        final HttpClientConfiguration configuration = new HttpClientConfiguration();
+        configuration.setMaxConnections(REQUESTS);
+        configuration.setMaxConnectionsPerRoute(REQUESTS);
+        source.setHttpClientConfiguration(configuration);
+        try {
+            // warm up both implementations
+            runAsync(source);
+            runBlocking(service);
+
+            System.out.println(REQUESTS + " concurrent cover lookups that miss (" + DELAY + " ms response time)");
+            for (int i = 0; i < ITERATIONS; i ++) {
+                report("blocking, thread per request", runBlocking(service));
+                report("non-blocking               ", runAsync(source));
+            }
+        } finally {
+            source.close();
+            service.stop();
+        }
+    }
+
+    private void report(String name, long[] result) {
+        System.out.println(String.format("  %s: %6d ms, %7.1f lookups/s, %4d client threads", name, result[0], REQUESTS * 1000d / result[0], result[1]));
+    }
+
+    /**
+     * Looks up REQUESTS covers at once with getCoverImageAsync() from a single
+     * thread.
+     * @return the elapsed time in ms and the peak number of client threads
+     */
+    private long[] runAsync(final StubWebService.StubCoverSource source) throws Exception {
+        settle();
+        final ThreadCounter counter = new ThreadCounter();
+        final long start = System.currentTimeMillis();
+        final List<Future<CoverImage>> results = new ArrayList<Future<CoverImage>>();
+        for (int i = 0; i < REQUESTS; i ++) {
+            results.add(source.getCoverImageAsync(Collections.singletonList(Identifier.ISBN("0" + i))));
+        }
+        for (Future<CoverImage> result : results) {
+            if (result.get() != null) {
+                throw new IllegalStateException("Expected a miss!");
+            }
+        }
+        final long elapsed = System.currentTimeMillis() - start;
+        return new long[] { elapsed, counter.stop() };
+    }
+
+    /**
+     * Looks up REQUESTS covers at once each on its own thread with a blocking
+     * HTTP client.
+     * @return the elapsed time in ms and the peak number of client threads
+     */
+    private long[] runBlocking(final StubWebService service) throws Exception {
+        settle();
+        final ExecutorService executor = Executors.newFixedThreadPool(REQUESTS);
+        final ThreadCounter counter = new ThreadCounter();
+        final CountDownLatch done = new CountDownLatch(REQUESTS);
+        final AtomicInteger failures = new AtomicInteger();
+        final long start = System.currentTimeMillis();
+        for (int i = 0; i < REQUESTS; i ++) {
+            final String url = service.getBaseURL() + "/query?isbn=0" + i;
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        final HttpURLConnection c = (HttpURLConnection) new URL(url).openConnection();
+                        if (c.getResponseCode() != 404) {
+                            failures.incrementAndGet();
+                        }
+                        c.disconnect();
+                    } catch (IOException ex) {
+                        failures.incrementAndGet();
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            });
+        }
+        done.await();
+        final long elapsed = System.currentTimeMillis() - start;
+        final long threads = counter.stop();
+        executor.shutdown();
+        executor.awaitTermination(10, TimeUnit.SECONDS);
+        if (failures.get() > 0) {
+            throw new IllegalStateException(failures.get() + " requests failed!");
+        }
+        return new long[] { elapsed, threads };
+    }
+
+    /**
+     * Gives threads left over from the previous run time to exit so they
+     * aren't counted in the next.
+     */
+    private void settle() throws InterruptedException {
+        Thread.sleep(1000);
+    }
+
+    /**
+     * Samples the number of live threads, other than those of the stub web
+     * service, until stopped.
+     */
+    private static class ThreadCounter implements Runnable {
+
+        private final AtomicBoolean running = new AtomicBoolean(true);
+
+        private final Thread thread;
+
+        private volatile int max;
+
+        public ThreadCounter() {
+            thread = new Thread(this);
+            thread.start();
+        }
+
+        @Override
+        public void run() {
+            while (running.get()) {
+                int count = 0;
+                for (Thread t : Thread.getAllStackTraces().keySet()) {
+                    if (!t.getName().startsWith(StubWebService.THREAD_PREFIX)) {
+                        count ++;
+                    }
+                }
+                max = Math.max(max, count);
+                try {
+                    Thread.sleep(10);
+                } catch (InterruptedException ex) {
+                    return;
+                }
+            }
+        }
+
+        public int stop() throws InterruptedException {
+            running.set(false);
+            thread.join();
+            return max;
+        }
+    }
+}
@@ -0,0 +1,193 @@
+package edu.virginia.lib.covers.sources;
+
+import edu.virginia.lib.covers.CoverImage;
+import edu.virginia.lib.covers.Identifier;
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.SocketTimeoutException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+public class WebServiceCoverSourceTest {
+
+    private static final List<Identifier> FOUND = Arrays.asList(new Identifier[]{ Identifier.ISBN("1234")} );
+
+    private static final List<Identifier> NOT_AN_IMAGE = Arrays.asList(new Identifier[]{ Identifier.ISBN("8234")} );
+
+    private static final List<Identifier> MISSING = Arrays.asList(new Identifier[]{ Identifier.ISBN("0234")} );
+
+    private StubWebService service;
+
+    private StubWebService.StubCoverSource source;
+
+    @Before
+    public void setUp() throws Exception {
+        service = new StubWebService(4, 0);
+        source = new StubWebService.StubCoverSource(service);
+    }
+
+    @After
+    public void cleanUp() throws Exception {
+        source.close();
+        service.stop();
+    }
+
+    @Test
+    public void testCoverFound() throws Exception {
+        final CoverImage image = source.getCoverImage(FOUND);
+        Assert.assertNotNull(image);
+        Assert.assertEquals(FOUND.get(0), image.getId());
+        Assert.assertArrayEquals(StubWebService.IMAGE, IOUtils.toByteArray(image.getInputStream()));
+    }
+
+    @Test
+    public void testCoverMissing() throws Exception {
+        Assert.assertNull("A 404 response should mean no cover!", source.getCoverImage(MISSING));
+    }
+
+    @Test
+    public void testAsyncLookups() throws Exception {
+        final Future<CoverImage> found = source.getCoverImageAsync(FOUND);
+        final Future<CoverImage> missing = source.getCoverImageAsync(MISSING);
+        Assert.assertNotNull(found.get(2, TimeUnit.SECONDS));
+        Assert.assertNull(missing.get(2, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testCancelledLookup() throws Exception {
+        restart(2000, new HttpClientConfiguration());
+        final Future<CoverImage> result = source.getCoverImageAsync(FOUND);
+        Assert.assertTrue(result.cancel(true));
+        Assert.assertTrue(result.isCancelled());
+    }
+
+    /**
+     * With one connection per route concurrent lookups queue for the
+     * connection, which shows up in the lease statistics.
+     */
+    @Test
+    public void testConnectionPoolLimit() throws Exception {
+        restart(200, configuration(1, 10000, 5000));
+        final Future<CoverImage> first = source.getCoverImageAsync(MISSING);
+        final Future<CoverImage> second = source.getCoverImageAsync(MISSING);
+        Assert.assertNull(first.get(2, TimeUnit.SECONDS));
+        Assert.assertNull(second.get(2, TimeUnit.SECONDS));
+        final InstrumentedConnectionManager pool = source.getConnectionManager();
+        Assert.assertTrue(pool.getLeaseCount() >= 2);
+        Assert.assertTrue("The second request should have waited for the connection!", pool.getMaxLeaseWaitMillis() >= 150);
+        Assert.assertEquals(1, pool.getTotalStats().getMax());
+    }
+
+    @Test
+    public void testConnectionRequestTimeout() throws Exception {
+        restart(1000, configuration(1, 10000, 100));
+        final Future<CoverImage> first = source.getCoverImageAsync(MISSING);
+        try {
+            source.getCoverImage(MISSING);
+            Assert.fail("The request should have timed out waiting for a connection!");
+        } catch (Exception ex) {
+            // expected
+        }
+        Assert.assertEquals(1, source.getConnectionManager().getLeaseTimeoutCount());
+        Assert.assertNull(first.get(2, TimeUnit.SECONDS));
+    }
+
+    /**
+     * The I/O reactor only checks for timeouts about once a second, so the
+     * response is delayed well beyond that.
+     */
+    @Test(expected = SocketTimeoutException.class)
+    public void testSocketTimeout() throws Exception {
+        restart(3000, configuration(1, 100, 5000));
+        source.getCoverImage(MISSING);
+    }
+
+    @Test
+    public void testImageTooLarge() throws Exception {
+        final HttpClientConfiguration c = new HttpClientConfiguration();
+        c.setMaxImageBytes(StubWebService.IMAGE.length - 1);
+        restart(0, c);
+        final CoverImage image = source.getCoverImage(FOUND);
+        try {
+            image.getInputStream();
+            Assert.fail("An image over the size limit should be refused!");
+        } catch (IOException ex) {
+            // expected
+        }
+        assertConnectionsReleased();
+    }
+
+    @Test
+    public void testQueryResponseTooLarge() throws Exception {
+        final HttpClientConfiguration c = new HttpClientConfiguration();
+        c.setMaxResponseBytes(10);
+        restart(0, c);
+        try {
+            source.getCoverImage(FOUND);
+            Assert.fail("A query response over the size limit should be refused!");
+        } catch (IOException ex) {
+            // expected
+        }
+        assertConnectionsReleased();
+    }
+
+    @Test
+    public void testImageWithUnexpectedContentType() throws Exception {
+        final CoverImage image = source.getCoverImage(NOT_AN_IMAGE);
+        try {
+            image.getInputStream();
+            Assert.fail("A response that isn't an image should be refused!");
+        } catch (IOException ex) {
+            Assert.assertTrue(ex.getMessage().contains("text/html"));
+        }
+        assertConnectionsReleased();
+    }
+
+    @Test
+    public void testCancelledImageReleasesConnection() throws Exception {
+        restart(500, new HttpClientConfiguration());
+        final WebServiceCoverSource.WebServiceCoverImage image = (WebServiceCoverSource.WebServiceCoverImage) source.getCoverImage(FOUND);
+        final Future<InputStream> content = image.getInputStreamAsync();
+        Thread.sleep(100);
+        Assert.assertEquals(1, source.getConnectionManager().getTotalStats().getLeased());
+        Assert.assertTrue(content.cancel(true));
+        assertConnectionsReleased();
+    }
+
+    /**
+     * Every connection should be returned to the pool (or closed) once the
+     * requests using it have finished, however they finished.
+     */
+    private void assertConnectionsReleased() throws InterruptedException {
+        final long timeout = System.currentTimeMillis() + 2000;
+        while (source.getConnectionManager().getTotalStats().getLeased() > 0 && System.currentTimeMillis() < timeout) {
+            Thread.sleep(10);
+        }
+        Assert.assertEquals("A connection was leaked!", 0, source.getConnectionManager().getTotalStats().getLeased());
+    }
+
+    private HttpClientConfiguration configuration(int connections, int socketTimeout, int connectionRequestTimeout) {
+        final HttpClientConfiguration c = new HttpClientConfiguration();
+        c.setMaxConnectionsPerRoute(connections);
+        c.setMaxConnections(connections);
+        c.setSocketTimeoutMillis(socketTimeout);
+        c.setConnectionRequestTimeoutMillis(connectionRequestTimeout);
+        return c;
+    }
+
+    private void restart(long delay, HttpClientConfiguration configuration) throws Exception {
+        source.close();
+        service.stop();
+        service = new StubWebService(4, delay);
+        source = new StubWebService.StubCoverSource(service);
+        source.setHttpClientConfiguration(configuration);
+    }
+}
@@ -0,0 +1,181 @@
+package edu.virginia.lib.covers.sources.googlebooks;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import edu.virginia.lib.covers.CoverImage;
+import edu.virginia.lib.covers.Identifier;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests the GoogleBooksRequestCoalescer against a local imitation of the
+ * viewapi that has a thumbnail for every ISBN ending in an even digit.
+ */
+public class GoogleBooksRequestCoalescerTest {
+
+    private HttpServer server;
+
+    /**
+     * The bibkeys parameter of each query received.
+     */
+    private final List<String> queries = new CopyOnWriteArrayList<String>();
+
+    private GoogleBooksCoverSource source;
+
+    @Before
+    public void setUp() throws Exception {
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 100);
+        server.createContext("/books", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                final String query = exchange.getRequestURI().getRawQuery();
+                final String bibkeys = URLDecoder.decode(query.replaceAll(".*bibkeys=([^&]*).*", "$1"), "UTF-8");
+                queries.add(bibkeys);
+                final StringBuilder json = new StringBuilder();
+                for (String bibkey : bibkeys.split(",")) {
+                    json.append(json.length() == 0 ? "" : ",");
+                    json.append("\"" + bibkey + "\":{\"bib_key\":\"" + bibkey + "\",\"preview\":\"noview\"");
+                    if ((bibkey.charAt(bibkey.length() - 1) - '0') % 2 == 0) {
+                        json.append(",\"thumbnail_url\":\"http://localhost/thumbnail/" + bibkey + "\"");
+                    }
+                    json.append("}");
+                }
+                final byte[] body = ("CALLBACK({" + json + "});").getBytes("UTF-8");
+                exchange.sendResponseHeaders(200, body.length);
+                final OutputStream out = exchange.getResponseBody();
+                out.write(body);
+                out.close();
+            }
+        });
+        server.start();
+        source = new GoogleBooksCoverSource("http://localhost:" + server.getAddress().getPort() + "/books?jscmd=viewapi&bibkeys={query}&callback=CALLBACK");
+    }
+
+    @After
+    public void cleanUp() throws Exception {
+        source.close();
+        server.stop(0);
+    }
+
+    @Test
+    public void testConcurrentLookupsCombined() throws Exception {
+        source.setBatching(200, 40);
+        final List<Future<CoverImage>> results = lookUp(30);
+        for (int i = 0; i < results.size(); i ++) {
+            final CoverImage image = results.get(i).get(2, TimeUnit.SECONDS);
+            if (i % 2 == 0) {
+                Assert.assertNotNull(image);
+                Assert.assertEquals(isbn(i), image.getId());
+            } else {
+                Assert.assertNull(image);
+            }
+        }
+        Assert.assertEquals("30 lookups should have been made in one query!", 1, queries.size());
+        Assert.assertEquals(30, queries.get(0).split(",").length);
+        Assert.assertEquals(30, source.getCoalescer().getLookupCount());
+        Assert.assertEquals(1, source.getCoalescer().getQueryCount());
+    }
+
+    @Test
+    public void testFullBatchSentBeforeWindow() throws Exception {
+        source.setBatching(10000, 10);
+        final List<Future<CoverImage>> results = lookUp(20);
+        for (Future<CoverImage> result : results) {
+            result.get(2, TimeUnit.SECONDS);
+        }
+        Assert.assertEquals(2, queries.size());
+    }
+
+    @Test
+    public void testDuplicateLookupsShareKey() throws Exception {
+        source.setBatching(200, 40);
+        final List<Future<CoverImage>> results = new ArrayList<Future<CoverImage>>();
+        for (int i = 0; i < 5; i ++) {
+            results.add(source.getCoverImageAsync(Collections.singletonList(isbn(2))));
+        }
+        for (Future<CoverImage> result : results) {
+            Assert.assertEquals(isbn(2), result.get(2, TimeUnit.SECONDS).getId());
+        }
+        Assert.assertEquals(Collections.singletonList("ISBN:" + isbn(2).getValue()), queries);
+    }
+
+    @Test
+    public void testBatchingDisabled() throws Exception {
+        source.setBatching(0, 40);
+        for (Future<CoverImage> result : lookUp(3)) {
+            result.get(2, TimeUnit.SECONDS);
+        }
+        Assert.assertNull(source.getCoalescer());
+        Assert.assertEquals(3, queries.size());
+    }
+
+    /**
+     * Closing the source fails the lookups waiting for a batch to be sent and
+     * any made afterwards, rather than leaving them to wait forever.
+     */
+    @Test
+    public void testCloseFailsUnsentLookups() throws Exception {
+        source.setBatching(10000, 40);
+        final List<Future<CoverImage>> results = lookUp(3);
+        source.close();
+        results.addAll(lookUp(2));
+        for (Future<CoverImage> result : results) {
+            try {
+                result.get(2, TimeUnit.SECONDS);
+                Assert.fail("The lookup should have failed!");
+            } catch (ExecutionException ex) {
+                Assert.assertTrue(ex.getCause() instanceof IOException);
+            }
+        }
+        Assert.assertTrue("Nothing should have been sent!", queries.isEmpty());
+    }
+
+    /**
+     * An identifier containing a comma would add bibkeys to the query shared
+     * with other lookups, so it's looked up on its own.
+     */
+    @Test
+    public void testCommaNotBatched() throws Exception {
+        source.setBatching(200, 40);
+        final Future<CoverImage> injected = source.getCoverImageAsync(Collections.singletonList(Identifier.ISBN(isbn(2).getValue() + ",ISBN:" + isbn(4).getValue())));
+        final List<Future<CoverImage>> results = lookUp(1);
+        Assert.assertNull(injected.get(2, TimeUnit.SECONDS));
+        Assert.assertEquals(isbn(0), results.get(0).get(2, TimeUnit.SECONDS).getId());
+        Assert.assertEquals(2, queries.size());
+        Assert.assertTrue(queries.contains("ISBN:" + isbn(0).getValue()));
+        Assert.assertEquals(1, source.getCoalescer().getLookupCount());
+        try {
+            source.getCoalescer().getThumbnailUrl("ISBN:1,ISBN:2", null).get();
+            Assert.fail("The lookup should have been refused!");
+        } catch (ExecutionException ex) {
+            Assert.assertTrue(ex.getCause() instanceof IllegalArgumentException);
+        }
+    }
+
+    private List<Future<CoverImage>> lookUp(int count) {
+        final List<Future<CoverImage>> results = new ArrayList<Future<CoverImage>>();
+        for (int i = 0; i < count; i ++) {
+            results.add(source.getCoverImageAsync(Collections.singletonList(isbn(i))));
+        }
+        return results;
+    }
+
+    private Identifier isbn(int i) {
+        return Identifier.ISBN("978000000" + (1000 + i));
+    }
+}
@@ -0,0 +1,92 @@
+package edu.virginia.lib.covers.sources.googlebooks;
+
+import edu.virginia.lib.covers.BenchmarkTimer;
+import org.apache.commons.io.IOUtils;
+import org.json.JSONObject;
+import org.json.JSONTokener;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compares the time to extract the thumbnail_urls from viewapi responses
+ * for 1, 40 (the default batch size) and 200 bibkeys using the
+ * ViewApiResponseParser with the time taken by copying the response into a
+ * String, stripping the JSONP callback and building a JSONObject (as
+ * GoogleBooksCoverSource used to do).  Each book in the responses has the
+ * same members as real ones, with somewhat longer URLs.
+ *
+ * This is not run as part of the normal build, run it with:
+ * mvn test -Dtest=ViewApiResponseParserBenchmark
+ */
+public class ViewApiResponseParserBenchmark {
+
+    @Test
+    public void compareExtraction() throws Exception {
+        System.out.println("Extraction of thumbnail_urls from viewapi responses");
+        for (int books : new int[] { 1, 40, 200 }) {
+            final List<String> bibkeys = new ArrayList<String>();
+            final byte[] response = createResponse(books, bibkeys);
+            final int iterations = 2000000 / books;
+            BenchmarkTimer.report("JSONObject, " + books + " books, " + response.length + " bytes", BenchmarkTimer.nanosPerOperation(new BenchmarkTimer.Operation() {
+                @Override
+                public void run() throws Exception {
+                    extractWithJSONObject(new ByteArrayInputStream(response));
+                }
+            }, iterations / 10, iterations / 10));
+            BenchmarkTimer.report("ViewApiResponseParser, " + books + " books", BenchmarkTimer.nanosPerOperation(new BenchmarkTimer.Operation() {
+                @Override
+                public void run() throws Exception {
+                    ViewApiResponseParser.parseThumbnailUrls(new ByteArrayInputStream(response), bibkeys);
+                }
+            }, iterations / 10, iterations / 10));
+        }
+    }
+
+    private byte[] createResponse(int books, List<String> bibkeys) throws Exception {
+        final JSONObject o = new JSONObject();
+        for (int i = 0; i < books; i ++) {
+            final String bibkey = "ISBN:" + (9780000000000L + i * 7919L);
+            final String id = Long.toString(1000000000L + i * 104729L, 36).toUpperCase() + "AAAAJ";
+            bibkeys.add(bibkey);
+            o.put(bibkey, new JSONObject()
+                    .put("bib_key", bibkey)
+                    .put("info_url", "http://books.google.com/books?id=" + id + "&source=gbs_ViewAPI")
+                    .put("preview_url", "http://books.google.com/books?id=" + id + "&printsec=frontcover&source=gbs_ViewAPI")
+                    .put("thumbnail_url", "http://bks9.books.google.com/books?id=" + id + "&printsec=frontcover&img=1&zoom=5&edge=curl")
+                    .put("preview", "partial")
+                    .put("embeddable", true)
+                    .put("can_download_pdf", false)
+                    .put("can_download_epub", false)
+                    .put("is_pdf_drm_enabled", false)
+                    .put("is_epub_drm_enabled", false));
+        }
+        // the viewapi escapes '&' as it does here
+        return ("CALLBACK(" + o.toString().replace("&", "\\u0026") + ");").getBytes("UTF-8");
+    }
+
+    private Map<String, String> extractWithJSONObject(InputStream response) throws Exception {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        IOUtils.copy(response, baos);
+        response.close();
+        String jsonStr = new String(baos.toByteArray(), "UTF-8");
+        final Map<String, String> urls = new HashMap<String, String>();
+        jsonStr = jsonStr.substring("CALLBACK(".length(), jsonStr.length() - 2);
+        JSONObject o = new JSONObject(new JSONTokener(jsonStr));
+        for (Iterator<?> it = o.keys(); it.hasNext(); ) {
+            final String bibkey = (String) it.next();
+            final JSONObject book = o.getJSONObject(bibkey);
+            if (book.has("thumbnail_url")) {
+                urls.put(bibkey, book.getString("thumbnail_url"));
+            }
+        }
+        return urls;
+    }
+}
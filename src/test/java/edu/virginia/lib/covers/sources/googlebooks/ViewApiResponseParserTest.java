@@ -0,0 +1,72 @@
+package edu.virginia.lib.covers.sources.googlebooks;
+
+import org.json.JSONException;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+
+public class ViewApiResponseParserTest {
+
+    @Test
+    public void testExampleResponse() throws IOException {
+        final Map<String, String> urls = ViewApiResponseParser.parseThumbnailUrls(getClass().getClassLoader().getResourceAsStream("google-example.json"), null);
+        Assert.assertEquals(1, urls.size());
+        Assert.assertEquals("http://bks9.books.google.com/books?id=Sq8NAQAAIAAJ&printsec=frontcover&img=1&zoom=5", urls.get("OCLC:2680406"));
+    }
+
+    @Test
+    public void testEmptyResponse() throws IOException {
+        Assert.assertTrue(parse("CALLBACK({});", null).isEmpty());
+    }
+
+    @Test
+    public void testRequestedBibkeysOnly() throws IOException {
+        final String response = "CALLBACK({\"ISBN:1\":{\"bib_key\":\"ISBN:1\",\"thumbnail_url\":\"http://a\"},"
+                + " \"ISBN:2\" : { \"preview\" : \"noview\", \"nested\" : {\"thumbnail_url\" : \"http://wrong\"}, \"list\" : [1, -2.5e3, true, null, \"]}\"] },"
+                + "\"ISBN:3\":{\"embeddable\":false,\"thumbnail_url\":\"http://c?x=\\u0026y=\\\"z\\\"\"}});";
+        final Map<String, String> urls = parse(response, Arrays.asList("ISBN:2", "ISBN:3"));
+        Assert.assertEquals(1, urls.size());
+        Assert.assertNull("A nested thumbnail_url is not the book's!", urls.get("ISBN:2"));
+        Assert.assertEquals("http://c?x=&y=\"z\"", urls.get("ISBN:3"));
+        Assert.assertEquals("http://a", parse(response, null).get("ISBN:1"));
+    }
+
+    /**
+     * Once every requested bibkey has been found, the rest of the response
+     * (here truncated) should not matter.
+     */
+    @Test
+    public void testStopsWhenAllFound() throws IOException {
+        Assert.assertEquals("http://a", parse("CALLBACK({\"ISBN:1\":{\"thumbnail_url\":\"http://a\"},\"ISBN:2\":{\"thu", Collections.singleton("ISBN:1")).get("ISBN:1"));
+    }
+
+    @Test
+    public void testLongValues() throws IOException {
+        final StringBuilder url = new StringBuilder("http://books.google.com/");
+        while (url.length() < 10000) {
+            url.append("abcdefghij");
+        }
+        final Map<String, String> urls = parse("cb({\"ISBN:1\":{\"info_url\":\"" + url + "\",\"thumbnail_url\":\"" + url + "\"}})", null);
+        Assert.assertEquals(url.toString(), urls.get("ISBN:1"));
+    }
+
+    @Test(expected = JSONException.class)
+    public void testTruncatedResponse() throws IOException {
+        parse("CALLBACK({\"ISBN:1\":{\"thumbnail_url\":\"http://a", null);
+    }
+
+    @Test(expected = JSONException.class)
+    public void testNotJSONP() throws IOException {
+        parse("<html><body>Error</body></html>", null);
+    }
+
+    private Map<String, String> parse(String response, Collection<String> bibkeys) throws IOException {
+        return ViewApiResponseParser.parseThumbnailUrls(new ByteArrayInputStream(response.getBytes("UTF-8")), bibkeys);
+    }
+}
@@ -0,0 +1,131 @@
+package edu.virginia.lib.covers.sources.lastfm;
+
+import edu.virginia.lib.covers.BenchmarkTimer;
+import org.apache.commons.io.IOUtils;
+import org.junit.Test;
+
+import javax.xml.bind.JAXB;
+import javax.xml.bind.JAXBContext;
+import javax.xml.bind.annotation.XmlAttribute;
+import javax.xml.bind.annotation.XmlElement;
+import javax.xml.bind.annotation.XmlRootElement;
+import javax.xml.bind.annotation.XmlValue;
+import java.io.ByteArrayInputStream;
+
+/**
+ * Compares the time to find the mega image in LastFM album info responses
+ * using the StAX parser in LastFMAlbumInfoResponse with the time taken to
+ * unmarshal the response with JAXB.unmarshal() (as it used to be parsed)
+ * and with a JAXBContext created once and reused.  The responses are
+ * example-album-info.xml and a full response in the same form with the
+ * listeners, tracks, tags and wiki text that LastFM includes.
+ *
+ * This is not run as part of the normal build, run it with:
+ * mvn test -Dtest=LastFMAlbumInfoResponseBenchmark
+ */
+public class LastFMAlbumInfoResponseBenchmark {
+
+    @Test
+    public void compareParsing() throws Exception {
+        final JAXBContext context = JAXBContext.newInstance(JAXBResponse.class);
+        System.out.println("Parsing of LastFM album info responses");
+        for (final byte[] response : new byte[][] { IOUtils.toByteArray(getClass().getClassLoader().getResourceAsStream("example-album-info.xml")), createFullResponse() }) {
+            final String size = response.length + " bytes";
+            BenchmarkTimer.report("JAXB.unmarshal, " + size, BenchmarkTimer.nanosPerOperation(new BenchmarkTimer.Operation() {
+                @Override
+                public void run() throws Exception {
+                    JAXB.unmarshal(new ByteArrayInputStream(response), JAXBResponse.class).getMegaImageUrl();
+                }
+            }, 2000, 5000));
+            BenchmarkTimer.report("shared JAXBContext, " + size, BenchmarkTimer.nanosPerOperation(new BenchmarkTimer.Operation() {
+                @Override
+                public void run() throws Exception {
+                    ((JAXBResponse) context.createUnmarshaller().unmarshal(new ByteArrayInputStream(response))).getMegaImageUrl();
+                }
+            }, 10000, 20000));
+            BenchmarkTimer.report("StAX, " + size, BenchmarkTimer.nanosPerOperation(new BenchmarkTimer.Operation() {
+                @Override
+                public void run() throws Exception {
+                    LastFMAlbumInfoResponse.parse(new ByteArrayInputStream(response)).getMegaImageUrl();
+                }
+            }, 10000, 20000));
+        }
+    }
+
+    /**
+     * Creates a response shaped like a real one, with the images near the
+     * top of the album followed by a dozen tracks, tags and a long wiki.
+     */
+    private byte[] createFullResponse() throws Exception {
+        final StringBuilder xml = new StringBuilder("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<lfm status=\"ok\">\n<album>\n");
+        xml.append("    <name>Trust</name>\n    <artist>Low</artist>\n    <id>2010924</id>\n    <mbid>c9dd7d5b-5d34-4a5c-9b6c-1f3b1f8c4c3e</mbid>\n");
+        xml.append("    <url>http://www.last.fm/music/Low/Trust</url>\n    <releasedate>    17 Sep 2002, 00:00</releasedate>\n");
+        for (String size : new String[] { "small", "medium", "large", "extralarge", "mega" }) {
+            xml.append("    <image size=\"").append(size).append("\">http://userserve-ak.last.fm/serve/").append(size).append("/45998953.png</image>\n");
+        }
+        xml.append("    <listeners>81823</listeners>\n    <playcount>1037543</playcount>\n    <toptags>\n");
+        for (String tag : new String[] { "slowcore", "indie", "indie rock", "sadcore", "alternative" }) {
+            xml.append("        <tag><name>").append(tag).append("</name><url>http://www.last.fm/tag/").append(tag.replace(' ', '+')).append("</url></tag>\n");
+        }
+        xml.append("    </toptags>\n    <tracks>\n");
+        for (int i = 1; i <= 12; i ++) {
+            xml.append("        <track rank=\"").append(i).append("\">\n            <name>Track ").append(i).append("</name>\n");
+            xml.append("            <duration>").append(180 + i * 13).append("</duration>\n            <mbid></mbid>\n");
+            xml.append("            <url>http://www.last.fm/music/Low/_/Track+").append(i).append("</url>\n");
+            xml.append("            <streamable fulltrack=\"0\">0</streamable>\n");
+            xml.append("            <artist><name>Low</name><mbid>4e8cba27-f25c-4c25-8e0d-1c2a8e1f6c1c</mbid><url>http://www.last.fm/music/Low</url></artist>\n");
+            xml.append("        </track>\n");
+        }
+        xml.append("    </tracks>\n    <wiki>\n        <published>Tue, 21 Apr 2009 08:44:48 +0000</published>\n        <summary><![CDATA[");
+        for (int i = 0; i < 5; i ++) {
+            xml.append("Trust is the sixth full-length album by the American band Low. ");
+        }
+        xml.append("]]></summary>\n        <content><![CDATA[");
+        for (int i = 0; i < 60; i ++) {
+            xml.append("Trust is the sixth full-length album by the American band Low, released in 2002 on Kranky. ");
+        }
+        xml.append("]]></content>\n    </wiki>\n</album></lfm>\n");
+        return xml.toString().getBytes("UTF-8");
+    }
+
+    /**
+     * The JAXB binding that LastFMAlbumInfoResponse used to be.
+     */
+    @XmlRootElement(name="lfm")
+    private static class JAXBResponse {
+
+        @XmlAttribute
+        private String status;
+
+        @XmlElement
+        private Album album;
+
+        public String getMegaImageUrl() {
+            if (album != null && album.image != null) {
+                for (Image i : album.image) {
+                    if (i.size.equals("mega")) {
+                        return i.url.trim();
+                    }
+                }
+            }
+            return null;
+        }
+    }
+
+    private static class Album {
+
+        @XmlElement
+        private Image[] image;
+
+    }
+
+    private static class Image {
+
+        @XmlAttribute
+        private String size;
+
+        @XmlValue
+        private String url;
+
+    }
+}
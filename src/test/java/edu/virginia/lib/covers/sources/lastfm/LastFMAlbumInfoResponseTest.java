@@ -3,19 +3,49 @@ package edu.virginia.lib.covers.sources.lastfm;
 import org.junit.Assert;
 import org.junit.Test;
 
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+
 public class LastFMAlbumInfoResponseTest {
 
     @Test
-    public void simpleParseTest() {
+    public void simpleParseTest() throws Exception {
         LastFMAlbumInfoResponse r = LastFMAlbumInfoResponse.parse(this.getClass().getClassLoader().getResourceAsStream("example-album-info.xml"));
         Assert.assertTrue(r.albumFound());
         Assert.assertEquals("mega-url", r.getMegaImageUrl());
     }
 
     @Test
-    public void missingParseTest() {
+    public void missingParseTest() throws Exception {
         LastFMAlbumInfoResponse r = LastFMAlbumInfoResponse.parse(this.getClass().getClassLoader().getResourceAsStream("example-missing-album-info.xml"));
         Assert.assertFalse(r.albumFound());
         Assert.assertNull(r.getMegaImageUrl());
     }
+
+    /**
+     * Only the album's own mega image counts, and nothing after it (here
+     * something that isn't well formed) should be read.
+     */
+    @Test
+    public void stopsAtMegaImageTest() throws Exception {
+        LastFMAlbumInfoResponse r = LastFMAlbumInfoResponse.parse(new ByteArrayInputStream(("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+                + "<lfm status=\"ok\"><artist><image size=\"mega\">artist-url</image></artist>"
+                + "<album><tracks><track><image size=\"mega\">track-url</image></track></tracks>"
+                + "<image size=\"large\">large-url</image><image size=\"mega\">\n  mega-url\n</image>"
+                + "<wiki><content>&lt;unclosed").getBytes("UTF-8")));
+        Assert.assertEquals("mega-url", r.getMegaImageUrl());
+    }
+
+    @Test
+    public void noMegaImageTest() throws Exception {
+        LastFMAlbumInfoResponse r = LastFMAlbumInfoResponse.parse(new ByteArrayInputStream(
+                "<lfm status=\"ok\"><album><image size=\"small\">small-url</image></album></lfm>".getBytes("UTF-8")));
+        Assert.assertTrue(r.albumFound());
+        Assert.assertNull(r.getMegaImageUrl());
+    }
+
+    @Test(expected = IOException.class)
+    public void malformedResponseTest() throws Exception {
+        LastFMAlbumInfoResponse.parse(new ByteArrayInputStream("<html><body>Error".getBytes("UTF-8")));
+    }
 }